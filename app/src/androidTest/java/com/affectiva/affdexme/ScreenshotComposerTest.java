@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Encodes screenshots with PngEncoder straight from a ScreenshotComposer, decodes them and compares them with the
+ * composite compose() draws in one go. The stripes of the encoder do not line up with the tiles of the composer,
+ * so rows are asked for twice and from several threads, and any difference between two draws of a row shows up
+ * as corrupted pixels. This needs a device, since only a real Canvas draws the scaled and rotated frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScreenshotComposerTest {
+
+    @Test
+    public void encodedRowsMatchTheComposedScreenshot() throws IOException {
+        assumeTrue(PngEncoder.isSupported());
+        for (int rotation : new int[]{0, 90, 270}) {
+            checkComposer(640, 480, rotation);
+            checkComposer(1280, 720, rotation);
+        }
+    }
+
+    private void checkComposer(int frameWidth, int frameHeight, int rotation) throws IOException {
+        Random random = new Random(frameWidth + rotation);
+        Bitmap frame = createNoise(frameWidth, frameHeight, false, random);
+        Bitmap drawingView = createNoise(frameHeight * 2 / 3, frameWidth * 2 / 3, true, random);
+        Bitmap metrics = createNoise(frameHeight / 3 + 1, 50, true, random);
+        ScreenshotComposer composer = new ScreenshotComposer(frame, rotation, drawingView, metrics);
+        File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "ScreenshotComposerTest.png");
+        try {
+            new PngEncoder().encode(composer, composer.getWidth(), composer.getHeight(), composer.hasAlpha(), file);
+            Bitmap composed = composer.compose();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPremultiplied = false;
+            Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), options);
+
+            String name = frameWidth + "x" + frameHeight + " rotated by " + rotation;
+            assertEquals(name, composed.getWidth(), decoded.getWidth());
+            assertEquals(name, composed.getHeight(), decoded.getHeight());
+            int width = composed.getWidth();
+            int[] expected = new int[width];
+            int[] actual = new int[width];
+            for (int y = 0; y < composed.getHeight(); y++) {
+                composed.getPixels(expected, 0, width, 0, y, width, 1);
+                decoded.getPixels(actual, 0, width, 0, y, width, 1);
+                for (int x = 0; x < width; x++) {
+                    if (expected[x] != actual[x]) {
+                        assertEquals(name + " at " + x + ", " + y, Integer.toHexString(expected[x]), Integer.toHexString(actual[x]));
+                    }
+                }
+            }
+            composed.recycle();
+            decoded.recycle();
+        } finally {
+            composer.release();
+            file.delete();
+            frame.recycle();
+            drawingView.recycle();
+            metrics.recycle();
+        }
+    }
+
+    //noise scales and rotates with the most rounding, which is where draws at different offsets could differ
+    private static Bitmap createNoise(int width, int height, boolean hasAlpha, Random random) {
+        int[] colors = new int[width * height];
+        for (int n = 0; n < colors.length; n++) {
+            colors[n] = random.nextInt() | (hasAlpha ? 0 : 0xFF000000);
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(colors, 0, width, 0, 0, width, height);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
+}
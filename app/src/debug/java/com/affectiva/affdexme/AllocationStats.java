@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.os.Build;
+import android.os.Debug;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Reads the bytes allocated and the garbage collections run so far, for the benchmarks, without the deprecated
+ * Debug.startAllocCounting(). On a JVM, as in the unit tests, the bytes are those allocated by the calling thread.
+ * On Android 6.0 and later they come from the runtime's statistics and cover the whole process, so the allocations
+ * of other threads count too; the benchmarks run from the settings, where the camera and the detector are stopped,
+ * which keeps those few. Earlier versions of Android report neither, and the methods return -1.
+ * The JVM's management classes are not part of Android, so they are looked up by reflection.
+ */
+class AllocationStats {
+
+    private static final boolean IS_ANDROID = System.getProperty("java.vm.name", "").startsWith("Dalvik");
+
+    private AllocationStats() {
+    }
+
+    /**
+     * Whether getAllocatedBytes() counts the calling thread alone, rather than the whole process.
+     */
+    static boolean isPerThread() {
+        return !IS_ANDROID;
+    }
+
+    /**
+     * Returns the bytes allocated so far, or -1 if they are not reported.
+     */
+    static long getAllocatedBytes() {
+        if (IS_ANDROID) {
+            return getRuntimeStat("art.gc.bytes-allocated");
+        }
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1; //not a HotSpot JVM
+        }
+    }
+
+    /**
+     * Returns the number of garbage collections so far, or -1 if it is not reported.
+     */
+    static long getGcCount() {
+        if (IS_ANDROID) {
+            return getRuntimeStat("art.gc.gc-count");
+        }
+        try {
+            List<?> collectors = (List<?>) Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getGarbageCollectorMXBeans").invoke(null);
+            Method getCollectionCount = Class.forName("java.lang.management.GarbageCollectorMXBean").getMethod("getCollectionCount");
+            long count = 0;
+            for (Object collector : collectors) {
+                count += Math.max(0, (Long) getCollectionCount.invoke(collector));
+            }
+            return count;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long getRuntimeStat(String name) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Creates the development benchmarks offered in the settings. The benchmarks only exist in the debug source set,
+ * so none of them ship in release builds, where Benchmarks.create() always returns null.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Returns a new benchmark for the key of its preference, or null if there is no such benchmark.
+     */
+    @Nullable
+    static Benchmark create(@NonNull Context context, @NonNull String key) {
+        switch (key) {
+            case "benchmark_overlay":
+                return new OverlayRenderBenchmark(context);
+            case "benchmark_png":
+                return new PngEncoderBenchmark(context);
+            case "benchmark_score_text":
+                return new ScoreTextBenchmark();
+            case "benchmark_session_database":
+                return new SessionDatabaseBenchmark(context);
+            case "benchmark_face_data_codec":
+                return new FaceDataCodecBenchmark();
+            case "benchmark_session_analytics":
+                return new SessionAnalyticsBenchmark(context);
+            case "benchmark_correlation_matrix":
+                return new CorrelationMatrixBenchmark();
+            case "benchmark_metrics_server":
+                return new MetricsServerBenchmark();
+            case "benchmark_metrics_service":
+                return new MetricsServiceBenchmark(context);
+            case "benchmark_results_bus":
+                return new ResultsBusBenchmark();
+            default:
+                return null;
+        }
+    }
+}
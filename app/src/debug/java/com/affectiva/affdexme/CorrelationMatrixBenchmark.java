@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the per frame cost of CorrelationMatrix on a synthetic ten minute session at 20 FPS, with every metric
+ * and with only 6 metrics detected, and the cost of a snapshot. The scores are driven by a few shared factors so
+ * the metrics are correlated, and the streaming correlations are checked against a two pass computation over the
+ * same frames.
+ */
+public class CorrelationMatrixBenchmark implements Benchmark {
+
+    static final int FRAMES = 20 * 60 * 10;
+    static final int FACTORS = 3;
+    static final int SNAPSHOTS = 1000;
+    static final int[] DETECTED_METRIC_COUNTS = {PreferencesUtils.DEFAULT_METRIC_COUNT, MetricsManager.getAllMetrics().length};
+    private static final double MAX_ERROR = 1e-4;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    /**
+     * Runs every case and returns a human readable report. This takes a few seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (int detectedMetrics : DETECTED_METRIC_COUNTS) {
+            String result = runCase(detectedMetrics);
+            Log.i(LOG_TAG, "CorrelationMatrixBenchmark: " + result);
+            report.append(result).append('\n');
+        }
+        return report.toString();
+    }
+
+    private String runCase(int detectedMetrics) {
+        int metricCount = MetricsManager.getAllMetrics().length;
+        float[][] frames = createFrames(metricCount, detectedMetrics);
+
+        //warm up, then time the updates of a whole session
+        CorrelationMatrix matrix = new CorrelationMatrix(metricCount);
+        for (float[] frame : frames) {
+            matrix.add(frame);
+        }
+        matrix.clear();
+        long start = System.nanoTime();
+        for (float[] frame : frames) {
+            matrix.add(frame);
+        }
+        long addNanos = System.nanoTime() - start;
+
+        CorrelationMatrix.Snapshot snapshot = new CorrelationMatrix.Snapshot(metricCount);
+        start = System.nanoTime();
+        for (int n = 0; n < SNAPSHOTS; n++) {
+            matrix.snapshot(snapshot);
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        double maxError = getMaxError(frames, snapshot);
+        return String.format(Locale.US, "%2d metrics: %.2f us/frame, snapshot %.1f us, max error %.1e, %s",
+                detectedMetrics, addNanos / 1e3 / frames.length, snapshotNanos / 1e3 / SNAPSHOTS, maxError,
+                maxError <= MAX_ERROR ? "OK" : "FAILED");
+    }
+
+    /**
+     * Scores that mix a few slowly drifting factors with noise, with only the first detectedMetrics metrics detected.
+     */
+    private static float[][] createFrames(int metricCount, int detectedMetrics) {
+        Random random = new Random(SEED);
+        float[][] weights = new float[metricCount][FACTORS];
+        for (float[] metricWeights : weights) {
+            for (int f = 0; f < FACTORS; f++) {
+                metricWeights[f] = (float) random.nextGaussian();
+            }
+        }
+        float[] factors = new float[FACTORS];
+        float[][] frames = new float[FRAMES][metricCount];
+        for (float[] frame : frames) {
+            for (int f = 0; f < FACTORS; f++) {
+                factors[f] = 0.95f * factors[f] + 0.3f * (float) random.nextGaussian();
+            }
+            for (int m = 0; m < metricCount; m++) {
+                if (m >= detectedMetrics) {
+                    frame[m] = Float.NaN;
+                    continue;
+                }
+                float score = 50 + 5 * (float) random.nextGaussian();
+                for (int f = 0; f < FACTORS; f++) {
+                    score += 10 * weights[m][f] * factors[f];
+                }
+                frame[m] = Math.max(0, Math.min(100, score));
+            }
+        }
+        return frames;
+    }
+
+    //the largest difference between the snapshot's correlations and ones computed from the means in a second pass
+    private static double getMaxError(float[][] frames, CorrelationMatrix.Snapshot snapshot) {
+        int metricCount = snapshot.getMetricCount();
+        double[] means = new double[metricCount];
+        int[] counts = new int[metricCount];
+        for (float[] frame : frames) {
+            for (int m = 0; m < metricCount; m++) {
+                if (!Float.isNaN(frame[m])) {
+                    means[m] += frame[m];
+                    counts[m]++;
+                }
+            }
+        }
+        for (int m = 0; m < metricCount; m++) {
+            means[m] /= counts[m];
+        }
+
+        double maxError = 0;
+        for (int a = 0; a < metricCount; a++) {
+            for (int b = a; b < metricCount; b++) {
+                if (counts[a] == 0 || counts[b] == 0) {
+                    if (!Float.isNaN(snapshot.getCorrelation(a, b))) {
+                        return Double.POSITIVE_INFINITY;
+                    }
+                    continue;
+                }
+                double coMoment = 0;
+                double squaredA = 0;
+                double squaredB = 0;
+                for (float[] frame : frames) {
+                    double deltaA = frame[a] - means[a];
+                    double deltaB = frame[b] - means[b];
+                    coMoment += deltaA * deltaB;
+                    squaredA += deltaA * deltaA;
+                    squaredB += deltaB * deltaB;
+                }
+                double expected = coMoment / Math.sqrt(squaredA * squaredB);
+                maxError = Math.max(maxError, Math.abs(expected - snapshot.getCorrelation(a, b)));
+            }
+        }
+        return maxError;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures FaceDataCodec on synthetic sessions, and checks that every frame decodes to what was encoded.
+ * Each session is ten minutes at 20 FPS of faces that drift slowly, as a tracked face does, for 1 and 3 faces
+ * and with every metric or only 6 metrics detected. For each case we report the compression ratio against storing
+ * every value as a 4 byte number, the size of an hour at 30 FPS, the encoding and decoding throughput, and the
+ * largest point and score errors, which must stay within the quantization steps.
+ */
+public class FaceDataCodecBenchmark implements Benchmark {
+
+    static final int FRAMES_PER_SECOND = 20;
+    static final int SECONDS = 10 * 60;
+    static final int IMAGE_WIDTH = 480;
+    static final int IMAGE_HEIGHT = 640;
+    static final int[] FACE_COUNTS = {1, 3};
+    static final int[] DETECTED_METRIC_COUNTS = {PreferencesUtils.DEFAULT_METRIC_COUNT, MetricsManager.getAllMetrics().length};
+    private static final float MAX_POINT_ERROR = 0.5f / FaceDataCodec.POINT_SCALE;
+    private static final float MAX_SCORE_ERROR = 0.5f / 1.27f + 0.001f; //half a valence step, with room for float rounding
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    /**
+     * Runs every case and returns a human readable report. This takes several seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (int faceCount : FACE_COUNTS) {
+            for (int detectedMetrics : DETECTED_METRIC_COUNTS) {
+                String result;
+                try {
+                    result = runCase(faceCount, detectedMetrics);
+                } catch (IOException e) {
+                    result = "Failed: " + e.getMessage();
+                }
+                Log.i(LOG_TAG, "FaceDataCodecBenchmark: " + result);
+                report.append(result).append('\n');
+            }
+        }
+        return report.toString();
+    }
+
+    private String runCase(int faceCount, int detectedMetrics) throws IOException {
+        int frames = FRAMES_PER_SECOND * SECONDS;
+        FaceData[] faces = createFaces(faceCount);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+        //encode, timing only the encoder
+        Random random = new Random(SEED);
+        OverlayRenderBenchmark.createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED);
+        FaceDataCodec.Encoder encoder = new FaceDataCodec.Encoder(encoded);
+        long encodeNanos = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            step(faces, random, detectedMetrics);
+            long start = System.nanoTime();
+            encoder.writeFrame((float) frame / FRAMES_PER_SECOND, faces, faceCount);
+            encodeNanos += System.nanoTime() - start;
+        }
+        encoder.flush();
+
+        //decode, timing only the decoder, and compare with the same session generated again
+        random = new Random(SEED);
+        OverlayRenderBenchmark.createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED);
+        FaceData[] decodedFaces = createFaces(faceCount);
+        FaceDataCodec.Decoder decoder = new FaceDataCodec.Decoder(new ByteArrayInputStream(encoded.toByteArray()));
+        long decodeNanos = 0;
+        float maxPointError = 0;
+        float maxScoreError = 0;
+        int mismatches = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            step(faces, random, detectedMetrics);
+            long start = System.nanoTime();
+            int decodedCount = decoder.readFrame(decodedFaces);
+            decodeNanos += System.nanoTime() - start;
+
+            if (decodedCount != faceCount || Math.abs(decoder.getTimestamp() - (float) frame / FRAMES_PER_SECOND) > 0.001f) {
+                mismatches++;
+                continue;
+            }
+            for (int f = 0; f < faceCount; f++) {
+                FaceData original = faces[f];
+                FaceData decoded = decodedFaces[f];
+                if (original.getId() != decoded.getId() || original.getGender() != decoded.getGender()
+                        || original.getGlasses() != decoded.getGlasses() || original.getDominantEmoji() != decoded.getDominantEmoji()
+                        || original.getPointCount() != decoded.getPointCount()) {
+                    mismatches++;
+                    continue;
+                }
+                for (int n = 0; n < original.getPointCount(); n++) {
+                    maxPointError = Math.max(maxPointError, Math.abs(original.getPointX(n) - decoded.getPointX(n)));
+                    maxPointError = Math.max(maxPointError, Math.abs(original.getPointY(n) - decoded.getPointY(n)));
+                }
+                float[] originalScores = original.getScores();
+                float[] decodedScores = decoded.getScores();
+                for (int m = 0; m < originalScores.length; m++) {
+                    if (Float.isNaN(originalScores[m]) != Float.isNaN(decodedScores[m])) {
+                        mismatches++;
+                    } else if (!Float.isNaN(originalScores[m])) {
+                        maxScoreError = Math.max(maxScoreError, Math.abs(originalScores[m] - decodedScores[m]));
+                    }
+                }
+            }
+        }
+        if (decoder.readFrame(decodedFaces) != -1) {
+            mismatches++;
+        }
+
+        //every value stored as a 4 byte number: timestamp, then id, appearance, points and scores of each face
+        int metricCount = MetricsManager.getAllMetrics().length;
+        long rawBytesPerFrame = 4 + faceCount * (4 + 4 + 8 * OverlayRenderBenchmark.POINTS_PER_FACE + 4 * metricCount);
+        long rawBytes = rawBytesPerFrame * frames;
+        float bytesPerFrame = (float) encoded.size() / frames;
+        boolean isRoundTripOk = mismatches == 0 && maxPointError <= MAX_POINT_ERROR && maxScoreError <= MAX_SCORE_ERROR;
+        return String.format(Locale.US,
+                "%d face(s), %2d metrics: %.1f bytes/frame (%.1fx smaller), %.1f MB/hour at 30 FPS (%.1f raw), "
+                        + "encode %.0f MB/s, decode %.0f MB/s, max error %.3f px and %.3f, round trip %s",
+                faceCount, detectedMetrics, bytesPerFrame, (float) rawBytes / encoded.size(),
+                bytesPerFrame * 30 * 3600 / 1e6f, rawBytesPerFrame * 30 * 3600 / 1e6f,
+                rawBytes / 1e6f / (encodeNanos / 1e9f), rawBytes / 1e6f / (decodeNanos / 1e9f),
+                maxPointError, maxScoreError, isRoundTripOk ? "OK" : "FAILED (" + mismatches + " mismatches)");
+    }
+
+    private static FaceData[] createFaces(int faceCount) {
+        FaceData[] faces = new FaceData[faceCount];
+        for (int n = 0; n < faceCount; n++) {
+            faces[n] = new FaceData();
+        }
+        return faces;
+    }
+
+    /**
+     * Move the faces to the next frame: points move by about half a pixel and scores by about a point, with only
+     * the first detectedMetrics metrics detected.
+     */
+    private static void step(FaceData[] faces, Random random, int detectedMetrics) {
+        for (FaceData face : faces) {
+            for (int n = 0; n < face.getPointCount(); n++) {
+                face.setPoint(n, face.getPointX(n) + (float) random.nextGaussian() * 0.5f,
+                        face.getPointY(n) + (float) random.nextGaussian() * 0.5f);
+            }
+            float[] scores = face.getScores();
+            for (int m = 0; m < scores.length; m++) {
+                if (m >= detectedMetrics) {
+                    scores[m] = Float.NaN;
+                } else {
+                    float min = FaceDataCodec.isSigned(MetricsManager.getAllMetrics()[m]) ? -100 : 0;
+                    float previous = Float.isNaN(scores[m]) ? 0 : scores[m];
+                    scores[m] = Math.max(min, Math.min(100, previous + (float) random.nextGaussian()));
+                }
+            }
+        }
+    }
+}
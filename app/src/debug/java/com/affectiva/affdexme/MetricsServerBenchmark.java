@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Runs a MetricsServer on a free port and connects MetricsStreamClients to it over localhost. It measures the
+ * latency and size of frames with every metric and with a subscription to 2 metrics without points, and how many
+ * frames a slow client loses next to a fast one. What the clients decode is checked by MetricsServerTest.
+ */
+public class MetricsServerBenchmark implements Benchmark {
+
+    static final int LATENCY_FRAMES = 1000;
+    static final int STREAM_FRAMES = 1000;
+    static final int SLOW_CLIENT_DELAY_MILLIS = 10; //per frame read
+    static final int SLOW_CLIENT_RECEIVE_BUFFER_BYTES = 4096;
+    static final int IMAGE_WIDTH = 480;
+    static final int IMAGE_HEIGHT = 640;
+    private static final String HOST = "127.0.0.1";
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final FaceData[] faces = {new FaceData()};
+
+    /**
+     * Runs every case and returns a human readable report. This takes several seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        OverlayRenderBenchmark.createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED);
+        MetricsServer server = new MetricsServer(0);
+        try {
+            server.start();
+            appendResult(report, runLatencyCase(server, null));
+            appendResult(report, runLatencyCase(server, "metrics joy,smile"));
+            appendResult(report, runSlowClientCase(server));
+        } catch (IOException e) {
+            appendResult(report, "Failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            appendResult(report, "Interrupted");
+        } finally {
+            server.stop();
+        }
+        return report.toString();
+    }
+
+    /**
+     * Send frames one at a time and wait for each to arrive, with subscription as the client's command, or every metric and the points if null.
+     */
+    private String runLatencyCase(MetricsServer server, String subscription) throws IOException {
+        MetricsStreamClient client = new MetricsStreamClient(HOST, server.getPort(), 0);
+        FaceData[] received = {new FaceData()};
+        try {
+            String description = "every metric and points";
+            if (subscription != null) {
+                description = subscription + ", no points";
+                checkReply(client.command(subscription));
+                checkReply(client.command("points off"));
+            }
+            waitForClients(server, 1);
+
+            long totalNanos = 0;
+            long totalBytes = 0;
+            int missed = 0;
+            for (int frame = 0; frame < LATENCY_FRAMES; frame++) {
+                float timestamp = frame / 20f;
+                long start = System.nanoTime();
+                server.broadcast(timestamp, faces, 1);
+                if (client.readFrame(received) != 1 || client.getTimestamp() != timestamp) {
+                    missed++;
+                    continue;
+                }
+                totalNanos += System.nanoTime() - start;
+                totalBytes += client.getMessageBytes();
+            }
+            int frameCount = Math.max(1, LATENCY_FRAMES - missed);
+            return String.format(Locale.US, "%s: %.0f bytes/frame, %.0f us from broadcast to decoded%s",
+                    description, (float) totalBytes / frameCount, totalNanos / 1e3 / frameCount,
+                    missed == 0 ? "" : ", " + missed + " frames missed");
+        } finally {
+            client.close();
+            waitForClients(server, 0);
+        }
+    }
+
+    /**
+     * Stream frames every millisecond to a fast client and to one that takes SLOW_CLIENT_DELAY_MILLIS per frame.
+     */
+    private String runSlowClientCase(MetricsServer server) throws IOException, InterruptedException {
+        long droppedBefore = server.getDroppedFrames();
+        final float lastTimestamp = (STREAM_FRAMES - 1) / 1000f;
+        ClientReader fast = new ClientReader(new MetricsStreamClient(HOST, server.getPort(), 0), lastTimestamp, 0);
+        ClientReader slow = new ClientReader(new MetricsStreamClient(HOST, server.getPort(), SLOW_CLIENT_RECEIVE_BUFFER_BYTES),
+                lastTimestamp, SLOW_CLIENT_DELAY_MILLIS);
+        waitForClients(server, 2);
+        fast.start();
+        slow.start();
+
+        long start = System.nanoTime();
+        long broadcastNanos = 0;
+        for (int frame = 0; frame < STREAM_FRAMES; frame++) {
+            long broadcastStart = System.nanoTime();
+            server.broadcast(frame / 1000f, faces, 1);
+            broadcastNanos += System.nanoTime() - broadcastStart;
+            long next = start + (frame + 1) * 1000000L;
+            while (System.nanoTime() < next) {
+                Thread.sleep(0, 100000);
+            }
+        }
+        fast.join();
+        slow.join();
+
+        String error = fast.error != null ? fast.error : slow.error;
+        return String.format(Locale.US,
+                "%d frames at 1 ms: fast client got %d, slow client got %d (%d dropped), broadcast %.1f us/frame%s",
+                STREAM_FRAMES, fast.frameCount, slow.frameCount, server.getDroppedFrames() - droppedBefore,
+                broadcastNanos / 1e3 / STREAM_FRAMES, error == null ? "" : ", " + error);
+    }
+
+    /**
+     * Reads frames on its own thread until the last one, pausing after each.
+     */
+    private static class ClientReader extends Thread {
+        final MetricsStreamClient client;
+        final float lastTimestampExpected;
+        final int delayMillis;
+        int frameCount = 0;
+        float lastTimestamp = -1;
+        String error = null;
+
+        ClientReader(MetricsStreamClient client, float lastTimestampExpected, int delayMillis) {
+            super("MetricsServerBenchmark client");
+            this.client = client;
+            this.lastTimestampExpected = lastTimestampExpected;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void run() {
+            FaceData[] received = {new FaceData()};
+            try {
+                while (lastTimestamp < lastTimestampExpected) {
+                    if (client.readFrame(received) < 0) {
+                        error = "connection closed";
+                        return;
+                    }
+                    lastTimestamp = client.getTimestamp();
+                    frameCount++;
+                    if (delayMillis > 0) {
+                        Thread.sleep(delayMillis);
+                    }
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+            } catch (InterruptedException e) {
+                error = "interrupted";
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    //the server opens and closes connections on its own threads, a little after the clients do
+    private static void waitForClients(MetricsServer server, int count) throws IOException {
+        long deadline = System.currentTimeMillis() + MetricsServer.HANDSHAKE_TIMEOUT_MILLIS;
+        while (server.getClientCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Expected " + count + " clients instead of " + server.getClientCount());
+            }
+            Thread.yield();
+        }
+    }
+
+    private static void checkReply(String reply) throws IOException {
+        if (!reply.equals("ok")) {
+            throw new IOException("Command failed: " + reply);
+        }
+    }
+
+    private static void appendResult(StringBuilder report, String result) {
+        Log.i(LOG_TAG, "MetricsServerBenchmark: " + result);
+        report.append(result).append('\n');
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Measures the delivery of frames from a MetricsPublisher to a MetricsServiceClient through the shared ring, with a
+ * batch per frame and with batches of 10 frames or 100 ms. The frames are published at 100 FPS, faster than the
+ * camera, from a publisher of its own so the app's subscribers are not disturbed. The client runs in this process,
+ * so the messages do not cross processes, but they go through the same Messenger code.
+ */
+public class MetricsServiceBenchmark implements Benchmark {
+
+    static final int FRAMES = 500;
+    static final int FRAME_INTERVAL_MILLIS = 10;
+    static final int[][] BATCHES = {{1, 0}, {10, 100}}; //frames, milliseconds
+    static final int IMAGE_WIDTH = 480;
+    static final int IMAGE_HEIGHT = 640;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Context context;
+
+    public MetricsServiceBenchmark(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Runs every case and returns a human readable report. This takes several seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (int[] batch : BATCHES) {
+            String result;
+            try {
+                result = runCase(batch[0], batch[1]);
+            } catch (IOException e) {
+                result = "Failed: " + e.getMessage();
+            } catch (RemoteException e) {
+                result = "Failed: " + e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = "Interrupted";
+            }
+            Log.i(LOG_TAG, "MetricsServiceBenchmark: " + result);
+            report.append(result).append('\n');
+        }
+        return report.toString();
+    }
+
+    private String runCase(int batchFrames, int batchMillis) throws IOException, RemoteException, InterruptedException {
+        File ringFile = new File(context.getCacheDir(), "metrics_benchmark.ring");
+        MetricsPublisher publisher = new MetricsPublisher(ringFile);
+        HandlerThread clientThread = new HandlerThread("MetricsServiceBenchmark client");
+        clientThread.start();
+        final long[] latency = new long[2]; //total milliseconds and frames, guarded by itself
+        try {
+            MetricsServiceClient client = new MetricsServiceClient(clientThread.getLooper(), new MetricsServiceClient.Listener() {
+                @Override
+                public void onFrame(long sequence, float timestamp, long writeMillis, FaceData[] faces, int faceCount) {
+                    synchronized (latency) {
+                        latency[0] += SystemClock.elapsedRealtime() - writeMillis;
+                        latency[1]++;
+                    }
+                }
+            });
+            client.subscribe(new Messenger(publisher.getHandler()), batchFrames, batchMillis);
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+            while (!client.isSubscribed() || !publisher.hasSubscribers()) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    return "Failed: not subscribed";
+                }
+                Thread.sleep(1);
+            }
+
+            FaceData[] faces = {new FaceData()};
+            OverlayRenderBenchmark.createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED);
+            long publishNanos = 0;
+            long start = SystemClock.elapsedRealtime();
+            for (int frame = 0; frame < FRAMES; frame++) {
+                long publishStart = System.nanoTime();
+                publisher.publish(frame * FRAME_INTERVAL_MILLIS / 1000f, faces, 1);
+                publishNanos += System.nanoTime() - publishStart;
+                long next = start + (frame + 1) * FRAME_INTERVAL_MILLIS;
+                SystemClock.sleep(Math.max(0, next - SystemClock.elapsedRealtime()));
+            }
+
+            deadline = SystemClock.elapsedRealtime() + TIMEOUT_MILLIS;
+            while (client.getReceivedFrames() + client.getDroppedFrames() < FRAMES) {
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    break;
+                }
+                Thread.sleep(1);
+            }
+            Thread.sleep(FRAME_INTERVAL_MILLIS); //for the last acknowledgement
+            client.unsubscribe();
+
+            float averageLatency;
+            synchronized (latency) {
+                averageLatency = latency[1] == 0 ? Float.NaN : (float) latency[0] / latency[1];
+            }
+            boolean isOk = client.getReceivedFrames() == FRAMES;
+            return String.format(Locale.US,
+                    "batches of %d frames or %d ms: %d/%d frames in %d messages, %d dropped, publish %.1f us/frame, "
+                            + "latency %.1f ms to read, %.1f ms to acknowledge, %s",
+                    batchFrames, batchMillis, client.getReceivedFrames(), FRAMES, client.getReceivedBatches(),
+                    client.getDroppedFrames(), publishNanos / 1e3 / FRAMES, averageLatency, publisher.getLatencyMillis(),
+                    isOk ? "OK" : "FAILED");
+        } finally {
+            clientThread.quit();
+            publisher.close();
+            if (!ringFile.delete()) {
+                Log.w(LOG_TAG, "Unable to delete " + ringFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A subscriber of MetricsService, which maps the shared ring, reads the frames of each batch into FaceData and
+ * acknowledges the batch. AffdexMe only uses it in MetricsServiceBenchmark, so it is only in debug builds; it is
+ * the reference for apps subscribing to the service, which can copy it.
+ */
+public class MetricsServiceClient {
+
+    /**
+     * Receives the frames of each batch, on the looper given to the client.
+     */
+    public interface Listener {
+        /**
+         * A frame was read into the first faceCount elements of faces, which are reused for the next frame.
+         */
+        void onFrame(long sequence, float timestamp, long writeMillis, FaceData[] faces, int faceCount);
+    }
+
+    private static final Face.EMOJI[] EMOJIS = Face.EMOJI.values();
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Listener listener;
+    private final Messenger messenger;
+    private final FaceData[] faces = new FaceData[MetricsPublisher.MAX_FACES];
+    private Messenger service;
+    private volatile MappedByteBuffer ring;
+    private int slotCount;
+    private int slotBytes;
+    private int ringMetricCount; //the scores of each face in the ring
+    private int ringMaxFaces;
+    private final int metricCount = MetricsManager.getAllMetrics().length; //the scores of each FaceData
+    //written on the looper's thread only
+    private volatile long droppedFrames = 0;
+    private volatile long receivedFrames = 0;
+    private volatile long receivedBatches = 0;
+
+    public MetricsServiceClient(@NonNull Looper looper, @NonNull Listener listener) {
+        this.listener = listener;
+        for (int n = 0; n < faces.length; n++) {
+            faces[n] = new FaceData();
+        }
+        messenger = new Messenger(new Handler(looper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                return onMessage(message);
+            }
+        }));
+    }
+
+    /**
+     * Subscribe to the Messenger of a bound MetricsService, receiving batches every batchFrames frames or every
+     * batchMillis milliseconds, whichever comes first.
+     */
+    public void subscribe(@NonNull Messenger service, int batchFrames, int batchMillis) throws RemoteException {
+        this.service = service;
+        Message message = Message.obtain(null, MetricsPublisher.MSG_SUBSCRIBE, batchFrames, batchMillis);
+        message.replyTo = messenger;
+        service.send(message);
+    }
+
+    public void unsubscribe() throws RemoteException {
+        if (service != null) {
+            Message message = Message.obtain(null, MetricsPublisher.MSG_UNSUBSCRIBE);
+            message.replyTo = messenger;
+            service.send(message);
+            service = null;
+        }
+    }
+
+    public boolean isSubscribed() {
+        return ring != null;
+    }
+
+    /**
+     * Returns the number of frames that were overwritten before they could be read.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getReceivedFrames() {
+        return receivedFrames;
+    }
+
+    public long getReceivedBatches() {
+        return receivedBatches;
+    }
+
+    private boolean onMessage(Message message) {
+        switch (message.what) {
+            case MetricsPublisher.MSG_SUBSCRIBED:
+                ParcelFileDescriptor descriptor = message.getData().getParcelable(MetricsPublisher.KEY_RING);
+                try {
+                    map(descriptor);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to map the metrics ring", e);
+                }
+                return true;
+            case MetricsPublisher.MSG_BATCH:
+                Bundle data = message.getData();
+                readBatch(data.getLong(MetricsPublisher.KEY_FIRST_SEQUENCE), data.getLong(MetricsPublisher.KEY_LAST_SEQUENCE));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void map(ParcelFileDescriptor descriptor) throws IOException {
+        FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt(0) != MetricsPublisher.MAGIC || mapped.getInt(4) != MetricsPublisher.VERSION) {
+                throw new IOException("Unsupported metrics ring");
+            }
+            slotCount = mapped.getInt(8);
+            slotBytes = mapped.getInt(12);
+            ringMetricCount = mapped.getInt(16);
+            ringMaxFaces = mapped.getInt(20);
+            ring = mapped;
+        } finally {
+            input.close(); //the mapping stays valid
+        }
+    }
+
+    private void readBatch(long firstSequence, long lastSequence) {
+        if (ring == null) {
+            return;
+        }
+        receivedBatches++;
+        for (long sequence = firstSequence; sequence <= lastSequence; sequence++) {
+            int offset = MetricsPublisher.HEADER_BYTES + (int) (sequence % slotCount) * slotBytes;
+            if (ring.getLong(offset) != sequence) {
+                droppedFrames++;
+                continue;
+            }
+            float timestamp = ring.getFloat(offset + 8);
+            long writeMillis = ring.getLong(offset + 12);
+            int ringFaceCount = ring.getInt(offset + 20);
+            if (ringFaceCount < 0 || ringFaceCount > ringMaxFaces) {
+                droppedFrames++; //the slot is being rewritten
+                continue;
+            }
+            int checksum = MetricsPublisher.CHECKSUM_START;
+            checksum = MetricsPublisher.updateChecksum(checksum, (int) (sequence >>> 32));
+            checksum = MetricsPublisher.updateChecksum(checksum, (int) sequence);
+            checksum = MetricsPublisher.updateChecksum(checksum, Float.floatToRawIntBits(timestamp));
+            checksum = MetricsPublisher.updateChecksum(checksum, (int) (writeMillis >>> 32));
+            checksum = MetricsPublisher.updateChecksum(checksum, (int) writeMillis);
+            checksum = MetricsPublisher.updateChecksum(checksum, ringFaceCount);
+
+            //every face and score in the ring is read for the checksum, those beyond what FaceData holds are skipped
+            int faceCount = Math.min(ringFaceCount, faces.length);
+            int position = offset + MetricsPublisher.FRAME_HEADER_BYTES;
+            for (int f = 0; f < ringFaceCount; f++) {
+                int id = ring.getInt(position);
+                int emoji = ring.getInt(position + 4);
+                checksum = MetricsPublisher.updateChecksum(MetricsPublisher.updateChecksum(checksum, id), emoji);
+                position += 8;
+                float[] scores = f < faceCount ? faces[f].getScores() : null;
+                for (int m = 0; m < ringMetricCount; m++) {
+                    float score = ring.getFloat(position);
+                    checksum = MetricsPublisher.updateChecksum(checksum, Float.floatToRawIntBits(score));
+                    if (scores != null && m < metricCount) {
+                        scores[m] = score;
+                    }
+                    position += 4;
+                }
+                if (f < faceCount) {
+                    FaceData face = faces[f];
+                    face.setId(id);
+                    face.setDominantEmoji(emoji >= 0 && emoji < EMOJIS.length ? EMOJIS[emoji] : Face.EMOJI.UNKNOWN);
+                    face.setPointCount(0);
+                    for (int m = ringMetricCount; m < metricCount; m++) {
+                        scores[m] = Float.NaN; //not in the publisher's version of the metrics
+                    }
+                }
+            }
+            //the publisher may have reused the slot while it was read, and its stores may have arrived in any order
+            if (ring.getInt(offset + MetricsPublisher.CHECKSUM_OFFSET) != checksum || ring.getLong(offset) != sequence) {
+                droppedFrames++;
+                continue;
+            }
+            receivedFrames++;
+            listener.onFrame(sequence, timestamp, writeMillis, faces, faceCount);
+        }
+
+        if (service != null) {
+            Message ack = Message.obtain(null, MetricsPublisher.MSG_ACK);
+            Bundle data = new Bundle();
+            data.putLong(MetricsPublisher.KEY_FIRST_SEQUENCE, firstSequence);
+            data.putLong(MetricsPublisher.KEY_LAST_SEQUENCE, lastSequence);
+            ack.setData(data);
+            try {
+                service.send(ack);
+            } catch (RemoteException e) {
+                service = null; //AffdexMe went away
+            }
+        }
+    }
+}
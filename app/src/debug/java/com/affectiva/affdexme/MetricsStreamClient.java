@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * A minimal client of MetricsServer, which decodes its binary frames back into FaceData. The app does not use it,
+ * so it is only in debug builds, to check the server from MetricsServerTest and MetricsServerBenchmark, and to
+ * document the protocol in code.
+ */
+public class MetricsStreamClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Face.EMOJI[] EMOJIS = Face.EMOJI.values();
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final Random random = new Random();
+    private final byte[] header = new byte[8];
+    private byte[] payload = new byte[1024];
+    private int payloadLength;
+    private float timestamp = Float.NaN;
+    private FaceData[] skippedFaces = new FaceData[0];
+
+    /**
+     * Connect to a server and complete the WebSocket handshake. A receiveBufferBytes above 0 sets the socket's
+     * receive buffer, which a small value makes a slow client fall behind sooner.
+     */
+    public MetricsStreamClient(String host, int port, int receiveBufferBytes) throws IOException {
+        socket = new Socket();
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes);
+        }
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        input = new BufferedInputStream(socket.getInputStream());
+        output = socket.getOutputStream();
+
+        byte[] keyBytes = new byte[16];
+        new SecureRandom().nextBytes(keyBytes);
+        String key = MetricsServer.toBase64(keyBytes);
+        output.write(("GET / HTTP/1.1\r\nHost: " + host + ":" + port + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(ISO_8859_1));
+        output.flush();
+
+        String response = readResponseHeader();
+        if (!response.startsWith("HTTP/1.1 101") || !response.contains(MetricsServer.getAcceptKey(key))) {
+            socket.close();
+            throw new IOException("Handshake failed: " + response.split("\r\n")[0]);
+        }
+    }
+
+    /**
+     * Send a command, such as "metrics joy,smile", and return the server's reply. Frames received before the reply are skipped.
+     */
+    public String command(String command) throws IOException {
+        byte[] text = command.getBytes(UTF_8);
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x80 | MetricsServer.OPCODE_TEXT);
+        if (text.length < 126) {
+            frame.write(0x80 | text.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(text.length >> 8);
+            frame.write(text.length);
+        }
+        frame.write(mask);
+        for (int n = 0; n < text.length; n++) {
+            frame.write(text[n] ^ mask[n % 4]);
+        }
+        output.write(frame.toByteArray());
+        output.flush();
+
+        while (true) {
+            int opcode = readMessage();
+            if (opcode == MetricsServer.OPCODE_TEXT) {
+                return new String(payload, 0, payloadLength, UTF_8);
+            } else if (opcode == MetricsServer.OPCODE_BINARY) {
+                if (skippedFaces.length < 256) {
+                    skippedFaces = new FaceData[256];
+                    for (int n = 0; n < skippedFaces.length; n++) {
+                        skippedFaces[n] = new FaceData();
+                    }
+                }
+                decodeFrame(skippedFaces);
+            } else {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Read the next frame into faces, which must be large enough, and return its number of faces, or -1 if the
+     * server closed the connection. Scores of metrics that were not sent are NaN.
+     */
+    public int readFrame(FaceData[] faces) throws IOException {
+        while (true) {
+            int opcode = readMessage();
+            if (opcode == MetricsServer.OPCODE_BINARY) {
+                return decodeFrame(faces);
+            } else if (opcode < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Returns the timestamp of the frame last read by readFrame().
+     */
+    public float getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the size of the last message, for measuring the bandwidth.
+     */
+    public int getMessageBytes() {
+        return payloadLength;
+    }
+
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //already closed
+        }
+    }
+
+    private int decodeFrame(FaceData[] faces) throws IOException {
+        int offset = 0;
+        if (payload[offset++] != MetricsServer.VERSION) {
+            throw new IOException("Unsupported frame version " + payload[0]);
+        }
+        timestamp = Float.intBitsToFloat(getInt(offset));
+        offset += 4;
+        int faceCount = payload[offset++] & 0xFF;
+        MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+        for (int f = 0; f < faceCount; f++) {
+            FaceData face = faces[f];
+            face.setId(getInt(offset));
+            offset += 4;
+            face.setDominantEmoji(EMOJIS[payload[offset++]]);
+            int pointCount = getShort(offset);
+            offset += 2;
+            face.setPointCount(pointCount);
+            for (int n = 0; n < pointCount; n++) {
+                face.setPoint(n, getShort(offset) / FaceDataCodec.POINT_SCALE, getShort(offset + 2) / FaceDataCodec.POINT_SCALE);
+                offset += 4;
+            }
+            long mask = ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xFFFFFFFFL);
+            offset += 8;
+            float[] scores = face.getScores();
+            for (int m = 0; m < scores.length; m++) {
+                if ((mask & (1L << m)) == 0) {
+                    scores[m] = Float.NaN;
+                } else {
+                    boolean isSigned = FaceDataCodec.isSigned(metrics[m]);
+                    int quantized = isSigned ? payload[offset++] : payload[offset++] & 0xFF;
+                    scores[m] = FaceDataCodec.dequantizeScore(quantized, isSigned);
+                }
+            }
+        }
+        return faceCount;
+    }
+
+    //reads the next whole message into payload and returns its opcode, or -1 when the connection is closed
+    private int readMessage() throws IOException {
+        payloadLength = 0;
+        int messageOpcode = -1;
+        while (true) {
+            int first = input.read();
+            if (first < 0) {
+                return -1;
+            }
+            MetricsServer.readFully(input, header, 1);
+            int opcode = first & 0x0F;
+            long length = header[0] & 0x7F;
+            if (length == 126) {
+                MetricsServer.readFully(input, header, 2);
+                length = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+            } else if (length == 127) {
+                MetricsServer.readFully(input, header, 8);
+                length = 0;
+                for (int n = 0; n < 8; n++) {
+                    length = (length << 8) | (header[n] & 0xFF);
+                }
+            }
+
+            if (opcode >= MetricsServer.OPCODE_CLOSE) {
+                //control frames can come between the fragments of a message, and are not kept
+                byte[] control = new byte[(int) length];
+                MetricsServer.readFully(input, control, control.length);
+                if (opcode == MetricsServer.OPCODE_CLOSE) {
+                    return -1;
+                }
+                continue;
+            }
+            if (opcode != MetricsServer.OPCODE_CONTINUATION) {
+                messageOpcode = opcode;
+            }
+            if (payload.length < payloadLength + length) {
+                byte[] larger = new byte[(int) Math.max(payloadLength + length, 2L * payload.length)];
+                System.arraycopy(payload, 0, larger, 0, payloadLength);
+                payload = larger;
+            }
+            readInto(payloadLength, (int) length);
+            payloadLength += length;
+            if ((first & 0x80) != 0) {
+                return messageOpcode;
+            }
+        }
+    }
+
+    private void readInto(int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = input.read(payload, offset + read, length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed");
+            }
+            read += n;
+        }
+    }
+
+    private String readResponseHeader() throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed during the handshake");
+            }
+            response.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return new String(response.toByteArray(), ISO_8859_1);
+    }
+
+    private int getShort(int offset) {
+        return (short) (((payload[offset] & 0xFF) << 8) | (payload[offset + 1] & 0xFF));
+    }
+
+    private int getInt(int offset) {
+        return ((payload[offset] & 0xFF) << 24) | ((payload[offset + 1] & 0xFF) << 16)
+                | ((payload[offset + 2] & 0xFF) << 8) | (payload[offset + 3] & 0xFF);
+    }
+}
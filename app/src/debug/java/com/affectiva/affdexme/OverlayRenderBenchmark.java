@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the cost of drawing the overlay with OverlayRenderer, without a camera, detector or SurfaceView.
+ * Deterministic synthetic faces are drawn into an offscreen Bitmap the size of a 1080p portrait screen, for
+ * 1, 3 and 10 faces with all optional layers on and all optional layers off. For each case we report frame time
+ * percentiles, the number of draw calls per frame, and the bytes allocated per frame where AllocationStats can
+ * tell. On a JVM, as in OverlayRenderTest, those are the bytes the drawing thread allocated. On a device, from
+ * Android 6.0, they are the runtime's count for the whole process, which the camera, the detector and any other
+ * thread add to while the benchmark runs, so they are an upper bound on what the renderer allocates.
+ */
+public class OverlayRenderBenchmark implements Benchmark {
+
+    static final int[] FACE_COUNTS = {1, 3, 10};
+    static final int SURFACE_WIDTH = 1080;
+    static final int SURFACE_HEIGHT = 1920;
+    static final int IMAGE_WIDTH = 480;
+    static final int IMAGE_HEIGHT = 640;
+    static final int POINTS_PER_FACE = 34;
+    static final int WARMUP_FRAMES = 30;
+    static final int MEASURED_FRAMES = 300;
+    static final int ALLOCATION_FRAMES = 100;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Context context;
+
+    /**
+     * The measurements of one case. Times are in milliseconds.
+     */
+    static class Result {
+        final int faceCount;
+        final boolean layersEnabled;
+        final float p50Millis;
+        final float p90Millis;
+        final float p99Millis;
+        final float maxMillis;
+        final int drawCallsPerFrame;
+        final float allocatedBytesPerFrame; //NaN where the runtime does not report it
+
+        Result(int faceCount, boolean layersEnabled, long[] sortedFrameTimes, int drawCallsPerFrame, float allocatedBytesPerFrame) {
+            this.faceCount = faceCount;
+            this.layersEnabled = layersEnabled;
+            this.drawCallsPerFrame = drawCallsPerFrame;
+            p50Millis = percentile(sortedFrameTimes, 50);
+            p90Millis = percentile(sortedFrameTimes, 90);
+            p99Millis = percentile(sortedFrameTimes, 99);
+            maxMillis = sortedFrameTimes[sortedFrameTimes.length - 1] / 1e6f;
+            this.allocatedBytesPerFrame = allocatedBytesPerFrame;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%2d faces, layers %-3s: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms, %d draws/frame, %s allocated/frame",
+                    faceCount, layersEnabled ? "on" : "off", p50Millis, p90Millis, p99Millis, maxMillis, drawCallsPerFrame,
+                    Float.isNaN(allocatedBytesPerFrame) ? "n/a" : String.format(Locale.US, "%.0f bytes%s", allocatedBytesPerFrame,
+                            AllocationStats.isPerThread() ? "" : " in the process"));
+        }
+    }
+
+    /**
+     * A Canvas that counts the calls that draw something, which the renderer makes one of per dot, box, marker or label.
+     */
+    private static class DrawCallCounter extends Canvas {
+        int drawCalls = 0;
+
+        DrawCallCounter(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        @Override
+        public void drawCircle(float cx, float cy, float radius, Paint paint) {
+            drawCalls++;
+            super.drawCircle(cx, cy, radius, paint);
+        }
+
+        @Override
+        public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+            drawCalls++;
+            super.drawRect(left, top, right, bottom, paint);
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+            drawCalls++;
+            super.drawBitmap(bitmap, left, top, paint);
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, Rect dst, Paint paint) {
+            drawCalls++;
+            super.drawBitmap(bitmap, src, dst, paint);
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Rect src, RectF dst, Paint paint) {
+            drawCalls++;
+            super.drawBitmap(bitmap, src, dst, paint);
+        }
+
+        @Override
+        public void drawText(String text, float x, float y, Paint paint) {
+            drawCalls++;
+            super.drawText(text, x, y, paint);
+        }
+
+        @Override
+        public void drawText(char[] text, int index, int count, float x, float y, Paint paint) {
+            drawCalls++;
+            super.drawText(text, index, count, x, y, paint);
+        }
+    }
+
+    public OverlayRenderBenchmark(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Fill faces with deterministic synthetic values: tracking points laid out on an ellipse inside a grid cell
+     * of the camera image, random scores, appearance and dominant emoji.
+     */
+    static void createSyntheticFaces(FaceData[] faces, int imageWidth, int imageHeight, long seed) {
+        Random random = new Random(seed);
+        int columns = (int) Math.ceil(Math.sqrt(faces.length));
+        int rows = (int) Math.ceil((double) faces.length / columns);
+        float cellWidth = (float) imageWidth / columns;
+        float cellHeight = (float) imageHeight / rows;
+        float radiusX = cellWidth * 0.3f;
+        float radiusY = cellHeight * 0.3f;
+        Face.EMOJI[] emojis = Face.EMOJI.values();
+        Face.GENDER[] genders = Face.GENDER.values();
+
+        for (int f = 0; f < faces.length; f++) {
+            FaceData face = faces[f];
+            float centerX = (f % columns + 0.5f) * cellWidth;
+            float centerY = (f / columns + 0.5f) * cellHeight;
+
+            face.setId(f);
+            face.setPointCount(POINTS_PER_FACE);
+            for (int n = 0; n < POINTS_PER_FACE; n++) {
+                double angle = 2 * Math.PI * n / POINTS_PER_FACE;
+                float scale = 0.4f + 0.6f * random.nextFloat();
+                face.setPoint(n,
+                        centerX + (float) Math.cos(angle) * radiusX * scale,
+                        centerY + (float) Math.sin(angle) * radiusY * scale);
+            }
+
+            for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
+                face.setScore(metric, 100 * random.nextFloat());
+            }
+            face.setScore(MetricsManager.Emotions.VALENCE, 200 * random.nextFloat() - 100);
+
+            face.setAppearance(genders[random.nextInt(genders.length)], random.nextBoolean() ? Face.GLASSES.YES : Face.GLASSES.NO);
+            face.setDominantEmoji(emojis[random.nextInt(emojis.length - 1)]); //skip UNKNOWN, which draws no marker
+        }
+    }
+
+    /**
+     * Runs every case and returns a human readable report. This takes a few seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (Result result : measure()) {
+            Log.i(LOG_TAG, "OverlayRenderBenchmark: " + result);
+            report.append(result).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Runs every case, in the order of FACE_COUNTS with the layers on and then off.
+     */
+    List<Result> measure() {
+        OverlayRenderer renderer = new OverlayRenderer(context);
+        Bitmap bitmap = Bitmap.createBitmap(SURFACE_WIDTH, SURFACE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        DrawingView.DrawingViewConfig.Builder configBuilder = new DrawingView.DrawingViewConfig.Builder();
+        DrawingView.initDominantEmotionPaints(context, configBuilder);
+        int surfaceHeight = Math.round((float) SURFACE_WIDTH * IMAGE_HEIGHT / IMAGE_WIDTH);
+        configBuilder.updateViewDimensions(SURFACE_WIDTH, surfaceHeight, IMAGE_WIDTH, IMAGE_HEIGHT);
+        configBuilder.setDrawThickness((int) (IMAGE_WIDTH / 100f));
+
+        DrawCallCounter counter = new DrawCallCounter(bitmap);
+
+        List<Result> results = new ArrayList<>();
+        try {
+            for (int faceCount : FACE_COUNTS) {
+                for (boolean layersEnabled : new boolean[]{true, false}) {
+                    results.add(runCase(renderer, canvas, counter, configBuilder, faceCount, layersEnabled));
+                }
+            }
+        } finally {
+            renderer.release();
+            bitmap.recycle();
+        }
+        return results;
+    }
+
+    private Result runCase(OverlayRenderer renderer, Canvas canvas, DrawCallCounter counter, DrawingView.DrawingViewConfig.Builder configBuilder,
+                           int faceCount, boolean layersEnabled) {
+        configBuilder.isDrawPointsEnabled = layersEnabled;
+        configBuilder.isDrawAppearanceMarkersEnabled = layersEnabled;
+        configBuilder.isDrawEmojiMarkersEnabled = layersEnabled;
+        DrawingView.DrawingViewConfig config = configBuilder.build();
+
+        FaceData[] faces = new FaceData[faceCount];
+        for (int n = 0; n < faceCount; n++) {
+            faces[n] = new FaceData();
+        }
+        createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED + faceCount);
+
+        for (int frame = 0; frame < WARMUP_FRAMES; frame++) {
+            drawFrame(renderer, canvas, config, faces, frame);
+        }
+
+        long[] frameTimes = new long[MEASURED_FRAMES];
+        for (int frame = 0; frame < MEASURED_FRAMES; frame++) {
+            long start = System.nanoTime();
+            drawFrame(renderer, canvas, config, faces, frame);
+            frameTimes[frame] = System.nanoTime() - start;
+        }
+
+        float allocatedBytesPerFrame = Float.NaN;
+        long allocatedBefore = AllocationStats.getAllocatedBytes();
+        if (allocatedBefore >= 0) {
+            for (int frame = 0; frame < ALLOCATION_FRAMES; frame++) {
+                drawFrame(renderer, canvas, config, faces, frame);
+            }
+            allocatedBytesPerFrame = (float) (AllocationStats.getAllocatedBytes() - allocatedBefore) / ALLOCATION_FRAMES;
+        }
+
+        //counted apart from the timed frames, so the counting does not add to their time
+        counter.drawCalls = 0;
+        drawFrame(renderer, counter, config, faces, 0);
+
+        Arrays.sort(frameTimes);
+        return new Result(faceCount, layersEnabled, frameTimes, counter.drawCalls, allocatedBytesPerFrame);
+    }
+
+    /**
+     * Draw one frame the way DrawingView.DrawingThread does, moving the faces slightly so consecutive frames differ.
+     */
+    private void drawFrame(OverlayRenderer renderer, Canvas canvas, DrawingView.DrawingViewConfig config, FaceData[] faces, int frame) {
+        float dx = (frame % 2 == 0) ? 1 : -1;
+        for (FaceData face : faces) {
+            for (int n = 0; n < face.getPointCount(); n++) {
+                face.setPoint(n, face.getPointX(n) + dx, face.getPointY(n));
+            }
+        }
+
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        boolean multiFaceMode = faces.length > 1;
+        for (FaceData face : faces) {
+            renderer.drawFaceAttributes(canvas, face, true, multiFaceMode, config);
+        }
+    }
+
+    //nearest-rank percentile of sorted nanosecond values, in milliseconds
+    private static float percentile(long[] sortedValues, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sortedValues.length);
+        return sortedValues[Math.max(rank - 1, 0)] / 1e6f;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares saving a screenshot sized image with Bitmap.compress() and with PngEncoder on one and on all cores,
+ * at 1080p and 4K. Each case is timed a few times and the median is reported, along with the file size.
+ * The files written by PngEncoder are decoded again and compared with the original pixels.
+ */
+public class PngEncoderBenchmark implements Benchmark {
+
+    static final int[][] SIZES = {{1920, 1080}, {3840, 2160}};
+    static final int RUNS = 3;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Context context;
+
+    public PngEncoderBenchmark(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Fill a bitmap with something resembling a screenshot: a noisy camera image with a few sharp edged
+     * shapes and some text drawn over it.
+     */
+    static void drawSyntheticScreenshot(Bitmap bitmap, long seed) {
+        Random random = new Random(seed);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(12);
+                row[x] = Color.rgb((x * 160 / width + noise) & 0xff, (y * 160 / height + noise) & 0xff, (96 + noise) & 0xff);
+            }
+            bitmap.setPixels(row, 0, width, 0, y, width, 1);
+        }
+
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setColor(Color.WHITE);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(width / 200f);
+        canvas.drawRect(width * 0.3f, height * 0.2f, width * 0.6f, height * 0.7f, paint);
+        paint.setStyle(Paint.Style.FILL);
+        for (int n = 0; n < 34; n++) {
+            canvas.drawCircle(width * (0.32f + 0.26f * random.nextFloat()), height * (0.22f + 0.46f * random.nextFloat()), width / 200f, paint);
+        }
+        paint.setTextSize(height / 20f);
+        canvas.drawText("JOY 87%", width * 0.05f, height * 0.1f, paint);
+    }
+
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        int cores = Runtime.getRuntime().availableProcessors();
+        report.append(String.format(Locale.US, "%d cores\n", cores));
+        if (!PngEncoder.isSupported()) {
+            report.append("PngEncoder needs API level 19, only Bitmap.compress() is measured\n");
+        }
+
+        File file = new File(context.getCacheDir(), "png_benchmark.png");
+        try {
+            for (int[] size : SIZES) {
+                Bitmap bitmap = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+                bitmap.setHasAlpha(false);
+                drawSyntheticScreenshot(bitmap, SEED);
+                try {
+                    float compressMillis = measureCompress(bitmap, file);
+                    appendResult(report, size, "Bitmap.compress", compressMillis, compressMillis, file.length(), null);
+
+                    if (PngEncoder.isSupported()) {
+                        float singleMillis = measureEncoder(new PngEncoder(1), bitmap, file);
+                        appendResult(report, size, "PngEncoder x1", singleMillis, compressMillis, file.length(), decodesIdentically(bitmap, file));
+
+                        float parallelMillis = measureEncoder(new PngEncoder(cores), bitmap, file);
+                        appendResult(report, size, "PngEncoder x" + cores, parallelMillis, compressMillis, file.length(), decodesIdentically(bitmap, file));
+                    }
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "PngEncoderBenchmark failed", e);
+            report.append("Failed: ").append(e.getMessage()).append('\n');
+        } finally {
+            if (file.exists() && !file.delete()) {
+                Log.e(LOG_TAG, "Unable to delete " + file.getPath());
+            }
+        }
+        return report.toString();
+    }
+
+    private void appendResult(StringBuilder report, int[] size, String name, float millis, float compressMillis, long bytes, Boolean identical) {
+        String result = String.format(Locale.US, "%dx%d %-16s median %.0f ms (%.2fx), %d KB%s",
+                size[0], size[1], name, millis, compressMillis / millis, bytes / 1024,
+                identical == null ? "" : (identical ? ", decodes identically" : ", DECODES DIFFERENTLY"));
+        Log.i(LOG_TAG, "PngEncoderBenchmark: " + result);
+        report.append(result).append('\n');
+    }
+
+    private float measureCompress(Bitmap bitmap, File file) throws IOException {
+        long[] times = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            } finally {
+                outputStream.close();
+            }
+            times[run] = System.nanoTime() - start;
+        }
+        return median(times);
+    }
+
+    private float measureEncoder(PngEncoder encoder, Bitmap bitmap, File file) throws IOException {
+        long[] times = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            encoder.encode(bitmap, file);
+            times[run] = System.nanoTime() - start;
+        }
+        return median(times);
+    }
+
+    //compare row by row, since two more copies of a 4K image might not fit in memory
+    private boolean decodesIdentically(Bitmap original, File file) {
+        Bitmap decoded = BitmapFactory.decodeFile(file.getPath());
+        if (decoded == null) {
+            return false;
+        }
+        try {
+            if (decoded.getWidth() != original.getWidth() || decoded.getHeight() != original.getHeight()) {
+                return false;
+            }
+            int width = original.getWidth();
+            int[] originalRow = new int[width];
+            int[] decodedRow = new int[width];
+            for (int y = 0; y < original.getHeight(); y++) {
+                original.getPixels(originalRow, 0, width, 0, y, width, 1);
+                decoded.getPixels(decodedRow, 0, width, 0, y, width, 1);
+                if (!Arrays.equals(originalRow, decodedRow)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            decoded.recycle();
+        }
+    }
+
+    //median of nanosecond values, in milliseconds
+    private static float median(long[] values) {
+        Arrays.sort(values);
+        return values[values.length / 2] / 1e6f;
+    }
+}
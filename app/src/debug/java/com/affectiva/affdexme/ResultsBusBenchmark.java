@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Measures what ResultsBus costs the thread that publishes frames, compared to calling the same consumers one after
+ * the other, and checks how each Policy treats a consumer slower than the frames. Frames are published every
+ * millisecond, faster than the camera, and the consumers spin for a fixed time per frame in place of real work.
+ * Nothing here needs a device, so the same checks run on the JVM.
+ */
+public class ResultsBusBenchmark implements Benchmark {
+
+    static final int FRAMES = 1000;
+    static final int FRAME_INTERVAL_MICROS = 1000;
+    static final int FAN_OUT_CONSUMERS = 4;
+    static final int FAN_OUT_WORK_MICROS = 200; //per consumer, so calling them in turn takes most of a frame interval
+    static final int SLOW_WORK_MICROS = 3000;
+    static final int BLOCKING_CAPACITY = 16;
+    static final int IMAGE_WIDTH = 480;
+    static final int IMAGE_HEIGHT = 640;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final FaceData[] faces = {new FaceData()};
+
+    /**
+     * Runs every case and returns a human readable report. This takes a few seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        OverlayRenderBenchmark.createSyntheticFaces(faces, IMAGE_WIDTH, IMAGE_HEIGHT, SEED);
+        appendResult(report, runFanOutCase());
+        appendResult(report, runSlowConsumerCase());
+        appendResult(report, runBlockingCase());
+        return report.toString();
+    }
+
+    /**
+     * Publish to FAN_OUT_CONSUMERS consumers that must see every frame, then call the same work in turn.
+     */
+    private String runFanOutCase() {
+        ResultsBus bus = new ResultsBus();
+        CountingListener[] listeners = new CountingListener[FAN_OUT_CONSUMERS];
+        for (int n = 0; n < listeners.length; n++) {
+            listeners[n] = new CountingListener(FAN_OUT_WORK_MICROS);
+            bus.addConsumer("consumer " + n, ResultsBus.Policy.BLOCK, listeners[n]);
+        }
+        bus.start();
+        long publishNanos = publishFrames(bus, FRAMES);
+        bus.close();
+
+        long serialStart = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            for (CountingListener listener : listeners) {
+                listener.work();
+            }
+        }
+        long serialNanos = System.nanoTime() - serialStart;
+
+        boolean isOk = true;
+        for (CountingListener listener : listeners) {
+            isOk &= listener.handledFrames == FRAMES && listener.isInOrder;
+        }
+        return String.format(Locale.US, "%d consumers of %d us: publish %.1f us/frame on the bus, %.1f us/frame in turn, %s",
+                FAN_OUT_CONSUMERS, FAN_OUT_WORK_MICROS, publishNanos / 1e3 / FRAMES, serialNanos / 1e3 / FRAMES,
+                isOk ? "OK" : "FAILED");
+    }
+
+    /**
+     * Publish to a fast consumer that must see every frame, and to consumers of SLOW_WORK_MICROS that drop or skip.
+     */
+    private String runSlowConsumerCase() {
+        ResultsBus bus = new ResultsBus();
+        CountingListener fast = new CountingListener(0);
+        CountingListener dropping = new CountingListener(SLOW_WORK_MICROS);
+        CountingListener skipping = new CountingListener(SLOW_WORK_MICROS);
+        ResultsBus.Consumer fastConsumer = bus.addConsumer("fast", ResultsBus.Policy.BLOCK, fast);
+        ResultsBus.Consumer droppingConsumer = bus.addConsumer("dropping", ResultsBus.Policy.DROP, dropping);
+        ResultsBus.Consumer skippingConsumer = bus.addConsumer("skipping", ResultsBus.Policy.SKIP_TO_LATEST, skipping);
+        bus.start();
+        long publishNanos = publishFrames(bus, FRAMES);
+        bus.close();
+
+        boolean isOk = fast.handledFrames == FRAMES && fast.isInOrder && fastConsumer.getBlockedFrames() == 0
+                && dropping.isInOrder && dropping.handledFrames + droppingConsumer.getDroppedFrames() == FRAMES
+                && droppingConsumer.getDroppedFrames() > 0
+                && skipping.isInOrder && skipping.lastSequence == FRAMES - 1
+                && skipping.handledFrames + skippingConsumer.getDroppedFrames() == FRAMES;
+        return String.format(Locale.US,
+                "consumers of %d us: publish %.1f us/frame, fast got %d, dropping got %d (max lag %d), "
+                        + "skipping got %d (max lag %d), %s",
+                SLOW_WORK_MICROS, publishNanos / 1e3 / FRAMES, fast.handledFrames, dropping.handledFrames,
+                droppingConsumer.getMaxLag(), skipping.handledFrames, skippingConsumer.getMaxLag(), isOk ? "OK" : "FAILED");
+    }
+
+    /**
+     * Publish to a consumer of SLOW_WORK_MICROS that blocks a small bus, which must slow the producer down to its pace.
+     */
+    private String runBlockingCase() {
+        int frames = FRAMES / 10;
+        ResultsBus bus = new ResultsBus(BLOCKING_CAPACITY);
+        CountingListener slow = new CountingListener(SLOW_WORK_MICROS);
+        ResultsBus.Consumer slowConsumer = bus.addConsumer("blocking", ResultsBus.Policy.BLOCK, slow);
+        bus.start();
+        long publishNanos = publishFrames(bus, frames);
+        bus.close();
+
+        boolean isOk = slow.handledFrames == frames && slow.isInOrder && slowConsumer.getDroppedFrames() == 0
+                && slowConsumer.getBlockedFrames() > 0 && slowConsumer.getMaxLag() <= BLOCKING_CAPACITY;
+        return String.format(Locale.US,
+                "blocking consumer of %d us on %d slots: got %d/%d, blocked the producer %d times, publish %.1f us/frame, %s",
+                SLOW_WORK_MICROS, BLOCKING_CAPACITY, slow.handledFrames, frames, slowConsumer.getBlockedFrames(),
+                publishNanos / 1e3 / frames, isOk ? "OK" : "FAILED");
+    }
+
+    //publishes frames every FRAME_INTERVAL_MICROS and returns the time spent publishing
+    private long publishFrames(ResultsBus bus, int frames) {
+        long publishNanos = 0;
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            long publishStart = System.nanoTime();
+            bus.publish(faces, 1, frame * FRAME_INTERVAL_MICROS / 1e6f, frame);
+            publishNanos += System.nanoTime() - publishStart;
+            long next = start + (frame + 1) * FRAME_INTERVAL_MICROS * 1000L;
+            while (System.nanoTime() < next) {
+                Thread.yield();
+            }
+        }
+        return publishNanos;
+    }
+
+    /**
+     * Spins for a fixed time per frame and checks the frames arrive in order with the faces published.
+     */
+    private class CountingListener implements ResultsBus.Listener {
+        final long workNanos;
+        int handledFrames = 0;
+        long lastSequence = -1;
+        boolean isInOrder = true;
+
+        CountingListener(int workMicros) {
+            workNanos = workMicros * 1000L;
+        }
+
+        @Override
+        public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] frameFaces, int faceCount) {
+            isInOrder &= sequence > lastSequence && timeMillis == sequence && faceCount == 1
+                    && frameFaces[0].getId() == faces[0].getId();
+            lastSequence = sequence;
+            handledFrames++;
+            work();
+        }
+
+        void work() {
+            long end = System.nanoTime() + workNanos;
+            while (System.nanoTime() < end) {
+                //spin
+            }
+        }
+    }
+
+    private static void appendResult(StringBuilder report, String result) {
+        Log.i(LOG_TAG, "ResultsBusBenchmark: " + result);
+        report.append(result).append('\n');
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the garbage created by formatting the on-screen scores with String.format(), as MetricDisplay used to,
+ * with ScoreText. Without a camera or detector, it replays ten minutes of synthetic scores at the detector frame
+ * rate for 6 metrics and for every metric, formatting each metric score and the dominant emotion score every frame
+ * and the FPS counter once a second. The old way formats every score; the new way only looks up the scores whose
+ * whole percent changed, as MetricDashboardView does. For each case we report the time taken and, where the
+ * runtime reports them, the bytes allocated and the number of garbage collections (see AllocationStats).
+ */
+public class ScoreTextBenchmark implements Benchmark {
+
+    static final int[] METRIC_COUNTS = {PreferencesUtils.DEFAULT_METRIC_COUNT, MetricsManager.getAllMetrics().length};
+    static final int FRAMES_PER_SECOND = 20;
+    static final int SECONDS = 10 * 60;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private int checksum; //consumes the formatted text, so formatting cannot be optimized away
+
+    /**
+     * Runs every case and returns a human readable report. This takes several seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        for (int metricCount : METRIC_COUNTS) {
+            for (boolean useScoreText : new boolean[]{false, true}) {
+                String result = runCase(metricCount, useScoreText);
+                Log.i(LOG_TAG, "ScoreTextBenchmark: " + result);
+                report.append(result).append('\n');
+            }
+        }
+        Log.d(LOG_TAG, "ScoreTextBenchmark checksum " + checksum);
+        return report.toString();
+    }
+
+    private String runCase(int metricCount, boolean useScoreText) {
+        float[] scores = new float[metricCount];
+        MetricDisplay[] metricDisplays = new MetricDisplay[metricCount];
+        for (int n = 0; n < metricCount; n++) {
+            metricDisplays[n] = new MetricDisplay(MetricsManager.getAllMetrics()[n]);
+        }
+        Random random = new Random(SEED);
+        char[] fpsText = new char[64];
+        int frames = FRAMES_PER_SECOND * SECONDS;
+
+        long gcCountBefore = AllocationStats.getGcCount();
+        long allocatedBefore = AllocationStats.getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int frame = 0; frame < frames; frame++) {
+            //scores drift by a few percent per frame, so some frames leave the whole percent unchanged
+            for (int n = 0; n < metricCount; n++) {
+                scores[n] = Math.max(0, Math.min(100, scores[n] + 4 * (random.nextFloat() - 0.5f)));
+            }
+
+            if (useScoreText) {
+                for (int n = 0; n < metricCount; n++) {
+                    if (metricDisplays[n].setScore(scores[n])) {
+                        checksum += ScoreText.getPercentText(metricDisplays[n].getDisplayedScore()).length;
+                    }
+                }
+                checksum += ScoreText.getPercentText(scores[0]).length;
+                if (frame % FRAMES_PER_SECOND == 0) {
+                    int length = ScoreText.appendText(fpsText, 0, " ");
+                    checksum += ScoreText.appendFixed1(fpsText, length, FRAMES_PER_SECOND - scores[0] / 100);
+                }
+            } else {
+                for (int n = 0; n < metricCount; n++) {
+                    checksum += String.format("%.0f%%", scores[n]).length();
+                }
+                checksum += (Math.round(scores[0]) + "%").length();
+                if (frame % FRAMES_PER_SECOND == 0) {
+                    checksum += String.format(" %.1f", FRAMES_PER_SECOND - scores[0] / 100).length();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = AllocationStats.getAllocatedBytes();
+        long gcCountAfter = AllocationStats.getGcCount();
+
+        String allocated = allocatedBefore < 0 || allocatedAfter < 0 ? "n/a"
+                : (allocatedAfter - allocatedBefore) / 1024 + " KB" + (AllocationStats.isPerThread() ? "" : " in the process");
+        String gcCount = gcCountBefore < 0 || gcCountAfter < 0 ? "n/a" : String.valueOf(gcCountAfter - gcCountBefore);
+        return String.format(Locale.US, "%2d metrics, %-13s: %.1f ms, %s allocated, %s GCs for %d frames",
+                metricCount, useScoreText ? "ScoreText" : "String.format", elapsed / 1e6f, allocated, gcCount, frames);
+    }
+}
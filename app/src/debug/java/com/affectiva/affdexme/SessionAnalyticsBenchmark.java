@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Measures SessionAnalytics on generated sessions with 1, 2, 4... threads up to the number of cores, reporting the throughput in frames per
+ * second per core and checking that the parallel statistics match the single threaded ones. If sessions have been
+ * recorded, they are analyzed too.
+ */
+public class SessionAnalyticsBenchmark implements Benchmark {
+
+    static final int SESSIONS = 200;
+    static final int FRAMES_PER_SESSION = 60 * SyntheticFrameSource.FRAMES_PER_SECOND;
+    private static final long FIRST_SESSION_MILLIS = 1451606400000L; //January 1st 2016
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Context context;
+
+    public SessionAnalyticsBenchmark(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Runs every case and returns a human readable report. This takes several seconds, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        float[] minScores = SessionAnalytics.getMinScores();
+        TimeZone timeZone = TimeZone.getDefault();
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            FrameSource synthetic = new SyntheticFrameSource(SESSIONS, FRAMES_PER_SESSION, minScores, FIRST_SESSION_MILLIS, SEED);
+            new SessionAnalytics(1, minScores, timeZone).analyze(synthetic); //warm up
+            SessionAnalytics.Result single = null;
+            //1, 2, 4... threads, up to the number of cores
+            for (int threadCount = 1; threadCount <= cores; threadCount = threadCount == cores ? cores + 1 : Math.min(2 * threadCount, cores)) {
+                SessionAnalytics.Result result = new SessionAnalytics(threadCount, minScores, timeZone).analyze(synthetic);
+                if (single == null) {
+                    single = result;
+                }
+                appendResult(report, String.format(Locale.US,
+                        "%d synthetic sessions, %d thread(s): %.0f frames/s, %.0f frames/s/core, %.2fx the single thread, %s",
+                        SESSIONS, threadCount, result.getFramesPerSecond(), result.getFramesPerSecondPerCore(),
+                        result.getFramesPerSecond() / single.getFramesPerSecond(),
+                        isMatching(single.getStatistics(), result.getStatistics()) ? "same statistics" : "DIFFERENT statistics"));
+            }
+
+            SessionDatabase database = new SessionDatabase(context);
+            try {
+                DatabaseFrameSource recorded = new DatabaseFrameSource(database);
+                if (recorded.getSessionCount() > 0) {
+                    SessionAnalytics.Result result = new SessionAnalytics(cores, minScores, timeZone).analyze(recorded);
+                    int joy = MetricsManager.getIndex(MetricsManager.Emotions.JOY);
+                    SessionStatistics statistics = result.getStatistics();
+                    appendResult(report, String.format(Locale.US,
+                            "%d recorded sessions, %d threads: %d frames at %.0f frames/s/core, joy mean %.1f, median %.1f, 90th percentile %.1f",
+                            recorded.getSessionCount(), cores, statistics.getFrameCount(), result.getFramesPerSecondPerCore(),
+                            statistics.getMean(joy), statistics.getQuantile(joy, 0.5), statistics.getQuantile(joy, 0.9)));
+                }
+            } finally {
+                database.close();
+            }
+        } catch (IOException e) {
+            appendResult(report, "Failed: " + e.getMessage());
+        }
+        return report.toString();
+    }
+
+    //the same frames merged in a different order give the same counts, and means equal up to rounding
+    private static boolean isMatching(SessionStatistics expected, SessionStatistics actual) {
+        if (expected.getFrameCount() != actual.getFrameCount()) {
+            return false;
+        }
+        for (int m = 0; m < MetricsManager.getAllMetrics().length; m++) {
+            if (expected.getCount(m) != actual.getCount(m)
+                    || Math.abs(expected.getMean(m) - actual.getMean(m)) > 1e-6
+                    || Math.abs(expected.getVariance(m) - actual.getVariance(m)) > 1e-4
+                    || expected.getQuantile(m, 0.5) != actual.getQuantile(m, 0.5)
+                    || expected.getMin(m) != actual.getMin(m) || expected.getMax(m) != actual.getMax(m)) {
+                return false;
+            }
+            for (int h = 0; h < SessionStatistics.HOURS; h++) {
+                double expectedMean = expected.getHourlyMean(m, h);
+                double actualMean = actual.getHourlyMean(m, h);
+                if (Double.isNaN(expectedMean) != Double.isNaN(actualMean) || Math.abs(expectedMean - actualMean) > 1e-6) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void appendResult(StringBuilder report, String result) {
+        Log.i(LOG_TAG, "SessionAnalyticsBenchmark: " + result);
+        report.append(result).append('\n');
+    }
+}
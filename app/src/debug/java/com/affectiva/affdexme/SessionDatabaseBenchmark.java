@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures SessionRecorder writing to a scratch SessionDatabase, without a camera or detector.
+ * The sustained case records synthetic scores of every metric at 30 FPS in real time, and reports the time the
+ * results path spends in record(), how far the writer fell behind, dropped frames and the database size.
+ * The throughput case records as fast as it can, to show how much headroom the writer has over 30 FPS.
+ * Both sessions are then queried for an average and a threshold crossing.
+ */
+public class SessionDatabaseBenchmark implements Benchmark {
+
+    static final String DATABASE_NAME = "sessions_benchmark.db";
+    static final int FRAMES_PER_SECOND = 30;
+    static final int SUSTAINED_SECONDS = 20;
+    static final int THROUGHPUT_SECONDS = 5;
+    private static final long SEED = 42;
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final Context context;
+
+    public SessionDatabaseBenchmark(@NonNull Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Runs every case and returns a human readable report. This takes about half a minute, so it should not be run on the UI thread.
+     */
+    @Override
+    public String run() {
+        context.deleteDatabase(DATABASE_NAME);
+        SessionDatabase database = new SessionDatabase(context, DATABASE_NAME);
+        StringBuilder report = new StringBuilder();
+        try {
+            long sustainedSession = runSustained(database, report);
+            long throughputSession = runThroughput(database, report);
+            runQueries(database, sustainedSession, report);
+            runQueries(database, throughputSession, report);
+        } finally {
+            database.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+        return report.toString();
+    }
+
+    private long runSustained(SessionDatabase database, StringBuilder report) {
+        SessionRecorder recorder = new SessionRecorder(database);
+        float[] scores = new float[MetricsManager.getAllMetrics().length];
+        Random random = new Random(SEED);
+        int frames = FRAMES_PER_SECOND * SUSTAINED_SECONDS;
+        long[] recordTimes = new long[frames];
+
+        long start = SystemClock.elapsedRealtime();
+        long sessionId = recorder.start(start);
+        for (int frame = 0; frame < frames; frame++) {
+            long frameTime = start + frame * 1000L / FRAMES_PER_SECOND;
+            long wait = frameTime - SystemClock.elapsedRealtime();
+            if (wait > 0) {
+                SystemClock.sleep(wait);
+            }
+            createSyntheticScores(scores, random);
+            long recordStart = System.nanoTime();
+            recorder.record(scores, frameTime);
+            recordTimes[frame] = System.nanoTime() - recordStart;
+        }
+        long flushStart = SystemClock.elapsedRealtime();
+        recorder.stop();
+        long flushMillis = SystemClock.elapsedRealtime() - flushStart;
+
+        Arrays.sort(recordTimes);
+        File databaseFile = context.getDatabasePath(DATABASE_NAME);
+        File walFile = new File(databaseFile.getPath() + "-wal");
+        appendResult(report, String.format(Locale.US,
+                "Sustained %d FPS x %d metrics for %d s: record() p50 %.1f us, p99 %.1f us, max %.1f us, "
+                        + "max backlog %d frames, %d dropped, final flush %d ms, database %d KB + log %d KB",
+                FRAMES_PER_SECOND, scores.length, SUSTAINED_SECONDS,
+                recordTimes[frames / 2] / 1e3f, recordTimes[frames * 99 / 100] / 1e3f, recordTimes[frames - 1] / 1e3f,
+                recorder.getMaxBacklog(), recorder.getDroppedFrames(), flushMillis,
+                databaseFile.length() / 1024, walFile.length() / 1024));
+        return sessionId;
+    }
+
+    private long runThroughput(SessionDatabase database, StringBuilder report) {
+        SessionRecorder recorder = new SessionRecorder(database);
+        float[] scores = new float[MetricsManager.getAllMetrics().length];
+        Random random = new Random(SEED);
+
+        long start = SystemClock.elapsedRealtime();
+        long sessionId = recorder.start(start);
+        long end = start + THROUGHPUT_SECONDS * 1000L;
+        int frame = 0;
+        while (SystemClock.elapsedRealtime() < end) {
+            createSyntheticScores(scores, random);
+            if (!recorder.record(scores, start + frame * 1000L / FRAMES_PER_SECOND)) {
+                Thread.yield(); //the ring is full, let the writer catch up
+            }
+            frame++;
+        }
+        recorder.stop();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        float framesPerSecond = recorder.getWrittenFrames() * 1000f / elapsed;
+        appendResult(report, String.format(Locale.US,
+                "Throughput: %.0f frames/s (%.0f rows/s), %.1fx the 30 FPS rate",
+                framesPerSecond, framesPerSecond * scores.length, framesPerSecond / FRAMES_PER_SECOND));
+        return sessionId;
+    }
+
+    private void runQueries(SessionDatabase database, long sessionId, StringBuilder report) {
+        long start = System.nanoTime();
+        float averageEngagement = database.getAverageScore(sessionId, MetricsManager.Emotions.ENGAGEMENT);
+        long averageNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long joyAbove50 = database.getFirstTimeAbove(sessionId, MetricsManager.Emotions.JOY, 50);
+        long firstNanos = System.nanoTime() - start;
+        appendResult(report, String.format(Locale.US,
+                "Session %d: average engagement %.1f in %.1f ms, joy first above 50 at %d ms in %.1f ms",
+                sessionId, averageEngagement, averageNanos / 1e6f, joyAbove50, firstNanos / 1e6f));
+    }
+
+    private static void appendResult(StringBuilder report, String result) {
+        Log.i(LOG_TAG, "SessionDatabaseBenchmark: " + result);
+        report.append(result).append('\n');
+    }
+
+    private static void createSyntheticScores(float[] scores, Random random) {
+        for (int n = 0; n < scores.length; n++) {
+            scores[n] = 100 * random.nextFloat();
+        }
+    }
+}
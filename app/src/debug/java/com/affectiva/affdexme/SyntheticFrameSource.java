@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import java.util.Random;
+
+/**
+ * Generated sessions, for measuring and testing SessionAnalytics without recorded data. Each session has its own
+ * seed, so a session reads the same whichever thread reads it and however often. Sessions start a few hours apart,
+ * so together they cover every hour of the day, and their scores drift slowly within the range of each metric.
+ */
+class SyntheticFrameSource implements FrameSource {
+
+    static final int FRAMES_PER_SECOND = 20;
+    private static final long SESSION_SPACING_MILLIS = 7 * 60 * 60 * 1000 + 13 * 60 * 1000;
+
+    private final int sessionCount;
+    private final int framesPerSession;
+    private final float[] minScores;
+    private final long firstSessionMillis;
+    private final long seed;
+
+    SyntheticFrameSource(int sessionCount, int framesPerSession, float[] minScores, long firstSessionMillis, long seed) {
+        this.sessionCount = sessionCount;
+        this.framesPerSession = framesPerSession;
+        this.minScores = minScores.clone();
+        this.firstSessionMillis = firstSessionMillis;
+        this.seed = seed;
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessionCount;
+    }
+
+    @Override
+    public void read(int index, Sink sink) {
+        Random random = new Random(seed + index);
+        long sessionMillis = firstSessionMillis + index * SESSION_SPACING_MILLIS;
+        float[] scores = new float[minScores.length];
+        for (int m = 0; m < scores.length; m++) {
+            scores[m] = minScores[m] + (SessionStatistics.MAX_SCORE - minScores[m]) * random.nextFloat();
+        }
+
+        for (int frame = 0; frame < framesPerSession; frame++) {
+            for (int m = 0; m < scores.length; m++) {
+                scores[m] = Math.max(minScores[m], Math.min(SessionStatistics.MAX_SCORE, scores[m] + 2 * random.nextFloat() - 1));
+            }
+            sink.onFrame(sessionMillis + frame * 1000L / FRAMES_PER_SECOND, scores);
+        }
+    }
+}
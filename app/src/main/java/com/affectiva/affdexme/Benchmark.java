@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+/**
+ * A development benchmark that can be run from the settings of debug builds. The benchmarks themselves are in the
+ * debug source set, where Benchmarks creates them.
+ */
+interface Benchmark {
+
+    /**
+     * Runs the benchmark and returns a human readable report. This may take a while, so it should not be run on the UI thread.
+     */
+    String run();
+}
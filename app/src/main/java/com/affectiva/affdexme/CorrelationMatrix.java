@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * The covariance and correlation of every pair of metrics over a session, updated with each frame, to show which
+ * expressions occur together, such as SMILE with JOY or BROW_FURROW with ANGER.
+ * Metrics that are not detected have NaN scores, so each pair only counts the frames in which both of its metrics
+ * were detected. For each pair, the count, both means, both sums of squared differences and the co-moment are
+ * updated with Welford's method, which stays accurate over long sessions where sums of squares would lose precision.
+ * The pairs are packed in one array of doubles, each pair's values next to each other, and the frame update does not
+ * allocate. Reading the matrix goes through a Snapshot, which is cheap enough to take a few times a second.
+ */
+public class CorrelationMatrix {
+
+    //the values of a pair, in order
+    private static final int COUNT = 0;
+    private static final int MEAN_X = 1;
+    private static final int MEAN_Y = 2;
+    private static final int SQUARED_X = 3;
+    private static final int SQUARED_Y = 4;
+    private static final int CO_MOMENT = 5;
+    private static final int STRIDE = 6;
+
+    /**
+     * The correlations and covariances at the time of CorrelationMatrix.snapshot(), as full symmetric matrices.
+     */
+    public static class Snapshot {
+        final int metricCount;
+        final float[] correlations;
+        final float[] covariances;
+        final long[] counts;
+        long frameCount = 0;
+
+        public Snapshot(int metricCount) {
+            this.metricCount = metricCount;
+            correlations = new float[metricCount * metricCount];
+            covariances = new float[metricCount * metricCount];
+            counts = new long[metricCount * metricCount];
+        }
+
+        public int getMetricCount() {
+            return metricCount;
+        }
+
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * Returns the number of frames in which both metrics were detected.
+         */
+        public long getCount(int metricA, int metricB) {
+            return counts[metricA * metricCount + metricB];
+        }
+
+        /**
+         * Returns the Pearson correlation of two metrics, from -1 to 1, or NaN if either did not vary in the frames
+         * they were both detected in.
+         */
+        public float getCorrelation(int metricA, int metricB) {
+            return correlations[metricA * metricCount + metricB];
+        }
+
+        /**
+         * Returns the sample covariance of two metrics, or NaN if they were both detected in fewer than two frames.
+         */
+        public float getCovariance(int metricA, int metricB) {
+            return covariances[metricA * metricCount + metricB];
+        }
+    }
+
+    private final int metricCount;
+    private final double[] pairs; //the upper triangle, including the diagonal, row by row
+    private final int[] detected; //reused by add(float[])
+    private long frameCount = 0;
+
+    /**
+     * Create an empty matrix of every metric of MetricsManager.getAllMetrics().
+     */
+    public CorrelationMatrix() {
+        this(MetricsManager.getAllMetrics().length);
+    }
+
+    CorrelationMatrix(int metricCount) {
+        this.metricCount = metricCount;
+        pairs = new double[metricCount * (metricCount + 1) / 2 * STRIDE];
+        detected = new int[metricCount];
+    }
+
+    public int getMetricCount() {
+        return metricCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public void clear() {
+        Arrays.fill(pairs, 0);
+        frameCount = 0;
+    }
+
+    /**
+     * Add the scores of a frame, indexed like MetricsManager.getAllMetrics(), with NaN for metrics that were not detected.
+     */
+    public void add(float[] frameScores) {
+        frameCount++;
+        int detectedCount = 0;
+        for (int m = 0; m < metricCount; m++) {
+            if (!Float.isNaN(frameScores[m])) {
+                detected[detectedCount++] = m;
+            }
+        }
+
+        for (int a = 0; a < detectedCount; a++) {
+            int row = detected[a];
+            double x = frameScores[row];
+            int rowStart = getPairIndex(row, row);
+            for (int b = a; b < detectedCount; b++) {
+                int column = detected[b];
+                double y = frameScores[column];
+                int p = (rowStart + column - row) * STRIDE;
+                double count = pairs[p + COUNT] + 1;
+                double deltaX = x - pairs[p + MEAN_X];
+                double deltaY = y - pairs[p + MEAN_Y];
+                double meanX = pairs[p + MEAN_X] + deltaX / count;
+                double meanY = pairs[p + MEAN_Y] + deltaY / count;
+                pairs[p + COUNT] = count;
+                pairs[p + MEAN_X] = meanX;
+                pairs[p + MEAN_Y] = meanY;
+                pairs[p + SQUARED_X] += deltaX * (x - meanX);
+                pairs[p + SQUARED_Y] += deltaY * (y - meanY);
+                pairs[p + CO_MOMENT] += deltaX * (y - meanY);
+            }
+        }
+    }
+
+    /**
+     * Copy the current correlations and covariances to snapshot, which must be of the same number of metrics.
+     */
+    public void snapshot(@NonNull Snapshot snapshot) {
+        if (snapshot.metricCount != metricCount) {
+            throw new IllegalArgumentException("Snapshot is of " + snapshot.metricCount + " metrics instead of " + metricCount);
+        }
+        snapshot.frameCount = frameCount;
+        for (int row = 0; row < metricCount; row++) {
+            for (int column = row; column < metricCount; column++) {
+                int p = getPairIndex(row, column) * STRIDE;
+                long count = (long) pairs[p + COUNT];
+                float covariance = Float.NaN;
+                float correlation = Float.NaN;
+                if (count >= 2) {
+                    covariance = (float) (pairs[p + CO_MOMENT] / (count - 1));
+                    double spread = Math.sqrt(pairs[p + SQUARED_X] * pairs[p + SQUARED_Y]);
+                    if (spread > 0) {
+                        //rounding can take it a little past 1
+                        correlation = (float) Math.max(-1, Math.min(1, pairs[p + CO_MOMENT] / spread));
+                    }
+                }
+                int upper = row * metricCount + column;
+                int lower = column * metricCount + row;
+                snapshot.counts[upper] = snapshot.counts[lower] = count;
+                snapshot.covariances[upper] = snapshot.covariances[lower] = covariance;
+                snapshot.correlations[upper] = snapshot.correlations[lower] = correlation;
+            }
+        }
+    }
+
+    //the index of the pair of row and column, with row <= column, in the packed upper triangle
+    private int getPairIndex(int row, int column) {
+        return row * metricCount - row * (row - 1) / 2 + column - row;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * Draws a CorrelationMatrix as a heatmap, a cell per pair of metrics in the order of MetricsManager.getAllMetrics(),
+ * red for metrics that rise together, blue for metrics where one falls as the other rises, and nothing for pairs
+ * that have no correlation yet. Below the heatmap is a caption naming the most strongly correlated pair.
+ * The matrix is copied to a Snapshot by update(), so the matrix can keep changing between updates, and the cell
+ * colors come from a table computed once. update() can be called from any thread: it fills a second Snapshot, which
+ * is swapped with the one being shown.
+ */
+public class CorrelationMatrixView extends View {
+
+    static final int COLOR_STEPS = 100; //colors for each sign of correlation
+    static final long MIN_CAPTION_COUNT = 30; //frames a pair needs before it is named in the caption
+
+    private CorrelationMatrix.Snapshot snapshot = new CorrelationMatrix.Snapshot(MetricsManager.getAllMetrics().length); //guarded by this
+    private CorrelationMatrix.Snapshot nextSnapshot = new CorrelationMatrix.Snapshot(MetricsManager.getAllMetrics().length); //used by update() only
+    private final int[] colors = new int[2 * COLOR_STEPS + 1]; //from -1 to 1
+    private final Paint cellPaint = new Paint();
+    private final Paint captionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private String caption = ""; //guarded by this
+
+    public CorrelationMatrixView(Context context) {
+        super(context);
+        initResources(null);
+    }
+
+    public CorrelationMatrixView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        initResources(attrs);
+    }
+
+    public CorrelationMatrixView(Context context, AttributeSet attrs, int styleID) {
+        super(context, attrs, styleID);
+        initResources(attrs);
+    }
+
+    void initResources(AttributeSet attrs) {
+        float captionTextSize = 15;
+        int captionColor = Color.WHITE;
+        if (attrs != null) {
+            TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.correlation_matrix_attributes, 0, 0);
+            captionTextSize = a.getDimensionPixelSize(R.styleable.correlation_matrix_attributes_textSize, (int) captionTextSize);
+            captionColor = a.getColor(R.styleable.correlation_matrix_attributes_textColor, captionColor);
+            a.recycle();
+        }
+        captionPaint.setTextSize(captionTextSize);
+        captionPaint.setColor(captionColor);
+        captionPaint.setShadowLayer(1, 0, 2, Color.BLACK);
+
+        //dark gray for no correlation, shading to red and blue
+        for (int n = 0; n < colors.length; n++) {
+            float correlation = (float) (n - COLOR_STEPS) / COLOR_STEPS;
+            int strength = (int) (Math.abs(correlation) * 191);
+            colors[n] = correlation > 0 ? Color.rgb(64 + strength, 64, 64) : Color.rgb(64, 64, 64 + strength);
+        }
+    }
+
+    /**
+     * Show the current state of matrix, which must be of every metric. Calls to update() must not overlap.
+     */
+    public void update(CorrelationMatrix matrix) {
+        matrix.snapshot(nextSnapshot);
+        String nextCaption = getCaption(nextSnapshot);
+        synchronized (this) {
+            CorrelationMatrix.Snapshot shown = snapshot;
+            snapshot = nextSnapshot;
+            nextSnapshot = shown;
+            caption = nextCaption;
+        }
+        postInvalidate();
+    }
+
+    private static String getCaption(CorrelationMatrix.Snapshot snapshot) {
+        MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+        int bestRow = -1;
+        int bestColumn = -1;
+        float bestCorrelation = 0;
+        for (int row = 0; row < snapshot.getMetricCount(); row++) {
+            for (int column = row + 1; column < snapshot.getMetricCount(); column++) {
+                float correlation = snapshot.getCorrelation(row, column);
+                if (snapshot.getCount(row, column) >= MIN_CAPTION_COUNT && Math.abs(correlation) > Math.abs(bestCorrelation)) {
+                    bestRow = row;
+                    bestColumn = column;
+                    bestCorrelation = correlation;
+                }
+            }
+        }
+        return bestRow < 0 ? "" : String.format(Locale.US, "%s ~ %s %+.2f",
+                MetricsManager.getUpperCaseName(metrics[bestRow]), MetricsManager.getUpperCaseName(metrics[bestColumn]), bestCorrelation);
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int metricCount = snapshot.getMetricCount();
+        float captionHeight = captionPaint.getFontSpacing();
+        float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float height = getHeight() - getPaddingTop() - getPaddingBottom() - captionHeight;
+        float cellSize = Math.min(width, height) / metricCount;
+        if (cellSize <= 0) {
+            return;
+        }
+
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        for (int row = 0; row < metricCount; row++) {
+            float cellTop = top + row * cellSize;
+            for (int column = 0; column < metricCount; column++) {
+                float correlation = snapshot.getCorrelation(row, column);
+                if (Float.isNaN(correlation)) {
+                    continue;
+                }
+                cellPaint.setColor(colors[Math.round((correlation + 1) * COLOR_STEPS)]);
+                float cellLeft = left + column * cellSize;
+                canvas.drawRect(cellLeft, cellTop, cellLeft + cellSize, cellTop + cellSize, cellPaint);
+            }
+        }
+        canvas.drawText(caption, left, top + metricCount * cellSize - captionPaint.ascent(), captionPaint);
+    }
+}
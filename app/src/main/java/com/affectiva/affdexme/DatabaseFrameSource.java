@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The sessions recorded in a SessionDatabase, as a FrameSource for SessionAnalytics. The database uses write-ahead
+ * logging, so each thread reads its sessions over its own connection.
+ */
+class DatabaseFrameSource implements FrameSource {
+
+    private final SessionDatabase database;
+    private final List<Long> sessionIds;
+    private final int metricCount = MetricsManager.getAllMetrics().length;
+
+    DatabaseFrameSource(@NonNull SessionDatabase database) {
+        this.database = database;
+        sessionIds = database.getSessionIds();
+    }
+
+    @Override
+    public int getSessionCount() {
+        return sessionIds.size();
+    }
+
+    @Override
+    public void read(int index, Sink sink) {
+        long sessionId = sessionIds.get(index);
+        float[] scores = new float[metricCount];
+        Arrays.fill(scores, Float.NaN);
+        long frameTime = -1;
+
+        Cursor cursor = database.queryScores(sessionId);
+        try {
+            while (cursor.moveToNext()) {
+                long time = cursor.getLong(0);
+                if (time != frameTime) {
+                    if (frameTime >= 0) {
+                        sink.onFrame(sessionId + frameTime, scores);
+                        Arrays.fill(scores, Float.NaN);
+                    }
+                    frameTime = time;
+                }
+                int metric = cursor.getInt(1);
+                if (metric < metricCount) {
+                    scores[metric] = cursor.getFloat(2);
+                }
+            }
+            if (frameTime >= 0) {
+                sink.onFrame(sessionId + frameTime, scores);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+/**
+ * Picks the OverlayRenderer detail level from measured draw times, so that drawing many faces does not make the
+ * drawing thread miss frames. Draw times are smoothed with an exponential moving average. When the average goes
+ * over the frame budget, the level of detail goes down by one; when it falls well below the budget, it goes back
+ * up by one. After each change we wait a number of frames for the average to settle before changing again,
+ * so the level does not flicker back and forth.
+ */
+class DetailLevelController {
+
+    static final long DEFAULT_FRAME_BUDGET_NANOS = 8000000L; //half of a 60Hz frame, leaving the rest to the rest of the system
+    private static final float SMOOTHING = 0.1f; //weight of the newest sample in the moving average
+    private static final float RESTORE_RATIO = 0.5f; //restore detail once the average is under this fraction of the budget
+    private static final int SETTLE_FRAMES = 15;
+
+    private final long frameBudgetNanos;
+    private float averageNanos = 0;
+    private int framesSinceChange = 0;
+    private volatile int detailLevel = OverlayRenderer.DETAIL_FULL; //read by the UI thread to display it
+
+    DetailLevelController(long frameBudgetNanos) {
+        if (frameBudgetNanos <= 0) {
+            throw new IllegalArgumentException("Frame budget must be positive");
+        }
+        this.frameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Record how long the last frame took to draw and return the detail level to draw the next frame with.
+     */
+    int onFrameDrawn(long drawNanos) {
+        averageNanos = averageNanos == 0 ? drawNanos : averageNanos + SMOOTHING * (drawNanos - averageNanos);
+
+        if (++framesSinceChange < SETTLE_FRAMES) {
+            return detailLevel;
+        }
+
+        if (averageNanos > frameBudgetNanos && detailLevel < OverlayRenderer.DETAIL_MINIMAL) {
+            detailLevel++;
+            framesSinceChange = 0;
+        } else if (averageNanos < frameBudgetNanos * RESTORE_RATIO && detailLevel > OverlayRenderer.DETAIL_FULL) {
+            detailLevel--;
+            framesSinceChange = 0;
+        }
+        return detailLevel;
+    }
+
+    int getDetailLevel() {
+        return detailLevel;
+    }
+
+    void reset() {
+        averageNanos = 0;
+        framesSinceChange = 0;
+        detailLevel = OverlayRenderer.DETAIL_FULL;
+    }
+}
@@ -8,12 +8,10 @@ package com.affectiva.affdexme;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
-import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Typeface;
@@ -22,19 +20,15 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.util.Pair;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.widget.Toast;
 
 import com.affectiva.android.affdex.sdk.detector.Face;
 
-import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class contains a SurfaceView and its own thread that draws to it.
@@ -43,18 +37,16 @@ import java.util.Map;
 public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
     private final static String LOG_TAG = "AffdexMe";
-    private final float MARGIN = 4;
-    private Bitmap appearanceMarkerBitmap_genderMale_glassesOn;
-    private Bitmap appearanceMarkerBitmap_genderFemale_glassesOn;
-    private Bitmap appearanceMarkerBitmap_genderUnknown_glassesOn;
-    private Bitmap appearanceMarkerBitmap_genderUnknown_glassesOff;
-    private Bitmap appearanceMarkerBitmap_genderMale_glassesOff;
-    private Bitmap appearanceMarkerBitmap_genderFemale_glassesOff;
-    private Map<String, Bitmap> emojiMarkerBitmapToEmojiTypeMap;
+    private final static float DRAW_TIME_SMOOTHING = 0.05f; //weight of the newest sample in the average draw time
+    private final static float MAX_DIRTY_AREA_RATIO = 0.5f; //above this fraction of the surface, redraw all of it
     private SurfaceHolder surfaceHolder;
     private DrawingThread drawingThread; //DrawingThread object
-    private DrawingViewConfig drawingViewConfig;
+    private DrawingViewConfig.Builder configBuilder; //the settings of the overlay, changed on the UI thread only
+    private volatile DrawingViewConfig drawingViewConfig; //the latest snapshot of configBuilder, read by the drawing thread
+    private volatile float averageDrawMillis = 0; //written by the drawing thread
+    private volatile float fullResolutionDrawMillis = 0;
     private DrawingThreadEventListener listener;
+    private volatile PipelineStage renderStage; //reported each frame drawn, or null
 
     //three constructors required of any custom view
     public DrawingView(Context context) {
@@ -72,10 +64,6 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
         initView();
     }
 
-    private static int getDrawable(@NonNull Context context, @NonNull String name) {
-        return context.getResources().getIdentifier(name, "drawable", context.getPackageName());
-    }
-
     public void setEventListener(DrawingThreadEventListener listener) {
         this.listener = listener;
 
@@ -85,6 +73,23 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
     }
 
     public void requestBitmap() {
+        requestBitmap(null);
+    }
+
+    /**
+     * Request a screenshot of the overlay drawn for the given faces instead of the current ones, for example the
+     * faces of an earlier frame that the screenshot is taken from. The faces must not be modified afterwards.
+     */
+    public void requestBitmap(@Nullable FaceData[] faces) {
+        requestBitmap(faces, listener);
+    }
+
+    /**
+     * Like requestBitmap(FaceData[]), but the bitmap goes to the given listener instead of the view's listener.
+     * Requests are queued, so requests made before the next frame is drawn each get their own bitmap.
+     * The listener is called on the drawing thread.
+     */
+    public void requestBitmap(@Nullable FaceData[] faces, DrawingThreadEventListener listener) {
         if (listener == null) {
             String msg = "Attempted to request screenshot without first attaching event listener";
             Log.e(LOG_TAG, msg);
@@ -97,15 +102,29 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
             Toast.makeText(getContext(), msg, Toast.LENGTH_SHORT).show();
             return;
         }
-        drawingThread.requestCaptureBitmap = true;
+        drawingThread.requestCapture(new CaptureRequest(faces, listener));
     }
 
     void initView() {
         surfaceHolder = getHolder(); //The SurfaceHolder object will be used by the thread to request canvas to draw on SurfaceView
         surfaceHolder.setFormat(PixelFormat.TRANSPARENT); //set to Transparent so this surfaceView does not obscure the one it is overlaying (the one displaying the camera).
         surfaceHolder.addCallback(this); //become a Listener to the three events below that SurfaceView generates
-        drawingViewConfig = new DrawingViewConfig();
+        configBuilder = new DrawingViewConfig.Builder();
+
+        initDominantEmotionPaints(getContext(), configBuilder);
+        publishConfig();
+        drawingThread = new DrawingThread(surfaceHolder, listener);
+    }
 
+    //hand the drawing thread a new snapshot of the settings, which it picks up on its next frame
+    private void publishConfig() {
+        drawingViewConfig = configBuilder.build();
+    }
+
+    /**
+     * Load the paints and bar width used to draw the dominant emotion from the metricName and metricPct styles.
+     */
+    static void initDominantEmotionPaints(@NonNull Context context, @NonNull DrawingViewConfig.Builder config) {
         //Default values
         Paint emotionLabelPaint = new Paint();
         emotionLabelPaint.setColor(Color.parseColor("#ff8000")); //Orange
@@ -133,7 +152,7 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                 android.R.attr.shadowRadius,   // 4
                 android.R.attr.layout_weight,  // 5
                 android.R.attr.textSize};      // 6
-        TypedArray a = getContext().obtainStyledAttributes(R.style.metricName, emotionLabelAttrs);
+        TypedArray a = context.obtainStyledAttributes(R.style.metricName, emotionLabelAttrs);
         if (a != null) {
             emotionLabelPaint.setColor(a.getColor(1, emotionLabelPaint.getColor()));
             emotionLabelPaint.setShadowLayer(
@@ -149,7 +168,7 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                 android.R.attr.textColor,         // 0
                 android.R.attr.textSize,          // 1
                 R.styleable.custom_attributes_metricBarLength};  // 2
-        a = getContext().obtainStyledAttributes(R.style.metricPct, emotionValueAttrs);
+        a = context.obtainStyledAttributes(R.style.metricPct, emotionValueAttrs);
         if (a != null) {
             emotionValuePaint.setColor(a.getColor(0, emotionValuePaint.getColor()));
             emotionValuePaint.setTextSize(a.getDimensionPixelSize(1, 36));
@@ -157,29 +176,27 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
             a.recycle();
         }
 
-        drawingViewConfig.setDominantEmotionLabelPaints(emotionLabelPaint, emotionValuePaint);
-        drawingViewConfig.setDominantEmotionMetricBarConfig(metricBarPaint, metricBarWidth);
-        drawingThread = new DrawingThread(surfaceHolder, drawingViewConfig, listener);
-
-        //statically load the emoji bitmaps on-demand and cache
-        emojiMarkerBitmapToEmojiTypeMap = new HashMap<>();
+        config.setDominantEmotionLabelPaints(emotionLabelPaint, emotionValuePaint);
+        config.setDominantEmotionMetricBarConfig(metricBarPaint, metricBarWidth);
     }
 
     public void setTypeface(Typeface face) {
-        drawingViewConfig.dominantEmotionLabelPaint.setTypeface(face);
-        drawingViewConfig.dominantEmotionValuePaint.setTypeface(face);
+        configBuilder.dominantEmotionLabelPaint.setTypeface(face);
+        configBuilder.dominantEmotionValuePaint.setTypeface(face);
+        publishConfig();
     }
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         if (drawingThread.isStopped()) {
-            drawingThread = new DrawingThread(surfaceHolder, drawingViewConfig, listener);
+            drawingThread = new DrawingThread(surfaceHolder, listener);
         }
         drawingThread.start();
     }
 
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        drawingThread.requestFullRedraw();
     }
 
     @Override
@@ -199,16 +216,19 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
     }
 
     public boolean isDimensionsNeeded() {
-        return drawingViewConfig.isDimensionsNeeded;
+        return configBuilder.isDimensionsNeeded;
     }
 
     public void invalidateDimensions() {
-        drawingViewConfig.isDimensionsNeeded = true;
+        configBuilder.isDimensionsNeeded = true;
     }
 
     public void updateViewDimensions(int surfaceViewWidth, int surfaceViewHeight, int imageWidth, int imageHeight) {
         try {
-            drawingViewConfig.updateViewDimensions(surfaceViewWidth, surfaceViewHeight, imageWidth, imageHeight);
+            configBuilder.updateViewDimensions(surfaceViewWidth, surfaceViewHeight, imageWidth, imageHeight);
+            publishConfig();
+            updateSurfaceSize();
+            drawingThread.requestFullRedraw();
         } catch (IllegalArgumentException e) {
             Log.e(LOG_TAG, "Attempted to set a dimension with a negative value", e);
         }
@@ -216,35 +236,111 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
 
     public void setThickness(int t) {
         try {
-            drawingViewConfig.setDrawThickness(t);
-            drawingThread.setThickness(t);
+            configBuilder.setDrawThickness(t);
+            publishConfig();
         } catch (IllegalArgumentException e) {
             Log.e(LOG_TAG, "Attempted to set a thickness with a negative value", e);
         }
     }
 
+    public float getOverlayScale() {
+        return configBuilder.overlayScale;
+    }
+
+    /**
+     * Draw into a surface that is a fraction of the size of this view, and let the compositor scale it up.
+     * Clearing and compositing a smaller surface is cheaper, at the cost of blurrier dots and markers.
+     * Sizes used to draw, like the dot thickness, text and marker sizes, shrink along with the surface.
+     */
+    public void setOverlayScale(float scale) {
+        try {
+            configBuilder.setOverlayScale(scale);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Attempted to set an invalid overlay scale", e);
+            return;
+        }
+        publishConfig();
+        updateSurfaceSize();
+        drawingThread.requestFullRedraw();
+        averageDrawMillis = 0;
+    }
+
+    //must be called on the UI thread
+    private void updateSurfaceSize() {
+        DrawingViewConfig config = drawingViewConfig;
+        if (config.overlayScale == 1) {
+            surfaceHolder.setSizeFromLayout();
+        } else if (config.surfaceViewWidth > 0 && config.surfaceViewHeight > 0) {
+            surfaceHolder.setFixedSize(config.surfaceViewWidth, config.surfaceViewHeight);
+        }
+    }
+
+    /**
+     * Moving average of the time spent drawing each frame, in milliseconds.
+     */
+    public float getAverageDrawMillis() {
+        return averageDrawMillis;
+    }
+
+    /**
+     * Moving average of the time spent drawing each frame when the overlay was last drawn at full resolution,
+     * in milliseconds, or 0 if it has not been drawn at full resolution yet.
+     */
+    public float getFullResolutionDrawMillis() {
+        return fullResolutionDrawMillis;
+    }
+
     public boolean getDrawPointsEnabled() {
-        return drawingViewConfig.isDrawPointsEnabled;
+        return configBuilder.isDrawPointsEnabled;
     }
 
     public void setDrawPointsEnabled(boolean b) {
-        drawingViewConfig.isDrawPointsEnabled = b;
+        configBuilder.isDrawPointsEnabled = b;
+        publishConfig();
     }
 
     public boolean getDrawAppearanceMarkersEnabled() {
-        return drawingViewConfig.isDrawAppearanceMarkersEnabled;
+        return configBuilder.isDrawAppearanceMarkersEnabled;
     }
 
     public void setDrawAppearanceMarkersEnabled(boolean b) {
-        drawingViewConfig.isDrawAppearanceMarkersEnabled = b;
+        configBuilder.isDrawAppearanceMarkersEnabled = b;
+        publishConfig();
     }
 
     public boolean getDrawEmojiMarkersEnabled() {
-        return drawingViewConfig.isDrawEmojiMarkersEnabled;
+        return configBuilder.isDrawEmojiMarkersEnabled;
     }
 
     public void setDrawEmojiMarkersEnabled(boolean b) {
-        drawingViewConfig.isDrawEmojiMarkersEnabled = b;
+        configBuilder.isDrawEmojiMarkersEnabled = b;
+        publishConfig();
+    }
+
+    /**
+     * Report the time each frame takes to draw to stage.
+     */
+    public void setPipelineStage(PipelineStage stage) {
+        renderStage = stage;
+    }
+
+    public boolean getAdaptiveDetailEnabled() {
+        return configBuilder.isAdaptiveDetailEnabled;
+    }
+
+    /**
+     * When enabled, the overlay drops optional layers while drawing takes longer than the frame budget.
+     */
+    public void setAdaptiveDetailEnabled(boolean b) {
+        configBuilder.isAdaptiveDetailEnabled = b;
+        publishConfig();
+    }
+
+    /**
+     * The level of detail the overlay is currently drawn with, from OverlayRenderer.DETAIL_FULL to OverlayRenderer.DETAIL_MINIMAL.
+     */
+    public int getDetailLevel() {
+        return drawingThread.getDetailLevel();
     }
 
     public void updatePoints(List<Face> faces, boolean isPointsMirrored) {
@@ -260,44 +356,44 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
      * I.E. when the Activity's onPause() gets called.
      */
     public void cleanup() {
-        if (emojiMarkerBitmapToEmojiTypeMap != null) {
-            for (Bitmap bitmap : emojiMarkerBitmapToEmojiTypeMap.values()) {
-                bitmap.recycle();
-            }
-            emojiMarkerBitmapToEmojiTypeMap.clear();
-        }
-
-        if (appearanceMarkerBitmap_genderMale_glassesOn != null) {
-            appearanceMarkerBitmap_genderMale_glassesOn.recycle();
-        }
-        if (appearanceMarkerBitmap_genderFemale_glassesOn != null) {
-            appearanceMarkerBitmap_genderFemale_glassesOn.recycle();
-        }
-        if (appearanceMarkerBitmap_genderUnknown_glassesOn != null) {
-            appearanceMarkerBitmap_genderUnknown_glassesOn.recycle();
-        }
-        if (appearanceMarkerBitmap_genderUnknown_glassesOff != null) {
-            appearanceMarkerBitmap_genderUnknown_glassesOff.recycle();
-        }
-        if (appearanceMarkerBitmap_genderMale_glassesOff != null) {
-            appearanceMarkerBitmap_genderMale_glassesOff.recycle();
-        }
-        if (appearanceMarkerBitmap_genderFemale_glassesOff != null) {
-            appearanceMarkerBitmap_genderFemale_glassesOff.recycle();
-        }
+        drawingThread.releaseRenderer();
     }
 
     interface DrawingThreadEventListener {
         void onBitmapGenerated(Bitmap bitmap);
     }
 
+    static class CaptureRequest {
+        final FaceData[] faces; //null to draw the current faces
+        final DrawingThreadEventListener listener;
+        Bitmap bitmap;
+
+        CaptureRequest(@Nullable FaceData[] faces, @NonNull DrawingThreadEventListener listener) {
+            this.faces = faces;
+            this.listener = listener;
+        }
+    }
+
     class FacesSharer {
         boolean isPointsMirrored;
-        List<Face> facesToDraw;
+        FaceData[] facesToDraw; //pool of face copies, of which the first faceCount are valid
+        int faceCount;
 
         public FacesSharer() {
             isPointsMirrored = false;
-            facesToDraw = new ArrayList<>();
+            facesToDraw = new FaceData[0];
+            faceCount = 0;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (facesToDraw.length < capacity) {
+                FaceData[] pool = new FaceData[capacity];
+                System.arraycopy(facesToDraw, 0, pool, 0, facesToDraw.length);
+                for (int n = facesToDraw.length; n < capacity; n++) {
+                    pool[n] = new FaceData();
+                }
+                facesToDraw = pool;
+            }
         }
     }
 
@@ -305,56 +401,35 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
     class DrawingThread extends Thread {
         private final FacesSharer sharer;
         private final SurfaceHolder mSurfaceHolder;
-        private Paint trackingPointsPaint;
-        private Paint boundingBoxPaint;
-        private Paint dominantEmotionScoreBarPaint;
+        private final OverlayRenderer renderer;
+        private final DetailLevelController detailLevelController;
+        private FaceData[] facesToDraw; //copies of the shared faces, owned by this thread while drawing
+        private int faceCount = 0;
+        private boolean mirrorPoints = false;
+        private final Rect previousBounds = new Rect(); //area drawn on in the previous frame
+        private final Rect currentBounds = new Rect(); //area that will be drawn on in this frame
+        private final Rect faceBounds = new Rect();
+        private final Rect dirtyRegion = new Rect();
+        private volatile boolean isFullRedrawNeeded = true; //the contents of the surface are unknown until we clear all of it
         private volatile boolean stopFlag = false; //boolean to indicate when thread has been told to stop
-        private volatile boolean requestCaptureBitmap = false; //boolean to indicate a snapshot of the surface has been requested
-        private DrawingViewConfig config;
+        private final List<CaptureRequest> captureRequests = new ArrayList<>(); //snapshots of the surface that have been requested
+        private final List<CaptureRequest> capturesToDraw = new ArrayList<>(); //requests taken by this thread for the current frame
         private DrawingThreadEventListener listener;
 
-        public DrawingThread(SurfaceHolder surfaceHolder, DrawingViewConfig con, DrawingThreadEventListener listener) {
+        public DrawingThread(SurfaceHolder surfaceHolder, DrawingThreadEventListener listener) {
             mSurfaceHolder = surfaceHolder;
+            renderer = new OverlayRenderer(getContext());
+            detailLevelController = new DetailLevelController(DetailLevelController.DEFAULT_FRAME_BUDGET_NANOS);
 
-            //statically load the Appearance marker bitmaps so they only have to load once
-            appearanceMarkerBitmap_genderMale_glassesOn = ImageHelper.loadBitmapFromInternalStorage(getContext(), "male_glasses.png");
-            appearanceMarkerBitmap_genderMale_glassesOff = ImageHelper.loadBitmapFromInternalStorage(getContext(), "male_noglasses.png");
-            appearanceMarkerBitmap_genderFemale_glassesOn = ImageHelper.loadBitmapFromInternalStorage(getContext(), "female_glasses.png");
-            appearanceMarkerBitmap_genderFemale_glassesOff = ImageHelper.loadBitmapFromInternalStorage(getContext(), "female_noglasses.png");
-            appearanceMarkerBitmap_genderUnknown_glassesOn = ImageHelper.loadBitmapFromInternalStorage(getContext(), "unknown_glasses.png");
-            appearanceMarkerBitmap_genderUnknown_glassesOff = ImageHelper.loadBitmapFromInternalStorage(getContext(), "unknown_noglasses.png");
-
-            trackingPointsPaint = new Paint();
-            trackingPointsPaint.setColor(Color.WHITE);
-            boundingBoxPaint = new Paint();
-            boundingBoxPaint.setColor(Color.WHITE);
-            boundingBoxPaint.setStyle(Paint.Style.STROKE);
-            dominantEmotionScoreBarPaint = new Paint();
-            dominantEmotionScoreBarPaint.setColor(Color.GREEN);
-            dominantEmotionScoreBarPaint.setStyle(Paint.Style.STROKE);
-
-            config = con;
             sharer = new FacesSharer();
+            facesToDraw = new FaceData[0];
             this.listener = listener;
-
-            setThickness(config.drawThickness);
         }
 
         public void setEventListener(DrawingThreadEventListener listener) {
             this.listener = listener;
         }
 
-        void setValenceOfBoundingBox(float valence) {
-            //prepare the color of the bounding box using the valence score. Red for -100, White for 0, and Green for +100, with linear interpolation in between.
-            if (valence > 0) {
-                float colorScore = ((100f - valence) / 100f) * 255;
-                boundingBoxPaint.setColor(Color.rgb((int) colorScore, 255, (int) colorScore));
-            } else {
-                float colorScore = ((100f + valence) / 100f) * 255;
-                boundingBoxPaint.setColor(Color.rgb(255, (int) colorScore, (int) colorScore));
-            }
-        }
-
         public void stopThread() {
             stopFlag = true;
         }
@@ -366,28 +441,49 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
         //Updates thread with latest faces returned by the onImageResults() event.
         public void updatePoints(List<Face> faces, boolean isPointsMirrored) {
             synchronized (sharer) {
-                sharer.facesToDraw.clear();
+                sharer.faceCount = 0;
                 if (faces != null) {
-                    sharer.facesToDraw.addAll(faces);
+                    sharer.ensureCapacity(faces.size());
+                    for (Face face : faces) {
+                        sharer.facesToDraw[sharer.faceCount].set(face);
+                        sharer.faceCount++;
+                    }
                 }
                 sharer.isPointsMirrored = isPointsMirrored;
             }
         }
 
-        void setThickness(int thickness) {
-            boundingBoxPaint.setStrokeWidth(thickness);
+        void requestCapture(CaptureRequest request) {
+            synchronized (captureRequests) {
+                captureRequests.add(request);
+            }
         }
 
         //Inform thread face detection has stopped, so pending faces are no longer valid.
         public void invalidatePoints() {
             synchronized (sharer) {
-                sharer.facesToDraw.clear();
+                sharer.faceCount = 0;
             }
         }
 
+        /**
+         * Clear and redraw the whole surface on the next frame, instead of only the regions that changed.
+         */
+        void requestFullRedraw() {
+            isFullRedrawNeeded = true;
+        }
+
+        int getDetailLevel() {
+            return detailLevelController.getDetailLevel();
+        }
+
+        void releaseRenderer() {
+            renderer.release();
+        }
+
         @Override
         public void run() {
-            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Process.setThreadPriority(Pipeline.RENDER_PRIORITY);
 
             while (!stopFlag) {
 
@@ -396,22 +492,38 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                  * After we are done drawing, we let go of the canvas using SurfaceHolder.unlockCanvasAndPost()
                  * **/
                 Canvas c = null;
-                Canvas screenshotCanvas = null;
-                Bitmap screenshotBitmap = null;
+                //every part of a frame is drawn with the same snapshot, even if the settings change meanwhile
+                DrawingViewConfig config = drawingViewConfig;
                 try {
-                    c = mSurfaceHolder.lockCanvas();
+                    copySharedFaces();
 
-                    if (requestCaptureBitmap) {
-                        Rect surfaceBounds = mSurfaceHolder.getSurfaceFrame();
-                        screenshotBitmap = Bitmap.createBitmap(surfaceBounds.width(), surfaceBounds.height(), Bitmap.Config.ARGB_8888);
-                        screenshotCanvas = new Canvas(screenshotBitmap);
-                        requestCaptureBitmap = false;
+                    if (findDirtyRegion(config)) {
+                        c = mSurfaceHolder.lockCanvas(dirtyRegion);
+                    } else {
+                        c = mSurfaceHolder.lockCanvas();
                     }
 
                     if (c != null) {
                         synchronized (mSurfaceHolder) {
-                            c.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR); //clear previous dots
-                            draw(c, screenshotCanvas);
+                            long drawStart = System.nanoTime();
+                            //clear previous dots. When locked with a dirty region the canvas is clipped to it,
+                            //so this only clears what the previous frame drew there.
+                            c.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                            draw(c, config);
+                            long drawNanos = System.nanoTime() - drawStart;
+                            updateAverageDrawTime(drawNanos, config);
+                            updateDetailLevel(drawNanos, config);
+                            PipelineStage stage = renderStage;
+                            if (stage != null) {
+                                stage.record(drawNanos);
+                            }
+                        }
+                        previousBounds.set(currentBounds);
+
+                        //requests wait for a frame that was drawn, so they see the same faces the surface does
+                        synchronized (captureRequests) {
+                            capturesToDraw.addAll(captureRequests);
+                            captureRequests.clear();
                         }
                     }
 
@@ -419,367 +531,229 @@ public class DrawingView extends SurfaceView implements SurfaceHolder.Callback {
                     if (c != null) {
                         mSurfaceHolder.unlockCanvasAndPost(c);
                     }
-                    if (screenshotBitmap != null && listener != null) {
-                        listener.onBitmapGenerated(Bitmap.createBitmap(screenshotBitmap));
-                        screenshotBitmap.recycle();
+                }
+
+                //screenshots are drawn after posting the frame, so they do not hold up the surface
+                if (!capturesToDraw.isEmpty()) {
+                    Rect surfaceBounds = mSurfaceHolder.getSurfaceFrame();
+                    for (CaptureRequest request : capturesToDraw) {
+                        request.bitmap = Bitmap.createBitmap(surfaceBounds.width(), surfaceBounds.height(), Bitmap.Config.ARGB_8888);
+                        drawScreenshot(new Canvas(request.bitmap), request.faces, config);
+                        request.listener.onBitmapGenerated(request.bitmap);
                     }
+                    capturesToDraw.clear();
                 }
             }
-
-            config = null; //nullify object to avoid memory leak
         }
 
-        void draw(@NonNull Canvas c, @Nullable Canvas c2) {
-            Face nextFaceToDraw;
-            boolean mirrorPoints;
-            boolean multiFaceMode;
-            int index = 0;
-
-            synchronized (sharer) {
-                mirrorPoints = sharer.isPointsMirrored;
-                multiFaceMode = sharer.facesToDraw.size() > 1;
-
-                if (sharer.facesToDraw.isEmpty()) {
-                    nextFaceToDraw = null;
-                } else {
-                    nextFaceToDraw = sharer.facesToDraw.get(index);
-                    index++;
-                }
+        private void updateAverageDrawTime(long drawNanos, DrawingViewConfig config) {
+            float drawMillis = drawNanos / 1e6f;
+            float average = averageDrawMillis == 0 ? drawMillis : averageDrawMillis + DRAW_TIME_SMOOTHING * (drawMillis - averageDrawMillis);
+            averageDrawMillis = average;
+            if (config.overlayScale == 1) {
+                fullResolutionDrawMillis = average;
             }
+        }
 
-            while (nextFaceToDraw != null) {
-
-                drawFaceAttributes(c, nextFaceToDraw, mirrorPoints, multiFaceMode);
-
-                if (c2 != null) {
-                    drawFaceAttributes(c2, nextFaceToDraw, false, multiFaceMode);
-                }
-
-                synchronized (sharer) {
-                    mirrorPoints = sharer.isPointsMirrored;
-
-                    if (index < sharer.facesToDraw.size()) {
-                        nextFaceToDraw = sharer.facesToDraw.get(index);
-                        index++;
-                    } else {
-                        nextFaceToDraw = null;
-                    }
+        //pick the detail level for the next frame from how long this one took to draw
+        private void updateDetailLevel(long drawNanos, DrawingViewConfig config) {
+            if (!config.isAdaptiveDetailEnabled) {
+                if (renderer.getDetailLevel() != OverlayRenderer.DETAIL_FULL) {
+                    detailLevelController.reset();
+                    renderer.setDetailLevel(OverlayRenderer.DETAIL_FULL);
                 }
+                return;
             }
+            renderer.setDetailLevel(detailLevelController.onFrameDrawn(drawNanos));
         }
 
-        private void drawFaceAttributes(Canvas c, Face face, boolean mirrorPoints, boolean isMultiFaceMode) {
-            //Coordinates around which to draw bounding box.
-            //Default to an 'inverted' box, where the absolute max and min values of the surface view are inside-out
-            Rect boundingRect = new Rect(config.surfaceViewWidth, config.surfaceViewHeight, 0, 0);
+        //copy the shared faces so the detector can keep updating them while we draw
+        private void copySharedFaces() {
+            synchronized (sharer) {
+                mirrorPoints = sharer.isPointsMirrored;
+                faceCount = sharer.faceCount;
 
-            for (PointF point : face.getFacePoints()) {
-                //transform from the camera coordinates to our screen coordinates
-                //The camera preview is displayed as a mirror, so X pts have to be mirrored back.
-                float x;
-                if (mirrorPoints) {
-                    x = (config.imageWidth - point.x) * config.screenToImageRatio;
-                } else {
-                    x = (point.x) * config.screenToImageRatio;
+                if (facesToDraw.length < faceCount) {
+                    facesToDraw = new FaceData[sharer.facesToDraw.length];
+                    for (int n = 0; n < facesToDraw.length; n++) {
+                        facesToDraw[n] = new FaceData();
+                    }
                 }
-                float y = (point.y) * config.screenToImageRatio;
-
-                //For some reason I needed to add each point twice to make sure that all the
-                //points get properly registered in the bounding box.
-                boundingRect.union(Math.round(x), Math.round(y));
-                boundingRect.union(Math.round(x), Math.round(y));
-
-                //Draw facial tracking dots.
-                if (config.isDrawPointsEnabled) {
-                    c.drawCircle(x, y, config.drawThickness, trackingPointsPaint);
+                for (int n = 0; n < faceCount; n++) {
+                    facesToDraw[n].set(sharer.facesToDraw[n]);
                 }
             }
-
-            //Draw the bounding box.
-            if (config.isDrawPointsEnabled) {
-                drawBoundingBox(c, face, boundingRect);
-            }
-
-            float heightOffset = findNecessaryHeightOffset(boundingRect, face);
-
-            //Draw the Appearance markers (gender / glasses)
-            if (config.isDrawAppearanceMarkersEnabled) {
-                drawAppearanceMarkers(c, face, boundingRect, heightOffset);
-            }
-
-            //Draw the Emoji markers
-            if (config.isDrawEmojiMarkersEnabled) {
-                drawDominantEmoji(c, face, boundingRect, heightOffset);
-            }
-
-            //Only draw the dominant emotion bar in multiface mode
-            if (isMultiFaceMode) {
-                drawDominantEmotion(c, face, boundingRect);
-            }
         }
 
-        private float findNecessaryHeightOffset(Rect boundingBox, Face face) {
-            Bitmap appearanceBitmap = getAppearanceBitmapForFace(face);
-            Bitmap emojiBitmap = getDominantEmojiBitmapForFace(face);
-
-            float appearanceBitmapHeight = (appearanceBitmap != null) ? appearanceBitmap.getHeight() : 0;
-            float emojiBitmapHeight = (emojiBitmap != null) ? emojiBitmap.getHeight() : 0;
-            float spacingBetween = (appearanceBitmapHeight > 0 && emojiBitmapHeight > 0) ? MARGIN : 0;
-            float totalHeightRequired = appearanceBitmapHeight + emojiBitmapHeight + spacingBetween;
-
-            float bitmapHeightOverflow = Math.max(totalHeightRequired - boundingBox.height(), 0);
-
-            return bitmapHeightOverflow / 2;  // distribute the overflow evenly on both sides of the bounding box
-        }
-
-        private void drawBoundingBox(Canvas c, Face f, Rect boundingBox) {
-            setValenceOfBoundingBox(f.emotions.getValence());
-            c.drawRect(boundingBox.left,
-                    boundingBox.top,
-                    boundingBox.right,
-                    boundingBox.bottom,
-                    boundingBoxPaint);
-        }
-
-        private void drawAppearanceMarkers(Canvas c, Face f, Rect boundingBox, float offset) {
-            Bitmap bitmap = getAppearanceBitmapForFace(f);
-            if (bitmap != null) {
-                drawBitmapIfNotRecycled(c, bitmap, boundingBox.right + MARGIN, boundingBox.bottom - bitmap.getHeight() + offset);
+        /**
+         * Find the region of the surface that has to be redrawn: everything drawn in the previous frame, which has to
+         * be cleared, and everything that will be drawn in this one. Returns false if the whole surface should be
+         * redrawn instead, because its contents are unknown or because most of it changes anyway.
+         */
+        private boolean findDirtyRegion(DrawingViewConfig config) {
+            boolean multiFaceMode = faceCount > 1;
+            currentBounds.setEmpty();
+            for (int n = 0; n < faceCount; n++) {
+                renderer.getDrawnBounds(facesToDraw[n], mirrorPoints, multiFaceMode, config, faceBounds);
+                currentBounds.union(faceBounds);
             }
-        }
 
-        private Bitmap getAppearanceBitmapForFace(Face f) {
-            Bitmap bitmap = null;
-            switch (f.appearance.getGender()) {
-                case MALE:
-                    if (Face.GLASSES.YES.equals(f.appearance.getGlasses())) {
-                        bitmap = appearanceMarkerBitmap_genderMale_glassesOn;
-                    } else {
-                        bitmap = appearanceMarkerBitmap_genderMale_glassesOff;
-                    }
-                    break;
-                case FEMALE:
-                    if (Face.GLASSES.YES.equals(f.appearance.getGlasses())) {
-                        bitmap = appearanceMarkerBitmap_genderFemale_glassesOn;
-                    } else {
-                        bitmap = appearanceMarkerBitmap_genderFemale_glassesOff;
-                    }
-                    break;
-                case UNKNOWN:
-                    if (Face.GLASSES.YES.equals(f.appearance.getGlasses())) {
-                        bitmap = appearanceMarkerBitmap_genderUnknown_glassesOn;
-                    } else {
-                        bitmap = appearanceMarkerBitmap_genderUnknown_glassesOff;
-                    }
-                    break;
-                default:
-                    Log.e(LOG_TAG, "Unknown gender: " + f.appearance.getGender());
+            if (isFullRedrawNeeded) {
+                isFullRedrawNeeded = false;
+                return false;
             }
-            return bitmap;
-        }
 
-        private void drawBitmapIfNotRecycled(Canvas c, Bitmap b, float posX, float posY) {
-            if (!b.isRecycled()) {
-                c.drawBitmap(b, posX, posY, null);
+            dirtyRegion.set(previousBounds);
+            dirtyRegion.union(currentBounds);
+            if (!dirtyRegion.intersect(0, 0, config.surfaceViewWidth, config.surfaceViewHeight)) {
+                dirtyRegion.setEmpty(); //nothing was or will be drawn, but we still lock the canvas to wait for the next frame
             }
-        }
 
-        private void drawDominantEmoji(Canvas c, Face f, Rect boundingBox, float offset) {
-            drawEmojiFromCache(c, f.emojis.getDominantEmoji().name(), boundingBox.right + MARGIN, boundingBox.top - offset);
+            long surfaceArea = (long) config.surfaceViewWidth * config.surfaceViewHeight;
+            long dirtyArea = (long) dirtyRegion.width() * dirtyRegion.height();
+            return dirtyArea <= surfaceArea * MAX_DIRTY_AREA_RATIO;
         }
 
-        private void drawDominantEmotion(Canvas c, Face f, Rect boundingBox) {
-            Pair<String, Float> dominantMetric = findDominantEmotion(f);
+        void draw(@NonNull Canvas c, @NonNull DrawingViewConfig config) {
+            boolean multiFaceMode = faceCount > 1;
 
-            if (dominantMetric == null || dominantMetric.first.isEmpty()) {
-                return;
+            for (int n = 0; n < faceCount; n++) {
+                renderer.drawFaceAttributes(c, facesToDraw[n], mirrorPoints, multiFaceMode, config);
             }
-
-            String emotionText = dominantMetric.first;
-            String emotionValue = Math.round(dominantMetric.second) + "%";
-
-            Rect emotionTextBounds = new Rect();
-            config.dominantEmotionLabelPaint.getTextBounds(emotionText, 0, emotionText.length(), emotionTextBounds);
-
-            Rect emotionValueBounds = new Rect();
-            config.dominantEmotionValuePaint.getTextBounds(emotionValue, 0, emotionValue.length(), emotionValueBounds);
-
-            float drawAtX = boundingBox.exactCenterX();
-            float drawAtY = boundingBox.bottom + MARGIN + emotionTextBounds.height();
-            c.drawText(emotionText, drawAtX, drawAtY, config.dominantEmotionLabelPaint);
-
-            //draws the colored bar that appears behind our score
-            drawAtY += MARGIN + emotionValueBounds.height();
-            int halfWidth = Math.round(config.metricBarWidth / 200.0f * dominantMetric.second);
-            c.drawRect(drawAtX - halfWidth, drawAtY - emotionValueBounds.height(), drawAtX + halfWidth, drawAtY, config.dominantEmotionMetricBarPaint);
-
-            //draws the score
-            c.drawText(emotionValue, drawAtX, drawAtY, config.dominantEmotionValuePaint);
         }
 
-        private Pair<String, Float> findDominantEmotion(Face f) {
-            String dominantMetricName = "";
-            Float dominantMetricValue = 50.0f; // no emotion is dominant unless at least greater than this value
-
-            if (f.emotions.getAnger() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.ANGER);
-                dominantMetricValue = f.emotions.getAnger();
-            }
-            if (f.emotions.getContempt() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.CONTEMPT);
-                dominantMetricValue = f.emotions.getContempt();
-            }
-            if (f.emotions.getDisgust() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.DISGUST);
-                dominantMetricValue = f.emotions.getDisgust();
-            }
-            if (f.emotions.getFear() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.FEAR);
-                dominantMetricValue = f.emotions.getFear();
-            }
-            if (f.emotions.getJoy() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.JOY);
-                dominantMetricValue = f.emotions.getJoy();
-            }
-            if (f.emotions.getSadness() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.SADNESS);
-                dominantMetricValue = f.emotions.getSadness();
-            }
-            if (f.emotions.getSurprise() > dominantMetricValue) {
-                dominantMetricName = MetricsManager.getCapitalizedName(MetricsManager.Emotions.SURPRISE);
-                dominantMetricValue = f.emotions.getSurprise();
-            }
-            // Ignore VALENCE and ENGAGEMENT
-
-            if (dominantMetricName.isEmpty()) {
-                return null;
+        //draw a screenshot of the given faces, or of the current ones if faces is null
+        void drawScreenshot(@NonNull Canvas c, @Nullable FaceData[] faces, @NonNull DrawingViewConfig config) {
+            //screenshots are not time critical, so they always get every layer
+            int detailLevel = renderer.getDetailLevel();
+            renderer.setDetailLevel(OverlayRenderer.DETAIL_FULL);
+            if (faces == null) {
+                for (int n = 0; n < faceCount; n++) {
+                    renderer.drawFaceAttributes(c, facesToDraw[n], false, faceCount > 1, config);
+                }
             } else {
-                return new Pair<>(dominantMetricName, dominantMetricValue);
+                for (FaceData face : faces) {
+                    renderer.drawFaceAttributes(c, face, false, faces.length > 1, config);
+                }
             }
+            renderer.setDetailLevel(detailLevel);
         }
+    }
 
-        void drawEmojiFromCache(Canvas c, String emojiName, float markerPosX, float markerPosY) {
-            Bitmap emojiBitmap;
-
-            try {
-                emojiBitmap = getEmojiBitmapByName(emojiName);
-            } catch (FileNotFoundException e) {
-                Log.e(LOG_TAG, "Error, file not found!", e);
-                return;
+    /**
+     * An immutable snapshot of how the overlay is drawn, built from a Builder on the UI thread whenever a setting
+     * changes and handed to the DrawingThread through a volatile reference, so the thread always sees a consistent
+     * set of values. Each snapshot has a version of its own, which OverlayRenderer uses to only derive its sizes and
+     * transforms again when the config changes. The paints are copies owned by the snapshot and must not be modified.
+     */
+    static final class DrawingViewConfig {
+        private static final AtomicLong lastVersion = new AtomicLong(0);
+
+        final long version;
+        final int imageWidth;
+        final int surfaceViewWidth; //size of the surface we draw on, which is smaller than the view when overlayScale < 1
+        final int surfaceViewHeight;
+        final float screenToImageRatio;
+        final float overlayScale;
+        final int drawThickness;
+        final boolean isDrawPointsEnabled;
+        final boolean isDrawAppearanceMarkersEnabled;
+        final boolean isDrawEmojiMarkersEnabled;
+        final boolean isAdaptiveDetailEnabled;
+        final Paint dominantEmotionLabelPaint;
+        final Paint dominantEmotionMetricBarPaint;
+        final Paint dominantEmotionValuePaint;
+        final int metricBarWidth;
+
+        //derive the sizes used for drawing from the full resolution sizes and overlayScale
+        private DrawingViewConfig(Builder builder) {
+            version = lastVersion.incrementAndGet();
+            imageWidth = builder.imageWidth;
+            overlayScale = builder.overlayScale;
+            surfaceViewWidth = Math.round(builder.viewWidth * overlayScale);
+            surfaceViewHeight = Math.round(builder.viewHeight * overlayScale);
+            screenToImageRatio = (float) surfaceViewWidth / imageWidth;
+            drawThickness = builder.fullDrawThickness > 0 ? Math.max(Math.round(builder.fullDrawThickness * overlayScale), 1) : 0;
+            isDrawPointsEnabled = builder.isDrawPointsEnabled;
+            isDrawAppearanceMarkersEnabled = builder.isDrawAppearanceMarkersEnabled;
+            isDrawEmojiMarkersEnabled = builder.isDrawEmojiMarkersEnabled;
+            isAdaptiveDetailEnabled = builder.isAdaptiveDetailEnabled;
+            dominantEmotionLabelPaint = copyPaint(builder.dominantEmotionLabelPaint);
+            dominantEmotionValuePaint = copyPaint(builder.dominantEmotionValuePaint);
+            dominantEmotionMetricBarPaint = copyPaint(builder.dominantEmotionMetricBarPaint);
+            if (dominantEmotionLabelPaint != null) {
+                dominantEmotionLabelPaint.setTextSize(builder.dominantEmotionLabelPaint.getTextSize() * overlayScale);
             }
-
-            if (emojiBitmap != null) {
-                c.drawBitmap(emojiBitmap, markerPosX, markerPosY, null);
+            if (dominantEmotionValuePaint != null) {
+                dominantEmotionValuePaint.setTextSize(builder.dominantEmotionValuePaint.getTextSize() * overlayScale);
             }
+            metricBarWidth = Math.round(builder.fullMetricBarWidth * overlayScale);
         }
 
-        private Bitmap getDominantEmojiBitmapForFace(Face f) {
-            try {
-                return getEmojiBitmapByName(f.emojis.getDominantEmoji().name());
-            } catch (FileNotFoundException e) {
-                Log.e(LOG_TAG, "Dominant emoji bitmap not available", e);
-                return null;
-            }
+        private static Paint copyPaint(Paint paint) {
+            return paint == null ? null : new Paint(paint);
         }
 
-        Bitmap getEmojiBitmapByName(String emojiName) throws FileNotFoundException {
-            // No bitmap necessary if emoji is unknown
-            if (emojiName.equals(Face.EMOJI.UNKNOWN.name())) {
-                return null;
-            }
-
-            String emojiResourceName = emojiName.trim().replace(' ', '_').toLowerCase(Locale.US).concat("_emoji");
-            String emojiFileName = emojiResourceName + ".png";
+        /**
+         * The settings of the overlay, at full resolution. Not thread safe: DrawingView only changes it on the UI thread.
+         */
+        static class Builder {
+            int imageWidth = 1;
+            int viewWidth = 0; //size of the view on screen
+            int viewHeight = 0;
+            float overlayScale = 1;
+            boolean isDrawPointsEnabled = true; //by default, have the drawing thread draw tracking dots
+            boolean isDimensionsNeeded = true;
+            boolean isDrawAppearanceMarkersEnabled = true; //by default, draw the appearance markers
+            boolean isDrawEmojiMarkersEnabled = true; //by default, draw the dominant emoji markers
+            boolean isAdaptiveDetailEnabled = true; //by default, lower the level of detail when drawing falls behind
 
-            //Try to get the emoji from the cache
-            Bitmap desiredEmojiBitmap = emojiMarkerBitmapToEmojiTypeMap.get(emojiFileName);
+            Paint dominantEmotionLabelPaint;
+            Paint dominantEmotionMetricBarPaint;
+            Paint dominantEmotionValuePaint;
 
-            if (desiredEmojiBitmap != null) {
-                //emoji bitmap found in the cache
-                return desiredEmojiBitmap;
-            }
-
-            //Cache miss, try and load the bitmap from disk
-            desiredEmojiBitmap = ImageHelper.loadBitmapFromInternalStorage(getContext(), emojiFileName);
-
-            if (desiredEmojiBitmap != null) {
-                //emoji bitmap found in the app storage
+            private int fullDrawThickness = 0;
+            private int fullMetricBarWidth;
 
-
-                //Bitmap loaded, add to cache for subsequent use.
-                emojiMarkerBitmapToEmojiTypeMap.put(emojiFileName, desiredEmojiBitmap);
-
-                return desiredEmojiBitmap;
+            public void setDominantEmotionLabelPaints(Paint labelPaint, Paint valuePaint) {
+                dominantEmotionLabelPaint = labelPaint;
+                dominantEmotionValuePaint = valuePaint;
             }
 
-            Log.d(LOG_TAG, "Emoji not found on disk: " + emojiFileName);
-
-            //Still unable to find the file, try to locate the emoji resource
-            final int resourceId = getDrawable(getContext(), emojiFileName);
-
-            if (resourceId == 0) {
-                //unrecognised emoji file name
-                throw new FileNotFoundException("Resource not found for file named: " + emojiFileName);
+            public void setDominantEmotionMetricBarConfig(Paint metricBarPaint, int metricBarWidth) {
+                dominantEmotionMetricBarPaint = metricBarPaint;
+                fullMetricBarWidth = metricBarWidth;
             }
 
-            desiredEmojiBitmap = BitmapFactory.decodeResource(getResources(), resourceId);
-
-            if (desiredEmojiBitmap == null) {
-                //still unable to load the resource from the file
-                throw new FileNotFoundException("Resource id [" + resourceId + "] but could not load bitmap: " + emojiFileName);
+            public void updateViewDimensions(int surfaceViewWidth, int surfaceViewHeight, int imageWidth, int imageHeight) {
+                if (surfaceViewWidth <= 0 || surfaceViewHeight <= 0 || imageWidth <= 0 || imageHeight <= 0) {
+                    throw new IllegalArgumentException("All dimensions submitted to updateViewDimensions() must be positive");
+                }
+                this.imageWidth = imageWidth;
+                viewWidth = surfaceViewWidth;
+                viewHeight = surfaceViewHeight;
+                isDimensionsNeeded = false;
             }
 
-            //Bitmap loaded, add to cache for subsequent use.
-            emojiMarkerBitmapToEmojiTypeMap.put(emojiFileName, desiredEmojiBitmap);
-
-            return desiredEmojiBitmap;
-        }
-    }
+            public void setDrawThickness(int t) {
 
-    class DrawingViewConfig {
-        private int imageWidth = 1;
-        private int surfaceViewWidth = 0;
-        private int surfaceViewHeight = 0;
-        private float screenToImageRatio = 0;
-        private int drawThickness = 0;
-        private boolean isDrawPointsEnabled = true; //by default, have the drawing thread draw tracking dots
-        private boolean isDimensionsNeeded = true;
-        private boolean isDrawAppearanceMarkersEnabled = true; //by default, draw the appearance markers
-        private boolean isDrawEmojiMarkersEnabled = true; //by default, draw the dominant emoji markers
-
-        private Paint dominantEmotionLabelPaint;
-        private Paint dominantEmotionMetricBarPaint;
-        private Paint dominantEmotionValuePaint;
-        private int metricBarWidth;
-
-        public void setDominantEmotionLabelPaints(Paint labelPaint, Paint valuePaint) {
-            dominantEmotionLabelPaint = labelPaint;
-            dominantEmotionValuePaint = valuePaint;
-        }
-
-        public void setDominantEmotionMetricBarConfig(Paint metricBarPaint, int metricBarWidth) {
-            dominantEmotionMetricBarPaint = metricBarPaint;
-            this.metricBarWidth = metricBarWidth;
-        }
+                if (t <= 0) {
+                    throw new IllegalArgumentException("Thickness must be positive.");
+                }
 
-        public void updateViewDimensions(int surfaceViewWidth, int surfaceViewHeight, int imageWidth, int imageHeight) {
-            if (surfaceViewWidth <= 0 || surfaceViewHeight <= 0 || imageWidth <= 0 || imageHeight <= 0) {
-                throw new IllegalArgumentException("All dimensions submitted to updateViewDimensions() must be positive");
+                fullDrawThickness = t;
             }
-            this.imageWidth = imageWidth;
-            this.surfaceViewWidth = surfaceViewWidth;
-            this.surfaceViewHeight = surfaceViewHeight;
-            screenToImageRatio = (float) surfaceViewWidth / imageWidth;
-            isDimensionsNeeded = false;
-        }
-
-        public void setDrawThickness(int t) {
 
-            if (t <= 0) {
-                throw new IllegalArgumentException("Thickness must be positive.");
+            public void setOverlayScale(float scale) {
+                if (scale <= 0 || scale > 1) {
+                    throw new IllegalArgumentException("Overlay scale must be in (0, 1]");
+                }
+                overlayScale = scale;
             }
 
-            drawThickness = t;
+            public DrawingViewConfig build() {
+                return new DrawingViewConfig(this);
+            }
         }
     }
 }
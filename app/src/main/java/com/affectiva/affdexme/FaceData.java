@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.graphics.PointF;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+/**
+ * A copy of the values the app uses from a single Face: the facial tracking points, the score of
+ * every metric in MetricsManager.getAllMetrics(), the appearance and the dominant emoji.
+ * Face objects belong to the SDK, so anything that outlives onImageResults() or runs on another thread
+ * works with a FaceData instead. Instances are meant to be pooled and refilled in place, so filling one
+ * does not allocate once its point array is large enough.
+ */
+public class FaceData {
+
+    private int id = -1;
+    private float[] points = new float[0]; //x and y coordinates of each tracking point, interleaved
+    private int pointCount = 0;
+    private final float[] scores = new float[MetricsManager.getAllMetrics().length];
+    private Face.GENDER gender = Face.GENDER.UNKNOWN;
+    private Face.GLASSES glasses = Face.GLASSES.NO;
+    private Face.EMOJI dominantEmoji = Face.EMOJI.UNKNOWN;
+
+    /**
+     * Copy the values of a Face received in onImageResults()
+     */
+    public void set(Face face) {
+        id = face.getId();
+        PointF[] facePoints = face.getFacePoints();
+        setPointCount(facePoints.length);
+        for (int n = 0; n < facePoints.length; n++) {
+            points[2 * n] = facePoints[n].x;
+            points[2 * n + 1] = facePoints[n].y;
+        }
+
+        MetricsManager.Metrics[] allMetrics = MetricsManager.getAllMetrics();
+        for (int n = 0; n < allMetrics.length; n++) {
+            scores[n] = MetricsManager.getScore(allMetrics[n], face);
+        }
+
+        gender = face.appearance.getGender();
+        glasses = face.appearance.getGlasses();
+        dominantEmoji = face.emojis.getDominantEmoji();
+    }
+
+    public void set(FaceData other) {
+        id = other.id;
+        setPointCount(other.pointCount);
+        System.arraycopy(other.points, 0, points, 0, 2 * other.pointCount);
+        System.arraycopy(other.scores, 0, scores, 0, scores.length);
+        gender = other.gender;
+        glasses = other.glasses;
+        dominantEmoji = other.dominantEmoji;
+    }
+
+    /**
+     * The id the detector gave the face, which stays the same for as long as the face is tracked.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Resize the number of tracking points. The point array only grows, so this allocates at most a few times.
+     */
+    public void setPointCount(int count) {
+        if (points.length < 2 * count) {
+            points = new float[2 * count];
+        }
+        pointCount = count;
+    }
+
+    public float getPointX(int index) {
+        return points[2 * index];
+    }
+
+    public float getPointY(int index) {
+        return points[2 * index + 1];
+    }
+
+    public void setPoint(int index, float x, float y) {
+        points[2 * index] = x;
+        points[2 * index + 1] = y;
+    }
+
+    public float getScore(MetricsManager.Metrics metric) {
+        return scores[MetricsManager.getIndex(metric)];
+    }
+
+    public void setScore(MetricsManager.Metrics metric, float score) {
+        scores[MetricsManager.getIndex(metric)] = score;
+    }
+
+    /**
+     * Scores of all metrics, indexed by MetricsManager.getIndex(). The array is owned by this object.
+     */
+    public float[] getScores() {
+        return scores;
+    }
+
+    public Face.GENDER getGender() {
+        return gender;
+    }
+
+    public Face.GLASSES getGlasses() {
+        return glasses;
+    }
+
+    public void setAppearance(Face.GENDER gender, Face.GLASSES glasses) {
+        this.gender = gender;
+        this.glasses = glasses;
+    }
+
+    public Face.EMOJI getDominantEmoji() {
+        return dominantEmoji;
+    }
+
+    public void setDominantEmoji(Face.EMOJI dominantEmoji) {
+        this.dominantEmoji = dominantEmoji;
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compact stream format for recorded FaceData, with a streaming Encoder and Decoder.
+ * Stored as floats, a face takes about 400 bytes per frame. This format takes a fraction of that:
+ * <ul>
+ * <li>Scores are quantized to a byte: 0 to 100 maps to 0 to 254, and valence, which can be negative, maps
+ * -100 to 100 to -127 to 127. Metrics that were not detected are left out, as flagged by a bit mask.</li>
+ * <li>Tracking points are quantized to a quarter pixel, and each coordinate is stored as the difference from the
+ * same point of the face with the same id in the previous frame, which is small while the face moves slowly.</li>
+ * <li>Timestamps are stored in milliseconds as the difference from the previous frame.</li>
+ * <li>Every integer is a zig-zag varint, so small differences of either sign take a single byte.</li>
+ * </ul>
+ * Decoding gives the quantized values, so a point is within 1/8 pixel of the original and a score within 0.2
+ * (0.4 for valence). The appearance, dominant emoji, ids and which metrics were detected are exact.
+ */
+public class FaceDataCodec {
+
+    static final int MAGIC = 0x41464431; //"AFD1"
+    static final float POINT_SCALE = 4; //quarter pixel
+    private static final int MAX_FACES = 64;
+    private static final int BUFFER_SIZE = 8192;
+    private static final Face.GENDER[] GENDERS = Face.GENDER.values();
+    private static final Face.GLASSES[] GLASSES = Face.GLASSES.values();
+    private static final Face.EMOJI[] EMOJIS = Face.EMOJI.values();
+
+    private FaceDataCodec() {
+    }
+
+    //metrics that can be negative, which are quantized with a sign
+    static boolean isSigned(MetricsManager.Metrics metric) {
+        return metric == MetricsManager.Emotions.VALENCE;
+    }
+
+    static int quantizeScore(float score, boolean isSigned) {
+        if (isSigned) {
+            return Math.round(Math.max(-100, Math.min(100, score)) * 1.27f);
+        }
+        return Math.round(Math.max(0, Math.min(100, score)) * 2.54f);
+    }
+
+    static float dequantizeScore(int quantized, boolean isSigned) {
+        return isSigned ? quantized / 1.27f : quantized / 2.54f;
+    }
+
+    /**
+     * The points of the faces of the previous frame, by id, which the points of the next frame are encoded against.
+     * Encoder and decoder keep identical copies.
+     */
+    private static class PreviousFrame {
+        int[] ids = new int[MAX_FACES];
+        int[][] points = new int[MAX_FACES][]; //quantized x and y coordinates, interleaved
+        int[] pointCounts = new int[MAX_FACES];
+        int faceCount = 0;
+
+        //the quantized points of the face with this id and point count in the previous frame, or null
+        int[] find(int id, int pointCount) {
+            for (int n = 0; n < faceCount; n++) {
+                if (ids[n] == id && pointCounts[n] == pointCount) {
+                    return points[n];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes frames of faces to an OutputStream, through its own buffer. Nothing is allocated per frame once
+     * the buffers have grown to the number of faces and points seen.
+     */
+    public static class Encoder {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int length = 0;
+        private final boolean[] isSigned;
+        private PreviousFrame previous = new PreviousFrame();
+        private PreviousFrame current = new PreviousFrame();
+        private long lastMillis = 0;
+
+        public Encoder(@NonNull OutputStream out) throws IOException {
+            this.out = out;
+            isSigned = getSignedMetrics();
+            writeRaw(MAGIC >>> 24);
+            writeRaw(MAGIC >>> 16);
+            writeRaw(MAGIC >>> 8);
+            writeRaw(MAGIC);
+            writeVarint(isSigned.length);
+        }
+
+        /**
+         * Write the first faceCount faces of a frame taken at timestamp seconds.
+         */
+        public void writeFrame(float timestamp, @NonNull FaceData[] faces, int faceCount) throws IOException {
+            if (faceCount > MAX_FACES) {
+                throw new IllegalArgumentException("At most " + MAX_FACES + " faces can be encoded per frame");
+            }
+            long millis = Math.round(timestamp * 1000.0);
+            writeSignedVarint(millis - lastMillis);
+            lastMillis = millis;
+            writeVarint(faceCount);
+
+            for (int f = 0; f < faceCount; f++) {
+                FaceData face = faces[f];
+                writeSignedVarint(face.getId());
+                writeVarint(packAppearance(face));
+
+                float[] scores = face.getScores();
+                long detected = 0;
+                for (int m = 0; m < scores.length; m++) {
+                    if (!Float.isNaN(scores[m])) {
+                        detected |= 1L << m;
+                    }
+                }
+                writeVarint(detected);
+                for (int m = 0; m < scores.length; m++) {
+                    if (!Float.isNaN(scores[m])) {
+                        writeRaw(quantizeScore(scores[m], isSigned[m]));
+                    }
+                }
+
+                int pointCount = face.getPointCount();
+                writeVarint(pointCount);
+                int[] reference = previous.find(face.getId(), pointCount);
+                int[] points = reservePoints(current, f, face.getId(), pointCount);
+                for (int n = 0; n < pointCount; n++) {
+                    points[2 * n] = Math.round(face.getPointX(n) * POINT_SCALE);
+                    points[2 * n + 1] = Math.round(face.getPointY(n) * POINT_SCALE);
+                }
+                for (int n = 0; n < 2 * pointCount; n++) {
+                    writeSignedVarint(reference == null ? points[n] : points[n] - reference[n]);
+                }
+            }
+            current.faceCount = faceCount;
+
+            PreviousFrame swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        /**
+         * Write the buffered bytes to the stream, and flush it.
+         */
+        public void flush() throws IOException {
+            out.write(buffer, 0, length);
+            length = 0;
+            out.flush();
+        }
+
+        private void writeRaw(int value) throws IOException {
+            if (length == buffer.length) {
+                out.write(buffer, 0, length);
+                length = 0;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeRaw((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeRaw((int) value);
+        }
+
+        private void writeSignedVarint(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+    }
+
+    /**
+     * Reads the frames written by an Encoder from an InputStream, through its own buffer, into pooled FaceData.
+     */
+    public static class Decoder {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0;
+        private int length = 0;
+        private final boolean[] isSigned;
+        private PreviousFrame previous = new PreviousFrame();
+        private PreviousFrame current = new PreviousFrame();
+        private long lastMillis = 0;
+        private float timestamp;
+
+        public Decoder(@NonNull InputStream in) throws IOException {
+            this.in = in;
+            int magic = (readRaw() << 24) | (readRaw() << 16) | (readRaw() << 8) | readRaw();
+            if (magic != MAGIC) {
+                throw new IOException("Not a face data stream");
+            }
+            isSigned = getSignedMetrics();
+            if (readVarint() != isSigned.length) {
+                throw new IOException("Face data stream was written with different metrics");
+            }
+        }
+
+        /**
+         * Read the next frame into faces, which must have room for every face of the frame. Returns the number of
+         * faces, or -1 at the end of the stream.
+         */
+        public int readFrame(@NonNull FaceData[] faces) throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            lastMillis += readSignedVarint();
+            timestamp = lastMillis / 1000f;
+            int faceCount = (int) readVarint();
+            if (faceCount > faces.length || faceCount > MAX_FACES) {
+                throw new IOException("Frame has " + faceCount + " faces, more than there is room for");
+            }
+
+            for (int f = 0; f < faceCount; f++) {
+                FaceData face = faces[f];
+                int id = (int) readSignedVarint();
+                face.setId(id);
+                unpackAppearance(face, (int) readVarint());
+
+                float[] scores = face.getScores();
+                long detected = readVarint();
+                for (int m = 0; m < scores.length; m++) {
+                    if ((detected & (1L << m)) == 0) {
+                        scores[m] = Float.NaN;
+                    } else {
+                        int quantized = readRaw();
+                        scores[m] = dequantizeScore(isSigned[m] ? (byte) quantized : quantized, isSigned[m]);
+                    }
+                }
+
+                int pointCount = (int) readVarint();
+                int[] reference = previous.find(id, pointCount);
+                int[] points = reservePoints(current, f, id, pointCount);
+                face.setPointCount(pointCount);
+                for (int n = 0; n < 2 * pointCount; n++) {
+                    int delta = (int) readSignedVarint();
+                    points[n] = reference == null ? delta : reference[n] + delta;
+                }
+                for (int n = 0; n < pointCount; n++) {
+                    face.setPoint(n, points[2 * n] / POINT_SCALE, points[2 * n + 1] / POINT_SCALE);
+                }
+            }
+            current.faceCount = faceCount;
+
+            PreviousFrame swap = previous;
+            previous = current;
+            current = swap;
+            return faceCount;
+        }
+
+        /**
+         * Returns the timestamp, in seconds, of the frame last read.
+         */
+        public float getTimestamp() {
+            return timestamp;
+        }
+
+        //returns false at the end of the stream
+        private boolean fill() throws IOException {
+            if (position < length) {
+                return true;
+            }
+            length = in.read(buffer, 0, buffer.length);
+            position = 0;
+            return length > 0;
+        }
+
+        private int readRaw() throws IOException {
+            if (!fill()) {
+                throw new EOFException("Face data stream ends in the middle of a frame");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readRaw();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in face data stream");
+        }
+
+        private long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    private static boolean[] getSignedMetrics() {
+        MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+        if (metrics.length > 64) {
+            throw new IllegalStateException("The detected metrics of a face must fit in a long");
+        }
+        boolean[] isSigned = new boolean[metrics.length];
+        for (int n = 0; n < metrics.length; n++) {
+            isSigned[n] = isSigned(metrics[n]);
+        }
+        return isSigned;
+    }
+
+    //the point buffer of face index in frame, grown if needed
+    private static int[] reservePoints(PreviousFrame frame, int index, int id, int pointCount) {
+        if (frame.points[index] == null || frame.points[index].length < 2 * pointCount) {
+            frame.points[index] = new int[2 * pointCount];
+        }
+        frame.ids[index] = id;
+        frame.pointCounts[index] = pointCount;
+        return frame.points[index];
+    }
+
+    //gender, glasses and dominant emoji in one small number
+    private static int packAppearance(FaceData face) {
+        return (face.getDominantEmoji().ordinal() << 3) | (face.getGlasses().ordinal() << 2) | face.getGender().ordinal();
+    }
+
+    private static void unpackAppearance(FaceData face, int packed) {
+        face.setAppearance(GENDERS[packed & 0x3], GLASSES[(packed >> 2) & 0x1]);
+        face.setDominantEmoji(EMOJIS[packed >> 3]);
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Keeps the last few processed camera frames along with their face results, so a screenshot can use the best
+ * frame of the moment before the shutter was tapped, rather than whatever frame happens to be current.
+ * The ring has a fixed number of slots. Each slot keeps its own pixel buffer and pool of FaceData, which are
+ * refilled in place, so recording a frame does not allocate once every slot has seen a frame of the current size.
+ * Memory is bounded by the capacity times the size of one frame (about 450KB for a 640x480 NV21 frame).
+ * Only ByteArrayFrames, which is what the camera delivers, are recorded.
+ */
+public class FrameRing {
+
+    static final int DEFAULT_CAPACITY = 10;
+    static final int MAX_CAPACITY = 30;
+
+    /**
+     * A frame taken out of the ring, with its own copy of the pixels and faces.
+     */
+    static class Capture {
+        final Frame frame;
+        final FaceData[] faces;
+        final float timestamp;
+
+        Capture(@NonNull Frame frame, @NonNull FaceData[] faces, float timestamp) {
+            this.frame = frame;
+            this.faces = faces;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class Slot {
+        byte[] pixels = new byte[0];
+        int pixelLength;
+        int width;
+        int height;
+        Frame.COLOR_FORMAT colorFormat;
+        Frame.ROTATE rotation;
+        FaceData[] faces = new FaceData[0];
+        int faceCount;
+        float timestamp;
+    }
+
+    private final Slot[] slots;
+    private int next = 0; //the slot the next frame is recorded into
+    private int size = 0;
+
+    public FrameRing(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Frame ring capacity must be between 1 and " + MAX_CAPACITY);
+        }
+        slots = new Slot[capacity];
+        for (int n = 0; n < capacity; n++) {
+            slots[n] = new Slot();
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Copy a processed frame and its faces into the ring, overwriting the oldest frame once the ring is full.
+     * Returns false if the frame is not a ByteArrayFrame and was not recorded.
+     */
+    public synchronized boolean record(@NonNull Frame frame, @NonNull List<Face> faces, float timestamp) {
+        if (!(frame instanceof Frame.ByteArrayFrame)) {
+            return false;
+        }
+
+        Slot slot = slots[next];
+        byte[] framePixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+        if (slot.pixels.length < framePixels.length) {
+            slot.pixels = new byte[framePixels.length];
+        }
+        System.arraycopy(framePixels, 0, slot.pixels, 0, framePixels.length);
+        slot.pixelLength = framePixels.length;
+        slot.width = frame.getWidth();
+        slot.height = frame.getHeight();
+        slot.colorFormat = frame.getColorFormat();
+        slot.rotation = frame.getTargetRotation();
+
+        if (slot.faces.length < faces.size()) {
+            FaceData[] pool = new FaceData[faces.size()];
+            System.arraycopy(slot.faces, 0, pool, 0, slot.faces.length);
+            for (int n = slot.faces.length; n < pool.length; n++) {
+                pool[n] = new FaceData();
+            }
+            slot.faces = pool;
+        }
+        slot.faceCount = faces.size();
+        for (int n = 0; n < slot.faceCount; n++) {
+            slot.faces[n].set(faces.get(n));
+        }
+        slot.timestamp = timestamp;
+
+        next = (next + 1) % slots.length;
+        size = Math.min(size + 1, slots.length);
+        return true;
+    }
+
+    /**
+     * Copy out the frame in the ring where any face scored highest on metric. Frames without faces only win
+     * if no frame has one, and ties go to the most recent frame. Returns null if the ring is empty.
+     */
+    @Nullable
+    public synchronized Capture captureBest(@NonNull MetricsManager.Metrics metric) {
+        if (size == 0) {
+            return null;
+        }
+
+        Slot best = null;
+        float bestScore = 0;
+        //walk from the newest frame to the oldest, so a tie keeps the newer frame
+        for (int age = 0; age < size; age++) {
+            Slot slot = slots[(next - 1 - age + slots.length) % slots.length];
+            float score = -1;
+            for (int n = 0; n < slot.faceCount; n++) {
+                score = Math.max(score, slot.faces[n].getScore(metric));
+            }
+            if (best == null || score > bestScore) {
+                best = slot;
+                bestScore = score;
+            }
+        }
+        return capture(best);
+    }
+
+    /**
+     * Copy out the frame recorded with the given timestamp, or return null if it is no longer in the ring.
+     */
+    @Nullable
+    public synchronized Capture captureAt(float timestamp) {
+        for (int age = 0; age < size; age++) {
+            Slot slot = slots[(next - 1 - age + slots.length) % slots.length];
+            if (slot.timestamp == timestamp) {
+                return capture(slot);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy out the most recently recorded frame, or return null if the ring is empty.
+     */
+    @Nullable
+    public synchronized Capture captureLatest() {
+        if (size == 0) {
+            return null;
+        }
+        return capture(slots[(next - 1 + slots.length) % slots.length]);
+    }
+
+    /**
+     * Forget the recorded frames, for example when the camera changes. The buffers are kept for reuse.
+     */
+    public synchronized void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    private static Capture capture(Slot slot) {
+        byte[] pixels = new byte[slot.pixelLength];
+        System.arraycopy(slot.pixels, 0, pixels, 0, slot.pixelLength);
+        Frame frame = new Frame.ByteArrayFrame(pixels, slot.width, slot.height, slot.colorFormat);
+        frame.setTargetRotation(slot.rotation);
+
+        FaceData[] faces = new FaceData[slot.faceCount];
+        for (int n = 0; n < slot.faceCount; n++) {
+            faces[n] = new FaceData();
+            faces[n].set(slot.faces[n]);
+        }
+        return new Capture(frame, faces, slot.timestamp);
+    }
+}
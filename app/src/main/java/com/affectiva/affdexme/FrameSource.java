@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import java.io.IOException;
+
+/**
+ * Recorded sessions that SessionAnalytics reads frames from. Sessions are read from several threads at once,
+ * each thread reading different sessions.
+ */
+interface FrameSource {
+
+    /**
+     * Receives the frames of a session.
+     */
+    interface Sink {
+        /**
+         * A frame taken at wallClockMillis, with the scores indexed like MetricsManager.getAllMetrics() and NaN for
+         * metrics that were not detected. The array is reused for the next frame.
+         */
+        void onFrame(long wallClockMillis, float[] scores);
+    }
+
+    int getSessionCount();
+
+    /**
+     * Read the frames of session index, from 0 to getSessionCount() - 1, in time order.
+     */
+    void read(int index, Sink sink) throws IOException;
+}
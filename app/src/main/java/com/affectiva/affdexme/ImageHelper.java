@@ -15,6 +15,7 @@ import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.graphics.drawable.Drawable;
+import android.media.ExifInterface;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.util.DisplayMetrics;
@@ -96,25 +97,10 @@ public class ImageHelper {
         // File location to save image
         File imagePath = new File(directory, fileName);
 
-        FileOutputStream fos = null;
         try {
-            fos = new FileOutputStream(imagePath);
-
-            // Use the compress method on the BitMap object to write image to the OutputStream
-            bitmapImage.compress(Bitmap.CompressFormat.PNG, 100, fos);
-            fos.flush();
-        } catch (FileNotFoundException e) {
-            Log.e(LOG_TAG, "Exception while trying to save file to internal storage: " + imagePath, e);
+            writePng(bitmapImage, imagePath);
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Exception while trying to flush the output stream", e);
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, "Exception wile trying to close file output stream.", e);
-                }
-            }
+            Log.e(LOG_TAG, "Exception while trying to save file to internal storage: " + imagePath, e);
         }
     }
 
@@ -219,6 +205,20 @@ public class ImageHelper {
      * @return - The Bitmap representation of the image
      */
     public static Bitmap getBitmapFromFrame(@NonNull final Frame frame) {
+        Bitmap bitmap = getUnrotatedBitmapFromFrame(frame);
+
+        if (bitmap == null || frame.getTargetRotation().toDouble() == 0.0) {
+            return bitmap;
+        } else {
+            return rotateBitmap(bitmap, (float) frame.getTargetRotation().toDouble());
+        }
+    }
+
+    /**
+     * Like getBitmapFromFrame(), but without applying the frame's target rotation, for callers that rotate
+     * while drawing and so avoid a second full size copy of the frame.
+     */
+    public static Bitmap getUnrotatedBitmapFromFrame(@NonNull final Frame frame) {
         Bitmap bitmap;
 
         if (frame instanceof Frame.BitmapFrame) {
@@ -237,12 +237,31 @@ public class ImageHelper {
                     return null;
             }
         }
+        return bitmap;
+    }
 
-        if (bitmap == null || frame.getTargetRotation().toDouble() == 0.0) {
-            return bitmap;
+    /**
+     * Copy a Frame, so it can be used on another thread while the camera keeps filling the original's buffer.
+     *
+     * @param frame - The Frame to copy
+     * @return - A Frame with its own copy of the image data, or null if the frame type is unknown
+     */
+    public static Frame copyFrame(@NonNull final Frame frame) {
+        Frame copy;
+
+        if (frame instanceof Frame.BitmapFrame) {
+            Bitmap bitmap = ((Frame.BitmapFrame) frame).getBitmap();
+            copy = new Frame.BitmapFrame(bitmap.copy(bitmap.getConfig(), false), frame.getColorFormat());
+        } else if (frame instanceof Frame.ByteArrayFrame) {
+            byte[] pixels = ((Frame.ByteArrayFrame) frame).getByteArray();
+            copy = new Frame.ByteArrayFrame(pixels.clone(), frame.getWidth(), frame.getHeight(), frame.getColorFormat());
         } else {
-            return rotateBitmap(bitmap, (float) frame.getTargetRotation().toDouble());
+            Log.e(LOG_TAG, "Unable to copy unknown frame type");
+            return null;
         }
+
+        copy.setTargetRotation(frame.getTargetRotation());
+        return copy;
     }
 
     public static Bitmap getBitmapFromRGBFrame(@NonNull final Frame frame) {
@@ -284,21 +303,118 @@ public class ImageHelper {
 
     public static void saveBitmapToFileAsPng(@NonNull final Bitmap bitmap, @NonNull final File file) throws IOException {
         try {
-            FileOutputStream outputStream = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            writePng(bitmap, file);
             bitmap.recycle();
-            outputStream.flush();
-            outputStream.close();
         } catch (IOException e) {
             throw new FileNotFoundException("Unable to save bitmap to file: " + file.getPath() + "\n" + e.getLocalizedMessage());
         }
     }
 
-    public static void addPngToGallery(@NonNull final Context context, @NonNull final File imageFile) {
+    /**
+     * Encode a bitmap as a PNG file, with the parallel PngEncoder where the device supports it.
+     */
+    private static void writePng(@NonNull final Bitmap bitmap, @NonNull final File file) throws IOException {
+        if (PngEncoder.isSupported()) {
+            new PngEncoder().encode(bitmap, file);
+            return;
+        }
+
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream);
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Save a bitmap in any format Bitmap.compress() supports. PNGs are written with writePng(), which ignores quality.
+     */
+    public static void saveBitmapToFile(@NonNull final Bitmap bitmap, @NonNull final File file,
+                                        @NonNull final Bitmap.CompressFormat format, final int quality) throws IOException {
+        if (format == Bitmap.CompressFormat.PNG) {
+            writePng(bitmap, file);
+            return;
+        }
+
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            if (!bitmap.compress(format, quality, outputStream)) {
+                throw new IOException("Unable to compress bitmap as " + format + ": " + file.getPath());
+            }
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Save an NV21 camera frame as a JPEG without converting it to a Bitmap first. Instead of rotating the pixels,
+     * the rotation of the frame is recorded in the EXIF orientation tag, which galleries and viewers apply.
+     */
+    public static void saveYuvFrameAsJpeg(@NonNull final Frame.ByteArrayFrame frame, @NonNull final File file, final int quality) throws IOException {
+        YuvImage yuvImage = new YuvImage(frame.getByteArray(), ImageFormat.NV21, frame.getWidth(), frame.getHeight(), null);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            if (!yuvImage.compressToJpeg(new Rect(0, 0, frame.getWidth(), frame.getHeight()), quality, outputStream)) {
+                throw new IOException("Unable to compress frame: " + file.getPath());
+            }
+            outputStream.flush();
+        } finally {
+            outputStream.close();
+        }
+
+        int exifOrientation = getExifOrientation(frame.getTargetRotation().toDouble());
+        if (exifOrientation != ExifInterface.ORIENTATION_NORMAL) {
+            ExifInterface exif = new ExifInterface(file.getPath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(exifOrientation));
+            exif.saveAttributes();
+        }
+    }
+
+    //the EXIF orientation that rotates an image clockwise by the given angle, as rotateBitmap() does
+    private static int getExifOrientation(final double angle) {
+        int degrees = ((int) Math.round(angle) % 360 + 360) % 360;
+        switch (degrees) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    public static String getFileExtension(@NonNull final Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG:
+                return ".jpg";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".png";
+        }
+    }
+
+    public static String getMimeType(@NonNull final Bitmap.CompressFormat format) {
+        switch (format) {
+            case JPEG:
+                return "image/jpeg";
+            case WEBP:
+                return "image/webp";
+            default:
+                return "image/png";
+        }
+    }
+
+    public static void addImageToGallery(@NonNull final Context context, @NonNull final File imageFile, @NonNull final String mimeType) {
         ContentValues values = new ContentValues();
 
         values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-        values.put(MediaStore.Images.Media.MIME_TYPE, "image/png");
+        values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
         values.put(MediaStore.MediaColumns.DATA, imageFile.getAbsolutePath());
 
         context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
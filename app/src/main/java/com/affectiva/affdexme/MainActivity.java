@@ -12,12 +12,8 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
@@ -25,7 +21,6 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.text.format.DateFormat;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -51,8 +46,6 @@ import com.affectiva.android.affdex.sdk.detector.Face;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
@@ -88,14 +81,16 @@ import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity
         implements Detector.FaceListener, Detector.ImageListener, CameraDetector.CameraEventListener,
-        View.OnTouchListener, ActivityCompat.OnRequestPermissionsResultCallback, DrawingView.DrawingThreadEventListener {
+        View.OnTouchListener, ActivityCompat.OnRequestPermissionsResultCallback, DrawingView.DrawingThreadEventListener,
+        ScreenshotPipeline.Listener, PeakCapture.Listener {
 
     public static final int MAX_SUPPORTED_FACES = 3;
-    public static final boolean STORE_RAW_SCREENSHOTS = false; // setting to enable saving the raw images when taking screenshots
-    public static final int NUM_METRICS_DISPLAYED = 6;
     private static final String LOG_TAG = "AffdexMe";
     private static final int CAMERA_PERMISSIONS_REQUEST = 42;  //value is arbitrary (between 0 and 255)
     private static final int EXTERNAL_STORAGE_PERMISSIONS_REQUEST = 73;
+    private static final long CORRELATION_UPDATE_MILLIS = 500; //how often the correlation heatmap is redrawn
+    private static final long HISTORY_UPDATE_MILLIS = 1000; //how often the session history is redrawn
+    private static final MetricsManager.Metrics BEST_MOMENT_METRIC = MetricsManager.Emotions.JOY; //what makes a frame the best one to capture
     int cameraPreviewWidth = 0;
     int cameraPreviewHeight = 0;
     CameraDetector.CameraType cameraType;
@@ -104,10 +99,7 @@ public class MainActivity extends AppCompatActivity
     private boolean storagePermissionsAvailable = false;
     private CameraDetector detector = null;
     private RelativeLayout metricViewLayout;
-    private LinearLayout leftMetricsLayout;
-    private LinearLayout rightMetricsLayout;
-    private MetricDisplay[] metricDisplays;
-    private TextView[] metricNames;
+    private MetricDashboardView metricDashboard;
     private TextView fpsName;
     private TextView fpsPct;
     private TextView pleaseWaitTextView;
@@ -121,11 +113,31 @@ public class MainActivity extends AppCompatActivity
     private ImageButton cameraButton;
     private ImageButton screenshotButton;
     private Frame mostRecentFrame;
+    private FrameRing frameRing; //recent processed frames a screenshot picks the best one from, null to use the current frame
+    private FrameRing.Capture pendingCapture; //the frame chosen for the screenshot being taken
+    private PeakCapture peakCapture; //captures peaks of the selected metrics automatically, null when disabled
+    private MetricHistory metricHistory; //rollups of every metric since the app was resumed, drawn in place of the sparklines, null when hidden
+    private long historyUpdateMillis = 0;
+    private SessionDatabase sessionDatabase;
+    private SessionRecorder sessionRecorder; //records the scores of every frame to sessionDatabase, null when disabled
+    private MetricsExporter metricsExporter; //streams every face of every frame to files, null when disabled
+    private MetricsServer metricsServer; //streams every frame to WebSocket clients, null when disabled
+    private MetricsPublisher metricsPublisher; //shares every frame with apps bound to MetricsService, null when disabled
+    private ResultsBus resultsBus; //hands every frame to the recorder, exporter, streams, history and correlations on threads of their own, null when none is on
+    private CorrelationMatrix correlationMatrix; //correlations between every pair of metrics this session, null when hidden
+    private CorrelationMatrixView correlationMatrixView;
+    private long correlationUpdateMillis = 0;
+    private final Pipeline pipeline = new Pipeline(); //the threads every frame and the work it leads to go through
+    private ScreenshotPipeline screenshotPipeline; //composes and saves screenshots in the background
+    private Bitmap.CompressFormat captureFormat = Bitmap.CompressFormat.PNG;
+    private int captureQuality = PreferencesUtils.DEFAULT_CAPTURE_QUALITY;
+    private boolean storeRawScreenshots = false; //also save the camera frame without the overlay when taking screenshots
     private boolean isMenuVisible = false;
     private boolean isFPSVisible = false;
     private boolean isMenuShowingForFirstTime = true;
     private long firstSystemTime = 0;
     private float numberOfFrames = 0;
+    private final char[] fpsText = new char[96]; //reused text of the FPS counter
     private long timeToUpdate = 0;
     private boolean isFrontFacingCameraDetected = true;
     private boolean isBackFacingCameraDetected = true;
@@ -141,6 +153,26 @@ public class MainActivity extends AppCompatActivity
         checkForCameraPermissions();
         determineCameraAvailability();
         initializeCameraDetector();
+        drawingView.setPipelineStage(pipeline.render);
+        screenshotPipeline = new ScreenshotPipeline(this, this, pipeline.io);
+        sessionDatabase = new SessionDatabase(getApplicationContext());
+    }
+
+    @Override
+    protected void onDestroy() {
+        screenshotPipeline.shutdown();
+        //the session recorder is joined on the io stage once it has written its last frames, so the database is closed after that
+        final SessionDatabase database = sessionDatabase;
+        if (!pipeline.io.post(new Runnable() {
+            @Override
+            public void run() {
+                database.close();
+            }
+        })) {
+            database.close();
+        }
+        pipeline.quit();
+        super.onDestroy();
     }
 
     /**
@@ -350,8 +382,8 @@ public class MainActivity extends AppCompatActivity
         progressBarLayout = (RelativeLayout) findViewById(R.id.progress_bar_cover);
         permissionsUnavailableLayout = (LinearLayout) findViewById(R.id.permissionsUnavialableLayout);
         metricViewLayout = (RelativeLayout) findViewById(R.id.metric_view_group);
-        leftMetricsLayout = (LinearLayout) findViewById(R.id.left_metrics);
-        rightMetricsLayout = (LinearLayout) findViewById(R.id.right_metrics);
+        metricDashboard = (MetricDashboardView) findViewById(R.id.metric_dashboard);
+        correlationMatrixView = (CorrelationMatrixView) findViewById(R.id.correlation_matrix);
         mainLayout = (RelativeLayout) findViewById(R.id.main_layout);
         fpsPct = (TextView) findViewById(R.id.fps_value);
         fpsName = (TextView) findViewById(R.id.fps_name);
@@ -364,38 +396,16 @@ public class MainActivity extends AppCompatActivity
         pleaseWaitTextView = (TextView) findViewById(R.id.please_wait_textview);
         Button retryPermissionsButton = (Button) findViewById(R.id.retryPermissionsButton);
 
-        //Initialize views to display metrics
-        metricNames = new TextView[NUM_METRICS_DISPLAYED];
-        metricNames[0] = (TextView) findViewById(R.id.metric_name_0);
-        metricNames[1] = (TextView) findViewById(R.id.metric_name_1);
-        metricNames[2] = (TextView) findViewById(R.id.metric_name_2);
-        metricNames[3] = (TextView) findViewById(R.id.metric_name_3);
-        metricNames[4] = (TextView) findViewById(R.id.metric_name_4);
-        metricNames[5] = (TextView) findViewById(R.id.metric_name_5);
-        metricDisplays = new MetricDisplay[NUM_METRICS_DISPLAYED];
-        metricDisplays[0] = (MetricDisplay) findViewById(R.id.metric_pct_0);
-        metricDisplays[1] = (MetricDisplay) findViewById(R.id.metric_pct_1);
-        metricDisplays[2] = (MetricDisplay) findViewById(R.id.metric_pct_2);
-        metricDisplays[3] = (MetricDisplay) findViewById(R.id.metric_pct_3);
-        metricDisplays[4] = (MetricDisplay) findViewById(R.id.metric_pct_4);
-        metricDisplays[5] = (MetricDisplay) findViewById(R.id.metric_pct_5);
-
         //Load Application Font and set UI Elements to use it
         Typeface face = Typeface.createFromAsset(getAssets(), "fonts/Square.ttf");
-        for (TextView textView : metricNames) {
-            textView.setTypeface(face);
-        }
-        for (MetricDisplay metricDisplay : metricDisplays) {
-            metricDisplay.setTypeface(face);
-        }
+        metricDashboard.setTypeface(face);
         fpsPct.setTypeface(face);
         fpsName.setTypeface(face);
         drawingView.setTypeface(face);
         pleaseWaitTextView.setTypeface(face);
 
         //Hide left and right metrics by default (will be made visible when face detection starts)
-        leftMetricsLayout.setAlpha(0);
-        rightMetricsLayout.setAlpha(0);
+        metricDashboard.setAlpha(0);
 
         /**
          * This app uses two SurfaceView objects: one to display the camera image and the other to draw facial tracking dots.
@@ -459,6 +469,7 @@ public class MainActivity extends AppCompatActivity
         super.onResume();
         checkForCameraPermissions();
         restoreApplicationSettings();
+        startResultsBus();
         setMenuVisible(true);
         isMenuShowingForFirstTime = true;
     }
@@ -528,10 +539,135 @@ public class MainActivity extends AppCompatActivity
             setShowEmoji(false);
         }
 
+        drawingView.setAdaptiveDetailEnabled(sharedPreferences.getBoolean("adaptive_detail", drawingView.getAdaptiveDetailEnabled()));
+        drawingView.setOverlayScale(PreferencesUtils.getOverlayScale(sharedPreferences));
+
+        //restore the screenshot settings
+        captureFormat = PreferencesUtils.getCaptureFormat(sharedPreferences);
+        captureQuality = PreferencesUtils.getCaptureQuality(sharedPreferences);
+        storeRawScreenshots = sharedPreferences.getBoolean("raw_screenshots", storeRawScreenshots);
+        int captureWindow = PreferencesUtils.getCaptureWindow(sharedPreferences);
+        if (captureWindow <= 1) {
+            frameRing = null;
+        } else {
+            if (frameRing == null || frameRing.getCapacity() != captureWindow) {
+                frameRing = new FrameRing(captureWindow);
+            }
+            enableMetricDetection(BEST_MOMENT_METRIC); //the ring ranks its frames by it, whether or not it is displayed
+        }
+
+        //restore automatic peak capture, which starts a new session with its own capture limit
+        if (sharedPreferences.getBoolean("auto_capture", false)) {
+            MetricsManager.Metrics[] peakMetrics = PreferencesUtils.getAutoCaptureMetrics(sharedPreferences);
+            for (MetricsManager.Metrics metric : peakMetrics) {
+                enableMetricDetection(metric);
+            }
+            peakCapture = new PeakCapture(peakMetrics,
+                    PreferencesUtils.getAutoCaptureProminence(sharedPreferences),
+                    PreferencesUtils.getAutoCaptureSpacing(sharedPreferences),
+                    PreferencesUtils.getAutoCaptureLimit(sharedPreferences), this);
+        } else {
+            peakCapture = null;
+        }
+
+        //restore session recording, which starts a new session each time the app is resumed
+        if (sharedPreferences.getBoolean("record_sessions", false)) {
+            for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
+                enableMetricDetection(metric);
+            }
+            if (sessionRecorder == null) {
+                sessionRecorder = new SessionRecorder(sessionDatabase);
+                sessionRecorder.setPipelineStage(pipeline.io);
+            }
+            sessionRecorder.start(SystemClock.elapsedRealtime());
+        } else if (sessionRecorder != null) {
+            sessionRecorder.stop();
+            sessionRecorder = null;
+        }
+
+        //restore metric streaming, which only listens while the app is resumed
+        if (sharedPreferences.getBoolean("stream_metrics", false)) {
+            if (metricsServer == null) {
+                metricsServer = new MetricsServer(MetricsServer.DEFAULT_PORT);
+            }
+            try {
+                metricsServer.start();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to stream metrics on port " + MetricsServer.DEFAULT_PORT, e);
+            }
+        } else if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+
+        //restore metric sharing with other apps, which can only bind to MetricsService while it is on
+        boolean isSharingMetrics = sharedPreferences.getBoolean("share_metrics", false);
+        MetricsService.setEnabled(this, isSharingMetrics);
+        metricsPublisher = null;
+        if (isSharingMetrics) {
+            try {
+                metricsPublisher = MetricsPublisher.getInstance(this);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to share metrics", e);
+            }
+        }
+
+        //restore the correlation heatmap, which starts a new session each time the app is resumed
+        if (sharedPreferences.getBoolean("show_correlations", false)) {
+            for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
+                enableMetricDetection(metric);
+            }
+            if (correlationMatrix == null) {
+                correlationMatrix = new CorrelationMatrix();
+            }
+            synchronized (correlationMatrix) {
+                correlationMatrix.clear();
+            }
+            postCorrelationUpdate(correlationMatrix);
+            correlationMatrixView.setVisibility(View.VISIBLE);
+        } else {
+            correlationMatrix = null;
+            correlationMatrixView.setVisibility(View.GONE);
+        }
+
+        //restore the session history, which starts again each time the app is resumed, like a recorded session
+        if (sharedPreferences.getBoolean("show_session_history", false)) {
+            if (metricHistory == null) {
+                metricHistory = new MetricHistory();
+            }
+            synchronized (metricHistory) {
+                metricHistory.clear();
+            }
+        } else {
+            metricHistory = null;
+            metricDashboard.clearSessionHistory();
+        }
+
+        //restore metric export, which starts a new file each time the app is resumed
+        MetricsExporter.Format exportFormat = PreferencesUtils.getExportFormat(sharedPreferences);
+        if (metricsExporter != null && (!sharedPreferences.getBoolean("export_metrics", false) || metricsExporter.getFormat() != exportFormat)) {
+            metricsExporter.stop();
+            metricsExporter = null;
+        }
+        if (sharedPreferences.getBoolean("export_metrics", false)) {
+            File exportDirectory = getExternalFilesDir("exports");
+            if (exportDirectory == null) {
+                Log.e(LOG_TAG, "Unable to export metrics, external storage is not available");
+            } else {
+                if (metricsExporter == null) {
+                    metricsExporter = new MetricsExporter(exportDirectory, exportFormat);
+                    metricsExporter.setPipelineStage(pipeline.io);
+                }
+                metricsExporter.start();
+            }
+        }
+
         //populate metric displays
-        for (int n = 0; n < NUM_METRICS_DISPLAYED; n++) {
-            activateMetric(n, PreferencesUtils.getMetricFromPrefs(sharedPreferences, n));
+        List<MetricsManager.Metrics> selectedMetrics = PreferencesUtils.getSelectedMetrics(sharedPreferences);
+        for (MetricsManager.Metrics metric : selectedMetrics) {
+            enableMetricDetection(metric);
         }
+        metricDashboard.setMetrics(selectedMetrics);
 
         //if we are in multiface mode, we need to enable the detection of all emotions
         if (multiFaceModeEnabled) {
@@ -540,52 +676,128 @@ public class MainActivity extends AppCompatActivity
     }
 
     /**
-     * Populates a TextView to display a metric name and readies a MetricDisplay to display the value.
-     * Uses reflection to:
-     * -enable the corresponding metric in the Detector object by calling Detector.setDetect<MetricName>()
-     * -save the Method object that will be invoked on the Face object received in onImageResults() to get the metric score
+     * Connect the consumers of every frame that are turned on to a new ResultsBus. Those that must not lose a frame
+     * block the bus when they fall behind, which they only do for the time it takes to queue a frame for their own
+     * writer thread. The live streams only care about the newest frame, and the history and the correlations can do
+     * without a few.
      */
-    void activateMetric(int index, MetricsManager.Metrics metric) {
+    private void startResultsBus() {
+        if (resultsBus != null) {
+            resultsBus.close();
+            resultsBus = null;
+        }
+        ResultsBus bus = new ResultsBus();
+        bus.setPipelineStage(pipeline.results);
+        final SessionRecorder recorder = sessionRecorder;
+        if (recorder != null) {
+            bus.addConsumer("recorder", ResultsBus.Policy.BLOCK, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    if (faceCount > 0) {
+                        recorder.record(faces[0].getScores(), timeMillis);
+                    }
+                }
+            });
+        }
+        final MetricsExporter exporter = metricsExporter;
+        if (exporter != null) {
+            bus.addConsumer("exporter", ResultsBus.Policy.BLOCK, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    exporter.export(faces, faceCount, timestamp);
+                }
+            });
+        }
+        final MetricsServer server = metricsServer;
+        if (server != null) {
+            bus.addConsumer("server", ResultsBus.Policy.SKIP_TO_LATEST, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    if (server.hasClients()) {
+                        server.broadcast(timestamp, faces, faceCount);
+                    }
+                }
+            });
+        }
+        final MetricsPublisher publisher = metricsPublisher;
+        if (publisher != null) {
+            bus.addConsumer("publisher", ResultsBus.Policy.SKIP_TO_LATEST, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    if (publisher.hasSubscribers()) {
+                        publisher.publish(timestamp, faces, faceCount);
+                    }
+                }
+            });
+        }
+        final MetricHistory history = metricHistory;
+        if (history != null) {
+            bus.addConsumer("history", ResultsBus.Policy.DROP, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    if (faceCount > 0) {
+                        synchronized (history) { //the dashboard queries it on the UI thread
+                            history.add(faces[0].getScores(), timeMillis);
+                        }
+                    }
+                }
+            });
+        }
+        final CorrelationMatrix matrix = correlationMatrix;
+        if (matrix != null) {
+            bus.addConsumer("correlations", ResultsBus.Policy.DROP, new ResultsBus.Listener() {
+                @Override
+                public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                    if (faceCount > 0) {
+                        synchronized (matrix) { //the heatmap takes snapshots of it on the UI thread
+                            matrix.add(faces[0].getScores());
+                        }
+                    }
+                }
+            });
+        }
+        if (!bus.getConsumers().isEmpty()) {
+            bus.start();
+            resultsBus = bus;
+        }
+    }
 
-        Method getFaceScoreMethod = null; //The method that will be used to get a metric score
+    /**
+     * Have the heatmap show matrix. The snapshot is taken on the analytics stage, and the heatmap is redrawn on the UI thread.
+     */
+    private void postCorrelationUpdate(final CorrelationMatrix matrix) {
+        pipeline.analytics.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (matrix) { //the correlations consumer of the results bus adds to it
+                    correlationMatrixView.update(matrix);
+                }
+            }
+        });
+    }
 
+    /**
+     * Enable the detection of a metric.
+     * Uses reflection to call the corresponding Detector.setDetect<MetricName>() method.
+     */
+    void enableMetricDetection(MetricsManager.Metrics metric) {
         try {
             switch (metric.getType()) {
                 case Emotion:
-                    Detector.class.getMethod("setDetect" + MetricsManager.getCamelCase(metric), boolean.class).invoke(detector, true);
-                    metricNames[index].setText(MetricsManager.getUpperCaseName(metric));
-                    getFaceScoreMethod = Face.Emotions.class.getMethod("get" + MetricsManager.getCamelCase(metric));
-
-                    //The MetricDisplay for Valence is unique; it shades it color depending on the metric value
-                    if (metric == MetricsManager.Emotions.VALENCE) {
-                        metricDisplays[index].setIsShadedMetricView(true);
-                    } else {
-                        metricDisplays[index].setIsShadedMetricView(false);
-                    }
-                    break;
                 case Expression:
                     Detector.class.getMethod("setDetect" + MetricsManager.getCamelCase(metric), boolean.class).invoke(detector, true);
-                    metricNames[index].setText(MetricsManager.getUpperCaseName(metric));
-                    getFaceScoreMethod = Face.Expressions.class.getMethod("get" + MetricsManager.getCamelCase(metric));
                     break;
                 case Emoji:
                     detector.setDetectAllEmojis(true);
-                    MetricsManager.Emojis emoji = ((MetricsManager.Emojis) metric);
-                    String metricTitle = emoji.getDisplayName(); // + " " + emoji.getUnicodeForEmoji();
-                    metricNames[index].setText(metricTitle);
-                    Log.d(LOG_TAG, "Getter Method: " + "get" + MetricsManager.getCamelCase(metric));
-                    getFaceScoreMethod = Face.Emojis.class.getMethod("get" + MetricsManager.getCamelCase(metric));
                     break;
             }
         } catch (NoSuchMethodException e) {
-            Log.e(LOG_TAG, String.format("No such method while using reflection to generate methods for %s", metric.toString()), e);
+            Log.e(LOG_TAG, String.format("No such method while using reflection to enable detection of %s", metric.toString()), e);
         } catch (InvocationTargetException e) {
-            Log.e(LOG_TAG, String.format("Invocation error while using reflection to generate methods for %s", metric.toString()), e);
+            Log.e(LOG_TAG, String.format("Invocation error while using reflection to enable detection of %s", metric.toString()), e);
         } catch (IllegalAccessException e) {
-            Log.e(LOG_TAG, String.format("Illegal access error while using reflection to generate methods for %s", metric.toString()), e);
+            Log.e(LOG_TAG, String.format("Illegal access error while using reflection to enable detection of %s", metric.toString()), e);
         }
-
-        metricDisplays[index].setMetricToDisplay(metric, getFaceScoreMethod);
     }
 
     /**
@@ -654,8 +866,7 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onFaceDetectionStarted() {
-        leftMetricsLayout.animate().alpha(1); //make left and right metrics appear
-        rightMetricsLayout.animate().alpha(1);
+        metricDashboard.animate().alpha(1); //make the metrics appear
 
         resetFPSCalculations(); //Since the FPS may be different whether a face is being tracked or not, reset variables.
     }
@@ -666,8 +877,7 @@ public class MainActivity extends AppCompatActivity
     }
 
     void performFaceDetectionStoppedTasks() {
-        leftMetricsLayout.animate().alpha(0); //make left and right metrics disappear
-        rightMetricsLayout.animate().alpha(0);
+        metricDashboard.animate().alpha(0); //make the metrics disappear
         resetFPSCalculations(); //Since the FPS may be different whether a face is being tracked or not, reset variables.
     }
 
@@ -684,18 +894,40 @@ public class MainActivity extends AppCompatActivity
         }
 
         //At this point, we know the frame received was processed, so we perform our processed frames per second calculations
+        long detectorStart = System.nanoTime();
         performFPSCalculations();
 
+        if (frameRing != null) {
+            frameRing.record(image, faces, timeStamp);
+        }
+        if (peakCapture != null) {
+            peakCapture.onImageResults(faces, image, timeStamp);
+        }
+        //the detector timestamp restarts with the camera, so the history and the session use the system clock
+        long now = SystemClock.elapsedRealtime();
+        if (resultsBus != null) {
+            resultsBus.publish(faces, timeStamp, now);
+        }
+        if (correlationMatrix != null && now - correlationUpdateMillis >= CORRELATION_UPDATE_MILLIS) {
+            correlationUpdateMillis = now;
+            postCorrelationUpdate(correlationMatrix);
+        }
+        if (metricHistory != null && now - historyUpdateMillis >= HISTORY_UPDATE_MILLIS) {
+            //a query only reads a point per pixel of the sparklines, so it is cheap enough for the UI thread
+            historyUpdateMillis = now;
+            synchronized (metricHistory) { //the history consumer of the results bus adds to it
+                metricDashboard.setSessionHistory(metricHistory, now);
+            }
+        }
+
         //If faces.size() is 0, we received a frame in which no face was detected
         if (faces.size() <= 0) {
             drawingView.invalidatePoints();
         } else if (faces.size() == 1) {
             metricViewLayout.setVisibility(View.VISIBLE);
 
-            //update metrics with latest face information. The metrics are displayed on a MetricView, a custom view with a .setScore() method.
-            for (MetricDisplay metricDisplay : metricDisplays) {
-                updateMetricScore(metricDisplay, faces.get(0));
-            }
+            //update metrics with latest face information. The metrics are drawn by a MetricDashboardView, which only redraws the scores that changed.
+            metricDashboard.setScores(faces.get(0), timeStamp);
 
             /**
              * If the user has selected to have any facial attributes drawn, we use face.getFacePoints() to send those points
@@ -713,6 +945,7 @@ public class MainActivity extends AppCompatActivity
             // always update points in multi face mode
             drawingView.updatePoints(faces, mirrorPoints);
         }
+        pipeline.detector.record(System.nanoTime() - detectorStart);
     }
 
     public void takeScreenshot(View view) {
@@ -722,7 +955,9 @@ public class MainActivity extends AppCompatActivity
             return;
         }
 
-        drawingView.requestBitmap();
+        //pick the best frame of the last few, and have the overlay drawn for that frame's faces
+        pendingCapture = frameRing == null ? null : frameRing.captureBest(BEST_MOMENT_METRIC);
+        drawingView.requestBitmap(pendingCapture == null ? null : pendingCapture.faces);
 
         /**
          * A screenshot of the drawing view is generated and processing continues via the callback
@@ -730,115 +965,99 @@ public class MainActivity extends AppCompatActivity
          */
     }
 
-    private void processScreenshot(Bitmap drawingViewBitmap, boolean alsoSaveRaw) {
-        if (mostRecentFrame == null) {
+    /**
+     * Capture what the screenshot needs from the UI (the camera frame and the metric views) and hand it to the
+     * screenshot pipeline, which composes and saves it in the background.
+     */
+    private void processScreenshot(Bitmap drawingViewBitmap) {
+        FrameRing.Capture capture = pendingCapture;
+        pendingCapture = null;
+
+        if (mostRecentFrame == null && capture == null) {
+            drawingViewBitmap.recycle();
             Toast.makeText(getApplicationContext(), "No frame detected, aborting screenshot", Toast.LENGTH_SHORT).show();
             return;
         }
 
         if (!storagePermissionsAvailable) {
+            drawingViewBitmap.recycle();
             checkForStoragePermissions();
             return;
         }
 
-        Bitmap faceBitmap = ImageHelper.getBitmapFromFrame(mostRecentFrame);
+        long captureStart = SystemClock.elapsedRealtime();
 
-        if (faceBitmap == null) {
-            Log.e(LOG_TAG, "Unable to generate bitmap for frame, aborting screenshot");
-            return;
+        Frame frame;
+        if (capture != null) {
+            frame = capture.frame; //already a copy
+            if (capture.faces.length == 1) {
+                //show the scores of the chosen frame in the metrics captured below; the next results overwrite them
+                metricDashboard.setScores(capture.faces[0]);
+            }
+        } else {
+            //the camera keeps reusing the frame's buffer, so the pipeline gets its own copy
+            frame = ImageHelper.copyFrame(mostRecentFrame);
+            if (frame == null) {
+                drawingViewBitmap.recycle();
+                Log.e(LOG_TAG, "Unable to copy frame, aborting screenshot");
+                return;
+            }
         }
 
+        Bitmap metricsBitmap = null;
         metricViewLayout.setDrawingCacheEnabled(true);
-        Bitmap metricsBitmap = Bitmap.createBitmap(metricViewLayout.getDrawingCache());
+        Bitmap metricsDrawingCache = metricViewLayout.getDrawingCache();
+        if (metricsDrawingCache != null) {
+            metricsBitmap = Bitmap.createBitmap(metricsDrawingCache);
+        }
         metricViewLayout.setDrawingCacheEnabled(false);
 
-        Bitmap finalScreenshot = Bitmap.createBitmap(faceBitmap.getWidth(), faceBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(finalScreenshot);
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-
-        canvas.drawBitmap(faceBitmap, 0, 0, paint);
-
-        float scaleFactor = ((float) faceBitmap.getWidth()) / ((float) drawingViewBitmap.getWidth());
-        int scaledHeight = Math.round(drawingViewBitmap.getHeight() * scaleFactor);
-        canvas.drawBitmap(drawingViewBitmap, null, new Rect(0, 0, faceBitmap.getWidth(), scaledHeight), paint);
-
-        scaleFactor = ((float) faceBitmap.getWidth()) / ((float) metricsBitmap.getWidth());
-        scaledHeight = Math.round(metricsBitmap.getHeight() * scaleFactor);
-        canvas.drawBitmap(metricsBitmap, null, new Rect(0, 0, faceBitmap.getWidth(), scaledHeight), paint);
-
-        metricsBitmap.recycle();
-        drawingViewBitmap.recycle();
-
-        Date now = new Date();
-        String timestamp = DateFormat.format("yyyy-MM-dd_hh-mm-ss", now).toString();
-        File pictureFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "AffdexMe");
-        if (!pictureFolder.exists()) {
-            if (!pictureFolder.mkdir()) {
-                Log.e(LOG_TAG, "Unable to create directory: " + pictureFolder.getAbsolutePath());
-                return;
-            }
+        ScreenshotPipeline.Job job = new ScreenshotPipeline.Job(frame, drawingViewBitmap, metricsBitmap,
+                storeRawScreenshots, captureFormat, captureQuality, null, SystemClock.elapsedRealtime() - captureStart);
+        if (!screenshotPipeline.submit(job)) {
+            Toast.makeText(getApplicationContext(), "Still saving previous screenshots, please try again", Toast.LENGTH_SHORT).show();
         }
+    }
 
-        String screenshotFileName = timestamp + ".png";
-        File screenshotFile = new File(pictureFolder, screenshotFileName);
-
-        try {
-            ImageHelper.saveBitmapToFileAsPng(finalScreenshot, screenshotFile);
-        } catch (IOException e) {
-            String msg = "Unable to save screenshot";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_SHORT).show();
-            Log.e(LOG_TAG, msg, e);
-            return;
+    /**
+     * A peak was found in onImageResults(). The overlay for the peak's faces is drawn by the drawing thread, which
+     * hands it straight to the screenshot pipeline, so neither the detector callback nor the UI thread waits on it.
+     * The metric views are not part of automatic captures, since capturing them would have to happen on the UI thread.
+     */
+    @Override
+    public void onPeakCaptured(@NonNull MetricsManager.Metrics metric, float score, @NonNull final FrameRing.Capture capture) {
+        if (!storagePermissionsAvailable) {
+            return; //unattended captures do not ask for permissions
         }
-        ImageHelper.addPngToGallery(getApplicationContext(), screenshotFile);
 
-        if (alsoSaveRaw) {
-            String rawScreenshotFileName = timestamp + "_raw.png";
-            File rawScreenshotFile = new File(pictureFolder, rawScreenshotFileName);
-
-            try {
-                ImageHelper.saveBitmapToFileAsPng(faceBitmap, rawScreenshotFile);
-            } catch (IOException e) {
-                String msg = "Unable to save screenshot";
-                Log.e(LOG_TAG, msg, e);
+        Log.d(LOG_TAG, String.format(Locale.US, "Peak of %s at %.0f, capture %d of %d", metric.toString(), score,
+                peakCapture.getCaptureCount(), peakCapture.getSessionLimit()));
+        final String label = String.format(Locale.US, "peak_%s", metric.toString().toLowerCase(Locale.US));
+        final boolean alsoSaveRaw = storeRawScreenshots;
+        final Bitmap.CompressFormat format = captureFormat;
+        final int quality = captureQuality;
+        drawingView.requestBitmap(capture.faces, new DrawingView.DrawingThreadEventListener() {
+            @Override
+            public void onBitmapGenerated(Bitmap bitmap) {
+                ScreenshotPipeline.Job job = new ScreenshotPipeline.Job(capture.frame, bitmap, null,
+                        alsoSaveRaw, format, quality, label, 0);
+                if (!screenshotPipeline.submit(job)) {
+                    Log.w(LOG_TAG, "Dropped automatic capture of " + label);
+                }
             }
-            ImageHelper.addPngToGallery(getApplicationContext(), rawScreenshotFile);
-        }
-
-        faceBitmap.recycle();
-        finalScreenshot.recycle();
+        });
+    }
 
+    @Override
+    public void onScreenshotSaved(@NonNull File screenshotFile) {
         String fileSavedMessage = "Screenshot saved to: " + screenshotFile.getPath();
         Toast.makeText(getApplicationContext(), fileSavedMessage, Toast.LENGTH_SHORT).show();
         Log.d(LOG_TAG, fileSavedMessage);
     }
 
-    /**
-     * Use the method that we saved in activateMetric() to get the metric score and display it
-     */
-    void updateMetricScore(MetricDisplay metricDisplay, Face face) {
-
-        MetricsManager.Metrics metric = metricDisplay.getMetricToDisplay();
-        float score = Float.NaN;
-
-        try {
-            switch (metric.getType()) {
-                case Emotion:
-                    score = (Float) metricDisplay.getFaceScoreMethod().invoke(face.emotions);
-                    break;
-                case Expression:
-                    score = (Float) metricDisplay.getFaceScoreMethod().invoke(face.expressions);
-                    break;
-                case Emoji:
-                    score = (Float) metricDisplay.getFaceScoreMethod().invoke(face.emojis);
-                    break;
-                default:
-                    throw new Exception("Unknown Metric Type: " + metric.getType().toString());
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, String.format("Error using reflecting to get %s score from face.", metric.toString()));
-        }
-        metricDisplay.setScore(score);
+    @Override
+    public void onScreenshotFailed(@NonNull String message) {
+        Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
     }
 
     /**
@@ -853,7 +1072,46 @@ public class MainActivity extends AppCompatActivity
         long currentTime = SystemClock.elapsedRealtime();
         if (currentTime > timeToUpdate) {
             float framesPerSecond = (numberOfFrames / (float) (currentTime - firstSystemTime)) * 1000f;
-            fpsPct.setText(String.format(" %.1f", framesPerSecond));
+            //the text is built in a reused buffer, since String.format() allocates several objects per call
+            int length = ScoreText.appendText(fpsText, 0, " ");
+            length = ScoreText.appendFixed1(fpsText, length, framesPerSecond);
+            if (drawingView.getAdaptiveDetailEnabled()) {
+                //show the overlay level of detail next to the FPS, since a lower level means drawing is falling behind
+                length = ScoreText.appendText(fpsText, length, " LOD ");
+                length = ScoreText.appendInt(fpsText, length, drawingView.getDetailLevel());
+            }
+            if (drawingView.getOverlayScale() < 1 && drawingView.getFullResolutionDrawMillis() > 0) {
+                //show how much faster drawing at reduced resolution is than at full resolution
+                float drawMillisDifference = drawingView.getAverageDrawMillis() - drawingView.getFullResolutionDrawMillis();
+                length = ScoreText.appendText(fpsText, length, drawMillisDifference < 0 ? " " : " +");
+                length = ScoreText.appendFixed1(fpsText, length, drawMillisDifference);
+                length = ScoreText.appendText(fpsText, length, "ms");
+            }
+            if (metricsPublisher != null && metricsPublisher.hasSubscribers()) {
+                //show how many apps receive the metrics, and how long they take to get them
+                length = ScoreText.appendText(fpsText, length, " SUB ");
+                length = ScoreText.appendInt(fpsText, length, metricsPublisher.getSubscriberCount());
+                float latencyMillis = metricsPublisher.getLatencyMillis();
+                if (!Float.isNaN(latencyMillis)) {
+                    length = ScoreText.appendText(fpsText, length, " ");
+                    length = ScoreText.appendFixed1(fpsText, length, latencyMillis);
+                    length = ScoreText.appendText(fpsText, length, "ms");
+                }
+            }
+            //show the stage of the pipeline that spent the most time working, which limits the frame rate first
+            pipeline.endWindow();
+            PipelineStage busiestStage = pipeline.getBusiestStage();
+            length = ScoreText.appendText(fpsText, length, " ");
+            length = ScoreText.appendText(fpsText, length, busiestStage.getName());
+            length = ScoreText.appendText(fpsText, length, " ");
+            length = ScoreText.appendInt(fpsText, length, Math.round(busiestStage.getUtilization() * 100));
+            length = ScoreText.appendText(fpsText, length, "%");
+            if (resultsBus != null) {
+                //show how many frames the slowest consumer of the results bus is behind
+                length = ScoreText.appendText(fpsText, length, " LAG ");
+                length = ScoreText.appendInt(fpsText, length, (int) resultsBus.getMaxLag());
+            }
+            fpsPct.setText(fpsText, 0, length);
             timeToUpdate = currentTime + 1000L;
         }
     }
@@ -871,6 +1129,21 @@ public class MainActivity extends AppCompatActivity
         performFaceDetectionStoppedTasks();
 
         stopDetector();
+
+        if (resultsBus != null) {
+            resultsBus.close(); //hands the last frames to the consumers below before they are stopped
+            resultsBus = null;
+        }
+        //the recorder and the exporter stop taking frames now, and write those still waiting while the io stage waits for them
+        if (sessionRecorder != null) {
+            sessionRecorder.stop();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
     }
 
     void stopDetector() {
@@ -882,6 +1155,10 @@ public class MainActivity extends AppCompatActivity
             }
         }
 
+        if (frameRing != null) {
+            frameRing.clear(); //the frames may come from the other camera when detection restarts
+        }
+
         detector.setDetectAllEmotions(false);
         detector.setDetectAllExpressions(false);
         detector.setDetectAllAppearance(false);
@@ -1056,6 +1333,12 @@ public class MainActivity extends AppCompatActivity
             }
 
             performFaceDetectionStoppedTasks();
+            if (frameRing != null) {
+                frameRing.clear(); //the frames left are from the other camera, mirrored the other way
+            }
+            if (peakCapture != null) {
+                peakCapture.restart(); //the detector timestamp restarts with the camera
+            }
 
             detector.setCameraType(cameraType);
             preferencesEditor.putString("cameraType", cameraType.name());
@@ -1068,7 +1351,7 @@ public class MainActivity extends AppCompatActivity
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                processScreenshot(bitmap, STORE_RAW_SCREENSHOTS);
+                processScreenshot(bitmap);
             }
         });
     }
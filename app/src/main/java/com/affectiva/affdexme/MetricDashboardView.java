@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.support.annotation.NonNull;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Draws the names and scores of any number of metrics in a single view, half of them to the left of a gap
+ * in the middle (where the logo is) and half to the right. When there are more metrics than fit in one column
+ * on each side, the metrics are spread over more columns and the text is shrunk to fit.
+ * Below each bar is a Sparkline of the recent scores of the metric, one point per pixel of its width, or, when the
+ * session history is shown, the whole session so far from the rollups of a MetricHistory.
+ * Setting a score only invalidates the bar of that metric if its displayed whole percent changed, and its sparkline
+ * if the line moved by a pixel, and drawing skips the metrics outside the clip. Nothing is allocated per frame: the layout is computed when
+ * the metrics or the size change, and score texts come from ScoreText.
+ */
+public class MetricDashboardView extends View {
+
+    private MetricDisplay[] metricDisplays = new MetricDisplay[0];
+
+    private final Paint namePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint scorePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint barPaint = new Paint();
+    private final Paint sparklinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float nameTextSize = 15;
+    private float scoreTextSize = 15;
+    private float metricBarLength = 100;
+    private float centerGap = 0; //width left free in the middle of the view
+    private float sparklineHeight = 0; //no sparklines when 0
+
+    //layout of each metric, computed in updateLayout()
+    private float[] centerX = new float[0];
+    private float[] nameBaseline = new float[0];
+    private float[] nameScaleX = new float[0];
+    private Rect[] cellBounds = new Rect[0]; //everything drawn for a metric
+    private Rect[] barBounds = new Rect[0]; //the part of a cell that changes with the score
+    private Rect[] sparklineBounds = new Rect[0];
+    private float halfBarWidth = 0;
+    private final Rect clipBounds = new Rect();
+    private long sessionFromMillis = -1; //the range of the session drawn in place of the sparklines, -1 to draw the sparklines
+    private long sessionToMillis = -1;
+
+    public MetricDashboardView(Context context) {
+        super(context);
+        initResources(null);
+    }
+
+    public MetricDashboardView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        initResources(attrs);
+    }
+
+    public MetricDashboardView(Context context, AttributeSet attrs, int styleID) {
+        super(context, attrs, styleID);
+        initResources(attrs);
+    }
+
+    void initResources(AttributeSet attrs) {
+        barPaint.setColor(Color.GREEN);
+
+        namePaint.setTextAlign(Paint.Align.CENTER);
+        namePaint.setFakeBoldText(true);
+        namePaint.setShadowLayer(1, 0, 2, Color.BLACK);
+        scorePaint.setTextAlign(Paint.Align.CENTER);
+        sparklinePaint.setStyle(Paint.Style.STROKE);
+
+        //load and parse XML attributes
+        if (attrs != null) {
+            TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.metric_dashboard_attributes, 0, 0);
+            namePaint.setColor(a.getColor(R.styleable.metric_dashboard_attributes_nameTextColor, Color.WHITE));
+            nameTextSize = a.getDimensionPixelSize(R.styleable.metric_dashboard_attributes_nameTextSize, (int) nameTextSize);
+            scorePaint.setColor(a.getColor(R.styleable.metric_dashboard_attributes_textColor, Color.BLACK));
+            scoreTextSize = a.getDimensionPixelSize(R.styleable.metric_dashboard_attributes_textSize, (int) scoreTextSize);
+            metricBarLength = a.getDimensionPixelSize(R.styleable.metric_dashboard_attributes_metricBarLength, (int) metricBarLength);
+            centerGap = a.getDimensionPixelSize(R.styleable.metric_dashboard_attributes_centerGap, 0);
+            sparklineHeight = a.getDimensionPixelSize(R.styleable.metric_dashboard_attributes_sparklineHeight, 0);
+            sparklinePaint.setColor(a.getColor(R.styleable.metric_dashboard_attributes_sparklineColor, Color.BLACK));
+            a.recycle();
+        } else {
+            namePaint.setColor(Color.WHITE);
+            scorePaint.setColor(Color.BLACK);
+            sparklinePaint.setColor(Color.BLACK);
+        }
+    }
+
+    public void setTypeface(Typeface face) {
+        namePaint.setTypeface(face);
+        scorePaint.setTypeface(face);
+        updateLayout();
+        invalidate();
+    }
+
+    /**
+     * Show these metrics, without scores until the next call to setScores().
+     */
+    public void setMetrics(List<MetricsManager.Metrics> metrics) {
+        metricDisplays = new MetricDisplay[metrics.size()];
+        centerX = new float[metrics.size()];
+        nameBaseline = new float[metrics.size()];
+        nameScaleX = new float[metrics.size()];
+        cellBounds = new Rect[metrics.size()];
+        barBounds = new Rect[metrics.size()];
+        sparklineBounds = new Rect[metrics.size()];
+        for (int n = 0; n < metricDisplays.length; n++) {
+            metricDisplays[n] = new MetricDisplay(metrics.get(n));
+            cellBounds[n] = new Rect();
+            barBounds[n] = new Rect();
+            sparklineBounds[n] = new Rect();
+        }
+        updateLayout();
+        invalidate();
+    }
+
+    public int getMetricCount() {
+        return metricDisplays.length;
+    }
+
+    public MetricDisplay getMetricDisplay(int index) {
+        return metricDisplays[index];
+    }
+
+    public void setScore(int index, float score) {
+        if (metricDisplays[index].setScore(score)) {
+            Rect bounds = barBounds[index];
+            invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+    }
+
+    /**
+     * Set the scores of a face found in the frame at timestamp, adding them to the sparklines.
+     */
+    public void setScores(Face face, float timestamp) {
+        for (int n = 0; n < metricDisplays.length; n++) {
+            float score = MetricsManager.getScore(metricDisplays[n].getMetricToDisplay(), face);
+            setScore(n, score);
+            if (sparklineHeight > 0 && metricDisplays[n].getSparkline().add(score, timestamp) && sessionFromMillis < 0) {
+                Rect bounds = sparklineBounds[n];
+                invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+            }
+        }
+    }
+
+    public void setScores(FaceData face) {
+        for (int n = 0; n < metricDisplays.length; n++) {
+            setScore(n, face.getScore(metricDisplays[n].getMetricToDisplay()));
+        }
+    }
+
+    /**
+     * Draw the session so far, until nowMillis, in place of the recent scores of the sparklines, querying history for
+     * at most a point per pixel. The caller must hold the lock of history if another thread adds to it.
+     */
+    public void setSessionHistory(@NonNull MetricHistory history, long nowMillis) {
+        if (sparklineHeight <= 0 || metricDisplays.length == 0 || history.getStartMillis() < 0) {
+            return;
+        }
+        //sessions longer than a point per minute per pixel only show their last part
+        int maxPoints = Math.max(1, sparklineBounds[0].width());
+        sessionFromMillis = Math.max(history.getStartMillis(), nowMillis - maxPoints * MetricHistory.TIER_MILLIS[MetricHistory.TIER_MILLIS.length - 1]);
+        sessionToMillis = nowMillis;
+        for (int n = 0; n < metricDisplays.length; n++) {
+            history.query(metricDisplays[n].getMetricToDisplay(), sessionFromMillis, sessionToMillis, maxPoints, metricDisplays[n].getSessionRollups());
+            Rect bounds = sparklineBounds[n];
+            invalidate(bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+    }
+
+    /**
+     * Draw the recent scores in the sparklines again, rather than the session.
+     */
+    public void clearSessionHistory() {
+        if (sessionFromMillis >= 0) {
+            sessionFromMillis = -1;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldW, int oldH) {
+        super.onSizeChanged(w, h, oldW, oldH);
+        updateLayout();
+    }
+
+    /**
+     * Split the metrics between the two sides, into as few columns as fit the height of the view, and shrink
+     * the text if the rows are lower than the text or the columns narrower than a bar.
+     */
+    private void updateLayout() {
+        int count = metricDisplays.length;
+        int width = getWidth();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (count == 0 || width <= 0 || height <= 0) {
+            return;
+        }
+
+        namePaint.setTextSize(nameTextSize);
+        scorePaint.setTextSize(scoreTextSize);
+        float rowHeight = namePaint.getFontSpacing() + scoreTextSize + sparklineHeight;
+        int maxRows = Math.max((int) (height / rowHeight), 1);
+        int leftCount = (count + 1) / 2;
+        int columns = (leftCount + maxRows - 1) / maxRows;
+        int rows = (leftCount + columns - 1) / columns;
+
+        float sideWidth = (width - centerGap) / 2 - getPaddingLeft();
+        float cellWidth = sideWidth / columns;
+        float cellHeight = (float) height / rows;
+        float scale = Math.min(1, Math.min(cellHeight / rowHeight, cellWidth / metricBarLength));
+        namePaint.setTextSize(nameTextSize * scale);
+        scorePaint.setTextSize(scoreTextSize * scale);
+        float nameHeight = namePaint.getFontSpacing();
+        float barHeight = scoreTextSize * scale;
+        int scaledSparklineHeight = (int) (sparklineHeight * scale);
+        halfBarWidth = metricBarLength * scale / 2;
+
+        for (int n = 0; n < count; n++) {
+            boolean isLeft = n < leftCount;
+            int indexInSide = isLeft ? n : n - leftCount;
+            int column = indexInSide / rows;
+            int row = indexInSide % rows;
+
+            float sideLeft = isLeft ? getPaddingLeft() : (width + centerGap) / 2;
+            centerX[n] = sideLeft + (column + 0.5f) * cellWidth;
+            float cellTop = getPaddingTop() + row * cellHeight;
+            float blockTop = cellTop + (cellHeight - nameHeight - barHeight - scaledSparklineHeight) / 2;
+            nameBaseline[n] = blockTop - namePaint.ascent();
+            float barTop = blockTop + nameHeight;
+
+            float nameWidth = namePaint.measureText(metricDisplays[n].getName());
+            nameScaleX[n] = nameWidth > cellWidth ? cellWidth / nameWidth : 1;
+
+            int cellLeft = (int) Math.floor(centerX[n] - cellWidth / 2);
+            int cellRight = (int) Math.ceil(centerX[n] + cellWidth / 2);
+            cellBounds[n].set(cellLeft, (int) Math.floor(cellTop), cellRight, (int) Math.ceil(cellTop + cellHeight));
+            barBounds[n].set(cellLeft, (int) Math.floor(barTop), cellRight, (int) Math.ceil(barTop + barHeight));
+
+            //the sparkline is as wide as a full bar, one point per pixel
+            int sparklineLeft = Math.round(centerX[n] - halfBarWidth);
+            int sparklineTop = barBounds[n].bottom;
+            sparklineBounds[n].set(sparklineLeft, sparklineTop, Math.round(centerX[n] + halfBarWidth), sparklineTop + scaledSparklineHeight);
+            metricDisplays[n].getSparkline().setSize(sparklineBounds[n].width(), scaledSparklineHeight);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!canvas.getClipBounds(clipBounds)) {
+            return;
+        }
+
+        for (int n = 0; n < metricDisplays.length; n++) {
+            if (!Rect.intersects(clipBounds, cellBounds[n])) {
+                continue; //only the bars whose score changed were invalidated
+            }
+            MetricDisplay metricDisplay = metricDisplays[n];
+
+            namePaint.setTextScaleX(nameScaleX[n]);
+            canvas.drawText(metricDisplay.getName(), centerX[n], nameBaseline[n], namePaint);
+
+            if (sparklineHeight > 0) {
+                Rect sparkline = sparklineBounds[n];
+                if (sessionFromMillis >= 0) {
+                    metricDisplay.getSparkline().drawRollups(canvas, sparkline.left, sparkline.top, sparklinePaint,
+                            metricDisplay.getSessionRollups(), sessionFromMillis, sessionToMillis);
+                } else {
+                    metricDisplay.getSparkline().draw(canvas, sparkline.left, sparkline.top, sparklinePaint);
+                }
+            }
+
+            int score = metricDisplay.getDisplayedScore();
+            if (score == MetricDisplay.NO_SCORE) {
+                continue;
+            }
+            Rect bar = barBounds[n];
+            float barHalfWidth = halfBarWidth * Math.abs(score) / 100f;
+            if (metricDisplay.isShadedMetricView()) {
+                //shade the bar green for positive scores and red for negative ones
+                int colorScore = (int) ((100f - Math.abs(score)) / 100f * 255);
+                barPaint.setColor(score > 0 ? Color.rgb(colorScore, 255, colorScore) : Color.rgb(255, colorScore, colorScore));
+            } else {
+                barPaint.setColor(Color.GREEN);
+            }
+            canvas.drawRect(centerX[n] - barHalfWidth, bar.top, centerX[n] + barHalfWidth, bar.bottom, barPaint);
+
+            char[] text = ScoreText.getPercentText(score);
+            canvas.drawText(text, 0, text.length, centerX[n], bar.bottom - scorePaint.descent(), scorePaint);
+        }
+    }
+}
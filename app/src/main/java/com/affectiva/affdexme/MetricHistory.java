@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The history of every metric over a whole session, kept as rollups (min, max, mean and count of the scores)
+ * of 1 second, 10 second and 1 minute buckets rather than as per-frame scores.
+ * Each score is added to the open bucket of every tier, so the rollups are always up to date and adding costs the
+ * same however long the session is. Only buckets that received a face are stored, each with its bucket number, so
+ * memory grows with the time faces were found (about 3MB per hour, nearly all of it for the 1 second tier) and not
+ * with the time the session was paused, and a gap costs nothing. Buckets are stored in fixed size chunks, so growing
+ * never copies the history, and are found by a binary search of their numbers.
+ * A range query picks the finest tier that returns at most the requested number of buckets, so drawing a graph of
+ * any range, from a few seconds to hours, takes time proportional to the number of points drawn.
+ * This class is not thread safe.
+ */
+public class MetricHistory {
+
+    static final long[] TIER_MILLIS = {1000, 10 * 1000, 60 * 1000};
+    private static final int CHUNK_BUCKETS = 600;
+
+    /**
+     * The buckets returned by a query, in time order. The arrays grow as needed and are reused between queries.
+     */
+    public static class Rollups {
+        int size = 0;
+        long bucketMillis;
+        long[] startMillis = new long[0];
+        float[] min = new float[0];
+        float[] max = new float[0];
+        float[] mean = new float[0];
+        int[] count = new int[0];
+
+        public int size() {
+            return size;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (startMillis.length < capacity) {
+                startMillis = Arrays.copyOf(startMillis, capacity);
+                min = Arrays.copyOf(min, capacity);
+                max = Arrays.copyOf(max, capacity);
+                mean = Arrays.copyOf(mean, capacity);
+                count = Arrays.copyOf(count, capacity);
+            }
+        }
+    }
+
+    /**
+     * The buckets of one duration that received a face, in time order. The values of the bucket stored in slot s and
+     * metric m are at index (s % CHUNK_BUCKETS) * metricCount + m of chunk s / CHUNK_BUCKETS, and its bucket number,
+     * counted from the start of the session, at index s % CHUNK_BUCKETS of the same chunk of numberChunks.
+     */
+    private static class Tier {
+        final long bucketMillis;
+        final int metricCount;
+        final ArrayList<long[]> numberChunks = new ArrayList<>();
+        final ArrayList<float[]> minChunks = new ArrayList<>();
+        final ArrayList<float[]> maxChunks = new ArrayList<>();
+        final ArrayList<double[]> sumChunks = new ArrayList<>();
+        final ArrayList<int[]> countChunks = new ArrayList<>();
+        int slotCount = 0;
+
+        Tier(long bucketMillis, int metricCount) {
+            this.bucketMillis = bucketMillis;
+            this.metricCount = metricCount;
+        }
+
+        long getNumber(int slot) {
+            return numberChunks.get(slot / CHUNK_BUCKETS)[slot % CHUNK_BUCKETS];
+        }
+
+        //returns the slot of bucket, storing a new empty bucket after the others if it is not the last one stored
+        int slotOf(long bucket) {
+            if (slotCount > 0 && getNumber(slotCount - 1) == bucket) {
+                return slotCount - 1;
+            }
+            if (slotCount % CHUNK_BUCKETS == 0) {
+                numberChunks.add(new long[CHUNK_BUCKETS]);
+                minChunks.add(new float[CHUNK_BUCKETS * metricCount]);
+                maxChunks.add(new float[CHUNK_BUCKETS * metricCount]);
+                sumChunks.add(new double[CHUNK_BUCKETS * metricCount]);
+                countChunks.add(new int[CHUNK_BUCKETS * metricCount]);
+            }
+            numberChunks.get(slotCount / CHUNK_BUCKETS)[slotCount % CHUNK_BUCKETS] = bucket;
+            return slotCount++;
+        }
+
+        //returns the first slot whose bucket number is at least bucket, or slotCount if there is none
+        int findSlot(long bucket) {
+            int low = 0;
+            int high = slotCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getNumber(middle) < bucket) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        void add(int slot, int metric, float score) {
+            int index = (slot % CHUNK_BUCKETS) * metricCount + metric;
+            int chunk = slot / CHUNK_BUCKETS;
+            float[] mins = minChunks.get(chunk);
+            float[] maxs = maxChunks.get(chunk);
+            int[] counts = countChunks.get(chunk);
+            if (counts[index] == 0) {
+                mins[index] = score;
+                maxs[index] = score;
+            } else {
+                mins[index] = Math.min(mins[index], score);
+                maxs[index] = Math.max(maxs[index], score);
+            }
+            sumChunks.get(chunk)[index] += score;
+            counts[index]++;
+        }
+
+        void clear() {
+            numberChunks.clear();
+            minChunks.clear();
+            maxChunks.clear();
+            sumChunks.clear();
+            countChunks.clear();
+            slotCount = 0;
+        }
+    }
+
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+    private final Tier[] tiers = new Tier[TIER_MILLIS.length];
+    private final int[] slots = new int[TIER_MILLIS.length]; //the slot of the current frame in each tier
+    private long originMillis = -1; //start of bucket 0 of every tier, -1 before the first score
+    private long lastMillis = -1; //the time of the latest scores added
+
+    public MetricHistory() {
+        for (int n = 0; n < tiers.length; n++) {
+            tiers[n] = new Tier(TIER_MILLIS[n], metrics.length);
+        }
+    }
+
+    /**
+     * Add the scores of a face found at timeMillis, which is a monotonic time such as SystemClock.elapsedRealtime(),
+     * one per metric in the order of MetricsManager.getAllMetrics(). Scores earlier than the latest ones added are ignored, and NaN scores of metrics that are not detected are not
+     * counted.
+     */
+    public void add(@NonNull float[] scores, long timeMillis) {
+        if (originMillis < 0) {
+            //align the session to a whole minute, so the buckets of every tier line up
+            originMillis = timeMillis - timeMillis % TIER_MILLIS[TIER_MILLIS.length - 1];
+        } else if (timeMillis < lastMillis) {
+            return;
+        }
+        lastMillis = timeMillis;
+
+        long elapsed = timeMillis - originMillis;
+        for (int t = 0; t < tiers.length; t++) {
+            slots[t] = tiers[t].slotOf(elapsed / tiers[t].bucketMillis);
+        }
+        for (int m = 0; m < metrics.length; m++) {
+            float score = scores[m];
+            if (Float.isNaN(score)) {
+                continue;
+            }
+            for (int t = 0; t < tiers.length; t++) {
+                tiers[t].add(slots[t], m, score);
+            }
+        }
+    }
+
+    /**
+     * Get the buckets of metric between fromMillis and toMillis, from the finest tier that has at most maxPoints
+     * buckets in that range, or from the coarsest tier if none has. Buckets in which no face was found are left out,
+     * and buckets in which the metric was not detected have a count of 0 and NaN values. Returns the number of
+     * buckets, which are also in rollups.
+     */
+    public int query(@NonNull MetricsManager.Metrics metric, long fromMillis, long toMillis, int maxPoints, @NonNull Rollups rollups) {
+        rollups.size = 0;
+        if (originMillis < 0 || toMillis < fromMillis) {
+            return 0;
+        }
+
+        Tier tier = tiers[tiers.length - 1];
+        for (Tier candidate : tiers) {
+            if ((toMillis - fromMillis) / candidate.bucketMillis + 1 <= maxPoints) {
+                tier = candidate;
+                break;
+            }
+        }
+        rollups.bucketMillis = tier.bucketMillis;
+
+        int first = tier.findSlot(floorDiv(fromMillis - originMillis, tier.bucketMillis));
+        int last = tier.findSlot(floorDiv(toMillis - originMillis, tier.bucketMillis) + 1) - 1;
+        if (last < first) {
+            return 0;
+        }
+
+        int metricIndex = MetricsManager.getIndex(metric);
+        rollups.ensureCapacity(last - first + 1);
+        for (int slot = first; slot <= last; slot++) {
+            int index = (slot % CHUNK_BUCKETS) * tier.metricCount + metricIndex;
+            int chunk = slot / CHUNK_BUCKETS;
+            int count = tier.countChunks.get(chunk)[index];
+            int n = rollups.size++;
+            rollups.startMillis[n] = originMillis + tier.getNumber(slot) * tier.bucketMillis;
+            rollups.count[n] = count;
+            if (count == 0) {
+                rollups.min[n] = Float.NaN;
+                rollups.max[n] = Float.NaN;
+                rollups.mean[n] = Float.NaN;
+            } else {
+                rollups.min[n] = tier.minChunks.get(chunk)[index];
+                rollups.max[n] = tier.maxChunks.get(chunk)[index];
+                rollups.mean[n] = (float) (tier.sumChunks.get(chunk)[index] / count);
+            }
+        }
+        return rollups.size;
+    }
+
+    /**
+     * Returns the start of the session, or -1 if no scores were added.
+     */
+    public long getStartMillis() {
+        return originMillis;
+    }
+
+    public void clear() {
+        for (Tier tier : tiers) {
+            tier.clear();
+        }
+        originMillis = -1;
+        lastMillis = -1;
+    }
+
+    //Math.floorDiv() needs API 24
+    private static long floorDiv(long x, long y) {
+        long quotient = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+}
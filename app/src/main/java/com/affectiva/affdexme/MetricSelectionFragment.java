@@ -15,7 +15,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Surface;
@@ -29,8 +28,6 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 
-import static com.affectiva.affdexme.MainActivity.NUM_METRICS_DISPLAYED;
-
 /**
  * A fragment to display a graphical menu which allows the user to select which metrics to display.
  */
@@ -40,9 +37,6 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
 
     int numberOfSelectedItems = 0;
 
-    int messageAtOrUnderLimitColor;
-    int messageOverLimitColor;
-
     SharedPreferences sharedPreferences;
 
     TextView metricChooserTextView;
@@ -89,9 +83,6 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
                     }
                 }
         );
-
-        messageAtOrUnderLimitColor = ContextCompat.getColor(getActivity(), R.color.white);
-        messageOverLimitColor = ContextCompat.getColor(getActivity(), R.color.red);
     }
 
 
@@ -120,8 +111,7 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
             }
 
         } else { //otherwise, we pull the data from application preferences
-            for (int i = 0; i < NUM_METRICS_DISPLAYED; i++) {
-                MetricsManager.Metrics chosenMetric = PreferencesUtils.getMetricFromPrefs(sharedPreferences, i);
+            for (MetricsManager.Metrics chosenMetric : PreferencesUtils.getSelectedMetrics(sharedPreferences)) {
                 selectItem(metricSelectors.get(chosenMetric), true, false);
             }
         }
@@ -156,8 +146,7 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
         saveSettings();
     }
 
-    /* Our goal in this method is to ensure that 6 and only 6 metrics are saved in Preferences. We attempt to fill all 6 slots
-    with metrics chosen by the user, but if the user did not choose 6 slots, we fill the remaining slots with any other metrics.
+    /* Save the chosen metrics, in the order they appear in the grid. If none are chosen, the defaults are displayed.
      */
     void saveSettings() {
 
@@ -167,29 +156,12 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
         for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
             if (metricSelectors.get(metric).getIsSelected()) {
                 selectedMetrics.add(metric);
-                if (selectedMetrics.size() >= NUM_METRICS_DISPLAYED) {
-                    break;
-                }
-            }
-        }
-
-        //fill remaining empty slots
-        if (selectedMetrics.size() < NUM_METRICS_DISPLAYED) {
-            for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
-                if (!selectedMetrics.contains(metric)) {
-                    selectedMetrics.add(metric);
-                    if (selectedMetrics.size() >= NUM_METRICS_DISPLAYED) {
-                        break;
-                    }
-                }
             }
         }
 
         //save list into application preferences
         SharedPreferences.Editor editor = sharedPreferences.edit();
-        for (int n = 0; n < selectedMetrics.size(); n++) {
-            PreferencesUtils.saveMetricToPrefs(editor, n, selectedMetrics.get(n));
-        }
+        PreferencesUtils.saveSelectedMetrics(editor, selectedMetrics);
         editor.commit();
     }
 
@@ -282,7 +254,7 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
     public void onClick(View v) {
         MetricSelector item = (MetricSelector) v;
         selectItem(item, !item.getIsSelected(), true); //select item if de-selected, and vice-versa
-        updateAllGridItems(); //each click will result in all items being updated
+        item.updateBackground();
     }
 
     /* Updates numberOfSelectedItems as well as the message presented by the text at the top of the activity
@@ -310,12 +282,6 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
         } else {
             metricChooserTextView.setText(String.format("%d metrics chosen.", numberOfSelectedItems));
         }
-
-        if (numberOfSelectedItems <= NUM_METRICS_DISPLAYED) {
-            metricChooserTextView.setTextColor(messageAtOrUnderLimitColor);
-        } else {
-            metricChooserTextView.setTextColor(messageOverLimitColor);
-        }
     }
 
     void clearItems() {
@@ -325,10 +291,10 @@ public class MetricSelectionFragment extends Fragment implements View.OnClickLis
         updateAllGridItems();
     }
 
-    //loop through all grid items, and update those which are tagged with an Integer (those which represent selectable metrics).
+    //every metric can be displayed at once, so the background of an item only shows whether it is selected
     void updateAllGridItems() {
         for (MetricsManager.Metrics metric : MetricsManager.getAllMetrics()) {
-            metricSelectors.get(metric).setUnderOrOverLimit(numberOfSelectedItems <= NUM_METRICS_DISPLAYED);
+            metricSelectors.get(metric).updateBackground();
         }
     }
 
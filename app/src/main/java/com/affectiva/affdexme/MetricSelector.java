@@ -36,7 +36,6 @@ public class MetricSelector extends FrameLayout {
     RelativeLayout backgroundLayout;
     int itemNotSelectedColor;
     int itemSelectedColor;
-    int itemSelectedOverLimitColor;
     Uri[] videoResourceURIs;
     int videoResourceURIIndex;
     TextView videoOverlay;
@@ -109,7 +108,6 @@ public class MetricSelector extends FrameLayout {
         gridItemTextView = (TextView) content.findViewById(R.id.grid_item_text);
         gridItemTextView.setText(MetricsManager.getCapitalizedName(metric));
 
-        itemSelectedOverLimitColor = ContextCompat.getColor(getContext(), R.color.grid_item_chosen_over_limit);
         itemNotSelectedColor = ContextCompat.getColor(getContext(), R.color.grid_item_not_chosen);
         itemSelectedColor = ContextCompat.getColor(getContext(), R.color.grid_item_chosen);
     }
@@ -187,20 +185,11 @@ public class MetricSelector extends FrameLayout {
     }
 
     /**
-     * Changes the appearance of the grid item to indicate whether too many metrics have been selected
+     * Changes the appearance of the grid item to indicate whether it is selected
      */
-    void setUnderOrOverLimit(boolean atOrUnderLimit) {
-        if (isMetricSelected) {
-            if (atOrUnderLimit) {
-                gridItemTextView.setBackgroundColor(itemSelectedColor);
-                backgroundLayout.setBackgroundColor(itemSelectedColor);
-            } else {
-                gridItemTextView.setBackgroundColor(itemSelectedOverLimitColor);
-                backgroundLayout.setBackgroundColor(itemSelectedOverLimitColor);
-            }
-        } else {
-            gridItemTextView.setBackgroundColor(itemNotSelectedColor);
-            backgroundLayout.setBackgroundColor(itemNotSelectedColor);
-        }
+    void updateBackground() {
+        int color = isMetricSelected ? itemSelectedColor : itemNotSelectedColor;
+        gridItemTextView.setBackgroundColor(color);
+        backgroundLayout.setBackgroundColor(color);
     }
 }
@@ -0,0 +1,452 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Streams every face of every processed frame to CSV or NDJSON files: the detector timestamp, the index of the face
+ * in the frame, its id, appearance and dominant emoji, and the score of every metric being detected. Metrics that
+ * are not detected have an empty CSV field and no NDJSON key.
+ * Exporting a frame only copies its faces into a ring of pooled FaceData, so the results path never touches the
+ * disk. A writer thread drains the ring in batches, serializing by hand into a reused CharBuffer, which is encoded
+ * into a reused ByteBuffer and written with a FileChannel. The ring is bounded: if the writer falls behind until the
+ * ring is full, faces are dropped and counted rather than slowing down detection.
+ * A new file is started for each session and whenever the current one reaches MAX_FILE_BYTES, and only the
+ * MAX_FILES most recent files are kept.
+ */
+public class MetricsExporter {
+
+    public enum Format {
+        CSV(".csv"),
+        NDJSON(".ndjson");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    static final int RECORD_CAPACITY = 256;
+    static final int BATCH_RECORDS = 32; //the writer wakes up when this many faces are waiting...
+    static final long BATCH_MILLIS = 200; //...or after this long
+    static final long MAX_FILE_BYTES = 8 * 1024 * 1024;
+    static final int MAX_FILES = 20;
+    static final String FILE_PREFIX = "metrics_";
+    private static final int CHAR_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_CHARS = 4 * 1024; //longer than any line, so a line always fits once the buffer is flushed
+    private final static String LOG_TAG = "AffdexMe";
+
+    //the lower case names of enum values, cached since Enum.name().toLowerCase() allocates
+    private static final String[] GENDER_NAMES = getLowerCaseNames(Face.GENDER.values());
+    private static final String[] GLASSES_NAMES = getLowerCaseNames(Face.GLASSES.values());
+    private static final String[] EMOJI_NAMES = getLowerCaseNames(Face.EMOJI.values());
+
+    private final File directory;
+    private final Format format;
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+    private final String[] metricKeys = new String[metrics.length];
+
+    //the ring of faces waiting to be written, guarded by lock. Slots from head to head + count are waiting.
+    private final Object lock = new Object();
+    private final FaceData[] faces = new FaceData[RECORD_CAPACITY];
+    private final float[] timestamps = new float[RECORD_CAPACITY];
+    private final int[] faceIndexes = new int[RECORD_CAPACITY];
+    private final int[] generations = new int[RECORD_CAPACITY]; //the start a face was exported after, which picks its file
+    private int head = 0;
+    private int count = 0;
+    private boolean isRunning = false;
+    private int generation = 0; //counts the starts, so the writer of a stopped exporter ends even if it was started again
+    private int droppedRecords = 0;
+    private int writtenRecords = 0;
+    private Thread writerThread; //the latest writer thread, which may still be writing after stop()
+    private volatile PipelineStage stage; //the stage the writer thread belongs to and is joined on, or null
+
+    //used by the writer thread only
+    private final CharBuffer chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(CHAR_BUFFER_SIZE);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private FileOutputStream output;
+    private FileChannel channel;
+    private String sessionName;
+    private int fileNumber;
+    private long fileBytes;
+
+    public MetricsExporter(@NonNull File directory, @NonNull Format format) {
+        this.directory = directory;
+        this.format = format;
+        for (int n = 0; n < metrics.length; n++) {
+            //emojis and expressions share some names, such as SMIRK
+            String prefix = metrics[n].getType() == MetricsManager.MetricType.Emoji ? "emoji_" : "";
+            metricKeys[n] = prefix + MetricsManager.getLowerCaseName(metrics[n]);
+        }
+        for (int n = 0; n < RECORD_CAPACITY; n++) {
+            faces[n] = new FaceData();
+        }
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Run the writer thread at the priority of stage, report each batch it writes to it, and join it on the stage's
+     * thread when stopped. Takes effect the next time the writer thread is started.
+     */
+    public void setPipelineStage(PipelineStage stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Start the writer thread, which writes to a new file. If the exporter was stopped and its previous writer is still
+     * writing, the new one waits for it to close its file first.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (isRunning) {
+                return;
+            }
+            isRunning = true;
+            final int writerGeneration = ++generation;
+            final Thread previousWriter = writerThread;
+            final String name = FILE_PREFIX + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    join(previousWriter); //the file fields belong to one writer at a time
+                    sessionName = name;
+                    fileNumber = 0;
+                    writeRecords(writerGeneration);
+                }
+            }, "MetricsExporter");
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Stop taking faces. The writer thread writes the faces still waiting, closes the file and ends. With a pipeline
+     * stage set it is joined on the stage's thread, so the caller does not wait for the disk; without one it is
+     * joined before returning.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (lock) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+            lock.notify();
+            thread = writerThread;
+        }
+        PipelineStage writerStage = stage;
+        boolean isPosted = writerStage != null && writerStage.post(new Runnable() {
+            @Override
+            public void run() {
+                join(thread);
+            }
+        });
+        if (!isPosted) {
+            join(thread);
+        }
+    }
+
+    /**
+     * Queue the first faceCount faces of a processed frame. Returns the number of faces dropped because the writer
+     * is not running or has fallen behind.
+     */
+    public int export(@NonNull FaceData[] frameFaces, int faceCount, float timestamp) {
+        int dropped = 0;
+        synchronized (lock) {
+            for (int n = 0; n < faceCount; n++) {
+                if (!isRunning || count == RECORD_CAPACITY) {
+                    dropped++;
+                    continue;
+                }
+                int slot = (head + count) % RECORD_CAPACITY;
+                faces[slot].set(frameFaces[n]);
+                timestamps[slot] = timestamp;
+                faceIndexes[slot] = n;
+                generations[slot] = generation;
+                count++;
+                if (count == BATCH_RECORDS) {
+                    lock.notify();
+                }
+            }
+            droppedRecords += dropped;
+        }
+        return dropped;
+    }
+
+    public int getDroppedRecords() {
+        synchronized (lock) {
+            return droppedRecords;
+        }
+    }
+
+    public int getWrittenRecords() {
+        synchronized (lock) {
+            return writtenRecords;
+        }
+    }
+
+    private void writeRecords(int writerGeneration) {
+        PipelineStage writerStage = stage;
+        if (writerStage != null) {
+            writerStage.joinCurrentThread();
+        }
+        try {
+            openNextFile();
+            while (true) {
+                int first;
+                int batch;
+                boolean isLastBatch;
+                synchronized (lock) {
+                    if (isRunning && generation == writerGeneration && count < BATCH_RECORDS) {
+                        try {
+                            lock.wait(BATCH_MILLIS);
+                        } catch (InterruptedException e) {
+                            isRunning = false;
+                        }
+                    }
+                    //the slots being written are not reused until head moves past them. Faces exported after the
+                    //exporter was started again are left to the next writer, which writes them to its own file.
+                    first = head;
+                    batch = 0;
+                    while (batch < count && generations[(first + batch) % RECORD_CAPACITY] <= writerGeneration) {
+                        batch++;
+                    }
+                    isLastBatch = !isRunning || generation != writerGeneration;
+                }
+
+                long batchStart = System.nanoTime();
+                for (int n = 0; n < batch; n++) {
+                    int slot = (first + n) % RECORD_CAPACITY;
+                    if (chars.remaining() < MAX_RECORD_CHARS) {
+                        flush();
+                    }
+                    if (format == Format.CSV) {
+                        appendCsv(faces[slot], timestamps[slot], faceIndexes[slot]);
+                    } else {
+                        appendJson(faces[slot], timestamps[slot], faceIndexes[slot]);
+                    }
+                }
+                flush();
+
+                if (batch > 0) {
+                    int backlog;
+                    synchronized (lock) {
+                        head = (head + batch) % RECORD_CAPACITY;
+                        count -= batch;
+                        writtenRecords += batch;
+                        backlog = count;
+                    }
+                    if (writerStage != null) {
+                        writerStage.record(System.nanoTime() - batchStart);
+                        writerStage.reportQueueDepth(backlog);
+                    }
+                }
+                if (isLastBatch) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to export metrics", e);
+            synchronized (lock) {
+                if (generation == writerGeneration) { //otherwise the faces left are the next writer's
+                    isRunning = false;
+                    count = 0;
+                }
+            }
+        } finally {
+            closeFile();
+        }
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void appendCsv(FaceData face, float timestamp, int faceIndex) {
+        appendNumber(timestamp, 3);
+        chars.put(',');
+        appendNumber(faceIndex, 0);
+        chars.put(',');
+        appendNumber(face.getId(), 0);
+        chars.put(',');
+        chars.put(getName(face.getGender()));
+        chars.put(',');
+        chars.put(getName(face.getGlasses()));
+        chars.put(',');
+        chars.put(getName(face.getDominantEmoji()));
+        float[] scores = face.getScores();
+        for (float score : scores) {
+            chars.put(',');
+            if (!Float.isNaN(score)) {
+                appendNumber(score, 2);
+            }
+        }
+        chars.put('\n');
+    }
+
+    private void appendJson(FaceData face, float timestamp, int faceIndex) {
+        chars.put("{\"timestamp\":");
+        appendNumber(timestamp, 3);
+        chars.put(",\"face\":");
+        appendNumber(faceIndex, 0);
+        chars.put(",\"id\":");
+        appendNumber(face.getId(), 0);
+        chars.put(",\"gender\":\"");
+        chars.put(getName(face.getGender()));
+        chars.put("\",\"glasses\":\"");
+        chars.put(getName(face.getGlasses()));
+        chars.put("\",\"emoji\":\"");
+        chars.put(getName(face.getDominantEmoji()));
+        chars.put("\",\"scores\":{");
+        float[] scores = face.getScores();
+        boolean isFirst = true;
+        for (int n = 0; n < scores.length; n++) {
+            if (Float.isNaN(scores[n])) {
+                continue;
+            }
+            if (!isFirst) {
+                chars.put(',');
+            }
+            isFirst = false;
+            chars.put('"');
+            chars.put(metricKeys[n]);
+            chars.put("\":");
+            appendNumber(scores[n], 2);
+        }
+        chars.put("}}\n");
+    }
+
+    private void appendNumber(double value, int decimals) {
+        int end = ScoreText.appendFixed(chars.array(), chars.arrayOffset() + chars.position(), value, decimals);
+        chars.position(end - chars.arrayOffset());
+    }
+
+    private static String[] getLowerCaseNames(Enum<?>[] values) {
+        String[] names = new String[values.length];
+        for (int n = 0; n < values.length; n++) {
+            names[n] = values[n].name().toLowerCase(Locale.US);
+        }
+        return names;
+    }
+
+    private static String getName(Face.GENDER gender) {
+        return gender == null ? "" : GENDER_NAMES[gender.ordinal()];
+    }
+
+    private static String getName(Face.GLASSES glasses) {
+        return glasses == null ? "" : GLASSES_NAMES[glasses.ordinal()];
+    }
+
+    private static String getName(Face.EMOJI emoji) {
+        return emoji == null ? "" : EMOJI_NAMES[emoji.ordinal()];
+    }
+
+    /**
+     * Encode the characters written so far and write them to the file, starting a new file if it got too large.
+     */
+    private void flush() throws IOException {
+        chars.flip();
+        while (chars.hasRemaining()) {
+            encoder.encode(chars, bytes, false);
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                fileBytes += channel.write(bytes);
+            }
+            bytes.clear();
+        }
+        chars.clear();
+
+        if (fileBytes >= MAX_FILE_BYTES) {
+            closeFile();
+            openNextFile();
+        }
+    }
+
+    private void openNextFile() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        //the names sort by time, and an existing file is never truncated, even if sessions start in the same millisecond
+        File file;
+        do {
+            fileNumber++;
+            file = new File(directory, String.format(Locale.US, "%s_%03d%s", sessionName, fileNumber, format.extension));
+        } while (file.exists());
+        output = new FileOutputStream(file);
+        channel = output.getChannel();
+        fileBytes = 0;
+        deleteOldFiles();
+
+        if (format == Format.CSV) {
+            chars.put("timestamp,face,id,gender,glasses,emoji");
+            for (String key : metricKeys) {
+                chars.put(',');
+                chars.put(key);
+            }
+            chars.put('\n');
+        }
+    }
+
+    private void closeFile() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to close metrics export", e);
+            }
+            output = null;
+            channel = null;
+        }
+    }
+
+    //file names start with the time of their session, so they sort from oldest to newest
+    private void deleteOldFiles() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        Arrays.sort(names);
+        int exportFiles = 0;
+        for (String name : names) {
+            if (name.startsWith(FILE_PREFIX)) {
+                exportFiles++;
+            }
+        }
+        for (int n = 0; n < names.length && exportFiles > MAX_FILES; n++) {
+            if (names[n].startsWith(FILE_PREFIX) && new File(directory, names[n]).delete()) {
+                exportFiles--;
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@ import java.util.Locale;
 public class MetricsManager {
 
     private static Metrics[] allMetrics;
+    private static int numEmotions;
+    private static int numExpressions;
 
     static {
         Emotions[] emotions = Emotions.values();
@@ -27,12 +29,135 @@ public class MetricsManager {
         System.arraycopy(emotions, 0, allMetrics, 0, emotions.length);
         System.arraycopy(expressions, 0, allMetrics, emotions.length, expressions.length);
         System.arraycopy(emojis, 0, allMetrics, emotions.length + expressions.length, emojis.length);
+        numEmotions = emotions.length;
+        numExpressions = expressions.length;
     }
 
     static Metrics[] getAllMetrics() {
         return allMetrics;
     }
 
+    //Used to index arrays holding one value per metric, in the same order as getAllMetrics()
+    static int getIndex(Metrics metric) {
+        switch (metric.getType()) {
+            case Emotion:
+                return ((Emotions) metric).ordinal();
+            case Expression:
+                return numEmotions + ((Expressions) metric).ordinal();
+            default:
+                return numEmotions + numExpressions + ((Emojis) metric).ordinal();
+        }
+    }
+
+    /**
+     * Returns the score of a metric for a face.
+     * Unlike the reflection used by MainActivity.activateMetric(), this is cheap enough to call for
+     * every metric on every processed frame.
+     */
+    static float getScore(Metrics metric, Face face) {
+        switch (metric.getType()) {
+            case Emotion:
+                return getEmotionScore((Emotions) metric, face.emotions);
+            case Expression:
+                return getExpressionScore((Expressions) metric, face.expressions);
+            default:
+                return getEmojiScore((Emojis) metric, face.emojis);
+        }
+    }
+
+    private static float getEmotionScore(Emotions emotion, Face.Emotions scores) {
+        switch (emotion) {
+            case ANGER:
+                return scores.getAnger();
+            case DISGUST:
+                return scores.getDisgust();
+            case FEAR:
+                return scores.getFear();
+            case JOY:
+                return scores.getJoy();
+            case SADNESS:
+                return scores.getSadness();
+            case SURPRISE:
+                return scores.getSurprise();
+            case CONTEMPT:
+                return scores.getContempt();
+            case ENGAGEMENT:
+                return scores.getEngagement();
+            case VALENCE:
+                return scores.getValence();
+            default:
+                return Float.NaN;
+        }
+    }
+
+    private static float getExpressionScore(Expressions expression, Face.Expressions scores) {
+        switch (expression) {
+            case ATTENTION:
+                return scores.getAttention();
+            case BROW_FURROW:
+                return scores.getBrowFurrow();
+            case BROW_RAISE:
+                return scores.getBrowRaise();
+            case CHIN_RAISE:
+                return scores.getChinRaise();
+            case EYE_CLOSURE:
+                return scores.getEyeClosure();
+            case INNER_BROW_RAISE:
+                return scores.getInnerBrowRaise();
+            case LIP_CORNER_DEPRESSOR:
+                return scores.getLipCornerDepressor();
+            case LIP_PRESS:
+                return scores.getLipPress();
+            case LIP_PUCKER:
+                return scores.getLipPucker();
+            case LIP_SUCK:
+                return scores.getLipSuck();
+            case MOUTH_OPEN:
+                return scores.getMouthOpen();
+            case NOSE_WRINKLE:
+                return scores.getNoseWrinkle();
+            case SMILE:
+                return scores.getSmile();
+            case SMIRK:
+                return scores.getSmirk();
+            case UPPER_LIP_RAISE:
+                return scores.getUpperLipRaise();
+            default:
+                return Float.NaN;
+        }
+    }
+
+    private static float getEmojiScore(Emojis emoji, Face.Emojis scores) {
+        switch (emoji) {
+            case RELAXED:
+                return scores.getRelaxed();
+            case SMILEY:
+                return scores.getSmiley();
+            case LAUGHING:
+                return scores.getLaughing();
+            case KISSING:
+                return scores.getKissing();
+            case DISAPPOINTED:
+                return scores.getDisappointed();
+            case RAGE:
+                return scores.getRage();
+            case SMIRK:
+                return scores.getSmirk();
+            case WINK:
+                return scores.getWink();
+            case STUCK_OUT_TONGUE_WINKING_EYE:
+                return scores.getStuckOutTongueWinkingEye();
+            case STUCK_OUT_TONGUE:
+                return scores.getStuckOutTongue();
+            case FLUSHED:
+                return scores.getFlushed();
+            case SCREAM:
+                return scores.getScream();
+            default:
+                return Float.NaN;
+        }
+    }
+
     //Used for displays
     static String getUpperCaseName(Metrics metric) {
         if (metric == Expressions.LIP_CORNER_DEPRESSOR) {
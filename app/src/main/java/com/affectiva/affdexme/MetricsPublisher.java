@@ -0,0 +1,378 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the faces of every processed frame with other apps through shared memory, for MetricsService.
+ * <p>
+ * Frames are written to a ring of fixed size slots in a memory mapped file, which subscribers map read only from a
+ * ParcelFileDescriptor they receive once, when they subscribe. After that, each subscriber is sent a small message
+ * per batch, naming the sequence numbers of the frames it has not seen yet, every batchFrames frames or batchMillis
+ * milliseconds, whichever comes first. The scores are never copied into a Parcel.
+ * <p>
+ * The file starts with a header of HEADER_BYTES: int MAGIC, int VERSION, int slot count, int slot size, int metric
+ * count, int MAX_FACES, then long the sequence of the next frame to be written. Frame n is in slot n % slot count:
+ * long sequence, float timestamp, long SystemClock.elapsedRealtime() when written, int face count, int checksum,
+ * then for each of MAX_FACES faces: int id, int dominant emoji (the ordinal of Face.EMOJI) and a float score per
+ * metric of MetricsManager.getAllMetrics(), NaN when not detected. Everything is in network byte order.
+ * The sequence of a slot is set to -1 while the slot is written, and the checksum is written last: the
+ * updateChecksum() of the sequence, timestamp, write time and face count as ints, high half first for longs and raw
+ * bits for floats, followed by the id, emoji and scores of each face written. Nothing orders the stores to a mapping
+ * as another process sees them, so a reader only keeps a frame if its sequence is the expected one both before and
+ * after reading it and the checksum of what it read matches; otherwise the frame was being overwritten, and is
+ * dropped. A subscriber that falls more than a ring behind loses the oldest frames.
+ * <p>
+ * Subscribers reply to each batch with MSG_ACK, which the delivery latency shown in the FPS overlay is measured
+ * with: the time from each frame being written to its batch being acknowledged.
+ */
+public class MetricsPublisher {
+
+    static final int MAGIC = 0x41464D52; //"AFMR"
+    static final int VERSION = 2;
+    static final int RING_FRAMES = 256; //about 8 seconds at 30 FPS
+    static final int MAX_FACES = 4;
+    static final int HEADER_BYTES = 32;
+    static final int WRITE_SEQUENCE_OFFSET = 24;
+    static final int CHECKSUM_OFFSET = 8 + 4 + 8 + 4; //in a slot
+    static final int FRAME_HEADER_BYTES = CHECKSUM_OFFSET + 4;
+    static final int CHECKSUM_START = 0x811C9DC5; //the FNV-1a offset basis
+    static final String RING_FILE_NAME = "metrics.ring";
+
+    //messages from subscribers
+    static final int MSG_SUBSCRIBE = 1; //arg1 batch frames, arg2 batch milliseconds, replyTo the subscriber
+    static final int MSG_UNSUBSCRIBE = 2;
+    static final int MSG_ACK = 3; //KEY_FIRST_SEQUENCE and KEY_LAST_SEQUENCE of the batch
+    //messages to subscribers
+    static final int MSG_SUBSCRIBED = 101; //KEY_RING the ring file, KEY_NEXT_SEQUENCE the first frame they will get
+    static final int MSG_BATCH = 102; //KEY_FIRST_SEQUENCE and KEY_LAST_SEQUENCE
+    //internal
+    private static final int MSG_FRAME_WRITTEN = 201;
+    private static final int MSG_FLUSH = 202;
+
+    static final String KEY_RING = "ring";
+    static final String KEY_NEXT_SEQUENCE = "next_sequence";
+    static final String KEY_FIRST_SEQUENCE = "first_sequence";
+    static final String KEY_LAST_SEQUENCE = "last_sequence";
+
+    static final int MAX_BATCH_MILLIS = 10000;
+    private static final float LATENCY_SMOOTHING = 0.1f; //weight of each batch in the average latency
+    private final static String LOG_TAG = "AffdexMe";
+
+    private static MetricsPublisher instance;
+
+    private final File ringFile;
+    private final MappedByteBuffer ring;
+    private final int metricCount = MetricsManager.getAllMetrics().length;
+    private final int slotBytes;
+    private final long[] writeMillis = new long[RING_FRAMES]; //a copy of each slot's write time, for the latency
+    private long writeSequence = 0; //written on the thread calling publish() only
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    //guarded by handler's thread, except for the volatile counts read by the UI
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private volatile int subscriberCount = 0;
+    private volatile float latencyMillis = Float.NaN;
+    private volatile long publishedSequence = 0; //frames before this one are complete in the ring
+
+    private static class Subscriber {
+        final Messenger messenger;
+        final int batchFrames;
+        final int batchMillis;
+        long nextSequence; //the first frame not delivered yet
+        long lastDeliveryMillis;
+        boolean isFlushScheduled = false;
+
+        Subscriber(Messenger messenger, int batchFrames, int batchMillis, long nextSequence) {
+            this.messenger = messenger;
+            this.batchFrames = batchFrames;
+            this.batchMillis = batchMillis;
+            this.nextSequence = nextSequence;
+            lastDeliveryMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Returns the publisher of this process, creating its ring file on first use.
+     */
+    static synchronized MetricsPublisher getInstance(@NonNull Context context) throws IOException {
+        if (instance == null) {
+            instance = new MetricsPublisher(new File(context.getApplicationContext().getCacheDir(), RING_FILE_NAME));
+        }
+        return instance;
+    }
+
+    MetricsPublisher(@NonNull File ringFile) throws IOException {
+        this.ringFile = ringFile;
+        slotBytes = getSlotBytes(metricCount);
+        RandomAccessFile file = new RandomAccessFile(ringFile, "rw");
+        try {
+            long size = HEADER_BYTES + (long) RING_FRAMES * slotBytes;
+            file.setLength(size);
+            ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close(); //the mapping stays valid
+        }
+        ring.putInt(0, MAGIC);
+        ring.putInt(4, VERSION);
+        ring.putInt(8, RING_FRAMES);
+        ring.putInt(12, slotBytes);
+        ring.putInt(16, metricCount);
+        ring.putInt(20, MAX_FACES);
+        ring.putLong(WRITE_SEQUENCE_OFFSET, 0);
+        for (int slot = 0; slot < RING_FRAMES; slot++) {
+            ring.putLong(getSlotOffset(slot), -1);
+        }
+
+        thread = new HandlerThread("MetricsPublisher");
+        thread.start();
+        handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+                return onMessage(message);
+            }
+        });
+    }
+
+    static int getSlotBytes(int metricCount) {
+        return FRAME_HEADER_BYTES + MAX_FACES * (4 + 4 + 4 * metricCount);
+    }
+
+    private int getSlotOffset(int slot) {
+        return HEADER_BYTES + slot * slotBytes;
+    }
+
+    /**
+     * Returns checksum updated with value, a step of FNV-1a over ints rather than bytes. The checksum of a frame
+     * starts at CHECKSUM_START.
+     */
+    static int updateChecksum(int checksum, int value) {
+        return (checksum ^ value) * 16777619;
+    }
+
+    /**
+     * Returns the handler of subscription messages, for a Messenger.
+     */
+    Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Returns whether anyone would receive a published frame, so callers can skip preparing frames nobody reads.
+     */
+    public boolean hasSubscribers() {
+        return subscriberCount > 0;
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount;
+    }
+
+    /**
+     * Returns the average time from a frame being written to its batch being acknowledged, or NaN if no batch has been.
+     */
+    public float getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Write the first faceCount faces of a frame, up to MAX_FACES, to the ring. This must always be called from the same thread.
+     */
+    public void publish(float timestamp, FaceData[] faces, int faceCount) {
+        int slot = (int) (writeSequence % RING_FRAMES);
+        int offset = getSlotOffset(slot);
+        long now = SystemClock.elapsedRealtime();
+        int count = Math.min(faceCount, MAX_FACES);
+
+        ring.putLong(offset, -1); //readers of this slot's previous frame will see it changed
+        ring.putFloat(offset + 8, timestamp);
+        ring.putLong(offset + 12, now);
+        ring.putInt(offset + 20, count);
+        int checksum = CHECKSUM_START;
+        checksum = updateChecksum(checksum, (int) (writeSequence >>> 32));
+        checksum = updateChecksum(checksum, (int) writeSequence);
+        checksum = updateChecksum(checksum, Float.floatToRawIntBits(timestamp));
+        checksum = updateChecksum(checksum, (int) (now >>> 32));
+        checksum = updateChecksum(checksum, (int) now);
+        checksum = updateChecksum(checksum, count);
+        int position = offset + FRAME_HEADER_BYTES;
+        for (int f = 0; f < count; f++) {
+            int id = faces[f].getId();
+            int emoji = faces[f].getDominantEmoji().ordinal();
+            ring.putInt(position, id);
+            ring.putInt(position + 4, emoji);
+            checksum = updateChecksum(updateChecksum(checksum, id), emoji);
+            position += 8;
+            float[] scores = faces[f].getScores();
+            for (int m = 0; m < metricCount; m++) {
+                ring.putFloat(position, scores[m]);
+                checksum = updateChecksum(checksum, Float.floatToRawIntBits(scores[m]));
+                position += 4;
+            }
+        }
+        ring.putLong(offset, writeSequence);
+        ring.putInt(offset + CHECKSUM_OFFSET, checksum);
+        writeMillis[slot] = now;
+        writeSequence++;
+        ring.putLong(WRITE_SEQUENCE_OFFSET, writeSequence);
+        publishedSequence = writeSequence;
+
+        if (subscriberCount > 0) {
+            handler.sendEmptyMessage(MSG_FRAME_WRITTEN);
+        }
+    }
+
+    /**
+     * Drop every subscriber and stop the delivery thread. The publisher can not be used afterwards.
+     */
+    void close() {
+        thread.quit();
+        synchronized (MetricsPublisher.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+    private boolean onMessage(Message message) {
+        switch (message.what) {
+            case MSG_SUBSCRIBE:
+                subscribe(message.replyTo, message.arg1, message.arg2);
+                return true;
+            case MSG_UNSUBSCRIBE:
+                unsubscribe(message.replyTo);
+                return true;
+            case MSG_ACK:
+                acknowledge(message.getData().getLong(KEY_FIRST_SEQUENCE, -1), message.getData().getLong(KEY_LAST_SEQUENCE, -1));
+                return true;
+            case MSG_FRAME_WRITTEN:
+            case MSG_FLUSH:
+                deliver(message.what == MSG_FLUSH);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void subscribe(Messenger messenger, int batchFrames, int batchMillis) {
+        if (messenger == null) {
+            return;
+        }
+        unsubscribe(messenger); //subscribing again changes the batch size
+        Subscriber subscriber = new Subscriber(messenger, Math.max(1, Math.min(RING_FRAMES / 2, batchFrames)),
+                Math.max(0, Math.min(MAX_BATCH_MILLIS, batchMillis)), publishedSequence);
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = ParcelFileDescriptor.open(ringFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            Message reply = Message.obtain(null, MSG_SUBSCRIBED);
+            Bundle data = new Bundle();
+            data.putParcelable(KEY_RING, descriptor);
+            data.putLong(KEY_NEXT_SEQUENCE, subscriber.nextSequence);
+            reply.setData(data);
+            messenger.send(reply);
+            subscribers.add(subscriber);
+            subscriberCount = subscribers.size();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to share the metrics ring", e);
+        } catch (RemoteException e) {
+            //the subscriber died already
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close(); //the subscriber has its own copy
+                } catch (IOException e) {
+                    //nothing else to release
+                }
+            }
+        }
+    }
+
+    private void unsubscribe(Messenger messenger) {
+        for (int n = subscribers.size() - 1; n >= 0; n--) {
+            if (subscribers.get(n).messenger.equals(messenger)) {
+                subscribers.remove(n);
+            }
+        }
+        subscriberCount = subscribers.size();
+    }
+
+    //send each subscriber whose batch is full or due its frames, and schedule a flush for those with frames left waiting
+    private void deliver(boolean isFlush) {
+        long written = publishedSequence;
+        long now = SystemClock.elapsedRealtime();
+        for (int n = subscribers.size() - 1; n >= 0; n--) {
+            Subscriber subscriber = subscribers.get(n);
+            if (isFlush) {
+                subscriber.isFlushScheduled = false;
+            }
+            //frames more than a ring behind have been overwritten
+            subscriber.nextSequence = Math.max(subscriber.nextSequence, written - RING_FRAMES);
+            long pending = written - subscriber.nextSequence;
+            if (pending == 0) {
+                continue;
+            }
+            long dueMillis = subscriber.lastDeliveryMillis + subscriber.batchMillis;
+            if (pending < subscriber.batchFrames && now < dueMillis) {
+                if (!subscriber.isFlushScheduled) {
+                    subscriber.isFlushScheduled = true;
+                    handler.sendEmptyMessageDelayed(MSG_FLUSH, dueMillis - now);
+                }
+                continue;
+            }
+
+            Message batch = Message.obtain(null, MSG_BATCH);
+            Bundle data = new Bundle();
+            data.putLong(KEY_FIRST_SEQUENCE, subscriber.nextSequence);
+            data.putLong(KEY_LAST_SEQUENCE, written - 1);
+            batch.setData(data);
+            try {
+                subscriber.messenger.send(batch);
+                subscriber.nextSequence = written;
+                subscriber.lastDeliveryMillis = now;
+            } catch (RemoteException e) {
+                subscribers.remove(n); //the subscriber's process died
+                subscriberCount = subscribers.size();
+            }
+        }
+    }
+
+    private void acknowledge(long firstSequence, long lastSequence) {
+        long written = publishedSequence;
+        if (firstSequence < 0 || lastSequence < firstSequence || lastSequence >= written) {
+            return;
+        }
+        //only frames still in the ring have a known write time
+        firstSequence = Math.max(firstSequence, written - RING_FRAMES);
+        long now = SystemClock.elapsedRealtime();
+        long total = 0;
+        for (long sequence = firstSequence; sequence <= lastSequence; sequence++) {
+            total += now - writeMillis[(int) (sequence % RING_FRAMES)];
+        }
+        float batchLatency = (float) total / (lastSequence - firstSequence + 1);
+        float previous = latencyMillis;
+        latencyMillis = Float.isNaN(previous) ? batchLatency : previous + LATENCY_SMOOTHING * (batchLatency - previous);
+    }
+}
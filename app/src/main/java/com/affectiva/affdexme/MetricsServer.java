@@ -0,0 +1,656 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WebSocket server (RFC 6455) that streams the faces of every processed frame to any number of clients, so a second
+ * screen on the same network can show live metrics. Connect to ws://device-address:port/ with any path.
+ * <p>
+ * Each frame is sent as one binary message, in network byte order:
+ * <pre>
+ * byte    version (1)
+ * float   timestamp, in seconds
+ * byte    face count
+ * for each face:
+ *   int     id
+ *   byte    dominant emoji, the ordinal of Face.EMOJI
+ *   short   point count, 0 if the client turned points off
+ *   short[] x and y of each point, in units of 1 / FaceDataCodec.POINT_SCALE pixel
+ *   long    mask of the metrics that follow, bit n for metric n of MetricsManager.getAllMetrics()
+ *   byte[]  score of each metric of the mask, in FaceDataCodec.quantizeScore() units (signed for valence)
+ * </pre>
+ * Clients control what they receive with text messages, each answered with a text message "ok" or "error ...":
+ * "metrics all", "metrics none", "metrics joy,smile,valence" (the lower case metric names of the exported files),
+ * "points on" and "points off". Clients start with every metric and the points.
+ * <p>
+ * Each client has its own bounded queue of encoded frames, and a thread writing them to its socket. When a client
+ * reads slower than frames arrive, the oldest queued frame is dropped, so a slow client sees recent frames with gaps
+ * instead of falling further and further behind, and never slows down the other clients or the caller of broadcast().
+ * The queue slots are reused, so broadcasting does not allocate once the slots are large enough.
+ * This class only uses plain Java, so it can be run and tested off the device with MetricsStreamClient.
+ */
+public class MetricsServer {
+
+    static final int DEFAULT_PORT = 8765;
+    static final int VERSION = 1;
+    static final int CLIENT_QUEUE_FRAMES = 32;
+    static final int MAX_CLIENTS = 8;
+    static final int SEND_BUFFER_BYTES = 16 * 1024; //small, so a slow client's backlog stays in its queue where it can be dropped
+    static final int MAX_MESSAGE_BYTES = 1024;
+    static final int MAX_CONTROL_PAYLOAD_BYTES = 125; //RFC 6455 section 5.5
+    static final int MAX_HANDSHAKE_BYTES = 8 * 1024;
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int INITIAL_FRAME_BYTES = 512;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    //frame opcodes
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    //close status codes
+    static final int CLOSE_GOING_AWAY = 1001;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    static final long ALL_METRICS = (1L << MetricsManager.getAllMetrics().length) - 1;
+    private static final boolean[] SIGNED_METRICS = getSignedMetrics();
+
+    private final int requestedPort;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    /**
+     * Create a server that will listen on port of every interface, or on any free port if port is 0.
+     */
+    public MetricsServer(int port) {
+        requestedPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        final ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(requestedPort));
+        serverSocket = socket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients(socket);
+            }
+        }, "MetricsServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stop listening and close every client connection. Queued frames are discarded, and the connections are closed
+     * without a close frame, which could block behind a slow client's unsent frames.
+     */
+    public synchronized void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+        for (Client client : clients) {
+            client.close(-1);
+        }
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverSocket = null;
+        acceptThread = null;
+    }
+
+    /**
+     * Returns the port the server is listening on, or -1 if it is not running.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns whether any client has completed its handshake, so callers can skip preparing frames nobody receives.
+     */
+    public boolean hasClients() {
+        for (Client client : clients) {
+            if (client.isOpen) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of clients that have completed their handshake.
+     */
+    public int getClientCount() {
+        int count = 0;
+        for (Client client : clients) {
+            if (client.isOpen) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of frames dropped for slow clients, over every client since the server was created.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Queue the first faceCount faces of a frame for every client. This only encodes the frame, the sockets are
+     * written by the clients' threads.
+     */
+    public void broadcast(float timestamp, FaceData[] faces, int faceCount) {
+        for (Client client : clients) {
+            if (client.isOpen) {
+                client.enqueue(timestamp, faces, faceCount);
+            }
+        }
+    }
+
+    private void acceptClients(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = socket.accept();
+            } catch (IOException e) {
+                return; //the server was stopped
+            }
+            final Client client = new Client(clientSocket);
+            clients.add(client);
+            if (socket.isClosed()) {
+                client.close(-1); //stop() may have closed the clients before this one was added
+                return;
+            }
+            Thread readThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.run();
+                }
+            }, "MetricsServer client");
+            readThread.setDaemon(true);
+            readThread.start();
+        }
+    }
+
+    /**
+     * A connected client. Its reading thread does the handshake, then handles the client's messages, while its
+     * writing thread sends the queued frames.
+     */
+    private class Client {
+        private final Socket socket;
+        private OutputStream output;
+        private final Object lock = new Object();
+        volatile boolean isOpen = false;
+        private boolean isClosed = false;
+
+        //the queue of encoded WebSocket frames, guarded by lock
+        private final byte[][] slots = new byte[CLIENT_QUEUE_FRAMES][];
+        private final int[] lengths = new int[CLIENT_QUEUE_FRAMES];
+        private int head = 0;
+        private int count = 0;
+        private byte[] sending = new byte[INITIAL_FRAME_BYTES]; //the frame being written, owned by the writing thread
+
+        private volatile long subscribedMetrics = ALL_METRICS;
+        private volatile boolean isSendingPoints = true;
+
+        Client(Socket socket) {
+            this.socket = socket;
+            for (int n = 0; n < slots.length; n++) {
+                slots[n] = new byte[INITIAL_FRAME_BYTES];
+            }
+        }
+
+        void run() {
+            try {
+                InputStream input = socket.getInputStream();
+                output = socket.getOutputStream();
+                if (clients.size() > MAX_CLIENTS) {
+                    output.write("HTTP/1.1 503 Service Unavailable\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+                    return;
+                }
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                if (!handshake(input)) {
+                    output.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(ISO_8859_1));
+                    return;
+                }
+                socket.setSoTimeout(0);
+                socket.setTcpNoDelay(true);
+                socket.setSendBufferSize(SEND_BUFFER_BYTES);
+
+                Thread writeThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeFrames();
+                    }
+                }, "MetricsServer writer");
+                writeThread.setDaemon(true);
+                isOpen = true;
+                writeThread.start();
+                readMessages(input);
+            } catch (IOException e) {
+                //the client went away or broke the protocol, either way it is dropped
+            } catch (RuntimeException e) {
+                //whatever a client sends, it must not take the app down with this thread
+            } finally {
+                close(-1);
+            }
+        }
+
+        private boolean handshake(InputStream input) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            int matched = 0; //of the blank line ending the request
+            while (matched < 4) {
+                int b = input.read();
+                if (b < 0 || request.size() >= MAX_HANDSHAKE_BYTES) {
+                    return false;
+                }
+                request.write(b);
+                matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+
+            String[] lines = new String(request.toByteArray(), ISO_8859_1).split("\r\n");
+            if (!lines[0].startsWith("GET ")) {
+                return false;
+            }
+            String key = null;
+            for (String line : lines) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                    key = line.substring(colon + 1).trim();
+                }
+            }
+            if (key == null) {
+                return false;
+            }
+            output.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + getAcceptKey(key) + "\r\n\r\n").getBytes(ISO_8859_1));
+            output.flush();
+            return true;
+        }
+
+        private void readMessages(InputStream input) throws IOException {
+            byte[] header = new byte[8];
+            byte[] mask = new byte[4];
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            int messageOpcode = -1;
+            while (true) {
+                readFully(input, header, 2);
+                boolean isFinal = (header[0] & 0x80) != 0;
+                boolean hasReservedBits = (header[0] & 0x70) != 0; //no extensions were negotiated
+                int opcode = header[0] & 0x0F;
+                boolean isControl = (opcode & 0x08) != 0;
+                boolean isMasked = (header[1] & 0x80) != 0;
+                long length = header[1] & 0x7F;
+                if (length == 126) {
+                    readFully(input, header, 2);
+                    length = ((header[0] & 0xFF) << 8) | (header[1] & 0xFF);
+                } else if (length == 127) {
+                    readFully(input, header, 8);
+                    length = 0;
+                    for (int n = 0; n < 8; n++) {
+                        length = (length << 8) | (header[n] & 0xFF);
+                    }
+                }
+                //clients must mask what they send, a 64 bit length must not have its top bit set, and control
+                //frames must fit in a single frame of at most 125 bytes
+                if (!isMasked || hasReservedBits || length < 0
+                        || (isControl && (!isFinal || length > MAX_CONTROL_PAYLOAD_BYTES))) {
+                    close(CLOSE_PROTOCOL_ERROR);
+                    return;
+                }
+                long messageLength = opcode == OPCODE_CONTINUATION ? message.size() + length : length;
+                if (messageLength > MAX_MESSAGE_BYTES) {
+                    close(CLOSE_TOO_BIG);
+                    return;
+                }
+                readFully(input, mask, 4);
+                byte[] payload = new byte[(int) length];
+                readFully(input, payload, payload.length);
+                for (int n = 0; n < payload.length; n++) {
+                    payload[n] ^= mask[n % 4];
+                }
+
+                switch (opcode) {
+                    case OPCODE_PING:
+                        writeFrame(OPCODE_PONG, payload, payload.length);
+                        break;
+                    case OPCODE_PONG:
+                        break;
+                    case OPCODE_CLOSE:
+                        close(CLOSE_GOING_AWAY);
+                        return;
+                    case OPCODE_TEXT:
+                    case OPCODE_BINARY:
+                    case OPCODE_CONTINUATION:
+                        //a continuation needs a message to continue, and a new message must wait for the last to end
+                        if ((opcode == OPCODE_CONTINUATION) != (messageOpcode >= 0)) {
+                            close(CLOSE_PROTOCOL_ERROR);
+                            return;
+                        }
+                        if (opcode != OPCODE_CONTINUATION) {
+                            messageOpcode = opcode;
+                            message.reset();
+                        }
+                        message.write(payload, 0, payload.length);
+                        if (isFinal) {
+                            if (messageOpcode == OPCODE_TEXT) {
+                                byte[] reply = handleCommand(new String(message.toByteArray(), UTF_8)).getBytes(UTF_8);
+                                writeFrame(OPCODE_TEXT, reply, reply.length);
+                            }
+                            messageOpcode = -1;
+                        }
+                        break;
+                    default:
+                        close(CLOSE_PROTOCOL_ERROR);
+                        return;
+                }
+            }
+        }
+
+        private String handleCommand(String command) {
+            String[] words = command.trim().toLowerCase(Locale.US).split("\\s+", 2);
+            if (words.length == 2 && words[0].equals("points") && (words[1].equals("on") || words[1].equals("off"))) {
+                isSendingPoints = words[1].equals("on");
+                return "ok";
+            }
+            if (words.length == 2 && words[0].equals("metrics")) {
+                if (words[1].equals("all")) {
+                    subscribedMetrics = ALL_METRICS;
+                    return "ok";
+                } else if (words[1].equals("none")) {
+                    subscribedMetrics = 0;
+                    return "ok";
+                }
+                MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+                long mask = 0;
+                for (String name : words[1].split(",")) {
+                    int index = -1;
+                    for (int m = 0; m < metrics.length; m++) {
+                        if (MetricsManager.getLowerCaseName(metrics[m]).equals(name.trim())) {
+                            index = m;
+                        }
+                    }
+                    if (index < 0) {
+                        return "error unknown metric " + name.trim();
+                    }
+                    mask |= 1L << index;
+                }
+                subscribedMetrics = mask;
+                return "ok";
+            }
+            return "error unknown command";
+        }
+
+        void enqueue(float timestamp, FaceData[] faces, int faceCount) {
+            long metricsMask = subscribedMetrics;
+            boolean isWithPoints = isSendingPoints;
+            synchronized (lock) {
+                if (isClosed) {
+                    return;
+                }
+                if (count == CLIENT_QUEUE_FRAMES) {
+                    //drop the oldest frame, the client would rather be late by less
+                    head = (head + 1) % CLIENT_QUEUE_FRAMES;
+                    count--;
+                    droppedFrames.incrementAndGet();
+                }
+                int slot = (head + count) % CLIENT_QUEUE_FRAMES;
+                int payloadLength = getPayloadLength(faces, faceCount, metricsMask, isWithPoints);
+                int length = getHeaderLength(payloadLength) + payloadLength;
+                if (slots[slot].length < length) {
+                    slots[slot] = new byte[Math.max(length, 2 * slots[slot].length)];
+                }
+                int offset = putHeader(slots[slot], OPCODE_BINARY, payloadLength);
+                putPayload(slots[slot], offset, timestamp, faces, faceCount, metricsMask, isWithPoints);
+                lengths[slot] = length;
+                count++;
+                lock.notify();
+            }
+        }
+
+        private void writeFrames() {
+            try {
+                while (true) {
+                    int length;
+                    synchronized (lock) {
+                        while (count == 0 && !isClosed) {
+                            lock.wait();
+                        }
+                        if (isClosed) {
+                            return;
+                        }
+                        //swap the slot's buffer with the one sent last, so the slot can be refilled while this one is written
+                        byte[] frame = slots[head];
+                        slots[head] = sending;
+                        sending = frame;
+                        length = lengths[head];
+                        head = (head + 1) % CLIENT_QUEUE_FRAMES;
+                        count--;
+                    }
+                    synchronized (output) {
+                        output.write(sending, 0, length);
+                        output.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                //the client went away
+            }
+            close(-1);
+        }
+
+        private void writeFrame(int opcode, byte[] payload, int payloadLength) throws IOException {
+            byte[] header = new byte[getHeaderLength(payloadLength)];
+            putHeader(header, opcode, payloadLength);
+            synchronized (output) {
+                output.write(header);
+                output.write(payload, 0, payloadLength);
+                output.flush();
+            }
+        }
+
+        /**
+         * Close the connection, sending a close frame with statusCode first if it is not -1.
+         */
+        void close(int statusCode) {
+            synchronized (lock) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+                isOpen = false;
+                lock.notify();
+            }
+            clients.remove(this);
+            try {
+                if (statusCode >= 0 && output != null) {
+                    writeFrame(OPCODE_CLOSE, new byte[]{(byte) (statusCode >> 8), (byte) statusCode}, 2);
+                }
+            } catch (IOException e) {
+                //closing anyway
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+
+    static int getPayloadLength(FaceData[] faces, int faceCount, long metricsMask, boolean isWithPoints) {
+        int length = 1 + 4 + 1;
+        for (int f = 0; f < faceCount; f++) {
+            length += 4 + 1 + 2 + 8 + Long.bitCount(getMetricsMask(faces[f], metricsMask));
+            if (isWithPoints) {
+                length += 4 * faces[f].getPointCount();
+            }
+        }
+        return length;
+    }
+
+    static int putPayload(byte[] buffer, int offset, float timestamp, FaceData[] faces, int faceCount, long metricsMask, boolean isWithPoints) {
+        buffer[offset++] = VERSION;
+        offset = putInt(buffer, offset, Float.floatToIntBits(timestamp));
+        buffer[offset++] = (byte) faceCount;
+        for (int f = 0; f < faceCount; f++) {
+            FaceData face = faces[f];
+            offset = putInt(buffer, offset, face.getId());
+            buffer[offset++] = (byte) face.getDominantEmoji().ordinal();
+            int pointCount = isWithPoints ? face.getPointCount() : 0;
+            offset = putShort(buffer, offset, pointCount);
+            for (int n = 0; n < pointCount; n++) {
+                offset = putShort(buffer, offset, quantizePoint(face.getPointX(n)));
+                offset = putShort(buffer, offset, quantizePoint(face.getPointY(n)));
+            }
+            long mask = getMetricsMask(face, metricsMask);
+            offset = putInt(buffer, offset, (int) (mask >>> 32));
+            offset = putInt(buffer, offset, (int) mask);
+            float[] scores = face.getScores();
+            for (int m = 0; mask != 0; m++, mask >>>= 1) {
+                if ((mask & 1) != 0) {
+                    buffer[offset++] = (byte) FaceDataCodec.quantizeScore(scores[m], SIGNED_METRICS[m]);
+                }
+            }
+        }
+        return offset;
+    }
+
+    //the subscribed metrics that were detected in face
+    private static long getMetricsMask(FaceData face, long metricsMask) {
+        float[] scores = face.getScores();
+        long mask = 0;
+        for (int m = 0; m < scores.length; m++) {
+            if ((metricsMask & (1L << m)) != 0 && !Float.isNaN(scores[m])) {
+                mask |= 1L << m;
+            }
+        }
+        return mask;
+    }
+
+    static int getHeaderLength(int payloadLength) {
+        return payloadLength < 126 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+    }
+
+    //a final, unmasked frame header, as the server sends them
+    static int putHeader(byte[] buffer, int opcode, int payloadLength) {
+        buffer[0] = (byte) (0x80 | opcode);
+        if (payloadLength < 126) {
+            buffer[1] = (byte) payloadLength;
+            return 2;
+        } else if (payloadLength <= 0xFFFF) {
+            buffer[1] = 126;
+            return putShort(buffer, 2, payloadLength);
+        }
+        buffer[1] = 127;
+        putInt(buffer, 2, 0);
+        return putInt(buffer, 6, payloadLength);
+    }
+
+    private static int quantizePoint(float coordinate) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(coordinate * FaceDataCodec.POINT_SCALE)));
+    }
+
+    private static int putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+        return offset + 2;
+    }
+
+    private static int putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    static void readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = input.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Returns the Sec-WebSocket-Accept value for a Sec-WebSocket-Key: the base64 of the SHA-1 of the key and a fixed GUID.
+     */
+    static String getAcceptKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + ACCEPT_GUID).getBytes(ISO_8859_1));
+            return toBase64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    //android.util.Base64 is not available off the device, and java.util.Base64 needs API 26
+    static String toBase64(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder text = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int n = 0; n < bytes.length; n += 3) {
+            int remaining = bytes.length - n;
+            int group = (bytes[n] & 0xFF) << 16
+                    | (remaining > 1 ? (bytes[n + 1] & 0xFF) << 8 : 0)
+                    | (remaining > 2 ? bytes[n + 2] & 0xFF : 0);
+            text.append(alphabet.charAt(group >> 18 & 0x3F));
+            text.append(alphabet.charAt(group >> 12 & 0x3F));
+            text.append(remaining > 1 ? alphabet.charAt(group >> 6 & 0x3F) : '=');
+            text.append(remaining > 2 ? alphabet.charAt(group & 0x3F) : '=');
+        }
+        return text.toString();
+    }
+
+    private static boolean[] getSignedMetrics() {
+        MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+        boolean[] signed = new boolean[metrics.length];
+        for (int m = 0; m < metrics.length; m++) {
+            signed[m] = FaceDataCodec.isSigned(metrics[m]);
+        }
+        return signed;
+    }
+}
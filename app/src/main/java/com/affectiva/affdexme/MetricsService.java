@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.Messenger;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * A bound service through which other apps receive the faces of every frame AffdexMe processes, without running a
+ * camera of their own. Clients bind to it, and send MetricsPublisher.MSG_SUBSCRIBE to the Messenger they get, with
+ * their own Messenger as replyTo and the batch size in frames and milliseconds as arg1 and arg2. The frames
+ * themselves are shared through MetricsPublisher's memory mapped ring; MetricsServiceClient, in debug builds, shows how
+ * to read them.
+ * <p>
+ * Binding requires the READ_METRICS permission, which is only granted to apps signed with the same key as AffdexMe.
+ * The service is disabled unless the Share Metrics setting is on, and frames are only published while AffdexMe is
+ * in the foreground.
+ */
+public class MetricsService extends Service {
+
+    public static final String PERMISSION = "com.affectiva.affdexme.permission.READ_METRICS";
+    private final static String LOG_TAG = "AffdexMe";
+
+    private Messenger messenger;
+
+    /**
+     * Enable or disable the service, so other apps can only bind to it while sharing is on.
+     */
+    static void setEnabled(Context context, boolean isEnabled) {
+        context.getPackageManager().setComponentEnabledSetting(new ComponentName(context, MetricsService.class),
+                isEnabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        try {
+            messenger = new Messenger(MetricsPublisher.getInstance(this).getHandler());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to create the metrics ring", e);
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return messenger == null ? null : messenger.getBinder();
+    }
+}
@@ -0,0 +1,597 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Draws the facial tracking dots, bounding box, appearance and emoji markers and dominant emotion of a face
+ * onto any Canvas. DrawingView uses it to draw onto its surface, but since it only depends on a Context and a
+ * DrawingViewConfig, it can also draw into an offscreen Bitmap (see OverlayRenderBenchmark).
+ * <p>
+ * The sizes and the transform that follow from a DrawingViewConfig are worked out once per config version rather
+ * than for every face, since a config never changes once built.
+ */
+public class OverlayRenderer {
+
+    //levels of detail, see setDetailLevel()
+    static final int DETAIL_FULL = 0;
+    static final int DETAIL_FEWER_POINTS = 1; //small faces get fewer tracking dots
+    static final int DETAIL_NO_POINTS = 2; //no tracking dots
+    static final int DETAIL_NO_MARKERS = 3; //no tracking dots, appearance or emoji markers
+    static final int DETAIL_MINIMAL = 4; //only the bounding box
+
+    private final static String LOG_TAG = "AffdexMe";
+    //emotions that can be shown as the dominant emotion of a face; VALENCE and ENGAGEMENT are ignored
+    private final static MetricsManager.Emotions[] DOMINANT_EMOTION_CANDIDATES = {
+            MetricsManager.Emotions.ANGER,
+            MetricsManager.Emotions.CONTEMPT,
+            MetricsManager.Emotions.DISGUST,
+            MetricsManager.Emotions.FEAR,
+            MetricsManager.Emotions.JOY,
+            MetricsManager.Emotions.SADNESS,
+            MetricsManager.Emotions.SURPRISE};
+    private final static float DOMINANT_EMOTION_THRESHOLD = 50.0f; // no emotion is dominant unless at least greater than this value
+    private final static int MARKER_LAYER_COUNT = 16; //more than the number of faces tracked at once, so layers are rarely evicted
+    private final static float SMALL_FACE_RATIO = 0.25f; //faces narrower than this fraction of the surface are small
+    private final float MARGIN = 4;
+    private final Context context;
+    private Bitmap appearanceMarkerBitmap_genderMale_glassesOn;
+    private Bitmap appearanceMarkerBitmap_genderFemale_glassesOn;
+    private Bitmap appearanceMarkerBitmap_genderUnknown_glassesOn;
+    private Bitmap appearanceMarkerBitmap_genderUnknown_glassesOff;
+    private Bitmap appearanceMarkerBitmap_genderMale_glassesOff;
+    private Bitmap appearanceMarkerBitmap_genderFemale_glassesOff;
+    private Map<String, Bitmap> emojiMarkerBitmapToEmojiTypeMap;
+    private Paint trackingPointsPaint;
+    private Paint boundingBoxPaint;
+    private int detailLevel = DETAIL_FULL;
+    private long configVersion = -1; //the version of the DrawingViewConfig the fields below were derived from
+    private float scale = 1; //DrawingViewConfig.overlayScale of the frame being drawn
+    private float margin = MARGIN;
+    private float pointScale = 1; //from image to screen coordinates
+    private float mirroredOriginX = 0; //the screen X of image X 0 when the points are mirrored
+    private float dominantEmotionTextHeight = 0; //the font spacing of the label and the value together
+    private final float[] dominantEmotionLabelWidths;
+    private final Rect[] dominantEmotionLabelBounds;
+    private final Paint markerPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF markerRect = new RectF();
+    private final Rect layerSourceRect = new Rect();
+    private final MarkerLayer[] markerLayers = new MarkerLayer[MARKER_LAYER_COUNT];
+    private long markerLayerUseCount = 0;
+    private final String[] dominantEmotionLabels;
+    private final Rect boundingRect = new Rect();
+    private final Rect emotionValueBounds = new Rect();
+
+    public OverlayRenderer(@NonNull Context context) {
+        this.context = context;
+
+        //statically load the Appearance marker bitmaps so they only have to load once
+        appearanceMarkerBitmap_genderMale_glassesOn = ImageHelper.loadBitmapFromInternalStorage(context, "male_glasses.png");
+        appearanceMarkerBitmap_genderMale_glassesOff = ImageHelper.loadBitmapFromInternalStorage(context, "male_noglasses.png");
+        appearanceMarkerBitmap_genderFemale_glassesOn = ImageHelper.loadBitmapFromInternalStorage(context, "female_glasses.png");
+        appearanceMarkerBitmap_genderFemale_glassesOff = ImageHelper.loadBitmapFromInternalStorage(context, "female_noglasses.png");
+        appearanceMarkerBitmap_genderUnknown_glassesOn = ImageHelper.loadBitmapFromInternalStorage(context, "unknown_glasses.png");
+        appearanceMarkerBitmap_genderUnknown_glassesOff = ImageHelper.loadBitmapFromInternalStorage(context, "unknown_noglasses.png");
+
+        //statically load the emoji bitmaps on-demand and cache
+        emojiMarkerBitmapToEmojiTypeMap = new HashMap<>();
+
+        for (int n = 0; n < markerLayers.length; n++) {
+            markerLayers[n] = new MarkerLayer();
+        }
+
+        dominantEmotionLabels = new String[DOMINANT_EMOTION_CANDIDATES.length];
+        dominantEmotionLabelWidths = new float[DOMINANT_EMOTION_CANDIDATES.length];
+        dominantEmotionLabelBounds = new Rect[DOMINANT_EMOTION_CANDIDATES.length];
+        for (int n = 0; n < DOMINANT_EMOTION_CANDIDATES.length; n++) {
+            dominantEmotionLabels[n] = MetricsManager.getCapitalizedName(DOMINANT_EMOTION_CANDIDATES[n]);
+            dominantEmotionLabelBounds[n] = new Rect();
+        }
+
+        trackingPointsPaint = new Paint();
+        trackingPointsPaint.setColor(Color.WHITE);
+        boundingBoxPaint = new Paint();
+        boundingBoxPaint.setColor(Color.WHITE);
+        boundingBoxPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    private static int getDrawable(@NonNull Context context, @NonNull String name) {
+        return context.getResources().getIdentifier(name, "drawable", context.getPackageName());
+    }
+
+    void setValenceOfBoundingBox(float valence) {
+        //prepare the color of the bounding box using the valence score. Red for -100, White for 0, and Green for +100, with linear interpolation in between.
+        if (valence > 0) {
+            float colorScore = ((100f - valence) / 100f) * 255;
+            boundingBoxPaint.setColor(Color.rgb((int) colorScore, 255, (int) colorScore));
+        } else {
+            float colorScore = ((100f + valence) / 100f) * 255;
+            boundingBoxPaint.setColor(Color.rgb(255, (int) colorScore, (int) colorScore));
+        }
+    }
+
+    /**
+     * Set how much of the overlay to draw, from DETAIL_FULL to DETAIL_MINIMAL. Each level drops one more optional
+     * layer, cheapest to lose first. The layers also have to be enabled in the DrawingViewConfig to be drawn.
+     */
+    void setDetailLevel(int detailLevel) {
+        if (detailLevel < DETAIL_FULL || detailLevel > DETAIL_MINIMAL) {
+            throw new IllegalArgumentException("Unknown detail level: " + detailLevel);
+        }
+        this.detailLevel = detailLevel;
+    }
+
+    int getDetailLevel() {
+        return detailLevel;
+    }
+
+    /**
+     * Find the area of the screen drawFaceAttributes() would draw on for the same arguments, including the markers and
+     * the dominant emotion label. The area may be slightly larger than what is actually drawn, but never smaller.
+     * Leaves outBounds empty if the face has no tracking points.
+     */
+    void getDrawnBounds(FaceData face, boolean mirrorPoints, boolean isMultiFaceMode, DrawingView.DrawingViewConfig config, Rect outBounds) {
+        applyConfig(config);
+        findBoundingBox(face, mirrorPoints, config);
+        outBounds.setEmpty();
+        if (boundingRect.isEmpty()) {
+            return;
+        }
+
+        //dots are centered on the tracking points and the box stroke is centered on its edges
+        int outset = config.drawThickness + 1;
+        outBounds.set(boundingRect.left - outset, boundingRect.top - outset, boundingRect.right + outset, boundingRect.bottom + outset);
+
+        MarkerLayer markerLayer = getMarkerLayer(face, config);
+        if (markerLayer != null) {
+            int heightOffset = (int) Math.ceil(findNecessaryHeightOffset(boundingRect, markerLayer));
+            outBounds.union(boundingRect.left, boundingRect.top - heightOffset,
+                    (int) Math.ceil(boundingRect.right + margin) + markerLayer.bitmap.getWidth(), boundingRect.bottom + heightOffset);
+        }
+
+        if (isMultiFaceMode && detailLevel < DETAIL_MINIMAL) {
+            int dominantEmotion = findDominantEmotion(face);
+            if (dominantEmotion >= 0) {
+                float labelWidth = dominantEmotionLabelWidths[dominantEmotion];
+                int halfWidth = (int) Math.ceil(Math.max(labelWidth, config.metricBarWidth) / 2) + 1;
+                int centerX = Math.round(boundingRect.exactCenterX());
+                int bottom = (int) Math.ceil(boundingRect.bottom + 2 * margin + dominantEmotionTextHeight);
+                outBounds.union(centerX - halfWidth, boundingRect.bottom, centerX + halfWidth, bottom);
+            }
+        }
+
+        //leave room for anti-aliasing and text shadows
+        outBounds.inset(-(int) Math.ceil(margin), -(int) Math.ceil(margin));
+    }
+
+    //derives what only depends on the config, unless it was already derived from the same version
+    private void applyConfig(DrawingView.DrawingViewConfig config) {
+        if (config.version == configVersion) {
+            return;
+        }
+        configVersion = config.version;
+
+        //when the overlay surface is smaller than the view, the margins and marker bitmaps shrink along with it
+        scale = config.overlayScale;
+        margin = MARGIN * config.overlayScale;
+        boundingBoxPaint.setStrokeWidth(config.drawThickness);
+
+        pointScale = config.screenToImageRatio;
+        mirroredOriginX = config.imageWidth * config.screenToImageRatio;
+
+        for (int n = 0; n < dominantEmotionLabels.length; n++) {
+            String label = dominantEmotionLabels[n];
+            dominantEmotionLabelWidths[n] = config.dominantEmotionLabelPaint.measureText(label);
+            config.dominantEmotionLabelPaint.getTextBounds(label, 0, label.length(), dominantEmotionLabelBounds[n]);
+        }
+        dominantEmotionTextHeight = config.dominantEmotionLabelPaint.getFontSpacing()
+                + config.dominantEmotionValuePaint.getFontSpacing();
+    }
+
+    //sets boundingRect to the box around the tracking points of a face, in screen coordinates
+    private void findBoundingBox(FaceData face, boolean mirrorPoints, DrawingView.DrawingViewConfig config) {
+        //Default to an 'inverted' box, where the absolute max and min values of the surface view are inside-out
+        boundingRect.set(config.surfaceViewWidth, config.surfaceViewHeight, 0, 0);
+
+        for (int n = 0; n < face.getPointCount(); n++) {
+            float x = getScreenX(face, n, mirrorPoints);
+            float y = getScreenY(face, n);
+
+            //For some reason I needed to add each point twice to make sure that all the
+            //points get properly registered in the bounding box.
+            boundingRect.union(Math.round(x), Math.round(y));
+            boundingRect.union(Math.round(x), Math.round(y));
+        }
+    }
+
+    void drawFaceAttributes(Canvas c, FaceData face, boolean mirrorPoints, boolean isMultiFaceMode, DrawingView.DrawingViewConfig config) {
+        applyConfig(config);
+
+        //Coordinates around which to draw bounding box.
+        findBoundingBox(face, mirrorPoints, config);
+
+        //Draw facial tracking dots. At reduced detail, small faces only get every other dot, which is
+        //hardly noticeable since their dots overlap anyway.
+        if (config.isDrawPointsEnabled && detailLevel < DETAIL_NO_POINTS) {
+            int step = 1;
+            if (detailLevel == DETAIL_FEWER_POINTS && boundingRect.width() < config.surfaceViewWidth * SMALL_FACE_RATIO) {
+                step = 2;
+            }
+            for (int n = 0; n < face.getPointCount(); n += step) {
+                c.drawCircle(getScreenX(face, n, mirrorPoints), getScreenY(face, n), config.drawThickness, trackingPointsPaint);
+            }
+        }
+
+        //Draw the bounding box.
+        if (config.isDrawPointsEnabled) {
+            drawBoundingBox(c, face, boundingRect);
+        }
+
+        //Draw the Appearance (gender / glasses) and Emoji markers
+        MarkerLayer markerLayer = getMarkerLayer(face, config);
+        if (markerLayer != null) {
+            drawMarkerLayer(c, markerLayer, boundingRect);
+        }
+
+        //Only draw the dominant emotion bar in multiface mode
+        if (isMultiFaceMode && detailLevel < DETAIL_MINIMAL) {
+            drawDominantEmotion(c, face, boundingRect, config);
+        }
+    }
+
+    //transform from the camera coordinates to our screen coordinates
+    //The camera preview is displayed as a mirror, so X pts have to be mirrored back.
+    private float getScreenX(FaceData face, int index, boolean mirrorPoints) {
+        if (mirrorPoints) {
+            return mirroredOriginX - face.getPointX(index) * pointScale;
+        } else {
+            return face.getPointX(index) * pointScale;
+        }
+    }
+
+    private float getScreenY(FaceData face, int index) {
+        return face.getPointY(index) * pointScale;
+    }
+
+    private float findNecessaryHeightOffset(Rect boundingBox, MarkerLayer markerLayer) {
+        float bitmapHeightOverflow = Math.max(markerLayer.bitmap.getHeight() - boundingBox.height(), 0);
+
+        return bitmapHeightOverflow / 2;  // distribute the overflow evenly on both sides of the bounding box
+    }
+
+    private void drawBoundingBox(Canvas c, FaceData f, Rect boundingBox) {
+        setValenceOfBoundingBox(f.getScore(MetricsManager.Emotions.VALENCE));
+        c.drawRect(boundingBox.left,
+                boundingBox.top,
+                boundingBox.right,
+                boundingBox.bottom,
+                boundingBoxPaint);
+    }
+
+    /**
+     * Return the marker layer of a face, composing it again if the appearance, emoji, enabled markers or scale
+     * changed since it was last used. Returns null if the face has no markers to draw.
+     */
+    private MarkerLayer getMarkerLayer(FaceData face, DrawingView.DrawingViewConfig config) {
+        boolean drawAppearance = config.isDrawAppearanceMarkersEnabled && detailLevel < DETAIL_NO_MARKERS;
+        boolean drawEmoji = config.isDrawEmojiMarkersEnabled && detailLevel < DETAIL_NO_MARKERS;
+        if (!drawAppearance && !drawEmoji) {
+            return null;
+        }
+        Face.GENDER gender = drawAppearance ? face.getGender() : null;
+        Face.GLASSES glasses = drawAppearance ? face.getGlasses() : null;
+        Face.EMOJI emoji = drawEmoji ? face.getDominantEmoji() : null;
+
+        //find the layer of this face, or else the least recently used one
+        markerLayerUseCount++;
+        MarkerLayer layer = null;
+        for (MarkerLayer candidate : markerLayers) {
+            if (candidate.faceId == face.getId()) {
+                layer = candidate;
+                break;
+            }
+            if (layer == null || candidate.lastUse < layer.lastUse) {
+                layer = candidate;
+            }
+        }
+        layer.lastUse = markerLayerUseCount;
+
+        if (layer.faceId != face.getId() || layer.gender != gender || layer.glasses != glasses
+                || layer.emoji != emoji || layer.scale != scale) {
+            layer.faceId = face.getId();
+            layer.gender = gender;
+            layer.glasses = glasses;
+            layer.emoji = emoji;
+            layer.scale = scale;
+            composeMarkerLayer(layer, face);
+        }
+        return layer.bitmap != null && layer.bitmap.getHeight() > 0 ? layer : null;
+    }
+
+    //draw the emoji marker above the appearance marker into the layer bitmap, at the current scale
+    private void composeMarkerLayer(MarkerLayer layer, FaceData face) {
+        Bitmap appearanceBitmap = layer.gender != null ? getAppearanceBitmapForFace(face) : null;
+        Bitmap emojiBitmap = layer.emoji != null ? getDominantEmojiBitmapForFace(face) : null;
+
+        int appearanceWidth = appearanceBitmap != null ? Math.round(appearanceBitmap.getWidth() * scale) : 0;
+        int appearanceHeight = appearanceBitmap != null ? Math.round(appearanceBitmap.getHeight() * scale) : 0;
+        int emojiWidth = emojiBitmap != null ? Math.round(emojiBitmap.getWidth() * scale) : 0;
+        int emojiHeight = emojiBitmap != null ? Math.round(emojiBitmap.getHeight() * scale) : 0;
+        int spacingBetween = (appearanceHeight > 0 && emojiHeight > 0) ? Math.round(margin) : 0;
+
+        int width = Math.max(appearanceWidth, emojiWidth);
+        int height = emojiHeight + spacingBetween + appearanceHeight;
+        layer.emojiHeight = emojiHeight;
+        layer.appearanceHeight = appearanceHeight;
+
+        if (width == 0 || height == 0) {
+            layer.release();
+            return;
+        }
+
+        //reuse the layer bitmap when the new markers fit, since they are usually the same size
+        if (layer.bitmap == null || layer.bitmap.getWidth() != width || layer.bitmap.getHeight() != height) {
+            layer.release();
+            layer.bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            layer.canvas = new Canvas(layer.bitmap);
+        } else {
+            layer.bitmap.eraseColor(Color.TRANSPARENT);
+        }
+
+        if (emojiBitmap != null) {
+            markerRect.set(0, 0, emojiWidth, emojiHeight);
+            layer.canvas.drawBitmap(emojiBitmap, null, markerRect, markerPaint);
+        }
+        if (appearanceBitmap != null && !appearanceBitmap.isRecycled()) {
+            markerRect.set(0, height - appearanceHeight, appearanceWidth, height);
+            layer.canvas.drawBitmap(appearanceBitmap, null, markerRect, markerPaint);
+        }
+    }
+
+    /**
+     * Draw the marker layer to the right of the bounding box. The emoji marker is aligned with the top of the box and
+     * the appearance marker with its bottom. If the box is not tall enough for both, the layer is centered on the box.
+     */
+    private void drawMarkerLayer(Canvas c, MarkerLayer layer, Rect boundingBox) {
+        float x = boundingBox.right + margin;
+        float offset = findNecessaryHeightOffset(boundingBox, layer);
+        if (offset > 0) {
+            c.drawBitmap(layer.bitmap, x, boundingBox.top - offset, null);
+            return;
+        }
+
+        //the box is taller than the layer, so draw the emoji and appearance parts apart from each other
+        int width = layer.bitmap.getWidth();
+        int height = layer.bitmap.getHeight();
+        if (layer.emojiHeight > 0) {
+            layerSourceRect.set(0, 0, width, layer.emojiHeight);
+            markerRect.set(x, boundingBox.top, x + width, boundingBox.top + layer.emojiHeight);
+            c.drawBitmap(layer.bitmap, layerSourceRect, markerRect, null);
+        }
+        if (layer.appearanceHeight > 0) {
+            layerSourceRect.set(0, height - layer.appearanceHeight, width, height);
+            markerRect.set(x, boundingBox.bottom - layer.appearanceHeight, x + width, boundingBox.bottom);
+            c.drawBitmap(layer.bitmap, layerSourceRect, markerRect, null);
+        }
+    }
+
+    private Bitmap getAppearanceBitmapForFace(FaceData f) {
+        Bitmap bitmap = null;
+        switch (f.getGender()) {
+            case MALE:
+                if (Face.GLASSES.YES.equals(f.getGlasses())) {
+                    bitmap = appearanceMarkerBitmap_genderMale_glassesOn;
+                } else {
+                    bitmap = appearanceMarkerBitmap_genderMale_glassesOff;
+                }
+                break;
+            case FEMALE:
+                if (Face.GLASSES.YES.equals(f.getGlasses())) {
+                    bitmap = appearanceMarkerBitmap_genderFemale_glassesOn;
+                } else {
+                    bitmap = appearanceMarkerBitmap_genderFemale_glassesOff;
+                }
+                break;
+            case UNKNOWN:
+                if (Face.GLASSES.YES.equals(f.getGlasses())) {
+                    bitmap = appearanceMarkerBitmap_genderUnknown_glassesOn;
+                } else {
+                    bitmap = appearanceMarkerBitmap_genderUnknown_glassesOff;
+                }
+                break;
+            default:
+                Log.e(LOG_TAG, "Unknown gender: " + f.getGender());
+        }
+        return bitmap;
+    }
+
+    private void drawDominantEmotion(Canvas c, FaceData f, Rect boundingBox, DrawingView.DrawingViewConfig config) {
+        int dominantEmotion = findDominantEmotion(f);
+
+        if (dominantEmotion < 0) {
+            return;
+        }
+
+        String emotionText = dominantEmotionLabels[dominantEmotion];
+        float emotionScore = f.getScore(DOMINANT_EMOTION_CANDIDATES[dominantEmotion]);
+        char[] emotionValue = ScoreText.getPercentText(emotionScore);
+
+        config.dominantEmotionValuePaint.getTextBounds(emotionValue, 0, emotionValue.length, emotionValueBounds);
+
+        float drawAtX = boundingBox.exactCenterX();
+        float drawAtY = boundingBox.bottom + margin + dominantEmotionLabelBounds[dominantEmotion].height();
+        c.drawText(emotionText, drawAtX, drawAtY, config.dominantEmotionLabelPaint);
+
+        //draws the colored bar that appears behind our score
+        drawAtY += margin + emotionValueBounds.height();
+        int halfWidth = Math.round(config.metricBarWidth / 200.0f * emotionScore);
+        c.drawRect(drawAtX - halfWidth, drawAtY - emotionValueBounds.height(), drawAtX + halfWidth, drawAtY, config.dominantEmotionMetricBarPaint);
+
+        //draws the score
+        c.drawText(emotionValue, 0, emotionValue.length, drawAtX, drawAtY, config.dominantEmotionValuePaint);
+    }
+
+    /**
+     * Returns the index in DOMINANT_EMOTION_CANDIDATES of the highest scoring emotion of a face,
+     * or -1 if no emotion scores above DOMINANT_EMOTION_THRESHOLD.
+     */
+    private int findDominantEmotion(FaceData f) {
+        int dominantEmotion = -1;
+        float dominantMetricValue = DOMINANT_EMOTION_THRESHOLD;
+
+        for (int n = 0; n < DOMINANT_EMOTION_CANDIDATES.length; n++) {
+            float score = f.getScore(DOMINANT_EMOTION_CANDIDATES[n]);
+            if (score > dominantMetricValue) {
+                dominantEmotion = n;
+                dominantMetricValue = score;
+            }
+        }
+        return dominantEmotion;
+    }
+
+    private Bitmap getDominantEmojiBitmapForFace(FaceData f) {
+        try {
+            return getEmojiBitmapByName(f.getDominantEmoji().name());
+        } catch (FileNotFoundException e) {
+            Log.e(LOG_TAG, "Dominant emoji bitmap not available", e);
+            return null;
+        }
+    }
+
+    Bitmap getEmojiBitmapByName(String emojiName) throws FileNotFoundException {
+        // No bitmap necessary if emoji is unknown
+        if (emojiName.equals(Face.EMOJI.UNKNOWN.name())) {
+            return null;
+        }
+
+        String emojiResourceName = emojiName.trim().replace(' ', '_').toLowerCase(Locale.US).concat("_emoji");
+        String emojiFileName = emojiResourceName + ".png";
+
+        //Try to get the emoji from the cache
+        Bitmap desiredEmojiBitmap = emojiMarkerBitmapToEmojiTypeMap.get(emojiFileName);
+
+        if (desiredEmojiBitmap != null) {
+            //emoji bitmap found in the cache
+            return desiredEmojiBitmap;
+        }
+
+        //Cache miss, try and load the bitmap from disk
+        desiredEmojiBitmap = ImageHelper.loadBitmapFromInternalStorage(context, emojiFileName);
+
+        if (desiredEmojiBitmap != null) {
+            //emoji bitmap found in the app storage
+
+
+            //Bitmap loaded, add to cache for subsequent use.
+            emojiMarkerBitmapToEmojiTypeMap.put(emojiFileName, desiredEmojiBitmap);
+
+            return desiredEmojiBitmap;
+        }
+
+        Log.d(LOG_TAG, "Emoji not found on disk: " + emojiFileName);
+
+        //Still unable to find the file, try to locate the emoji resource
+        final int resourceId = getDrawable(context, emojiFileName);
+
+        if (resourceId == 0) {
+            //unrecognised emoji file name
+            throw new FileNotFoundException("Resource not found for file named: " + emojiFileName);
+        }
+
+        desiredEmojiBitmap = BitmapFactory.decodeResource(context.getResources(), resourceId);
+
+        if (desiredEmojiBitmap == null) {
+            //still unable to load the resource from the file
+            throw new FileNotFoundException("Resource id [" + resourceId + "] but could not load bitmap: " + emojiFileName);
+        }
+
+        //Bitmap loaded, add to cache for subsequent use.
+        emojiMarkerBitmapToEmojiTypeMap.put(emojiFileName, desiredEmojiBitmap);
+
+        return desiredEmojiBitmap;
+    }
+
+    /**
+     * Release the marker bitmaps. The renderer must not be used afterwards.
+     */
+    public void release() {
+        for (MarkerLayer layer : markerLayers) {
+            layer.release();
+            layer.faceId = MarkerLayer.NO_FACE;
+        }
+
+        if (emojiMarkerBitmapToEmojiTypeMap != null) {
+            for (Bitmap bitmap : emojiMarkerBitmapToEmojiTypeMap.values()) {
+                bitmap.recycle();
+            }
+            emojiMarkerBitmapToEmojiTypeMap.clear();
+        }
+
+        if (appearanceMarkerBitmap_genderMale_glassesOn != null) {
+            appearanceMarkerBitmap_genderMale_glassesOn.recycle();
+        }
+        if (appearanceMarkerBitmap_genderFemale_glassesOn != null) {
+            appearanceMarkerBitmap_genderFemale_glassesOn.recycle();
+        }
+        if (appearanceMarkerBitmap_genderUnknown_glassesOn != null) {
+            appearanceMarkerBitmap_genderUnknown_glassesOn.recycle();
+        }
+        if (appearanceMarkerBitmap_genderUnknown_glassesOff != null) {
+            appearanceMarkerBitmap_genderUnknown_glassesOff.recycle();
+        }
+        if (appearanceMarkerBitmap_genderMale_glassesOff != null) {
+            appearanceMarkerBitmap_genderMale_glassesOff.recycle();
+        }
+        if (appearanceMarkerBitmap_genderFemale_glassesOff != null) {
+            appearanceMarkerBitmap_genderFemale_glassesOff.recycle();
+        }
+    }
+
+    /**
+     * The appearance and emoji markers of one face, composed at the overlay scale into a single bitmap, with the emoji
+     * marker on top. Since the markers of a face rarely change, drawing them is usually a single bitmap copy.
+     */
+    private static class MarkerLayer {
+        static final int NO_FACE = -1;
+
+        int faceId = NO_FACE;
+        long lastUse = 0;
+        //what the bitmap was composed from; null when that marker is not drawn
+        Face.GENDER gender;
+        Face.GLASSES glasses;
+        Face.EMOJI emoji;
+        float scale;
+        Bitmap bitmap;
+        Canvas canvas;
+        int emojiHeight;
+        int appearanceHeight;
+
+        void release() {
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+                canvas = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+
+import com.affectiva.android.affdex.sdk.Frame;
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.List;
+
+/**
+ * Watches the scores of a few metrics for peaks and hands the frame of each peak to a Listener, so the best
+ * moments of an unattended session are captured without anyone tapping the screenshot button.
+ * Peaks are only confirmed once the score has fallen again, by which time the peak frame is gone from the camera,
+ * so the recent frames are kept in a FrameRing and the peak frame is taken from there. If the score took longer
+ * to fall than the ring holds, the highest scoring frame still in the ring is used instead.
+ * Work per frame is constant: one copy into the ring and one PeakDetector update per metric. Captures stop
+ * after sessionLimit peaks; a session is the lifetime of the object.
+ */
+public class PeakCapture {
+
+    static final int RING_CAPACITY = 15;
+    static final float DEFAULT_PROMINENCE = 30;
+    static final float DEFAULT_MIN_SPACING = 5;
+    static final int DEFAULT_SESSION_LIMIT = 20;
+
+    interface Listener {
+        /**
+         * Called from onImageResults() for every peak found, until the session limit is reached.
+         * Must return quickly; the capture is owned by the listener.
+         */
+        void onPeakCaptured(@NonNull MetricsManager.Metrics metric, float score, @NonNull FrameRing.Capture capture);
+    }
+
+    private final MetricsManager.Metrics[] metrics;
+    private final PeakDetector[] detectors;
+    private final int sessionLimit;
+    private final Listener listener;
+    private final FrameRing frameRing = new FrameRing(RING_CAPACITY);
+    private int captureCount = 0;
+
+    public PeakCapture(@NonNull MetricsManager.Metrics[] metrics, float prominence, float minSpacing, int sessionLimit,
+                       @NonNull Listener listener) {
+        this.metrics = metrics;
+        this.sessionLimit = sessionLimit;
+        this.listener = listener;
+        detectors = new PeakDetector[metrics.length];
+        for (int n = 0; n < metrics.length; n++) {
+            detectors[n] = new PeakDetector(prominence, minSpacing);
+        }
+    }
+
+    /**
+     * Feed the results of a processed frame. In multi face mode, the highest score of any face is followed.
+     */
+    public void onImageResults(@NonNull List<Face> faces, @NonNull Frame frame, float timestamp) {
+        if (captureCount >= sessionLimit) {
+            return;
+        }
+        if (faces.isEmpty()) {
+            //the scores of a face that comes back have nothing to do with the ones before it was lost
+            for (PeakDetector detector : detectors) {
+                detector.reset();
+            }
+            return;
+        }
+
+        frameRing.record(frame, faces, timestamp);
+
+        for (int n = 0; n < metrics.length && captureCount < sessionLimit; n++) {
+            float score = Float.NaN;
+            for (int f = 0; f < faces.size(); f++) {
+                float faceScore = MetricsManager.getScore(metrics[n], faces.get(f));
+                if (Float.isNaN(score) || faceScore > score) {
+                    score = faceScore;
+                }
+            }
+
+            if (detectors[n].update(score, timestamp)) {
+                FrameRing.Capture capture = frameRing.captureAt(detectors[n].getPeakTimestamp());
+                if (capture == null) {
+                    capture = frameRing.captureBest(metrics[n]);
+                }
+                if (capture != null) {
+                    captureCount++;
+                    listener.onPeakCaptured(metrics[n], detectors[n].getPeakValue(), capture);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start following the metrics again when the detector timestamps restart, as they do when the camera changes.
+     * The frames in the ring are dropped, since they came from the other camera. The session and its count of
+     * captures go on.
+     */
+    public void restart() {
+        for (PeakDetector detector : detectors) {
+            detector.restart();
+        }
+        frameRing.clear();
+    }
+
+    public int getCaptureCount() {
+        return captureCount;
+    }
+
+    public int getSessionLimit() {
+        return sessionLimit;
+    }
+}
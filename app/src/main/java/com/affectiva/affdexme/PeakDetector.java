@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+/**
+ * Finds peaks in a stream of scores as they arrive, in constant time and memory per sample.
+ * A peak is a maximum that rises at least prominence above the lowest score since the previous peak, and that
+ * the scores then fall at least prominence below. This hysteresis ignores the jitter of a score that is held,
+ * so holding a smile gives one peak, not dozens. A peak is reported on the sample that confirms it, which is
+ * later than the peak itself; getPeakTimestamp() tells when the peak was. Peaks closer than minSpacing
+ * seconds to the previous reported peak are not reported.
+ */
+public class PeakDetector {
+
+    private final float prominence;
+    private final float minSpacing;
+
+    private boolean hasSample = false;
+    private boolean isSeekingPeak = false; //false while following the scores down to a valley
+    private float extremeValue; //highest score while seeking a peak, lowest while seeking a valley
+    private float extremeTimestamp;
+    private float lastPeakTimestamp = Float.NEGATIVE_INFINITY;
+    private float peakValue;
+    private float peakTimestamp;
+
+    public PeakDetector(float prominence, float minSpacing) {
+        if (prominence <= 0) {
+            throw new IllegalArgumentException("Prominence must be positive");
+        }
+        if (minSpacing < 0) {
+            throw new IllegalArgumentException("Minimum spacing must not be negative");
+        }
+        this.prominence = prominence;
+        this.minSpacing = minSpacing;
+    }
+
+    /**
+     * Add a score. Returns true if it confirms a peak, whose value and timestamp are then available from
+     * getPeakValue() and getPeakTimestamp(). Scores that are NaN, as metrics that are not detected report, are ignored.
+     */
+    public boolean update(float value, float timestamp) {
+        if (Float.isNaN(value)) {
+            return false;
+        }
+        if (!hasSample) {
+            hasSample = true;
+            extremeValue = value;
+            extremeTimestamp = timestamp;
+            return false;
+        }
+
+        if (isSeekingPeak) {
+            if (value >= extremeValue) {
+                extremeValue = value;
+                extremeTimestamp = timestamp;
+            } else if (extremeValue - value >= prominence) {
+                peakValue = extremeValue;
+                peakTimestamp = extremeTimestamp;
+                isSeekingPeak = false;
+                extremeValue = value;
+                extremeTimestamp = timestamp;
+                if (peakTimestamp - lastPeakTimestamp >= minSpacing) {
+                    lastPeakTimestamp = peakTimestamp;
+                    return true;
+                }
+            }
+        } else {
+            if (value <= extremeValue) {
+                extremeValue = value;
+                extremeTimestamp = timestamp;
+            } else if (value - extremeValue >= prominence) {
+                isSeekingPeak = true;
+                extremeValue = value;
+                extremeTimestamp = timestamp;
+            }
+        }
+        return false;
+    }
+
+    public float getPeakValue() {
+        return peakValue;
+    }
+
+    public float getPeakTimestamp() {
+        return peakTimestamp;
+    }
+
+    /**
+     * Forget all scores, for example when the tracked face is lost. The minimum spacing still applies to the next peak.
+     */
+    public void reset() {
+        hasSample = false;
+        isSeekingPeak = false;
+    }
+
+    /**
+     * Forget all scores and the last peak too, for when the timestamps start again, as they do when the camera changes.
+     */
+    public void restart() {
+        reset();
+        lastPeakTimestamp = Float.NEGATIVE_INFINITY;
+    }
+}
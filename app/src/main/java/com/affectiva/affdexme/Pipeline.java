@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * The stages every processed frame, and the work it leads to, goes through, each with its own threads and priority:
+ * <ul>
+ * <li>detector: the SDK's onImageResults() callback, which arrives on the UI thread. Measured, but not queued, since
+ * the SDK decides which frames to process.</li>
+ * <li>results: the ResultsBus consumers that hand each frame to the recorder, exporter, streams, history and correlations,
+ * just below the UI thread's priority. Its queue is the lag of the slowest consumer.</li>
+ * <li>render: the DrawingThread, in the background, since the camera preview matters more than the overlay on it.</li>
+ * <li>io: screenshots, and the writer threads of the session recorder and the metric exporter, in the background.
+ * The writers are joined on it when stopped, so the UI thread never waits for their last writes.</li>
+ * <li>analytics: the snapshots behind the correlation heatmap, below everything else.</li>
+ * </ul>
+ * The stages are measured in windows of a second, ended by endWindow(). The busiest stage is shown next to the FPS,
+ * and every stage is logged every LOG_INTERVAL_MILLIS, so the stage that limits the pipeline can be found.
+ */
+public class Pipeline {
+
+    static final int RESULTS_PRIORITY = Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+    static final int RENDER_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
+    static final int IO_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
+    static final int ANALYTICS_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+    static final long LOG_INTERVAL_MILLIS = 10000;
+    private final static String LOG_TAG = "AffdexMe";
+
+    final PipelineStage detector = new PipelineStage("Detector", Process.THREAD_PRIORITY_DEFAULT); //runs on the UI thread
+    final PipelineStage results = new PipelineStage("Results", RESULTS_PRIORITY);
+    final PipelineStage render = new PipelineStage("Render", RENDER_PRIORITY);
+    final PipelineStage io = new PipelineStage("IO", IO_PRIORITY);
+    final PipelineStage analytics = new PipelineStage("Analytics", ANALYTICS_PRIORITY);
+    private final PipelineStage[] stages = {detector, results, render, io, analytics};
+    private long lastLogNanos = System.nanoTime();
+
+    public PipelineStage[] getStages() {
+        return stages;
+    }
+
+    /**
+     * End the window of measurements of every stage, logging them if LOG_INTERVAL_MILLIS has passed since they last were.
+     */
+    public void endWindow() {
+        long now = System.nanoTime();
+        for (PipelineStage stage : stages) {
+            stage.endWindow(now);
+        }
+        if (now - lastLogNanos >= LOG_INTERVAL_MILLIS * 1000000L) {
+            lastLogNanos = now;
+            Log.i(LOG_TAG, toString());
+        }
+    }
+
+    /**
+     * Returns the stage that spent the largest fraction of the last window working.
+     */
+    public PipelineStage getBusiestStage() {
+        PipelineStage busiest = stages[0];
+        for (PipelineStage stage : stages) {
+            if (stage.getUtilization() > busiest.getUtilization()) {
+                busiest = stage;
+            }
+        }
+        return busiest;
+    }
+
+    /**
+     * Stop the threads of every stage, once the work already posted to them has run.
+     */
+    public void quit() {
+        for (PipelineStage stage : stages) {
+            stage.quit();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("Pipeline:");
+        for (PipelineStage stage : stages) {
+            text.append(String.format(Locale.US, " %s %.1f/s %.1fms (max %.1fms) %.0f%% queue %d;", stage.getName(),
+                    stage.getThroughput(), stage.getAverageServiceMillis(), stage.getMaxServiceMillis(),
+                    stage.getUtilization() * 100, stage.getMaxQueueDepth()));
+        }
+        return text.toString();
+    }
+}
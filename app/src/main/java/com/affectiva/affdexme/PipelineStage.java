@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the Pipeline, with its name, its thread priority and measurements of the work it does.
+ * <p>
+ * Work reaches a stage in one of two ways. It can be posted to the stage, which runs it on a HandlerThread of its
+ * own, started the first time something is posted, and counts it as queued until it starts. Or it can run on a
+ * thread that belongs to the stage but loops on its own, such as the DrawingThread or a ResultsBus consumer, which
+ * sets the stage's priority and reports the time each piece of work took with record(), and the length of its
+ * own queue with reportQueueDepth().
+ * <p>
+ * The measurements are taken in windows, usually of a second: the items completed per second, their average and
+ * longest service time, the fraction of the window spent serving them and the deepest the queue got. Utilization
+ * can pass 100% when several threads serve the stage.
+ */
+public class PipelineStage {
+
+    private final String name;
+    private final int priority;
+    private HandlerThread thread;
+    private Handler handler;
+    private boolean isQuit = false;
+
+    //guarded by this
+    private int queueDepth = 0;
+    private int maxQueueDepth = 0;
+    private long completedItems = 0;
+    private long serviceNanos = 0;
+    private long maxServiceNanos = 0;
+    private long windowStartNanos = System.nanoTime();
+
+    //the deepest queue reported in the current window, kept without the lock since it may be reported every frame
+    private final AtomicInteger reportedQueueDepth = new AtomicInteger();
+
+    //the measurements of the last window
+    private volatile float throughput = 0;
+    private volatile float averageServiceMillis = 0;
+    private volatile float maxServiceMillis = 0;
+    private volatile float utilization = 0;
+    private volatile int windowQueueDepth = 0;
+
+    /**
+     * Create a stage whose threads run at priority, one of the Process.THREAD_PRIORITY_ values.
+     */
+    public PipelineStage(@NonNull String name, int priority) {
+        this.name = name;
+        this.priority = priority;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Give the current thread the priority of this stage, for threads that belong to it but were not started by it.
+     */
+    public void joinCurrentThread() {
+        Process.setThreadPriority(priority);
+    }
+
+    /**
+     * Run work on this stage's thread, after the work posted before it. Returns false if the stage was quit.
+     */
+    public boolean post(@NonNull final Runnable work) {
+        Handler stageHandler = getHandler();
+        if (stageHandler == null) {
+            return false;
+        }
+        synchronized (this) {
+            queueDepth++;
+            maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        }
+        boolean isPosted = stageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PipelineStage.this) {
+                    queueDepth--;
+                }
+                long start = System.nanoTime();
+                try {
+                    work.run();
+                } finally {
+                    record(System.nanoTime() - start);
+                }
+            }
+        });
+        if (!isPosted) {
+            synchronized (this) {
+                queueDepth--;
+            }
+        }
+        return isPosted;
+    }
+
+    /**
+     * Returns the number of items posted that have not started yet.
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Report the current length of a queue kept by a thread of this stage, rather than of the items posted to it.
+     * The deepest queue reported counts towards getMaxQueueDepth(). This takes no lock.
+     */
+    public void reportQueueDepth(int depth) {
+        int deepest = reportedQueueDepth.get();
+        while (depth > deepest && !reportedQueueDepth.compareAndSet(deepest, depth)) {
+            deepest = reportedQueueDepth.get();
+        }
+    }
+
+    /**
+     * Report an item of work that took serviceNanos on a thread of this stage.
+     */
+    public synchronized void record(long serviceNanos) {
+        completedItems++;
+        this.serviceNanos += serviceNanos;
+        maxServiceNanos = Math.max(maxServiceNanos, serviceNanos);
+    }
+
+    /**
+     * End the current window of measurements, which become those returned by the getters below, and start a new one.
+     */
+    public synchronized void endWindow(long nowNanos) {
+        long windowNanos = nowNanos - windowStartNanos;
+        if (windowNanos <= 0) {
+            return;
+        }
+        throughput = completedItems * 1e9f / windowNanos;
+        averageServiceMillis = completedItems == 0 ? 0 : serviceNanos / 1e6f / completedItems;
+        maxServiceMillis = maxServiceNanos / 1e6f;
+        utilization = (float) serviceNanos / windowNanos;
+        windowQueueDepth = Math.max(maxQueueDepth, reportedQueueDepth.getAndSet(0));
+        completedItems = 0;
+        serviceNanos = 0;
+        maxServiceNanos = 0;
+        maxQueueDepth = queueDepth;
+        windowStartNanos = nowNanos;
+    }
+
+    /**
+     * Items completed per second in the last window.
+     */
+    public float getThroughput() {
+        return throughput;
+    }
+
+    public float getAverageServiceMillis() {
+        return averageServiceMillis;
+    }
+
+    public float getMaxServiceMillis() {
+        return maxServiceMillis;
+    }
+
+    /**
+     * The fraction of the last window spent serving items.
+     */
+    public float getUtilization() {
+        return utilization;
+    }
+
+    /**
+     * The deepest the queue got in the last window.
+     */
+    public int getMaxQueueDepth() {
+        return windowQueueDepth;
+    }
+
+    /**
+     * Stop the stage's thread once the work already posted has run. Work posted afterwards is refused.
+     */
+    public void quit() {
+        final Handler stageHandler;
+        synchronized (this) {
+            stageHandler = handler;
+            handler = null;
+            thread = null;
+            isQuit = true;
+        }
+        if (stageHandler != null) {
+            //HandlerThread.quitSafely() needs API 18, so the looper is quit by the last message instead
+            stageHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myLooper().quit();
+                }
+            });
+        }
+    }
+
+    private synchronized Handler getHandler() {
+        if (handler == null && !isQuit) {
+            thread = new HandlerThread(name, priority);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+}
@@ -0,0 +1,475 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that compresses on several cores, for saving full resolution screenshots faster than
+ * Bitmap.compress(), which compresses on a single thread.
+ * <p>
+ * The image is split into stripes of rows, which are filtered and deflated in parallel, the way pigz does it:
+ * each stripe's deflater is primed with the last 32KB of the previous stripe's data as a dictionary, so that
+ * compression barely suffers from the split, and all stripes but the last end with a sync flush so that their
+ * outputs can simply be concatenated into one zlib stream. The Adler-32 checksums of the stripes are combined
+ * into the checksum of the whole stream. Stripes are written as IDAT chunks as soon as they and the stripes before
+ * them are done, so the compressed image is never held in memory at once.
+ * <p>
+ * Sync flushes need API level 19, see isSupported().
+ */
+public class PngEncoder {
+
+    /**
+     * Supplies the pixels of the image to encode, as non-premultiplied ARGB colors like Bitmap.getPixels().
+     * It is called from several threads at once, for different rows. Some rows are asked for twice, and must come
+     * out exactly the same both times, or the image decodes wrong.
+     */
+    interface RowSource {
+        void getRows(int firstRow, int rowCount, int[] argb);
+    }
+
+    static final int STRIPE_BYTES = 256 * 1024; //uncompressed bytes per stripe
+    private static final int DICTIONARY_BYTES = 32 * 1024; //the deflate window size
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int ADLER_BASE = 65521;
+
+    //row filter types
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static ThreadPoolExecutor sharedExecutor;
+
+    private final int threadCount;
+    private final int compressionLevel;
+
+    /**
+     * Create an encoder using as many threads as there are cores.
+     */
+    public PngEncoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an encoder using threadCount threads, which deflate threadCount stripes at a time. With a single
+     * thread, encoding runs on the calling thread.
+     */
+    public PngEncoder(int threadCount) {
+        this(threadCount, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public PngEncoder(int threadCount, int compressionLevel) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threadCount = threadCount;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Whether this device supports the encoder. If not, use Bitmap.compress() instead.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    //the pool is shared by all encoders and its threads exit when idle, so keeping it around costs nothing.
+    //It grows to the largest thread count asked for, and each encoder keeps at most its own count of stripes in it.
+    private static synchronized ThreadPoolExecutor getExecutor(int threadCount) {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ThreadPoolExecutor(threadCount, threadCount, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "PngEncoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            sharedExecutor.allowCoreThreadTimeOut(true);
+        } else if (sharedExecutor.getCorePoolSize() < threadCount) {
+            sharedExecutor.setMaximumPoolSize(threadCount);
+            sharedExecutor.setCorePoolSize(threadCount);
+        }
+        return sharedExecutor;
+    }
+
+    public void encode(@NonNull final Bitmap bitmap, @NonNull File file) throws IOException {
+        encode(new RowSource() {
+            @Override
+            public void getRows(int firstRow, int rowCount, int[] argb) {
+                bitmap.getPixels(argb, 0, bitmap.getWidth(), 0, firstRow, bitmap.getWidth(), rowCount);
+            }
+        }, bitmap.getWidth(), bitmap.getHeight(), bitmap.hasAlpha(), file);
+    }
+
+    /**
+     * Encode rows supplied by source into a PNG file. Rows are requested from several threads at once.
+     */
+    void encode(@NonNull RowSource source, int width, int height, boolean hasAlpha, @NonNull File file) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            encode(source, width, height, hasAlpha, outputStream.getChannel());
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Encode an image as a PNG, 8 bits per channel, with an alpha channel if hasAlpha is set.
+     */
+    void encode(RowSource source, int width, int height, boolean hasAlpha, FileChannel channel) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image dimensions must be positive");
+        }
+        int bytesPerPixel = hasAlpha ? 4 : 3;
+        int rowBytes = 1 + width * bytesPerPixel; //each row starts with its filter type
+        int stripeRows = Math.max(STRIPE_BYTES / rowBytes, 1);
+        int stripeCount = (height + stripeRows - 1) / stripeRows;
+
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.putInt(width).putInt(height)
+                .put((byte) 8) //bit depth
+                .put((byte) (hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB))
+                .put((byte) 0) //compression method
+                .put((byte) 0) //filter method
+                .put((byte) 0); //interlace method
+        writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+        writeChunk(channel, IHDR, header.array(), 0, header.capacity());
+
+        List<StripeEncoder> stripes = new ArrayList<>(stripeCount);
+        for (int n = 0; n < stripeCount; n++) {
+            int firstRow = n * stripeRows;
+            stripes.add(new StripeEncoder(source, width, bytesPerPixel, firstRow, Math.min(stripeRows, height - firstRow), n == stripeCount - 1));
+        }
+
+        //stripes are submitted threadCount at a time, and the next one each time a stripe is written
+        List<Future<Stripe>> futures = new ArrayList<>(stripeCount);
+        ThreadPoolExecutor executor = threadCount > 1 ? getExecutor(threadCount) : null;
+        if (executor != null) {
+            for (int n = 0; n < Math.min(threadCount, stripeCount); n++) {
+                futures.add(executor.submit(stripes.get(n)));
+            }
+        }
+
+        try {
+            long adler = 1;
+            for (int n = 0; n < stripeCount; n++) {
+                Stripe stripe;
+                if (executor != null) {
+                    stripe = futures.get(n).get();
+                    if (futures.size() < stripeCount) {
+                        futures.add(executor.submit(stripes.get(futures.size())));
+                    }
+                } else {
+                    stripe = stripes.get(n).call();
+                }
+                adler = combineAdler32(adler, stripe.adler, stripe.inputLength);
+
+                //the zlib header goes before the first stripe, and the checksum of the whole stream after the last
+                int offset = 0;
+                if (n == 0) {
+                    stripe.data[0] = 0x78; //deflate with a 32KB window
+                    stripe.data[1] = (byte) 0x9c; //default compression, no preset dictionary, header checksum
+                } else {
+                    offset = 2;
+                }
+                if (n == stripeCount - 1) {
+                    ByteBuffer.wrap(stripe.data, stripe.length, 4).putInt((int) adler);
+                    stripe.length += 4;
+                }
+                writeChunk(channel, IDAT, stripe.data, offset, stripe.length - offset);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding PNG");
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to encode PNG", e.getCause());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to encode PNG", e);
+        } finally {
+            for (Future<Stripe> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        writeChunk(channel, IEND, new byte[0], 0, 0);
+    }
+
+    private static void writeChunk(FileChannel channel, byte[] type, byte[] data, int offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data, offset, length);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(length).put(type);
+        header.flip();
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt((int) crc.getValue());
+        trailer.flip();
+
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(data, offset, length));
+        writeFully(channel, trailer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two consecutive pieces of data into the checksum of both, as zlib's
+     * adler32_combine() does. length2 is the length of the second piece.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * The compressed data of one stripe. Two bytes are left free at the start of data for the zlib header and,
+     * in the last stripe, four bytes after length for the checksum.
+     */
+    private static class Stripe {
+        byte[] data;
+        int length;
+        long adler; //checksum of the uncompressed, filtered rows
+        int inputLength;
+    }
+
+    private class StripeEncoder implements Callable<Stripe> {
+        private final RowSource source;
+        private final int width;
+        private final int bytesPerPixel;
+        private final int firstRow;
+        private final int rowCount;
+        private final boolean isLast;
+
+        StripeEncoder(RowSource source, int width, int bytesPerPixel, int firstRow, int rowCount, boolean isLast) {
+            this.source = source;
+            this.width = width;
+            this.bytesPerPixel = bytesPerPixel;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+            this.isLast = isLast;
+        }
+
+        @Override
+        public Stripe call() {
+            int rowBytes = 1 + width * bytesPerPixel;
+
+            //Filter the rows of this stripe, preceded by enough rows of the previous stripe to fill the dictionary.
+            //The source gives those rows again exactly as it gave them to the previous stripe, and filtering is
+            //deterministic, so the dictionary matches what the decoder has seen.
+            int dictionaryRows = Math.min((DICTIONARY_BYTES + rowBytes - 1) / rowBytes, firstRow);
+            int filterFirstRow = firstRow - dictionaryRows;
+            int fetchFirstRow = Math.max(filterFirstRow - 1, 0); //filters look at the row above
+            int fetchRowCount = firstRow + rowCount - fetchFirstRow;
+
+            int[] argb = new int[fetchRowCount * width];
+            source.getRows(fetchFirstRow, fetchRowCount, argb);
+
+            byte[] previous = new byte[rowBytes - 1];
+            byte[] current = new byte[rowBytes - 1];
+            if (filterFirstRow > 0) {
+                toBytes(argb, 0, previous);
+            }
+            byte[] filtered = new byte[(dictionaryRows + rowCount) * rowBytes];
+            for (int row = filterFirstRow; row < firstRow + rowCount; row++) {
+                toBytes(argb, (row - fetchFirstRow) * width, current);
+                filterRow(current, row > 0 ? previous : null, filtered, (row - filterFirstRow) * rowBytes);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+
+            int inputOffset = dictionaryRows * rowBytes;
+            int inputLength = rowCount * rowBytes;
+            Adler32 adler = new Adler32();
+            adler.update(filtered, inputOffset, inputLength);
+
+            Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                int dictionaryLength = Math.min(inputOffset, DICTIONARY_BYTES);
+                if (dictionaryLength > 0) {
+                    deflater.setDictionary(filtered, inputOffset - dictionaryLength, dictionaryLength);
+                }
+                deflater.setInput(filtered, inputOffset, inputLength);
+                if (isLast) {
+                    deflater.finish();
+                }
+
+                Stripe stripe = new Stripe();
+                stripe.data = new byte[inputLength / 2 + 64];
+                stripe.length = 2;
+                stripe.adler = adler.getValue();
+                stripe.inputLength = inputLength;
+                while (true) {
+                    if (stripe.data.length - stripe.length < 4096 + 4) {
+                        byte[] grown = new byte[stripe.data.length * 2];
+                        System.arraycopy(stripe.data, 0, grown, 0, stripe.length);
+                        stripe.data = grown;
+                    }
+                    int space = stripe.data.length - stripe.length - 4; //keep room for the checksum
+                    if (isLast) {
+                        stripe.length += deflater.deflate(stripe.data, stripe.length, space);
+                        if (deflater.finished()) {
+                            break;
+                        }
+                    } else {
+                        //a sync flush is complete once it leaves output space unused
+                        int written = deflater.deflate(stripe.data, stripe.length, space, Deflater.SYNC_FLUSH);
+                        stripe.length += written;
+                        if (written < space) {
+                            break;
+                        }
+                    }
+                }
+                return stripe;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void toBytes(int[] argb, int offset, byte[] row) {
+            int n = 0;
+            for (int x = 0; x < width; x++) {
+                int color = argb[offset + x];
+                row[n++] = (byte) (color >> 16);
+                row[n++] = (byte) (color >> 8);
+                row[n++] = (byte) color;
+                if (bytesPerPixel == 4) {
+                    row[n++] = (byte) (color >>> 24);
+                }
+            }
+        }
+
+        /**
+         * Write the filter type and filtered bytes of a row to out. The filter is picked per row with the usual
+         * heuristic of the smallest sum of absolute differences. previous is null for the first row of the image.
+         */
+        private void filterRow(byte[] current, byte[] previous, byte[] out, int outOffset) {
+            long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+            for (int i = 0; i < current.length; i++) {
+                int x = current[i] & 0xff;
+                int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xff : 0;
+                int b = previous != null ? previous[i] & 0xff : 0;
+                int c = previous != null && i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+                sumNone += Math.abs((byte) x);
+                sumSub += Math.abs((byte) (x - a));
+                sumUp += Math.abs((byte) (x - b));
+                sumAverage += Math.abs((byte) (x - ((a + b) >> 1)));
+                sumPaeth += Math.abs((byte) (x - paeth(a, b, c)));
+            }
+
+            int filter = FILTER_NONE;
+            long best = sumNone;
+            if (sumSub < best) {
+                filter = FILTER_SUB;
+                best = sumSub;
+            }
+            if (sumUp < best) {
+                filter = FILTER_UP;
+                best = sumUp;
+            }
+            if (sumAverage < best) {
+                filter = FILTER_AVERAGE;
+                best = sumAverage;
+            }
+            if (sumPaeth < best) {
+                filter = FILTER_PAETH;
+            }
+
+            out[outOffset] = (byte) filter;
+            for (int i = 0; i < current.length; i++) {
+                int x = current[i] & 0xff;
+                int a = i >= bytesPerPixel ? current[i - bytesPerPixel] & 0xff : 0;
+                int b = previous != null ? previous[i] & 0xff : 0;
+                int c = previous != null && i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+                int value;
+                switch (filter) {
+                    case FILTER_SUB:
+                        value = x - a;
+                        break;
+                    case FILTER_UP:
+                        value = x - b;
+                        break;
+                    case FILTER_AVERAGE:
+                        value = x - ((a + b) >> 1);
+                        break;
+                    case FILTER_PAETH:
+                        value = x - paeth(a, b, c);
+                        break;
+                    default:
+                        value = x;
+                }
+                out[outOffset + 1 + i] = (byte) value;
+            }
+        }
+
+        private int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            } else if (pb <= pc) {
+                return b;
+            } else {
+                return c;
+            }
+        }
+    }
+}
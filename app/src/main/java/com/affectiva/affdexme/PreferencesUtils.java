@@ -6,14 +6,23 @@
 package com.affectiva.affdexme;
 
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 /**
  * A helper class to translate strings held in preferences into values to be used by the application.
  */
 public class PreferencesUtils {
 
     static final int DEFAULT_FPS = 20;
+    static final float DEFAULT_OVERLAY_SCALE = 1.0f;
+    static final int DEFAULT_CAPTURE_QUALITY = 90;
+    static final int DEFAULT_METRIC_COUNT = 6;
     private final static String LOG_TAG = "AffdexMe";
 
     /**
@@ -36,12 +45,183 @@ public class PreferencesUtils {
         }
     }
 
+    /**
+     * Return the overlay scale set by the user, or full resolution if it is not a number in (0, 1].
+     */
+    public static float getOverlayScale(SharedPreferences pref) {
+        String scaleString = pref.getString("overlay_scale", String.valueOf(DEFAULT_OVERLAY_SCALE));
+        float scale;
+        try {
+            scale = Float.parseFloat(scaleString);
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid overlay scale: " + scaleString, e);
+            return DEFAULT_OVERLAY_SCALE;
+        }
+        if (scale > 0 && scale <= 1) {
+            return scale;
+        } else {
+            return DEFAULT_OVERLAY_SCALE;
+        }
+    }
+
+    /**
+     * Return the number of recent frames a screenshot picks the best one from, or 1 to always use the current frame.
+     */
+    public static int getCaptureWindow(SharedPreferences pref) {
+        String windowString = pref.getString("capture_window", "1");
+        int window;
+        try {
+            window = Integer.parseInt(windowString);
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid capture window: " + windowString, e);
+            return 1;
+        }
+        if (window >= 1 && window <= FrameRing.MAX_CAPACITY) {
+            return window;
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * Return the metrics automatic capture looks for peaks in. Defaults to JOY.
+     */
+    public static MetricsManager.Metrics[] getAutoCaptureMetrics(SharedPreferences pref) {
+        Set<String> defaultMetrics = Collections.singleton(MetricsManager.Emotions.JOY.name());
+        Set<String> metricStrings = pref.getStringSet("auto_capture_metrics", defaultMetrics);
+        List<MetricsManager.Metrics> metrics = new ArrayList<>();
+        for (String metricString : metricStrings) {
+            try {
+                metrics.add(parseSavedMetric(metricString));
+            } catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Invalid auto capture metric: " + metricString, e);
+            }
+        }
+        if (metrics.isEmpty()) {
+            metrics.add(MetricsManager.Emotions.JOY);
+        }
+        return metrics.toArray(new MetricsManager.Metrics[metrics.size()]);
+    }
+
+    /**
+     * Return how far, in score points, a metric has to rise and fall again to count as a peak.
+     */
+    public static float getAutoCaptureProminence(SharedPreferences pref) {
+        return getFloatInRange(pref, "auto_capture_prominence", PeakCapture.DEFAULT_PROMINENCE, 1, 100);
+    }
+
+    /**
+     * Return the minimum number of seconds between automatic captures of the same metric.
+     */
+    public static float getAutoCaptureSpacing(SharedPreferences pref) {
+        return getFloatInRange(pref, "auto_capture_spacing", PeakCapture.DEFAULT_MIN_SPACING, 0, 3600);
+    }
+
+    /**
+     * Return the maximum number of automatic captures per session.
+     */
+    public static int getAutoCaptureLimit(SharedPreferences pref) {
+        return Math.round(getFloatInRange(pref, "auto_capture_limit", PeakCapture.DEFAULT_SESSION_LIMIT, 1, 1000));
+    }
+
+    private static float getFloatInRange(SharedPreferences pref, String key, float defaultValue, float min, float max) {
+        String valueString = pref.getString(key, String.valueOf(defaultValue));
+        try {
+            float value = Float.parseFloat(valueString);
+            if (value >= min && value <= max) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Invalid value for " + key + ": " + valueString, e);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Return the image format screenshots are saved in. Defaults to PNG, which is lossless.
+     */
+    public static Bitmap.CompressFormat getCaptureFormat(SharedPreferences pref) {
+        String formatString = pref.getString("capture_format", Bitmap.CompressFormat.PNG.name());
+        try {
+            return Bitmap.CompressFormat.valueOf(formatString);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Invalid capture format: " + formatString, e);
+            return Bitmap.CompressFormat.PNG;
+        }
+    }
+
+    /**
+     * Return the format of exported metrics. If the format is invalid, we use CSV.
+     */
+    public static MetricsExporter.Format getExportFormat(SharedPreferences pref) {
+        String formatString = pref.getString("export_format", MetricsExporter.Format.CSV.name());
+        try {
+            return MetricsExporter.Format.valueOf(formatString);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Invalid export format: " + formatString, e);
+            return MetricsExporter.Format.CSV;
+        }
+    }
+
+    /**
+     * Return the quality, from 1 to 100, for lossy screenshot formats. If the quality is invalid, we set it to be the default quality.
+     */
+    public static int getCaptureQuality(SharedPreferences pref) {
+        String qualityString = pref.getString("capture_quality", String.valueOf(DEFAULT_CAPTURE_QUALITY));
+        int quality;
+        try {
+            quality = Integer.parseInt(qualityString);
+        } catch (NumberFormatException e) {
+            quality = -1;
+        }
+        if (quality < 1 || quality > 100) {
+            SharedPreferences.Editor editor = pref.edit();
+            editor.putString("capture_quality", String.valueOf(DEFAULT_CAPTURE_QUALITY));
+            editor.commit();
+            return DEFAULT_CAPTURE_QUALITY;
+        }
+        return quality;
+    }
+
     private static void saveFrameProcessingRate(SharedPreferences pref, int rate) {
         SharedPreferences.Editor editor = pref.edit();
         editor.putString("rate", String.valueOf(rate));
         editor.commit();
     }
 
+    /**
+     * Return the metrics the user chose to display, in order and without duplicates. Before a choice is saved,
+     * the DEFAULT_METRIC_COUNT default metrics are returned.
+     */
+    public static List<MetricsManager.Metrics> getSelectedMetrics(SharedPreferences pref) {
+        int count = pref.getInt("metric_display_count", DEFAULT_METRIC_COUNT);
+        if (count < 1 || count > MetricsManager.getAllMetrics().length) {
+            count = DEFAULT_METRIC_COUNT;
+        }
+        List<MetricsManager.Metrics> metrics = new ArrayList<>(count);
+        for (int n = 0; n < count; n++) {
+            MetricsManager.Metrics metric = getMetricFromPrefs(pref, n);
+            if (!metrics.contains(metric)) {
+                metrics.add(metric);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Save the metrics to display. If the list is empty, the defaults are displayed.
+     */
+    public static void saveSelectedMetrics(SharedPreferences.Editor editor, List<MetricsManager.Metrics> metrics) {
+        if (metrics.isEmpty()) {
+            editor.remove("metric_display_count");
+            return;
+        }
+        editor.putInt("metric_display_count", metrics.size());
+        for (int n = 0; n < metrics.size(); n++) {
+            saveMetricToPrefs(editor, n, metrics.get(n));
+        }
+    }
+
     public static MetricsManager.Metrics getMetricFromPrefs(SharedPreferences pref, int index) {
         MetricsManager.Metrics metric;
         try {
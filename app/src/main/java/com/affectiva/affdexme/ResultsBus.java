@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the faces of every processed frame from onImageResults() to several consumers, each running on a thread of
+ * its own, so their cost is not added to the thread the detector calls back on.
+ * <p>
+ * Frames are copied into a preallocated ring of slots, in the manner of a Disruptor: there is one producer, which
+ * numbers the frames with an increasing sequence, and each consumer tracks the sequence of the last frame it has
+ * handled. The ring itself takes no lock and nothing is allocated per frame. Each consumer copies a slot into
+ * FaceData of its own before handling it, so the slot can be reused as soon as the copy is made.
+ * <p>
+ * A consumer that cannot keep up is dealt with according to its Policy, without affecting the other consumers:
+ * BLOCK makes the producer wait for it, for MAX_BLOCK_NANOS at most, DROP lets the producer overwrite the frames it
+ * has not read yet, and SKIP_TO_LATEST makes it skip straight to the newest frame whenever it is behind. The lag of
+ * a consumer is the number of frames published that it has not handled yet.
+ * <p>
+ * Consumers are added before start(). publish() must always be called from the same thread. When the bus is given a
+ * PipelineStage, its consumers run at the stage's priority and report the time they take to handle each frame, which
+ * takes the stage's lock for a moment on their own threads, and the producer reports the lag of the slowest consumer
+ * as the stage's queue depth, which does not.
+ */
+public class ResultsBus {
+
+    static final int DEFAULT_CAPACITY = 64; //about 2 seconds at 30 FPS
+    static final int MAX_FACES = MainActivity.MAX_SUPPORTED_FACES;
+    private static final long PRODUCER_PARK_NANOS = 50000; //how long the producer sleeps between checks of a blocking consumer
+    static final long MAX_BLOCK_NANOS = 16000000; //a display frame, since the producer may be the UI thread
+    private static final long IDLE = Long.MIN_VALUE; //the sequence a consumer is reading when it is not reading a slot
+    private final static String LOG_TAG = "AffdexMe";
+
+    /**
+     * What to do with a consumer that falls behind the producer.
+     */
+    public enum Policy {
+        BLOCK, //the producer waits, up to MAX_BLOCK_NANOS, until the consumer has read the slot it is about to reuse
+        DROP, //the consumer loses the frames that are overwritten before it reads them
+        SKIP_TO_LATEST //the consumer only reads the newest frame, skipping any older ones still waiting
+    }
+
+    /**
+     * Handles the frames of a consumer, on the consumer's thread.
+     */
+    public interface Listener {
+        /**
+         * A frame was copied into the first faceCount elements of faces, which are reused for the next frame.
+         * timeMillis is the SystemClock.elapsedRealtime() given to publish().
+         */
+        void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount);
+    }
+
+    private static class Slot {
+        volatile long sequence = -1; //-1 while the slot is written
+        final FaceData[] faces = new FaceData[MAX_FACES];
+        int faceCount;
+        float timestamp;
+        long timeMillis;
+
+        Slot() {
+            for (int n = 0; n < faces.length; n++) {
+                faces[n] = new FaceData();
+            }
+        }
+    }
+
+    /**
+     * A consumer of the bus, with its own thread and its own sequence.
+     */
+    public class Consumer extends Thread {
+        private final Policy policy;
+        private final Listener listener;
+        private final FaceData[] faces = new FaceData[MAX_FACES];
+        private volatile long sequence = -1; //the last frame handled
+        private volatile long reading = IDLE; //the frame being copied out of its slot
+        private volatile boolean isWaiting = false;
+        private volatile boolean isRunning = true;
+        private volatile long droppedFrames = 0;
+        private volatile long maxLag = 0;
+        private volatile long blockedFrames = 0; //frames the producer had to wait for this consumer to publish
+
+        Consumer(String name, Policy policy, Listener listener) {
+            super("ResultsBus " + name);
+            this.policy = policy;
+            this.listener = listener;
+            for (int n = 0; n < faces.length; n++) {
+                faces[n] = new FaceData();
+            }
+        }
+
+        public Policy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * Returns the number of frames published that this consumer has not handled yet.
+         */
+        public long getLag() {
+            return Math.max(0, cursor - sequence);
+        }
+
+        public long getMaxLag() {
+            return maxLag;
+        }
+
+        /**
+         * Returns the number of frames this consumer lost to its policy.
+         */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public long getBlockedFrames() {
+            return blockedFrames;
+        }
+
+        public long getHandledSequence() {
+            return sequence;
+        }
+
+        @Override
+        public void run() {
+            if (stage != null) {
+                stage.joinCurrentThread();
+            }
+            try {
+                consume();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, getName() + " failed", e);
+            } finally {
+                isRunning = false; //so the producer does not wait for it
+            }
+        }
+
+        private void consume() {
+            long next = sequence + 1;
+            while (true) {
+                long available = cursor;
+                if (available < next) {
+                    if (isClosed) {
+                        return; //every frame published has been handled
+                    }
+                    //the producer unparks consumers that are waiting once it has published a frame
+                    isWaiting = true;
+                    if (cursor < next && !isClosed) {
+                        LockSupport.park(this);
+                    }
+                    isWaiting = false;
+                    continue;
+                }
+
+                maxLag = Math.max(maxLag, available - sequence);
+                if (policy == Policy.SKIP_TO_LATEST && available > next) {
+                    droppedFrames += available - next;
+                    next = available;
+                } else if (policy == Policy.DROP && available - next >= slots.length) {
+                    long oldest = available - slots.length + 1;
+                    droppedFrames += oldest - next;
+                    next = oldest;
+                }
+
+                //the producer does not reuse a slot while a consumer is reading it, so the copy is consistent
+                reading = next;
+                Slot slot = slots[(int) (next & mask)];
+                if (slot.sequence != next) {
+                    //overwritten since the cursor was read
+                    reading = IDLE;
+                    droppedFrames++;
+                    sequence = next++;
+                    continue;
+                }
+                int faceCount = slot.faceCount;
+                float timestamp = slot.timestamp;
+                long timeMillis = slot.timeMillis;
+                for (int n = 0; n < faceCount; n++) {
+                    faces[n].set(slot.faces[n]);
+                }
+                reading = IDLE;
+
+                long start = System.nanoTime();
+                listener.onResults(next, timestamp, timeMillis, faces, faceCount);
+                if (stage != null) {
+                    stage.record(System.nanoTime() - start);
+                }
+                sequence = next++;
+            }
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final List<Consumer> consumers = new ArrayList<>();
+    private Consumer[] consumerArray = new Consumer[0]; //iterated by publish() without an Iterator
+    private volatile long cursor = -1; //the last frame published
+    private volatile boolean isClosed = false;
+    private boolean isStarted = false;
+    private PipelineStage stage; //null when the bus is not part of the Pipeline
+
+    public ResultsBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a bus of capacity slots, which must be a power of 2.
+     */
+    public ResultsBus(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Results bus capacity must be a power of 2");
+        }
+        slots = new Slot[capacity];
+        for (int n = 0; n < capacity; n++) {
+            slots[n] = new Slot();
+        }
+        mask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Add a consumer, named for its thread and its statistics. Consumers cannot be added once the bus is started.
+     */
+    public Consumer addConsumer(@NonNull String name, @NonNull Policy policy, @NonNull Listener listener) {
+        if (isStarted) {
+            throw new IllegalStateException("Consumers must be added before the results bus is started");
+        }
+        Consumer consumer = new Consumer(name, policy, listener);
+        consumers.add(consumer);
+        consumerArray = consumers.toArray(new Consumer[consumers.size()]);
+        return consumer;
+    }
+
+    /**
+     * Run the consumers as part of stage. The stage cannot be changed once the bus is started.
+     */
+    public void setPipelineStage(PipelineStage stage) {
+        if (isStarted) {
+            throw new IllegalStateException("The stage must be set before the results bus is started");
+        }
+        this.stage = stage;
+    }
+
+    public List<Consumer> getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * Returns the greatest lag of any consumer right now.
+     */
+    public long getMaxLag() {
+        long maxLag = 0;
+        for (Consumer consumer : consumerArray) {
+            maxLag = Math.max(maxLag, consumer.getLag());
+        }
+        return maxLag;
+    }
+
+    public long getPublishedFrames() {
+        return cursor + 1;
+    }
+
+    public void start() {
+        if (isStarted) {
+            return;
+        }
+        isStarted = true;
+        for (Consumer consumer : consumerArray) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Publish the faces of a processed frame, found at timeMillis. Only the first MAX_FACES faces are published.
+     */
+    public void publish(@NonNull List<Face> frameFaces, float timestamp, long timeMillis) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        int faceCount = Math.min(frameFaces.size(), MAX_FACES);
+        for (int n = 0; n < faceCount; n++) {
+            slot.faces[n].set(frameFaces.get(n));
+        }
+        commit(slot, faceCount, timestamp, timeMillis);
+    }
+
+    /**
+     * Publish the first faceCount faces, as publish(List, float, long) does.
+     */
+    public void publish(@NonNull FaceData[] frameFaces, int faceCount, float timestamp, long timeMillis) {
+        Slot slot = claim();
+        if (slot == null) {
+            return;
+        }
+        faceCount = Math.min(faceCount, MAX_FACES);
+        for (int n = 0; n < faceCount; n++) {
+            slot.faces[n].set(frameFaces[n]);
+        }
+        commit(slot, faceCount, timestamp, timeMillis);
+    }
+
+    /**
+     * Let the consumers handle every frame published so far, then stop their threads.
+     */
+    public void close() {
+        isClosed = true;
+        for (Consumer consumer : consumerArray) {
+            LockSupport.unpark(consumer);
+        }
+        for (Consumer consumer : consumerArray) {
+            if (!isStarted) {
+                break;
+            }
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Log.i(LOG_TAG, consumer.getName() + ": " + consumer.getDroppedFrames() + " frames dropped, max lag "
+                    + consumer.getMaxLag() + ", blocked the producer " + consumer.getBlockedFrames() + " times");
+        }
+    }
+
+    //returns the slot of the next frame, once no consumer needs it any more, or null if the bus is closed
+    private Slot claim() {
+        if (isClosed) {
+            return null;
+        }
+        long sequence = cursor + 1;
+        long wrapPoint = sequence - slots.length; //the frame in the slot being reused
+        long deadline = 0;
+        for (Consumer consumer : consumerArray) {
+            if (consumer.policy == Policy.BLOCK && consumer.sequence < wrapPoint && consumer.isRunning) {
+                consumer.blockedFrames++;
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + MAX_BLOCK_NANOS;
+                }
+                //past the deadline the slot is reused anyway, and the consumer counts the frame as dropped
+                while (consumer.sequence < wrapPoint && consumer.isRunning && System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+                }
+            }
+        }
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.sequence = -1;
+        //a consumer that read the old sequence before it was cleared is still copying the slot, which takes microseconds
+        for (Consumer consumer : consumerArray) {
+            while (consumer.reading == wrapPoint) {
+                Thread.yield();
+            }
+        }
+        return slot;
+    }
+
+    private void commit(Slot slot, int faceCount, float timestamp, long timeMillis) {
+        long sequence = cursor + 1;
+        slot.faceCount = faceCount;
+        slot.timestamp = timestamp;
+        slot.timeMillis = timeMillis;
+        slot.sequence = sequence;
+        cursor = sequence;
+        for (Consumer consumer : consumerArray) {
+            if (consumer.isWaiting) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        if (stage != null) {
+            stage.reportQueueDepth((int) getMaxLag());
+        }
+    }
+}
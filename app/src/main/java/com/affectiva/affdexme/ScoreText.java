@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+/**
+ * Formats the numbers shown on screen every frame without allocating, for use with the char[] versions of
+ * Canvas.drawText() and TextView.setText(), and the numbers written by MetricsExporter. String.format() creates a Formatter, looks up the locale and
+ * allocates several objects per call, which adds up to a lot of garbage on the UI and drawing threads.
+ */
+final class ScoreText {
+
+    static final int MIN_PERCENT = -100;
+    static final int MAX_PERCENT = 100;
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+    private static final char[][] PERCENT_TEXT = new char[MAX_PERCENT - MIN_PERCENT + 1][]; //"-100%" to "100%"
+
+    static {
+        for (int n = 0; n < PERCENT_TEXT.length; n++) {
+            PERCENT_TEXT[n] = ((n + MIN_PERCENT) + "%").toCharArray();
+        }
+    }
+
+    private ScoreText() {
+    }
+
+    /**
+     * Returns the text of a score rounded to a whole percent, like "87%". Scores outside [-100, 100] are clamped.
+     * The array is shared and must not be modified.
+     */
+    static char[] getPercentText(float score) {
+        return getPercentText(Math.round(score));
+    }
+
+    static char[] getPercentText(int score) {
+        return PERCENT_TEXT[Math.max(MIN_PERCENT, Math.min(MAX_PERCENT, score)) - MIN_PERCENT];
+    }
+
+    /**
+     * Writes value with one decimal into buffer at offset, like String.format("%.1f") in an English locale
+     * (rounding half up), and returns the offset after the last character written.
+     */
+    static int appendFixed1(char[] buffer, int offset, float value) {
+        return appendFixed(buffer, offset, value, 1);
+    }
+
+    /**
+     * Writes value with the given number of decimals (at most 9) into buffer at offset, and returns the offset
+     * after the last character written.
+     */
+    static int appendFixed(char[] buffer, int offset, double value, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(value * scale);
+        if (scaled < 0) {
+            buffer[offset++] = '-';
+            scaled = -scaled;
+        }
+        offset = appendInt(buffer, offset, scaled / scale);
+        if (decimals > 0) {
+            buffer[offset++] = '.';
+            long fraction = scaled % scale;
+            for (int n = decimals - 1; n >= 0; n--) {
+                buffer[offset + n] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            offset += decimals;
+        }
+        return offset;
+    }
+
+    /**
+     * Writes a non-negative integer into buffer at offset and returns the offset after the last digit.
+     */
+    static int appendInt(char[] buffer, int offset, long value) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int n = digits - 1; n >= 0; n--) {
+            buffer[offset + n] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    /**
+     * Copies text into buffer at offset and returns the offset after it.
+     */
+    static int appendText(char[] buffer, int offset, String text) {
+        text.getChars(0, text.length(), buffer, offset);
+        return offset + text.length();
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws a screenshot, the camera frame with the overlay and metrics captures scaled over it, a few rows at a time.
+ * Used as a PngEncoder.RowSource, the composite is rendered into small tile bitmaps as the encoder asks for rows,
+ * so neither the rotated camera frame nor the full size composite ever exists in memory. The encoder asks for rows
+ * from several threads at once, so each call renders into its own tile; tiles are pooled and reused.
+ * <p>
+ * Tiles always start at a multiple of TILE_ROWS, whichever rows are asked for, so every row of the screenshot is
+ * drawn by the same draw calls each time. The encoder asks for some rows twice, to prime the dictionary of a stripe
+ * with the end of the stripe before it, and the filtered scaling and rotation of the frame are not guaranteed to
+ * come out the same when drawn at another offset.
+ * Formats that can only be encoded from a whole bitmap use compose() instead.
+ */
+class ScreenshotComposer implements PngEncoder.RowSource {
+
+    static final int TILE_ROWS = 64;
+
+    private final Bitmap frameBitmap;
+    private final Bitmap drawingViewBitmap;
+    private final Bitmap metricsBitmap;
+    private final Matrix frameMatrix = new Matrix();
+    private final Rect drawingViewRect;
+    private final Rect metricsRect;
+    private final int width;
+    private final int height;
+    private final List<Tile> tilePool = new ArrayList<>();
+
+    /**
+     * @param frameBitmap       - The camera frame, not yet rotated
+     * @param rotation          - The clockwise rotation of the frame, a multiple of 90 degrees
+     * @param drawingViewBitmap - The overlay capture, or null to draw the frame alone
+     * @param metricsBitmap     - The metrics capture, or null if the metrics are not shown
+     */
+    ScreenshotComposer(@NonNull Bitmap frameBitmap, double rotation, @Nullable Bitmap drawingViewBitmap, @Nullable Bitmap metricsBitmap) {
+        this.frameBitmap = frameBitmap;
+        this.drawingViewBitmap = drawingViewBitmap;
+        this.metricsBitmap = metricsBitmap;
+
+        //rotate about the origin, then move the rotated frame back to the top left corner
+        int degrees = ((int) Math.round(rotation) % 360 + 360) % 360;
+        int frameWidth = frameBitmap.getWidth();
+        int frameHeight = frameBitmap.getHeight();
+        frameMatrix.postRotate(degrees);
+        switch (degrees) {
+            case 90:
+                frameMatrix.postTranslate(frameHeight, 0);
+                break;
+            case 180:
+                frameMatrix.postTranslate(frameWidth, frameHeight);
+                break;
+            case 270:
+                frameMatrix.postTranslate(0, frameWidth);
+                break;
+            default:
+                break;
+        }
+        boolean isSideways = degrees == 90 || degrees == 270;
+        width = isSideways ? frameHeight : frameWidth;
+        height = isSideways ? frameWidth : frameHeight;
+
+        drawingViewRect = drawingViewBitmap == null ? null : getScaledRect(drawingViewBitmap);
+        metricsRect = metricsBitmap == null ? null : getScaledRect(metricsBitmap);
+    }
+
+    //the captures are scaled to the width of the screenshot and drawn at the top
+    private Rect getScaledRect(Bitmap capture) {
+        float scaleFactor = ((float) width) / ((float) capture.getWidth());
+        return new Rect(0, 0, width, Math.round(capture.getHeight() * scaleFactor));
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean hasAlpha() {
+        return frameBitmap.hasAlpha();
+    }
+
+    @Override
+    public void getRows(int firstRow, int rowCount, int[] argb) {
+        Tile tile = obtainTile();
+        try {
+            int endRow = firstRow + rowCount;
+            for (int tileRow = firstRow - firstRow % TILE_ROWS; tileRow < endRow; tileRow += TILE_ROWS) {
+                //the frame covers the whole tile, so there is no need to clear it first
+                tile.canvas.save();
+                tile.canvas.translate(0, -tileRow);
+                draw(tile.canvas, tile.paint);
+                tile.canvas.restore();
+                int copyFirstRow = Math.max(firstRow, tileRow);
+                int copyEndRow = Math.min(endRow, tileRow + TILE_ROWS);
+                tile.bitmap.getPixels(argb, (copyFirstRow - firstRow) * width, width,
+                        0, copyFirstRow - tileRow, width, copyEndRow - copyFirstRow);
+            }
+        } finally {
+            releaseTile(tile);
+        }
+    }
+
+    /**
+     * Draw the whole screenshot into a new bitmap.
+     */
+    Bitmap compose() {
+        Bitmap screenshot = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        draw(new Canvas(screenshot), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return screenshot;
+    }
+
+    private void draw(Canvas canvas, Paint paint) {
+        canvas.drawBitmap(frameBitmap, frameMatrix, paint);
+        if (drawingViewBitmap != null) {
+            canvas.drawBitmap(drawingViewBitmap, null, drawingViewRect, paint);
+        }
+        if (metricsBitmap != null) {
+            canvas.drawBitmap(metricsBitmap, null, metricsRect, paint);
+        }
+    }
+
+    private Tile obtainTile() {
+        synchronized (tilePool) {
+            if (!tilePool.isEmpty()) {
+                return tilePool.remove(tilePool.size() - 1);
+            }
+        }
+        return new Tile(Bitmap.createBitmap(width, Math.min(TILE_ROWS, height), Bitmap.Config.ARGB_8888));
+    }
+
+    private void releaseTile(Tile tile) {
+        synchronized (tilePool) {
+            tilePool.add(tile);
+        }
+    }
+
+    /**
+     * Recycle the pooled tiles. The bitmaps passed to the constructor are not touched.
+     */
+    void release() {
+        synchronized (tilePool) {
+            for (Tile tile : tilePool) {
+                tile.bitmap.recycle();
+            }
+            tilePool.clear();
+        }
+    }
+
+    private static class Tile {
+        final Bitmap bitmap;
+        final Canvas canvas;
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        Tile(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            canvas = new Canvas(bitmap);
+        }
+    }
+}
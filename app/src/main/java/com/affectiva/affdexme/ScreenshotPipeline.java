@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import com.affectiva.android.affdex.sdk.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Composes and saves screenshots on the I/O stage of the Pipeline, so taking one does not freeze the camera preview.
+ * The UI thread only captures what has to be captured there (a copy of the camera frame and the metric views)
+ * and submits it as a Job. Jobs run one at a time. At most MAX_PENDING_JOBS jobs wait behind the running one;
+ * submitting more is refused, rather than letting a burst of taps queue up screenshots (and their bitmaps)
+ * without bound. Results are delivered to the Listener on the UI thread.
+ */
+public class ScreenshotPipeline {
+
+    static final int MAX_PENDING_JOBS = 2;
+    private final static String LOG_TAG = "AffdexMe";
+
+    interface Listener {
+        void onScreenshotSaved(@NonNull File screenshotFile);
+
+        void onScreenshotFailed(@NonNull String message);
+    }
+
+    /**
+     * Everything needed to produce one screenshot. The pipeline takes ownership of the bitmaps and recycles them.
+     */
+    static class Job {
+        final Frame frame; //must not be modified after submitting, see ImageHelper.copyFrame()
+        final Bitmap drawingViewBitmap;
+        final Bitmap metricsBitmap; //null when the metrics are not shown
+        final boolean alsoSaveRaw;
+        final Bitmap.CompressFormat format;
+        final int quality; //ignored for PNG
+        final String label; //appended to the file name, or null
+        final long captureMillis; //time spent capturing the job on the UI thread
+        long submitTime;
+
+        Job(@NonNull Frame frame, @NonNull Bitmap drawingViewBitmap, @Nullable Bitmap metricsBitmap, boolean alsoSaveRaw,
+            @NonNull Bitmap.CompressFormat format, int quality, @Nullable String label, long captureMillis) {
+            this.frame = frame;
+            this.drawingViewBitmap = drawingViewBitmap;
+            this.metricsBitmap = metricsBitmap;
+            this.alsoSaveRaw = alsoSaveRaw;
+            this.format = format;
+            this.quality = quality;
+            this.label = label;
+            this.captureMillis = captureMillis;
+        }
+
+        void recycle() {
+            drawingViewBitmap.recycle();
+            if (metricsBitmap != null) {
+                metricsBitmap.recycle();
+            }
+        }
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler mainHandler;
+    private final PipelineStage stage;
+    private int jobCount = 0; //jobs submitted and not finished, guarded by this
+    private boolean isShutdown = false;
+
+    public ScreenshotPipeline(@NonNull Context context, @NonNull Listener listener, @NonNull PipelineStage stage) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.stage = stage;
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Queue a job. Returns false, and recycles the job's bitmaps, if the queue is full or the pipeline was shut down.
+     */
+    public boolean submit(@NonNull final Job job) {
+        job.submitTime = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (isShutdown || jobCount > MAX_PENDING_JOBS) {
+                Log.w(LOG_TAG, "Screenshot pipeline is busy, dropping screenshot");
+                job.recycle();
+                return false;
+            }
+            jobCount++;
+        }
+        boolean isPosted = stage.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    process(job);
+                } finally {
+                    synchronized (ScreenshotPipeline.this) {
+                        jobCount--;
+                    }
+                }
+            }
+        });
+        if (!isPosted) {
+            synchronized (this) {
+                jobCount--;
+            }
+            job.recycle();
+        }
+        return isPosted;
+    }
+
+    /**
+     * Number of jobs waiting to run, not counting the one running.
+     */
+    public synchronized int getPendingJobCount() {
+        return Math.max(0, jobCount - 1);
+    }
+
+    /**
+     * Stop accepting jobs. Jobs already submitted still finish.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+    }
+
+    private void process(Job job) {
+        long startTime = SystemClock.elapsedRealtime();
+        long queueMillis = startTime - job.submitTime;
+        Bitmap faceBitmap = null;
+
+        try {
+            String timestamp = DateFormat.format("yyyy-MM-dd_hh-mm-ss", new Date()).toString();
+            if (job.label != null) {
+                timestamp += "_" + job.label;
+            }
+            File pictureFolder = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "AffdexMe");
+            if (!pictureFolder.exists()) {
+                if (!pictureFolder.mkdir()) {
+                    Log.e(LOG_TAG, "Unable to create directory: " + pictureFolder.getAbsolutePath());
+                    postFailure("Unable to save screenshot");
+                    return;
+                }
+            }
+
+            //stage 1: NV21 camera frames are saved raw straight from the camera buffer, before any conversion
+            boolean isYuvFrame = job.frame instanceof Frame.ByteArrayFrame && job.frame.getColorFormat() == Frame.COLOR_FORMAT.YUV_NV21;
+            File rawScreenshotFile = null;
+            String rawMimeType = null;
+            if (job.alsoSaveRaw && isYuvFrame) {
+                rawScreenshotFile = new File(pictureFolder, timestamp + "_raw.jpg");
+                rawMimeType = "image/jpeg";
+                try {
+                    ImageHelper.saveYuvFrameAsJpeg((Frame.ByteArrayFrame) job.frame, rawScreenshotFile, job.quality);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to save raw screenshot", e);
+                    rawScreenshotFile = null;
+                }
+            }
+            long rawTime = SystemClock.elapsedRealtime();
+
+            //stage 2: convert the camera frame, leaving the rotation to the composer
+            faceBitmap = ImageHelper.getUnrotatedBitmapFromFrame(job.frame);
+            if (faceBitmap == null) {
+                Log.e(LOG_TAG, "Unable to generate bitmap for frame, aborting screenshot");
+                postFailure("Unable to generate bitmap for frame");
+                return;
+            }
+            long convertedTime = SystemClock.elapsedRealtime();
+
+            //stage 3: draw the overlay and metrics over the frame and encode the result, in tiles where the format allows
+            double rotation = job.frame.getTargetRotation().toDouble();
+            String extension = ImageHelper.getFileExtension(job.format);
+            File screenshotFile = new File(pictureFolder, timestamp + extension);
+            try {
+                save(new ScreenshotComposer(faceBitmap, rotation, job.drawingViewBitmap, job.metricsBitmap), screenshotFile, job);
+                if (job.alsoSaveRaw && !isYuvFrame) {
+                    rawScreenshotFile = new File(pictureFolder, timestamp + "_raw" + extension);
+                    rawMimeType = ImageHelper.getMimeType(job.format);
+                    save(new ScreenshotComposer(faceBitmap, rotation, null, null), rawScreenshotFile, job);
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to save screenshot", e);
+                postFailure("Unable to save screenshot");
+                return;
+            }
+            long encodedTime = SystemClock.elapsedRealtime();
+
+            //stage 4: make the files visible in the gallery
+            ImageHelper.addImageToGallery(context, screenshotFile, ImageHelper.getMimeType(job.format));
+            if (rawScreenshotFile != null) {
+                ImageHelper.addImageToGallery(context, rawScreenshotFile, rawMimeType);
+            }
+            long finishedTime = SystemClock.elapsedRealtime();
+
+            Log.d(LOG_TAG, String.format(Locale.US, "Screenshot timings (ms): capture %d, queued %d, raw %d, convert %d, compose and encode %d, gallery %d, total %d",
+                    job.captureMillis, queueMillis, rawTime - startTime,
+                    convertedTime - rawTime, encodedTime - convertedTime, finishedTime - encodedTime,
+                    job.captureMillis + finishedTime - job.submitTime));
+            postSuccess(screenshotFile);
+        } finally {
+            job.recycle();
+            if (faceBitmap != null) {
+                faceBitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * PNGs are rendered tile by tile as the encoder consumes them. Bitmap.compress() needs the whole image,
+     * so the other formats, and PNGs on devices PngEncoder does not support, are composed into a full bitmap first.
+     */
+    private static void save(ScreenshotComposer composer, File file, Job job) throws IOException {
+        try {
+            if (job.format == Bitmap.CompressFormat.PNG && PngEncoder.isSupported()) {
+                new PngEncoder().encode(composer, composer.getWidth(), composer.getHeight(), composer.hasAlpha(), file);
+            } else {
+                Bitmap screenshot = composer.compose();
+                try {
+                    ImageHelper.saveBitmapToFile(screenshot, file, job.format, job.quality);
+                } finally {
+                    screenshot.recycle();
+                }
+            }
+        } finally {
+            composer.release();
+        }
+    }
+
+    private void postSuccess(final File screenshotFile) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onScreenshotSaved(screenshotFile);
+            }
+        });
+    }
+
+    private void postFailure(final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onScreenshotFailed(message);
+            }
+        });
+    }
+}
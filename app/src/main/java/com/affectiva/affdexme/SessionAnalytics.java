@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes SessionStatistics over many recorded sessions in parallel.
+ * The sessions are split into chunks of consecutive sessions, a few per thread so threads that get short sessions
+ * are not left idle, and each chunk is aggregated into its own SessionStatistics on a thread pool. The chunk
+ * results are then merged pairwise, like the join step of fork-join, on the calling thread.
+ * ForkJoinPool would split the work the same way, but it needs API 21 and this app supports API 16, so the chunks
+ * are split up front and run on a fixed pool instead. This class only uses plain Java, so it can be run off the device
+ * against generated data.
+ */
+public class SessionAnalytics {
+
+    static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The statistics of an analysis, and how long it took.
+     */
+    public static class Result {
+        final SessionStatistics statistics;
+        final long elapsedNanos;
+        final int threadCount;
+
+        Result(SessionStatistics statistics, long elapsedNanos, int threadCount) {
+            this.statistics = statistics;
+            this.elapsedNanos = elapsedNanos;
+            this.threadCount = threadCount;
+        }
+
+        public SessionStatistics getStatistics() {
+            return statistics;
+        }
+
+        public double getFramesPerSecond() {
+            return statistics.getFrameCount() / (elapsedNanos / 1e9);
+        }
+
+        public double getFramesPerSecondPerCore() {
+            return getFramesPerSecond() / threadCount;
+        }
+    }
+
+    private final int threadCount;
+    private final float[] minScores;
+    private final TimeZone timeZone;
+
+    /**
+     * Create an engine using threadCount threads, for metrics whose scores range from minScores[m] to 100.
+     * Hours of the day are counted in timeZone.
+     */
+    public SessionAnalytics(int threadCount, float[] minScores, TimeZone timeZone) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.threadCount = threadCount;
+        this.minScores = minScores.clone();
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Returns the lowest score of each metric of MetricsManager.getAllMetrics(), for the constructor.
+     */
+    static float[] getMinScores() {
+        MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+        float[] minScores = new float[metrics.length];
+        for (int m = 0; m < metrics.length; m++) {
+            minScores[m] = FaceDataCodec.isSigned(metrics[m]) ? -100 : 0;
+        }
+        return minScores;
+    }
+
+    /**
+     * Aggregate every session of source. With a single thread, this runs on the calling thread.
+     */
+    public Result analyze(final FrameSource source) throws IOException {
+        long start = System.nanoTime();
+        int sessionCount = source.getSessionCount();
+        int chunkCount = Math.max(1, Math.min(sessionCount, threadCount * CHUNKS_PER_THREAD));
+
+        List<ChunkTask> chunks = new ArrayList<>(chunkCount);
+        for (int n = 0; n < chunkCount; n++) {
+            chunks.add(new ChunkTask(source, n * sessionCount / chunkCount, (n + 1) * sessionCount / chunkCount));
+        }
+
+        List<SessionStatistics> results = new ArrayList<>(chunkCount);
+        if (threadCount == 1) {
+            for (ChunkTask chunk : chunks) {
+                results.add(chunk.call());
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SessionAnalytics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                List<Future<SessionStatistics>> futures = executor.invokeAll(chunks);
+                for (Future<SessionStatistics> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while analyzing sessions");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Unable to analyze sessions", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        //merge neighbours pairwise until one is left
+        while (results.size() > 1) {
+            List<SessionStatistics> merged = new ArrayList<>((results.size() + 1) / 2);
+            for (int n = 0; n < results.size(); n += 2) {
+                SessionStatistics statistics = results.get(n);
+                if (n + 1 < results.size()) {
+                    statistics.merge(results.get(n + 1));
+                }
+                merged.add(statistics);
+            }
+            results = merged;
+        }
+        return new Result(results.get(0), System.nanoTime() - start, threadCount);
+    }
+
+    /**
+     * Aggregates sessions from firstSession up to, not including, endSession.
+     */
+    private class ChunkTask implements Callable<SessionStatistics>, FrameSource.Sink {
+        private final FrameSource source;
+        private final int firstSession;
+        private final int endSession;
+        private final SessionStatistics statistics = new SessionStatistics(minScores);
+        //the hour of the day changes rarely, so its time zone offset is only looked up when the hour ends
+        private long hourStartMillis = Long.MAX_VALUE;
+        private long hourEndMillis = Long.MIN_VALUE;
+        private int hourOfDay;
+
+        ChunkTask(FrameSource source, int firstSession, int endSession) {
+            this.source = source;
+            this.firstSession = firstSession;
+            this.endSession = endSession;
+        }
+
+        @Override
+        public SessionStatistics call() throws IOException {
+            for (int session = firstSession; session < endSession; session++) {
+                source.read(session, this);
+            }
+            return statistics;
+        }
+
+        @Override
+        public void onFrame(long wallClockMillis, float[] scores) {
+            if (wallClockMillis < hourStartMillis || wallClockMillis >= hourEndMillis) {
+                hourOfDay = SessionStatistics.getHourOfDay(wallClockMillis, timeZone);
+                long hourMillis = 60 * 60 * 1000;
+                hourStartMillis = wallClockMillis - (wallClockMillis + timeZone.getOffset(wallClockMillis)) % hourMillis;
+                hourEndMillis = hourStartMillis + hourMillis;
+            }
+            statistics.add(scores, hourOfDay);
+        }
+    }
+}
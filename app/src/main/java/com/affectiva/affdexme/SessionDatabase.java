@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The on-device store of the per-frame scores of recorded sessions, written by SessionRecorder.
+ * The schema is narrow: a row per session, and a row per score holding the session, the time since the session
+ * started, the metric ordinal (its index in MetricsManager.getAllMetrics()) and the score. Metrics that were not
+ * detected in a frame have no row. The scores are indexed by session, metric and time, which serves both the
+ * aggregates of one metric over a session and the search for the first time a metric crossed a threshold.
+ * The database uses write-ahead logging, so queries can run while a session is being written.
+ */
+public class SessionDatabase extends SQLiteOpenHelper {
+
+    static final String DATABASE_NAME = "sessions.db";
+    private static final int DATABASE_VERSION = 1;
+
+    static final String INSERT_SESSION = "INSERT OR IGNORE INTO sessions (id) VALUES (?)";
+    static final String INSERT_SCORE = "INSERT INTO scores (session, time_millis, metric, score) VALUES (?, ?, ?, ?)";
+
+    public SessionDatabase(@NonNull Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    SessionDatabase(@NonNull Context context, @NonNull String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        //a session id is the wall clock time it started at, in milliseconds
+        db.execSQL("CREATE TABLE sessions (id INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TABLE scores (session INTEGER NOT NULL, time_millis INTEGER NOT NULL, metric INTEGER NOT NULL, score REAL NOT NULL)");
+        db.execSQL("CREATE INDEX scores_by_metric ON scores (session, metric, time_millis)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //there is only one version so far
+    }
+
+    /**
+     * Returns the ids of the recorded sessions, most recent first.
+     */
+    @NonNull
+    public List<Long> getSessionIds() {
+        List<Long> sessionIds = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT id FROM sessions ORDER BY id DESC", null);
+        try {
+            while (cursor.moveToNext()) {
+                sessionIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return sessionIds;
+    }
+
+    /**
+     * Returns the average score of metric over a session, or NaN if the session has no scores of the metric.
+     */
+    public float getAverageScore(long sessionId, @NonNull MetricsManager.Metrics metric) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT AVG(score) FROM scores WHERE session = ? AND metric = ?",
+                new String[]{String.valueOf(sessionId), String.valueOf(MetricsManager.getIndex(metric))});
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getFloat(0) : Float.NaN;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the time since the start of a session at which metric first scored above threshold, in milliseconds,
+     * or -1 if it never did.
+     */
+    public long getFirstTimeAbove(long sessionId, @NonNull MetricsManager.Metrics metric, float threshold) {
+        //the index is in time order for a session and metric, so this stops at the first match
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT time_millis FROM scores WHERE session = ? AND metric = ? AND score > ? ORDER BY time_millis LIMIT 1",
+                new String[]{String.valueOf(sessionId), String.valueOf(MetricsManager.getIndex(metric)), String.valueOf(threshold)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a cursor over the time_millis, metric and score of every score of a session, in time order, so the
+     * scores of a frame are on consecutive rows. The cursor must be closed.
+     */
+    @NonNull
+    public Cursor queryScores(long sessionId) {
+        return getReadableDatabase().rawQuery("SELECT time_millis, metric, score FROM scores WHERE session = ? ORDER BY time_millis",
+                new String[]{String.valueOf(sessionId)});
+    }
+
+    public void deleteSession(long sessionId) {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] args = {String.valueOf(sessionId)};
+        db.beginTransaction();
+        try {
+            db.delete("scores", "session = ?", args);
+            db.delete("sessions", "id = ?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
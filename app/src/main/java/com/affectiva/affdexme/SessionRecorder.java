@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Records the scores of every metric for each processed frame into a SessionDatabase.
+ * Recording a frame only copies its scores into a ring of preallocated slots, which a background writer thread
+ * drains in batches, one transaction per batch with a precompiled insert statement. The results path therefore
+ * never waits for the disk: if the writer falls so far behind that the ring is full, the frame is dropped and counted.
+ * Nor does stopping: the writer writes the frames still waiting on its own, and is joined on the pipeline stage, so a
+ * recorder started again right away gets a new writer that waits for the old one before it writes.
+ */
+public class SessionRecorder {
+
+    static final int FRAME_CAPACITY = 300; //10 seconds at 30 FPS
+    static final int BATCH_FRAMES = 30; //the writer wakes up when this many frames are waiting...
+    static final long BATCH_MILLIS = 500; //...or after this long
+    private final static String LOG_TAG = "AffdexMe";
+
+    private final SessionDatabase database;
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+
+    //the ring of frames waiting to be written, guarded by lock. Slots from head to head + count are waiting.
+    private final Object lock = new Object();
+    private final long[] frameSessions = new long[FRAME_CAPACITY];
+    private final long[] frameTimes = new long[FRAME_CAPACITY];
+    private final float[] frameScores;
+    private int head = 0;
+    private int count = 0;
+    private boolean isRunning = false;
+    private int generation = 0; //counts the starts, so the writer of a stopped recorder ends even if it was started again
+
+    private long sessionId = -1;
+    private long sessionStartMillis;
+    private int droppedFrames = 0;
+    private int writtenFrames = 0;
+    private int maxBacklog = 0;
+    private Thread writerThread; //the latest writer thread, which may still be writing after stop()
+    private volatile PipelineStage stage; //the stage the writer thread belongs to and is joined on, or null
+
+    public SessionRecorder(@NonNull SessionDatabase database) {
+        this.database = database;
+        frameScores = new float[FRAME_CAPACITY * metrics.length];
+    }
+
+    /**
+     * Run the writer thread at the priority of stage, report each batch it writes to it, and join it on the stage's
+     * thread when stopped. Takes effect the next time the writer thread is started.
+     */
+    public void setPipelineStage(PipelineStage stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Start the writer thread and a new session, whose times are counted from startMillis, a monotonic time such
+     * as SystemClock.elapsedRealtime(). Returns the id of the session.
+     */
+    public long start(long startMillis) {
+        synchronized (lock) {
+            sessionId = System.currentTimeMillis();
+            sessionStartMillis = startMillis;
+            if (!isRunning) {
+                isRunning = true;
+                final int writerGeneration = ++generation;
+                final Thread previousWriter = writerThread;
+                writerThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        join(previousWriter); //only one writer drains the ring at a time
+                        writeFrames(writerGeneration);
+                    }
+                }, "SessionRecorder");
+                writerThread.start();
+            }
+            return sessionId;
+        }
+    }
+
+    /**
+     * Stop taking frames. The writer thread writes the frames still waiting, at most a few seconds worth, and ends.
+     * With a pipeline stage set it is joined on the stage's thread, so the caller does not wait for the disk and work
+     * posted to the stage afterwards runs once the frames are written; without one it is joined before returning.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (lock) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+            lock.notify();
+            thread = writerThread;
+        }
+        PipelineStage writerStage = stage;
+        boolean isPosted = writerStage != null && writerStage.post(new Runnable() {
+            @Override
+            public void run() {
+                join(thread);
+            }
+        });
+        if (!isPosted) {
+            join(thread);
+        }
+    }
+
+    /**
+     * Queue the scores of a face found at timeMillis, indexed like MetricsManager.getAllMetrics(). Returns false if
+     * the frame was dropped because the writer is not running or has fallen behind.
+     */
+    public boolean record(@NonNull float[] scores, long timeMillis) {
+        synchronized (lock) {
+            if (!isRunning || count == FRAME_CAPACITY) {
+                droppedFrames++;
+                return false;
+            }
+            int slot = (head + count) % FRAME_CAPACITY;
+            frameSessions[slot] = sessionId;
+            frameTimes[slot] = timeMillis - sessionStartMillis;
+            System.arraycopy(scores, 0, frameScores, slot * metrics.length, metrics.length);
+            count++;
+            maxBacklog = Math.max(maxBacklog, count);
+            if (count == BATCH_FRAMES) {
+                lock.notify();
+            }
+            return true;
+        }
+    }
+
+    public int getDroppedFrames() {
+        synchronized (lock) {
+            return droppedFrames;
+        }
+    }
+
+    public int getWrittenFrames() {
+        synchronized (lock) {
+            return writtenFrames;
+        }
+    }
+
+    public int getMaxBacklog() {
+        synchronized (lock) {
+            return maxBacklog;
+        }
+    }
+
+    private void writeFrames(int writerGeneration) {
+        PipelineStage writerStage = stage;
+        if (writerStage != null) {
+            writerStage.joinCurrentThread();
+        }
+        SQLiteStatement insertSession = null;
+        SQLiteStatement insertScore = null;
+        try {
+            SQLiteDatabase db = database.getWritableDatabase();
+            insertSession = db.compileStatement(SessionDatabase.INSERT_SESSION);
+            insertScore = db.compileStatement(SessionDatabase.INSERT_SCORE);
+
+            while (true) {
+                int first;
+                int batch;
+                boolean isLastBatch;
+                synchronized (lock) {
+                    if (isRunning && generation == writerGeneration && count < BATCH_FRAMES) {
+                        try {
+                            lock.wait(BATCH_MILLIS);
+                        } catch (InterruptedException e) {
+                            isRunning = false;
+                        }
+                    }
+                    //the slots being written are not reused until head moves past them
+                    first = head;
+                    batch = count;
+                    isLastBatch = !isRunning || generation != writerGeneration;
+                }
+
+                if (batch > 0) {
+                    long batchStart = System.nanoTime();
+                    writeBatch(db, insertSession, insertScore, first, batch);
+                    int backlog;
+                    synchronized (lock) {
+                        head = (head + batch) % FRAME_CAPACITY;
+                        count -= batch;
+                        writtenFrames += batch;
+                        backlog = count;
+                    }
+                    if (writerStage != null) {
+                        writerStage.record(System.nanoTime() - batchStart);
+                        writerStage.reportQueueDepth(backlog);
+                    }
+                }
+                if (isLastBatch) {
+                    break;
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Unable to record session", e);
+            synchronized (lock) {
+                if (generation == writerGeneration) {
+                    isRunning = false;
+                }
+            }
+        } finally {
+            if (insertSession != null) {
+                insertSession.close();
+            }
+            if (insertScore != null) {
+                insertScore.close();
+            }
+        }
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeBatch(SQLiteDatabase db, SQLiteStatement insertSession, SQLiteStatement insertScore, int first, int batch) {
+        long lastSessionId = -1;
+        db.beginTransactionNonExclusive();
+        try {
+            for (int n = 0; n < batch; n++) {
+                int slot = (first + n) % FRAME_CAPACITY;
+                if (frameSessions[slot] != lastSessionId) {
+                    lastSessionId = frameSessions[slot];
+                    insertSession.bindLong(1, lastSessionId);
+                    insertSession.executeInsert();
+                }
+
+                int offset = slot * metrics.length;
+                for (int m = 0; m < metrics.length; m++) {
+                    float score = frameScores[offset + m];
+                    if (Float.isNaN(score)) {
+                        continue; //the metric was not detected
+                    }
+                    insertScore.bindLong(1, lastSessionId);
+                    insertScore.bindLong(2, frameTimes[slot]);
+                    insertScore.bindLong(3, m);
+                    insertScore.bindDouble(4, score);
+                    insertScore.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import java.util.TimeZone;
+
+/**
+ * Aggregates of the scores of every metric over any number of frames: count, mean, variance, min and max, a
+ * histogram with bins of half a point from which quantiles are read, and the mean for each hour of the day.
+ * Two SessionStatistics of different frames merge into the statistics of all of them, so frames can be split
+ * between threads and the partial results combined in any order. The mean and variance are kept as a running
+ * mean and sum of squared differences, which merge without the loss of precision of sums of squares.
+ * This class only uses plain Java, so it can be used off the device.
+ */
+public class SessionStatistics {
+
+    static final float MAX_SCORE = 100;
+    static final int BINS_PER_POINT = 2;
+    static final int HOURS = 24;
+
+    private final float[] minScores; //the lowest score of each metric, 0 or -100 for valence
+    private final int metricCount;
+    private long frameCount = 0;
+
+    //per metric
+    private final long[] counts;
+    private final double[] means;
+    private final double[] squaredDifferences;
+    private final float[] mins;
+    private final float[] maxs;
+    private final long[][] histograms;
+
+    //per metric and hour of the day
+    private final double[][] hourSums;
+    private final long[][] hourCounts;
+
+    /**
+     * Create empty statistics of metrics whose scores range from minScores[m] to 100.
+     */
+    public SessionStatistics(float[] minScores) {
+        this.minScores = minScores.clone();
+        metricCount = minScores.length;
+        counts = new long[metricCount];
+        means = new double[metricCount];
+        squaredDifferences = new double[metricCount];
+        mins = new float[metricCount];
+        maxs = new float[metricCount];
+        histograms = new long[metricCount][];
+        hourSums = new double[metricCount][HOURS];
+        hourCounts = new long[metricCount][HOURS];
+        for (int m = 0; m < metricCount; m++) {
+            mins[m] = Float.POSITIVE_INFINITY;
+            maxs[m] = Float.NEGATIVE_INFINITY;
+            histograms[m] = new long[Math.round((MAX_SCORE - minScores[m]) * BINS_PER_POINT) + 1];
+        }
+    }
+
+    /**
+     * Add the scores of a frame taken at hourOfDay, indexed like MetricsManager.getAllMetrics(). NaN scores of
+     * metrics that were not detected are skipped.
+     */
+    public void add(float[] scores, int hourOfDay) {
+        frameCount++;
+        for (int m = 0; m < metricCount; m++) {
+            float score = scores[m];
+            if (Float.isNaN(score)) {
+                continue;
+            }
+            long count = ++counts[m];
+            double delta = score - means[m];
+            means[m] += delta / count;
+            squaredDifferences[m] += delta * (score - means[m]);
+            mins[m] = Math.min(mins[m], score);
+            maxs[m] = Math.max(maxs[m], score);
+            histograms[m][getBin(m, score)]++;
+            hourSums[m][hourOfDay] += score;
+            hourCounts[m][hourOfDay]++;
+        }
+    }
+
+    /**
+     * Add the frames of other to these statistics. Both must be of the same metrics.
+     */
+    public void merge(SessionStatistics other) {
+        if (other.metricCount != metricCount) {
+            throw new IllegalArgumentException("Statistics of different metrics cannot be merged");
+        }
+        frameCount += other.frameCount;
+        for (int m = 0; m < metricCount; m++) {
+            if (other.counts[m] == 0) {
+                continue;
+            }
+            long count = counts[m] + other.counts[m];
+            double delta = other.means[m] - means[m];
+            means[m] += delta * other.counts[m] / count;
+            squaredDifferences[m] += other.squaredDifferences[m] + delta * delta * counts[m] * other.counts[m] / count;
+            counts[m] = count;
+            mins[m] = Math.min(mins[m], other.mins[m]);
+            maxs[m] = Math.max(maxs[m], other.maxs[m]);
+            for (int n = 0; n < histograms[m].length; n++) {
+                histograms[m][n] += other.histograms[m][n];
+            }
+            for (int h = 0; h < HOURS; h++) {
+                hourSums[m][h] += other.hourSums[m][h];
+                hourCounts[m][h] += other.hourCounts[m][h];
+            }
+        }
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getCount(int metric) {
+        return counts[metric];
+    }
+
+    /**
+     * Returns the mean score of metric, or NaN if it was never detected.
+     */
+    public double getMean(int metric) {
+        return counts[metric] == 0 ? Double.NaN : means[metric];
+    }
+
+    /**
+     * Returns the sample variance of the scores of metric, or NaN if it was detected in fewer than two frames.
+     */
+    public double getVariance(int metric) {
+        return counts[metric] < 2 ? Double.NaN : squaredDifferences[metric] / (counts[metric] - 1);
+    }
+
+    public float getMin(int metric) {
+        return counts[metric] == 0 ? Float.NaN : mins[metric];
+    }
+
+    public float getMax(int metric) {
+        return counts[metric] == 0 ? Float.NaN : maxs[metric];
+    }
+
+    /**
+     * Returns the score below which a fraction quantile of the scores of metric fall, to within half a point,
+     * or NaN if it was never detected.
+     */
+    public float getQuantile(int metric, double quantile) {
+        if (counts[metric] == 0) {
+            return Float.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * counts[metric]));
+        long seen = 0;
+        long[] histogram = histograms[metric];
+        for (int n = 0; n < histogram.length; n++) {
+            seen += histogram[n];
+            if (seen >= rank) {
+                return minScores[metric] + (float) n / BINS_PER_POINT;
+            }
+        }
+        return maxs[metric];
+    }
+
+    /**
+     * Returns the mean score of metric in frames taken during hourOfDay, or NaN if there were none.
+     */
+    public double getHourlyMean(int metric, int hourOfDay) {
+        long count = hourCounts[metric][hourOfDay];
+        return count == 0 ? Double.NaN : hourSums[metric][hourOfDay] / count;
+    }
+
+    /**
+     * Returns the local hour of the day, from 0 to 23, of a wall clock time.
+     */
+    public static int getHourOfDay(long wallClockMillis, TimeZone timeZone) {
+        long localMillis = wallClockMillis + timeZone.getOffset(wallClockMillis);
+        long hour = (localMillis / (60 * 60 * 1000)) % HOURS;
+        return (int) (hour < 0 ? hour + HOURS : hour);
+    }
+
+    private int getBin(int metric, float score) {
+        int bin = Math.round((Math.min(MAX_SCORE, score) - minScores[metric]) * BINS_PER_POINT);
+        return Math.max(0, Math.min(histograms[metric].length - 1, bin));
+    }
+}
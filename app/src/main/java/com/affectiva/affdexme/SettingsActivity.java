@@ -6,12 +6,16 @@
 package com.affectiva.affdexme;
 
 import android.app.ActionBar;
+import android.app.Activity;
+import android.app.AlertDialog;
 import android.graphics.drawable.ColorDrawable;
 import android.os.Bundle;
+import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
 import android.support.v4.content.ContextCompat;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 import java.util.List;
 
@@ -58,6 +62,64 @@ public class SettingsActivity extends PreferenceActivity {
 
             // Load the preferences from an XML resource
             addPreferencesFromResource(R.xml.settings_preferences);
+
+            //The benchmarks are a development tool, so they are only offered in debug builds
+            setUpBenchmark("benchmark_overlay", R.string.benchmark_overlay_title);
+            setUpBenchmark("benchmark_png", R.string.benchmark_png_title);
+            setUpBenchmark("benchmark_score_text", R.string.benchmark_score_text_title);
+            setUpBenchmark("benchmark_session_database", R.string.benchmark_session_database_title);
+            setUpBenchmark("benchmark_face_data_codec", R.string.benchmark_face_data_codec_title);
+            setUpBenchmark("benchmark_session_analytics", R.string.benchmark_session_analytics_title);
+            setUpBenchmark("benchmark_correlation_matrix", R.string.benchmark_correlation_matrix_title);
+            setUpBenchmark("benchmark_metrics_server", R.string.benchmark_metrics_server_title);
+            setUpBenchmark("benchmark_metrics_service", R.string.benchmark_metrics_service_title);
+            setUpBenchmark("benchmark_results_bus", R.string.benchmark_results_bus_title);
+        }
+
+        //the benchmark itself is only created when its preference is clicked, by the debug source set's Benchmarks
+        private void setUpBenchmark(final String key, final int titleResource) {
+            Preference benchmarkPreference = findPreference(key);
+            if (!BuildConfig.DEBUG) {
+                getPreferenceScreen().removePreference(benchmarkPreference);
+            } else {
+                benchmarkPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        Benchmark benchmark = Benchmarks.create(getActivity().getApplicationContext(), key);
+                        if (benchmark != null) {
+                            runBenchmark(titleResource, benchmark);
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+
+        //Benchmarks take a few seconds, so run them on their own thread and show the report when done
+        void runBenchmark(final int titleResource, final Benchmark benchmark) {
+            Toast.makeText(getActivity().getApplicationContext(), R.string.benchmark_running, Toast.LENGTH_SHORT).show();
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final String report = benchmark.run();
+                    final Activity activity = getActivity();
+                    if (activity == null) {
+                        return;
+                    }
+                    activity.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            new AlertDialog.Builder(activity)
+                                    .setTitle(titleResource)
+                                    .setMessage(report)
+                                    .setPositiveButton(android.R.string.ok, null)
+                                    .create()
+                                    .show();
+                        }
+                    });
+                }
+            }, benchmark.getClass().getSimpleName()).start();
         }
     }
 }
\ No newline at end of file
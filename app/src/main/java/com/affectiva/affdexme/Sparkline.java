@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * The recent history of one metric score, downsampled to one point per horizontal pixel of the line it is drawn as.
+ * Samples are downsampled with Largest-Triangle-Three-Buckets (LTTB): the window is cut into buckets of equal
+ * duration, one per pixel, and each bucket keeps the sample forming the largest triangle with the point kept for
+ * the bucket before it and the average of the bucket after it, which preserves the peaks and valleys that plain
+ * averaging would flatten.
+ * Buckets are aligned to time rather than to the oldest sample, so the point of a bucket can be chosen for good as
+ * soon as the bucket after it is complete. Each sample is therefore looked at a fixed number of times, only the
+ * samples of the last two buckets are kept, and nothing is allocated unless the width changes.
+ */
+public class Sparkline {
+
+    static final float WINDOW_SECONDS = 45;
+    private static final int MAX_PENDING_SAMPLES = 256; //samples of the last two buckets
+
+    private final float minValue;
+    private final float maxValue;
+
+    private int width = 0;
+    private int height = 0;
+    private float bucketDuration;
+
+    //points chosen for complete buckets, oldest first, in a ring
+    private float[] pointTimes = new float[0];
+    private float[] pointValues = new float[0];
+    private int pointStart = 0;
+    private int pointCount = 0;
+    private float anchorTime; //the last chosen point, which is kept even after it leaves the window
+    private float anchorValue;
+
+    //samples of the bucket whose point is not chosen yet (previous) and of the bucket being filled (current), in a ring
+    private final float[] sampleTimes = new float[MAX_PENDING_SAMPLES];
+    private final float[] sampleValues = new float[MAX_PENDING_SAMPLES];
+    private int previousStart = 0;
+    private int currentStart = 0;
+    private int sampleEnd = 0;
+    private long currentBucket;
+
+    private boolean hasSample = false;
+    private float latestTime;
+    private float latestValue;
+    private float drawnLatestY = Float.NaN;
+
+    private float[] lines = new float[0]; //reused by draw()
+
+    public Sparkline(float minValue, float maxValue) {
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+    }
+
+    /**
+     * Set the size the line is drawn at. Changing the width changes the buckets, so it forgets the history.
+     */
+    public void setSize(int width, int height) {
+        this.height = height;
+        if (width == this.width) {
+            return;
+        }
+        this.width = width;
+        bucketDuration = WINDOW_SECONDS / Math.max(width, 1);
+        //one point per bucket in the window, plus the partial buckets at either end
+        pointTimes = new float[width + 2];
+        pointValues = new float[width + 2];
+        lines = new float[4 * (width + 3)];
+        clear();
+    }
+
+    public void clear() {
+        hasSample = false;
+        pointStart = 0;
+        pointCount = 0;
+        previousStart = 0;
+        currentStart = 0;
+        sampleEnd = 0;
+        drawnLatestY = Float.NaN;
+    }
+
+    /**
+     * Add a score. Returns true if the line has to be redrawn, which is when it scrolled by a pixel or the latest
+     * score moved by a pixel. NaN scores are ignored, and a timestamp earlier than the latest one, as after the
+     * detector restarts, starts a new history.
+     */
+    public boolean add(float value, float timestamp) {
+        if (Float.isNaN(value) || width <= 0) {
+            return false;
+        }
+        if (hasSample && timestamp < latestTime) {
+            clear();
+        }
+        latestTime = timestamp;
+        latestValue = value;
+
+        long bucket = (long) Math.floor(timestamp / bucketDuration);
+        if (!hasSample) {
+            //LTTB always keeps the first sample
+            hasSample = true;
+            addPoint(timestamp, value);
+            currentBucket = bucket;
+            return true;
+        }
+
+        boolean isScrolled = false;
+        if (bucket != currentBucket) {
+            if (currentStart != previousStart) {
+                int selected = selectPreviousSample();
+                addPoint(sampleTimes[selected], sampleValues[selected]);
+            }
+            previousStart = currentStart;
+            currentStart = sampleEnd;
+            currentBucket = bucket;
+            isScrolled = true;
+        }
+
+        if (sampleEnd - previousStart == MAX_PENDING_SAMPLES) {
+            //more samples than expected in two buckets, the oldest candidate is dropped
+            previousStart++;
+            currentStart = Math.max(currentStart, previousStart);
+        }
+        sampleTimes[sampleEnd % MAX_PENDING_SAMPLES] = timestamp;
+        sampleValues[sampleEnd % MAX_PENDING_SAMPLES] = value;
+        sampleEnd++;
+
+        //forget the points that scrolled out of the window
+        while (pointCount > 0 && pointTimes[pointStart] < timestamp - WINDOW_SECONDS) {
+            pointStart = (pointStart + 1) % pointTimes.length;
+            pointCount--;
+        }
+
+        return isScrolled || Float.isNaN(drawnLatestY) || Math.abs(toY(value) - drawnLatestY) >= 1;
+    }
+
+    /**
+     * Draw the line with its top left corner at (left, top).
+     */
+    public void draw(Canvas canvas, float left, float top, Paint paint) {
+        if (!hasSample || width <= 0) {
+            return;
+        }
+
+        int length = 0;
+        float lastX = 0;
+        float lastY = 0;
+        for (int n = 0; n < pointCount; n++) {
+            int index = (pointStart + n) % pointTimes.length;
+            float x = left + toX(pointTimes[index]);
+            float y = top + toY(pointValues[index]);
+            if (n > 0) {
+                length = addLine(length, lastX, lastY, x, y);
+            }
+            lastX = x;
+            lastY = y;
+        }
+
+        //the bucket before the current one gets its point chosen with what the current bucket has so far
+        if (currentStart != previousStart) {
+            int selected = selectPreviousSample();
+            float x = left + toX(sampleTimes[selected]);
+            float y = top + toY(sampleValues[selected]);
+            if (pointCount > 0) {
+                length = addLine(length, lastX, lastY, x, y);
+            }
+            lastX = x;
+            lastY = y;
+        }
+        //and LTTB always keeps the last sample
+        drawnLatestY = toY(latestValue);
+        if (pointCount > 0 || currentStart != previousStart) {
+            length = addLine(length, lastX, lastY, left + width, top + drawnLatestY);
+        }
+
+        canvas.drawLines(lines, 0, length, paint);
+    }
+
+    /**
+     * Draw the means of the buckets of a MetricHistory query from fromMillis to toMillis across the whole width, in
+     * place of the recent scores, with the top left corner at (left, top). Buckets without a score are skipped, and
+     * so are the oldest buckets if there are more than a point per pixel.
+     */
+    public void drawRollups(Canvas canvas, float left, float top, Paint paint, MetricHistory.Rollups rollups, long fromMillis, long toMillis) {
+        if (width <= 0 || toMillis <= fromMillis) {
+            return;
+        }
+
+        int length = 0;
+        boolean hasPoint = false;
+        float lastX = 0;
+        float lastY = 0;
+        float pixelsPerMilli = (float) width / (toMillis - fromMillis);
+        for (int n = Math.max(0, rollups.size - lines.length / 4); n < rollups.size; n++) {
+            if (rollups.count[n] == 0) {
+                continue;
+            }
+            //the mean of a bucket is drawn at its middle
+            float x = left + Math.max(0, Math.min(width, (rollups.startMillis[n] + rollups.bucketMillis / 2 - fromMillis) * pixelsPerMilli));
+            float y = top + toY(rollups.mean[n]);
+            if (hasPoint) {
+                length = addLine(length, lastX, lastY, x, y);
+            }
+            hasPoint = true;
+            lastX = x;
+            lastY = y;
+        }
+        canvas.drawLines(lines, 0, length, paint);
+    }
+
+    private int addLine(int length, float x0, float y0, float x1, float y1) {
+        lines[length] = x0;
+        lines[length + 1] = y0;
+        lines[length + 2] = x1;
+        lines[length + 3] = y1;
+        return length + 4;
+    }
+
+    private void addPoint(float time, float value) {
+        if (pointCount == pointTimes.length) {
+            pointStart = (pointStart + 1) % pointTimes.length;
+            pointCount--;
+        }
+        int index = (pointStart + pointCount) % pointTimes.length;
+        pointTimes[index] = time;
+        pointValues[index] = value;
+        pointCount++;
+        anchorTime = time;
+        anchorValue = value;
+    }
+
+    /**
+     * Returns the index of the sample of the previous bucket forming the largest triangle with the last chosen
+     * point and the average of the current bucket.
+     */
+    private int selectPreviousSample() {
+        float averageTime = 0;
+        float averageValue = 0;
+        int currentCount = sampleEnd - currentStart;
+        for (int n = currentStart; n < sampleEnd; n++) {
+            averageTime += sampleTimes[n % MAX_PENDING_SAMPLES];
+            averageValue += sampleValues[n % MAX_PENDING_SAMPLES];
+        }
+        if (currentCount > 0) {
+            averageTime /= currentCount;
+            averageValue /= currentCount;
+        } else {
+            averageTime = latestTime;
+            averageValue = latestValue;
+        }
+
+        int selected = previousStart % MAX_PENDING_SAMPLES;
+        float largestArea = -1;
+        for (int n = previousStart; n < currentStart; n++) {
+            int index = n % MAX_PENDING_SAMPLES;
+            //twice the area of the triangle, which picks the same sample
+            float area = Math.abs((anchorTime - averageTime) * (sampleValues[index] - anchorValue)
+                    - (anchorTime - sampleTimes[index]) * (averageValue - anchorValue));
+            if (area > largestArea) {
+                largestArea = area;
+                selected = index;
+            }
+        }
+        return selected;
+    }
+
+    private float toX(float time) {
+        return Math.max(0, width - (latestTime - time) / WINDOW_SECONDS * width);
+    }
+
+    private float toY(float value) {
+        float clamped = Math.max(minValue, Math.min(maxValue, value));
+        return (maxValue - clamped) / (maxValue - minValue) * height;
+    }
+}
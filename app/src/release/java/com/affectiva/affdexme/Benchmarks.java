@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Release builds have no benchmarks; they live in the debug source set.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    @Nullable
+    static Benchmark create(@NonNull Context context, @NonNull String key) {
+        return null;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips of FaceDataCodec, and the malformed streams the Decoder must refuse.
+ */
+public class FaceDataCodecTest {
+
+    private static final float MAX_POINT_ERROR = 0.5f / FaceDataCodec.POINT_SCALE;
+    private static final float MAX_SCORE_ERROR = 0.5f / 2.54f + 0.001f;
+    private static final float MAX_SIGNED_SCORE_ERROR = 0.5f / 1.27f + 0.001f;
+    private static final float ROUNDING = 0.001f; //dequantized bounds may be off by float rounding
+    private static final int POINT_COUNT = 34;
+
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+    private final Random random = new Random(42);
+
+    @Test
+    public void roundTripKeepsEveryFrameWithinTheQuantizationSteps() throws IOException {
+        FaceData[][] frames = new FaceData[50][];
+        for (int n = 0; n < frames.length; n++) {
+            frames[n] = new FaceData[]{createFace(1, 100 + n, 200), createFace(2, 300 - n, 150)};
+        }
+
+        FaceData[][] decoded = roundTrip(frames, 2);
+        for (int n = 0; n < frames.length; n++) {
+            for (int f = 0; f < 2; f++) {
+                assertFaceEquals(frames[n][f], decoded[n][f]);
+            }
+        }
+    }
+
+    @Test
+    public void scoresOutsideTheirRangeAreClamped() throws IOException {
+        FaceData face = createFace(1, 100, 100);
+        face.setScore(MetricsManager.Emotions.JOY, -5);
+        face.setScore(MetricsManager.Emotions.ANGER, 150);
+        face.setScore(MetricsManager.Emotions.FEAR, 0);
+        face.setScore(MetricsManager.Emotions.SADNESS, 100);
+        face.setScore(MetricsManager.Emotions.VALENCE, -150);
+
+        FaceData result = roundTrip(new FaceData[][]{{face}}, 1)[0][0];
+        assertEquals(0, result.getScore(MetricsManager.Emotions.JOY), ROUNDING);
+        assertEquals(100, result.getScore(MetricsManager.Emotions.ANGER), ROUNDING);
+        assertEquals(0, result.getScore(MetricsManager.Emotions.FEAR), ROUNDING);
+        assertEquals(100, result.getScore(MetricsManager.Emotions.SADNESS), ROUNDING);
+        assertEquals(-100, result.getScore(MetricsManager.Emotions.VALENCE), ROUNDING);
+
+        face.setScore(MetricsManager.Emotions.VALENCE, 150);
+        result = roundTrip(new FaceData[][]{{face}}, 1)[0][0];
+        assertEquals(100, result.getScore(MetricsManager.Emotions.VALENCE), ROUNDING);
+    }
+
+    @Test
+    public void negativeValenceKeepsItsSign() throws IOException {
+        float[] valences = {-100, -63.7f, -0.3f, 0, 0.3f, 42.1f};
+        FaceData[][] frames = new FaceData[valences.length][];
+        for (int n = 0; n < valences.length; n++) {
+            FaceData face = createFace(1, 100, 100);
+            face.setScore(MetricsManager.Emotions.VALENCE, valences[n]);
+            frames[n] = new FaceData[]{face};
+        }
+
+        FaceData[][] decoded = roundTrip(frames, 1);
+        for (int n = 0; n < valences.length; n++) {
+            assertEquals(valences[n], decoded[n][0].getScore(MetricsManager.Emotions.VALENCE), MAX_SIGNED_SCORE_ERROR);
+        }
+    }
+
+    @Test
+    public void undetectedMetricsStayNaN() throws IOException {
+        FaceData face = createFace(1, 100, 100);
+        float[] scores = face.getScores();
+        for (int m = 0; m < scores.length; m += 3) {
+            scores[m] = Float.NaN;
+        }
+        scores[scores.length - 1] = Float.NaN; //the highest bit of the mask
+
+        FaceData result = roundTrip(new FaceData[][]{{face}}, 1)[0][0];
+        for (int m = 0; m < scores.length; m++) {
+            assertEquals(metrics[m].toString(), Float.isNaN(scores[m]), Float.isNaN(result.getScores()[m]));
+        }
+        assertFaceEquals(face, result);
+
+        Arrays.fill(scores, Float.NaN);
+        result = roundTrip(new FaceData[][]{{face}}, 1)[0][0];
+        for (float score : result.getScores()) {
+            assertTrue(Float.isNaN(score));
+        }
+    }
+
+    @Test
+    public void facesAreMatchedToThePreviousFrameById() throws IOException {
+        //the faces swap places in the array, one of them is replaced by a new id and one loses points
+        FaceData[][] frames = {
+                {createFace(1, 100, 100), createFace(2, 300, 300)},
+                {createFace(2, 301, 299), createFace(1, 101, 100)},
+                {createFace(3, 301, 299), createFace(1, 102, 101)},
+                {createFace(3, 300, 298), createFace(1, 103, 101)}};
+        frames[3][1].setPointCount(POINT_COUNT / 2);
+        frames[3][0].setId(-7);
+
+        FaceData[][] decoded = roundTrip(frames, 2);
+        for (int n = 0; n < frames.length; n++) {
+            for (int f = 0; f < 2; f++) {
+                assertFaceEquals(frames[n][f], decoded[n][f]);
+            }
+        }
+    }
+
+    @Test
+    public void streamEndingInTheMiddleOfAFrameThrowsEOFException() throws IOException {
+        byte[] stream = encode(new FaceData[][]{{createFace(1, 100, 100)}, {createFace(1, 101, 100)}}, 1);
+        for (int cut = 1; cut <= 20; cut++) {
+            FaceDataCodec.Decoder decoder = new FaceDataCodec.Decoder(new ByteArrayInputStream(Arrays.copyOf(stream, stream.length - cut)));
+            FaceData[] faces = {new FaceData()};
+            assertEquals(1, decoder.readFrame(faces));
+            try {
+                decoder.readFrame(faces);
+                fail("Read a frame cut short by " + cut + " bytes");
+            } catch (EOFException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void endOfStreamBetweenFramesIsNotAnError() throws IOException {
+        byte[] stream = encode(new FaceData[][]{{createFace(1, 100, 100)}}, 1);
+        FaceDataCodec.Decoder decoder = new FaceDataCodec.Decoder(new ByteArrayInputStream(stream));
+        FaceData[] faces = {new FaceData()};
+        assertEquals(1, decoder.readFrame(faces));
+        assertEquals(-1, decoder.readFrame(faces));
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagicNumberIsRefused() throws IOException {
+        byte[] stream = encode(new FaceData[][]{{createFace(1, 100, 100)}}, 1);
+        stream[0] ^= 0x20;
+        new FaceDataCodec.Decoder(new ByteArrayInputStream(stream));
+    }
+
+    @Test(expected = IOException.class)
+    public void frameWithMoreFacesThanRoomIsRefused() throws IOException {
+        byte[] stream = encode(new FaceData[][]{{createFace(1, 100, 100), createFace(2, 200, 200)}}, 2);
+        new FaceDataCodec.Decoder(new ByteArrayInputStream(stream)).readFrame(new FaceData[]{new FaceData()});
+    }
+
+    //a face with an outline of POINT_COUNT points around x, y and a random score for every metric
+    private FaceData createFace(int id, float x, float y) {
+        FaceData face = new FaceData();
+        face.setId(id);
+        face.setPointCount(POINT_COUNT);
+        for (int n = 0; n < POINT_COUNT; n++) {
+            double angle = 2 * Math.PI * n / POINT_COUNT;
+            face.setPoint(n, x + 40 * (float) Math.cos(angle) + random.nextFloat(), y + 50 * (float) Math.sin(angle) + random.nextFloat());
+        }
+        for (int m = 0; m < metrics.length; m++) {
+            face.getScores()[m] = FaceDataCodec.isSigned(metrics[m]) ? random.nextFloat() * 200 - 100 : random.nextFloat() * 100;
+        }
+        face.setAppearance(Face.GENDER.values()[id % Face.GENDER.values().length], id % 2 == 0 ? Face.GLASSES.YES : Face.GLASSES.NO);
+        face.setDominantEmoji(Face.EMOJI.values()[id % Face.EMOJI.values().length]);
+        return face;
+    }
+
+    //frames are taken every 50ms
+    private byte[] encode(FaceData[][] frames, int maxFaces) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FaceDataCodec.Encoder encoder = new FaceDataCodec.Encoder(out);
+        for (int n = 0; n < frames.length; n++) {
+            encoder.writeFrame(n * 0.05f, frames[n], Math.min(frames[n].length, maxFaces));
+        }
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    private FaceData[][] roundTrip(FaceData[][] frames, int maxFaces) throws IOException {
+        FaceDataCodec.Decoder decoder = new FaceDataCodec.Decoder(new ByteArrayInputStream(encode(frames, maxFaces)));
+        FaceData[][] decoded = new FaceData[frames.length][];
+        for (int n = 0; n < frames.length; n++) {
+            decoded[n] = new FaceData[maxFaces];
+            for (int f = 0; f < maxFaces; f++) {
+                decoded[n][f] = new FaceData();
+            }
+            assertEquals(frames[n].length, decoder.readFrame(decoded[n]));
+            assertEquals(n * 0.05f, decoder.getTimestamp(), 0.0005f);
+        }
+        assertEquals(-1, decoder.readFrame(new FaceData[maxFaces]));
+        return decoded;
+    }
+
+    private void assertFaceEquals(FaceData expected, FaceData actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getGender(), actual.getGender());
+        assertEquals(expected.getGlasses(), actual.getGlasses());
+        assertEquals(expected.getDominantEmoji(), actual.getDominantEmoji());
+        assertEquals(expected.getPointCount(), actual.getPointCount());
+        for (int n = 0; n < expected.getPointCount(); n++) {
+            assertEquals(expected.getPointX(n), actual.getPointX(n), MAX_POINT_ERROR);
+            assertEquals(expected.getPointY(n), actual.getPointY(n), MAX_POINT_ERROR);
+        }
+        for (int m = 0; m < metrics.length; m++) {
+            float expectedScore = expected.getScores()[m];
+            float actualScore = actual.getScores()[m];
+            if (Float.isNaN(expectedScore)) {
+                assertTrue(metrics[m].toString(), Float.isNaN(actualScore));
+            } else {
+                float maxError = FaceDataCodec.isSigned(metrics[m]) ? MAX_SIGNED_SCORE_ERROR : MAX_SCORE_ERROR;
+                assertEquals(metrics[m].toString(), expectedScore, actualScore, maxError);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the range queries of MetricHistory against a brute force search of every score added.
+ */
+public class MetricHistoryTest {
+
+    private static final long START_MILLIS = 12345678;
+    private static final long FRAME_MILLIS = 33;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+    private static final int QUERIES = 500;
+    private static final float TOLERANCE = 0.001f;
+
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+    private final List<Long> times = new ArrayList<>();
+    private final List<float[]> frames = new ArrayList<>();
+    private MetricHistory history;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        history = new MetricHistory();
+        random = new Random(7);
+    }
+
+    @Test
+    public void queriesMatchBruteForce() {
+        //ten minutes of frames, with a pause of an hour and a few seconds without faces in between
+        long time = addFrames(START_MILLIS, 5 * 60 * 1000);
+        time = addFrames(time + HOUR_MILLIS, 4 * 60 * 1000);
+        addFrames(time + 5000, 60 * 1000);
+
+        long end = times.get(times.size() - 1);
+        for (int n = 0; n < QUERIES; n++) {
+            long from = START_MILLIS - 60 * 1000 + (long) (random.nextDouble() * (end - START_MILLIS + 120 * 1000));
+            long to = from + (long) (random.nextDouble() * random.nextDouble() * (end - from + 60 * 1000));
+            int maxPoints = 1 + random.nextInt(400);
+            checkQuery(metrics[random.nextInt(metrics.length)], from, to, maxPoints);
+        }
+        checkQuery(metrics[0], START_MILLIS, end, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void pauseStoresNoBuckets() {
+        long time = addFrames(START_MILLIS, 10 * 1000);
+        addFrames(time + 10 * HOUR_MILLIS, 10 * 1000);
+
+        MetricHistory.Rollups rollups = new MetricHistory.Rollups();
+        int size = history.query(metrics[0], START_MILLIS, times.get(times.size() - 1), Integer.MAX_VALUE, rollups);
+        assertEquals(1000, rollups.bucketMillis);
+        assertTrue("only the seconds with faces are stored, got " + size, size <= 22);
+        checkQuery(metrics[0], START_MILLIS, times.get(times.size() - 1), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void earlierScoresAreIgnored() {
+        float[] scores = new float[metrics.length];
+        scores[0] = 10;
+        history.add(scores, START_MILLIS + 5000);
+        scores[0] = 90;
+        history.add(scores, START_MILLIS);
+
+        MetricHistory.Rollups rollups = new MetricHistory.Rollups();
+        assertEquals(1, history.query(metrics[0], 0, START_MILLIS + 10000, 100, rollups));
+        assertEquals(1, rollups.count[0]);
+        assertEquals(10, rollups.max[0], 0);
+    }
+
+    @Test
+    public void clearStartsANewSession() {
+        addFrames(START_MILLIS, 10 * 1000);
+        history.clear();
+        times.clear();
+        frames.clear();
+        assertEquals(-1, history.getStartMillis());
+
+        long start = START_MILLIS + HOUR_MILLIS;
+        long end = addFrames(start, 10 * 1000);
+        assertEquals(start - start % (60 * 1000), history.getStartMillis());
+        checkQuery(metrics[1], START_MILLIS, end, 100);
+    }
+
+    //adds frames every FRAME_MILLIS for durationMillis, some without faces, and returns the time after the last one
+    private long addFrames(long start, long durationMillis) {
+        float[] scores = new float[metrics.length];
+        long time = start;
+        for (; time < start + durationMillis; time += FRAME_MILLIS) {
+            if (random.nextInt(10) == 0) {
+                continue; //no face in this frame
+            }
+            for (int m = 0; m < scores.length; m++) {
+                //the last metrics are never detected, and the others now and then
+                scores[m] = (m >= scores.length - 3 || random.nextInt(20) == 0) ? Float.NaN : random.nextFloat() * 100;
+            }
+            history.add(scores, time);
+            times.add(time);
+            frames.add(scores.clone());
+        }
+        return time;
+    }
+
+    private void checkQuery(MetricsManager.Metrics metric, long from, long to, int maxPoints) {
+        MetricHistory.Rollups rollups = new MetricHistory.Rollups();
+        int size = history.query(metric, from, to, maxPoints, rollups);
+        String query = metric + " from " + from + " to " + to + " in " + maxPoints + " points";
+
+        long expectedBucketMillis = MetricHistory.TIER_MILLIS[MetricHistory.TIER_MILLIS.length - 1];
+        for (long bucketMillis : MetricHistory.TIER_MILLIS) {
+            if ((to - from) / bucketMillis + 1 <= maxPoints) {
+                expectedBucketMillis = bucketMillis;
+                break;
+            }
+        }
+        if (to >= from && !times.isEmpty()) {
+            assertEquals(query, expectedBucketMillis, rollups.bucketMillis);
+        }
+
+        //the whole buckets overlapping the range that received a face, and the scores of the metric added to each of them
+        int metricIndex = MetricsManager.getIndex(metric);
+        long firstStart = from - from % expectedBucketMillis; //the times are always positive here
+        long lastEnd = to - to % expectedBucketMillis + expectedBucketMillis;
+        TreeMap<Long, List<Float>> expected = new TreeMap<>();
+        for (int n = 0; n < times.size(); n++) {
+            long time = times.get(n);
+            if (time < firstStart || time >= lastEnd || to < from) {
+                continue;
+            }
+            long bucketStart = time - time % expectedBucketMillis;
+            List<Float> bucketScores = expected.get(bucketStart);
+            if (bucketScores == null) {
+                bucketScores = new ArrayList<>();
+                expected.put(bucketStart, bucketScores);
+            }
+            float score = frames.get(n)[metricIndex];
+            if (!Float.isNaN(score)) {
+                bucketScores.add(score);
+            }
+        }
+
+        assertEquals(query, expected.size(), size);
+        int n = 0;
+        for (Long bucketStart : expected.keySet()) {
+            List<Float> bucketScores = expected.get(bucketStart);
+            assertEquals(query, (long) bucketStart, rollups.startMillis[n]);
+            assertEquals(query, bucketScores.size(), rollups.count[n]);
+            if (bucketScores.isEmpty()) {
+                assertTrue(query, Float.isNaN(rollups.mean[n]));
+            } else {
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                double sum = 0;
+                for (float score : bucketScores) {
+                    min = Math.min(min, score);
+                    max = Math.max(max, score);
+                    sum += score;
+                }
+                assertEquals(query, min, rollups.min[n], 0);
+                assertEquals(query, max, rollups.max[n], 0);
+                assertEquals(query, (float) (sum / bucketScores.size()), rollups.mean[n], TOLERANCE);
+            }
+            n++;
+        }
+    }
+}
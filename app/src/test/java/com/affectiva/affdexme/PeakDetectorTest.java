@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the hysteresis and spacing of PeakDetector, and what reset() and restart() forget.
+ */
+public class PeakDetectorTest {
+
+    private static final float PROMINENCE = 30;
+    private static final float MIN_SPACING = 5;
+
+    @Test
+    public void heldScoreGivesOnePeak() {
+        PeakDetector detector = new PeakDetector(PROMINENCE, MIN_SPACING);
+        float[] scores = {0, 20, 60, 55, 62, 58, 61, 50, 20, 10};
+        int peaks = 0;
+        for (int n = 0; n < scores.length; n++) {
+            if (detector.update(scores[n], n)) {
+                peaks++;
+                assertEquals(62, detector.getPeakValue(), 0);
+                assertEquals(4, detector.getPeakTimestamp(), 0);
+            }
+        }
+        assertEquals(1, peaks);
+    }
+
+    @Test
+    public void peaksCloserThanTheSpacingAreNotReported() {
+        PeakDetector detector = new PeakDetector(PROMINENCE, MIN_SPACING);
+        assertEquals(1, countPeaks(detector, 0));
+        assertEquals(0, countPeaks(detector, 3)); //peaks 3 seconds after the first
+        assertEquals(1, countPeaks(detector, 10));
+    }
+
+    @Test
+    public void resetKeepsTheSpacingAndRestartDoesNot() {
+        PeakDetector detector = new PeakDetector(PROMINENCE, MIN_SPACING);
+        assertEquals(1, countPeaks(detector, 100));
+
+        //a face that comes back within the spacing
+        detector.reset();
+        assertEquals(0, countPeaks(detector, 102));
+
+        //the camera changed and the timestamps start again from 0, long before the last peak
+        detector.restart();
+        assertEquals(1, countPeaks(detector, 0));
+    }
+
+    //feeds a rise and fall around a single peak, a second after start, and returns the peaks reported
+    private static int countPeaks(PeakDetector detector, float start) {
+        float[] scores = {0, 80, 0};
+        int peaks = 0;
+        for (int n = 0; n < scores.length; n++) {
+            if (detector.update(scores[n], start + n)) {
+                peaks++;
+            }
+        }
+        assertFalse(detector.update(Float.NaN, start + scores.length));
+        assertTrue(peaks <= 1);
+        return peaks;
+    }
+}
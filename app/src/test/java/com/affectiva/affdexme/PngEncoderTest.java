@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Decodes what PngEncoder writes with ImageIO, across stripe boundaries and in odd shapes, and compares encoding
+ * on one thread with encoding on every core at 1080p and 4K.
+ */
+public class PngEncoderTest {
+
+    private static final int[][] SPEED_SIZES = {{1920, 1080}, {3840, 2160}};
+    private static final int SPEED_RUNS = 3; //the fastest run counts, after the JIT has warmed up
+
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("PngEncoderTest", ".png");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void imagesOfManyStripesDecodeIdentically() throws IOException {
+        //with alpha a row of 300 pixels takes 1201 bytes, so stripes end in the middle of the rows
+        checkRoundTrip(300, 1000, true, 4);
+        checkRoundTrip(300, 1000, false, 4);
+        checkRoundTrip(300, 1000, true, 1);
+    }
+
+    @Test
+    public void singleColumnDecodesIdentically() throws IOException {
+        checkRoundTrip(1, 1, true, 4);
+        checkRoundTrip(1, 200000, true, 4); //4 stripes of 5 byte rows
+        checkRoundTrip(1, 200000, false, 3);
+    }
+
+    @Test
+    public void veryWideImageDecodesIdentically() throws IOException {
+        //rows longer than a stripe, so every stripe is a single row primed with the end of the one before
+        checkRoundTrip(100000, 5, true, 4);
+        checkRoundTrip(100000, 1, false, 4);
+    }
+
+    @Test
+    public void combinedAdler32MatchesTheChecksumOfTheWhole() {
+        Random random = new Random(5);
+        int[] lengths = {0, 1, 100, 65520, 65521, 65522, 200000};
+        for (int length1 : lengths) {
+            for (int length2 : lengths) {
+                byte[] data = new byte[length1 + length2];
+                random.nextBytes(data);
+                Adler32 first = new Adler32();
+                first.update(data, 0, length1);
+                Adler32 second = new Adler32();
+                second.update(data, length1, length2);
+                Adler32 whole = new Adler32();
+                whole.update(data, 0, data.length);
+                assertEquals(length1 + " + " + length2, whole.getValue(),
+                        PngEncoder.combineAdler32(first.getValue(), second.getValue(), length2));
+            }
+        }
+
+        //and over many pieces, as the encoder combines its stripes
+        byte[] data = new byte[1000000];
+        random.nextBytes(data);
+        long combined = 1;
+        for (int offset = 0; offset < data.length; offset += 77777) {
+            int length = Math.min(77777, data.length - offset);
+            Adler32 piece = new Adler32();
+            piece.update(data, offset, length);
+            combined = PngEncoder.combineAdler32(combined, piece.getValue(), length);
+        }
+        Adler32 whole = new Adler32();
+        whole.update(data, 0, data.length);
+        assertEquals(whole.getValue(), combined);
+    }
+
+    @Test
+    public void encodingOnEveryCoreWritesTheSameFile() throws IOException {
+        for (int[] size : SPEED_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            PngEncoder.RowSource source = createSource(createImage(width, height, false, 11), width);
+
+            long singleNanos = Long.MAX_VALUE;
+            long parallelNanos = Long.MAX_VALUE;
+            byte[] single = null;
+            byte[] parallel = null;
+            for (int run = 0; run < SPEED_RUNS; run++) {
+                long start = System.nanoTime();
+                new PngEncoder(1).encode(source, width, height, false, file);
+                singleNanos = Math.min(singleNanos, System.nanoTime() - start);
+                single = Files.readAllBytes(file.toPath());
+
+                start = System.nanoTime();
+                new PngEncoder(cores).encode(source, width, height, false, file);
+                parallelNanos = Math.min(parallelNanos, System.nanoTime() - start);
+                parallel = Files.readAllBytes(file.toPath());
+            }
+
+            //the stripes do not depend on the threads that deflate them; the speedup is reported rather than asserted,
+            //since it depends on the cores the tests get
+            assertArrayEquals(single, parallel);
+            System.out.println(String.format(Locale.US, "PngEncoderTest: %dx%d, %d KB, 1 thread %.0f ms, %d threads %.0f ms, %.1fx",
+                    width, height, parallel.length / 1024, singleNanos / 1e6, cores, parallelNanos / 1e6,
+                    (double) singleNanos / parallelNanos));
+        }
+    }
+
+    private void checkRoundTrip(int width, int height, boolean hasAlpha, int threadCount) throws IOException {
+        int[] argb = createImage(width, height, hasAlpha, width + height);
+        new PngEncoder(threadCount).encode(createSource(argb, width), width, height, hasAlpha, file);
+
+        BufferedImage image = ImageIO.read(file);
+        String name = width + "x" + height + (hasAlpha ? " with alpha" : "") + " on " + threadCount + " threads";
+        assertEquals(name, width, image.getWidth());
+        assertEquals(name, height, image.getHeight());
+        int[] decoded = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int n = 0; n < argb.length; n++) {
+            if (decoded[n] != argb[n]) {
+                assertEquals(name + " at " + n % width + ", " + n / width, Integer.toHexString(argb[n]), Integer.toHexString(decoded[n]));
+            }
+        }
+    }
+
+    //smooth gradients with a little noise, which compress a lot like a photo does; opaque unless hasAlpha is set
+    private static int[] createImage(int width, int height, boolean hasAlpha, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(8)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(8)) & 0xFF;
+                int blue = ((x + y) & 0xFF) ^ random.nextInt(4);
+                int alpha = hasAlpha ? (x * 7 + y * 3) & 0xFF : 0xFF;
+                argb[y * width + x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return argb;
+    }
+
+    private static PngEncoder.RowSource createSource(final int[] argb, final int width) {
+        return new PngEncoder.RowSource() {
+            @Override
+            public void getRows(int firstRow, int rowCount, int[] rows) {
+                System.arraycopy(argb, firstRow * width, rows, 0, rowCount * width);
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the policies of ResultsBus consumers, and that a blocking consumer holds the producer up for a bounded time.
+ */
+public class ResultsBusTest {
+
+    private static final int CAPACITY = 8;
+    private static final int FRAMES = 200;
+
+    private final FaceData[] faces = {new FaceData()};
+
+    @Test
+    public void blockingConsumerGetsEveryFrameInOrder() {
+        ResultsBus bus = new ResultsBus(CAPACITY);
+        CountingListener slow = new CountingListener(1);
+        ResultsBus.Consumer consumer = bus.addConsumer("slow", ResultsBus.Policy.BLOCK, slow);
+        bus.start();
+        publishFrames(bus, FRAMES);
+        bus.close();
+
+        assertEquals(FRAMES, slow.handledFrames);
+        assertTrue(slow.isInOrder);
+        assertEquals(0, consumer.getDroppedFrames());
+        assertTrue(consumer.getBlockedFrames() > 0);
+        assertTrue(consumer.getMaxLag() <= CAPACITY);
+    }
+
+    @Test
+    public void stuckBlockingConsumerOnlyDelaysTheProducerForMaxBlockNanos() throws InterruptedException {
+        ResultsBus bus = new ResultsBus(CAPACITY);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingListener stuck = new CountingListener(0) {
+            @Override
+            public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+                super.onResults(sequence, timestamp, timeMillis, faces, faceCount);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ResultsBus.Consumer consumer = bus.addConsumer("stuck", ResultsBus.Policy.BLOCK, stuck);
+        CountingListener other = new CountingListener(0);
+        bus.addConsumer("other", ResultsBus.Policy.BLOCK, other);
+        bus.start();
+
+        //the stuck consumer blocks each publish once the ring is full, for MAX_BLOCK_NANOS and no longer
+        int frames = CAPACITY * 4;
+        long start = System.nanoTime();
+        publishFrames(bus, frames);
+        long publishNanos = System.nanoTime() - start;
+        long blockedFrames = consumer.getBlockedFrames();
+        release.countDown();
+        bus.close();
+
+        assertTrue("blocked " + blockedFrames + " times", blockedFrames > 0);
+        assertTrue("took " + publishNanos / 1000000 + " ms", publishNanos < (blockedFrames + 1) * ResultsBus.MAX_BLOCK_NANOS
+                + TimeUnit.SECONDS.toNanos(1));
+        assertTrue(stuck.isInOrder);
+        assertEquals(frames, stuck.handledFrames + consumer.getDroppedFrames());
+        assertTrue(consumer.getDroppedFrames() > 0);
+        assertEquals(frames, other.handledFrames);
+    }
+
+    @Test
+    public void skippingConsumerOnlyLosesOlderFrames() {
+        ResultsBus bus = new ResultsBus(CAPACITY);
+        CountingListener slow = new CountingListener(2);
+        ResultsBus.Consumer consumer = bus.addConsumer("skipping", ResultsBus.Policy.SKIP_TO_LATEST, slow);
+        bus.start();
+        publishFrames(bus, FRAMES);
+        bus.close();
+
+        assertTrue(slow.isInOrder);
+        assertEquals(FRAMES - 1, slow.lastSequence);
+        assertEquals(FRAMES, slow.handledFrames + consumer.getDroppedFrames());
+    }
+
+    private void publishFrames(ResultsBus bus, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            faces[0].setId(frame);
+            bus.publish(faces, 1, frame / 30f, frame);
+        }
+    }
+
+    /**
+     * Counts the frames it handles and checks that they arrive in order, taking workMillis over each.
+     */
+    private static class CountingListener implements ResultsBus.Listener {
+        final int workMillis;
+        volatile int handledFrames = 0;
+        volatile long lastSequence = -1;
+        volatile boolean isInOrder = true;
+
+        CountingListener(int workMillis) {
+            this.workMillis = workMillis;
+        }
+
+        @Override
+        public void onResults(long sequence, float timestamp, long timeMillis, FaceData[] faces, int faceCount) {
+            isInOrder &= sequence > lastSequence && faceCount == 1 && faces[0].getId() == sequence;
+            lastSequence = sequence;
+            handledFrames++;
+            if (workMillis > 0) {
+                try {
+                    Thread.sleep(workMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import com.affectiva.android.affdex.sdk.detector.Face;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a MetricsServer on a free port and talks to it over localhost, with MetricsStreamClients for what the clients
+ * decode and raw sockets for frames that a well behaved client would never send. MetricsStreamClient is in the debug
+ * source set, so this test only runs against debug builds.
+ */
+public class MetricsServerTest {
+
+    private static final String HOST = "127.0.0.1";
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final float MAX_POINT_ERROR = 0.5f / FaceDataCodec.POINT_SCALE;
+    private static final float MAX_SCORE_ERROR = 0.5f / 1.27f + 0.001f; //half a valence step, with room for float rounding
+    private static final int POINT_COUNT = 34;
+    private static final int FRAMES = 200;
+    private static final int STREAM_FRAMES = 1000;
+    private static final int SLOW_CLIENT_DELAY_MILLIS = 10; //per frame read
+    private static final int SLOW_CLIENT_RECEIVE_BUFFER_BYTES = 4096;
+
+    private final MetricsManager.Metrics[] metrics = MetricsManager.getAllMetrics();
+    private final FaceData[] faces = {new FaceData()};
+    private MetricsServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MetricsServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void clientsDecodeWhatWasSent() throws IOException {
+        MetricsStreamClient client = new MetricsStreamClient(HOST, server.getPort(), 0);
+        try {
+            waitForClients(1);
+            checkFrames(client, null);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void subscriptionFiltersMetricsAndPoints() throws IOException {
+        MetricsStreamClient client = new MetricsStreamClient(HOST, server.getPort(), 0);
+        try {
+            assertEquals("ok", client.command("metrics joy,smile"));
+            assertEquals("ok", client.command("points off"));
+            waitForClients(1);
+            checkFrames(client, "metrics joy,smile");
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void slowClientOnlyLosesOldFrames() throws IOException, InterruptedException {
+        createFace(faces[0], 1, new Random(42));
+        final float lastTimestamp = (STREAM_FRAMES - 1) / 1000f;
+        ClientReader fast = new ClientReader(new MetricsStreamClient(HOST, server.getPort(), 0), lastTimestamp, 0);
+        ClientReader slow = new ClientReader(new MetricsStreamClient(HOST, server.getPort(), SLOW_CLIENT_RECEIVE_BUFFER_BYTES),
+                lastTimestamp, SLOW_CLIENT_DELAY_MILLIS);
+        waitForClients(2);
+        fast.start();
+        slow.start();
+
+        //a frame every millisecond, far more than the slow client can read
+        long start = System.nanoTime();
+        for (int frame = 0; frame < STREAM_FRAMES; frame++) {
+            server.broadcast(frame / 1000f, faces, 1);
+            long next = start + (frame + 1) * 1000000L;
+            while (System.nanoTime() < next) {
+                Thread.sleep(0, 100000);
+            }
+        }
+        fast.join();
+        slow.join();
+
+        assertNull(fast.error);
+        assertNull(slow.error);
+        assertEquals(STREAM_FRAMES, fast.frameCount);
+        assertTrue(fast.isInOrder);
+        assertTrue("the slow client got " + slow.frameCount + " frames", slow.frameCount < STREAM_FRAMES);
+        assertTrue(slow.isInOrder);
+        assertEquals(lastTimestamp, slow.lastTimestamp, 0);
+        assertTrue(server.getDroppedFrames() > 0);
+    }
+
+    @Test
+    public void negative64BitLengthIsAProtocolError() throws IOException {
+        //a 127 length followed by 8 bytes with the top bit set, which used to throw NegativeArraySizeException
+        byte[] frame = {(byte) (0x80 | MetricsServer.OPCODE_TEXT), (byte) (0x80 | 127),
+                (byte) 0x80, 0, 0, 0, 0, 0, 0, 1, 1, 2, 3, 4};
+        assertEquals(MetricsServer.CLOSE_PROTOCOL_ERROR, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    @Test
+    public void lengthAboveTheMessageLimitIsTooBig() throws IOException {
+        int length = MetricsServer.MAX_MESSAGE_BYTES + 1;
+        byte[] frame = {(byte) (0x80 | MetricsServer.OPCODE_TEXT), (byte) (0x80 | 126),
+                (byte) (length >> 8), (byte) length, 1, 2, 3, 4};
+        assertEquals(MetricsServer.CLOSE_TOO_BIG, sendRawFrame(frame));
+
+        //a huge 64 bit length must not be read either
+        frame = new byte[]{(byte) (0x80 | MetricsServer.OPCODE_BINARY), (byte) (0x80 | 127),
+                0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3, 4};
+        assertEquals(MetricsServer.CLOSE_TOO_BIG, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    @Test
+    public void controlFrameLongerThan125BytesIsAProtocolError() throws IOException {
+        byte[] frame = new byte[4 + 4 + 126];
+        frame[0] = (byte) (0x80 | MetricsServer.OPCODE_PING);
+        frame[1] = (byte) (0x80 | 126);
+        frame[2] = 0;
+        frame[3] = 126;
+        assertEquals(MetricsServer.CLOSE_PROTOCOL_ERROR, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    @Test
+    public void fragmentedControlFrameIsAProtocolError() throws IOException {
+        byte[] frame = {(byte) MetricsServer.OPCODE_PING, (byte) 0x80, 1, 2, 3, 4};
+        assertEquals(MetricsServer.CLOSE_PROTOCOL_ERROR, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    @Test
+    public void continuationWithoutAMessageIsAProtocolError() throws IOException {
+        byte[] frame = {(byte) (0x80 | MetricsServer.OPCODE_CONTINUATION), (byte) 0x80, 1, 2, 3, 4};
+        assertEquals(MetricsServer.CLOSE_PROTOCOL_ERROR, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    @Test
+    public void unmaskedFrameIsAProtocolError() throws IOException {
+        byte[] frame = {(byte) (0x80 | MetricsServer.OPCODE_TEXT), 2, 'h', 'i'};
+        assertEquals(MetricsServer.CLOSE_PROTOCOL_ERROR, sendRawFrame(frame));
+        assertServerStillAccepts();
+    }
+
+    //broadcasts FRAMES frames one at a time and checks each against what the client decodes, with subscription as its command, or every metric and the points if null
+    private void checkFrames(MetricsStreamClient client, String subscription) throws IOException {
+        Random random = new Random(7);
+        FaceData[] received = {new FaceData()};
+        for (int frame = 0; frame < FRAMES; frame++) {
+            FaceData sent = createFace(faces[0], frame % 3, random);
+            float timestamp = frame / 20f;
+            server.broadcast(timestamp, faces, 1);
+            assertEquals(1, client.readFrame(received));
+            assertEquals(timestamp, client.getTimestamp(), 0);
+
+            FaceData decoded = received[0];
+            assertEquals(sent.getId(), decoded.getId());
+            assertEquals(sent.getDominantEmoji(), decoded.getDominantEmoji());
+            assertEquals(subscription == null ? sent.getPointCount() : 0, decoded.getPointCount());
+            for (int n = 0; n < decoded.getPointCount(); n++) {
+                assertEquals(sent.getPointX(n), decoded.getPointX(n), MAX_POINT_ERROR);
+                assertEquals(sent.getPointY(n), decoded.getPointY(n), MAX_POINT_ERROR);
+            }
+            for (int m = 0; m < metrics.length; m++) {
+                float sentScore = sent.getScores()[m];
+                float decodedScore = decoded.getScores()[m];
+                boolean isExpected = !Float.isNaN(sentScore)
+                        && (subscription == null || subscription.contains(MetricsManager.getLowerCaseName(metrics[m])));
+                if (isExpected) {
+                    assertEquals(metrics[m].toString(), sentScore, decodedScore, MAX_SCORE_ERROR);
+                } else {
+                    assertTrue(metrics[m].toString(), Float.isNaN(decodedScore));
+                }
+            }
+        }
+    }
+
+    //an outline of POINT_COUNT points and a score for most metrics, with a few left undetected
+    private FaceData createFace(FaceData face, int id, Random random) {
+        face.setId(id);
+        face.setPointCount(POINT_COUNT);
+        float x = 100 + 300 * random.nextFloat();
+        float y = 100 + 400 * random.nextFloat();
+        for (int n = 0; n < POINT_COUNT; n++) {
+            double angle = 2 * Math.PI * n / POINT_COUNT;
+            face.setPoint(n, x + 40 * (float) Math.cos(angle), y + 50 * (float) Math.sin(angle));
+        }
+        for (int m = 0; m < metrics.length; m++) {
+            face.getScores()[m] = random.nextInt(10) == 0 ? Float.NaN
+                    : FaceDataCodec.isSigned(metrics[m]) ? random.nextFloat() * 200 - 100 : random.nextFloat() * 100;
+        }
+        face.setAppearance(Face.GENDER.values()[id % Face.GENDER.values().length], Face.GLASSES.NO);
+        face.setDominantEmoji(Face.EMOJI.values()[id % Face.EMOJI.values().length]);
+        return face;
+    }
+
+    //the server opens and closes connections on its own threads, a little after the clients do
+    private void waitForClients(int count) throws IOException {
+        long deadline = System.currentTimeMillis() + MetricsServer.HANDSHAKE_TIMEOUT_MILLIS;
+        while (server.getClientCount() != count) {
+            assertTrue("expected " + count + " clients instead of " + server.getClientCount(), System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+
+    //connects with a raw socket, sends frame after the handshake and returns the status code of the close frame the server answers with
+    private int sendRawFrame(byte[] frame) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(HOST, server.getPort()), READ_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET / HTTP/1.1\r\nHost: " + HOST + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(ISO_8859_1));
+            output.flush();
+            String response = readResponseHeader(input);
+            assertTrue(response, response.startsWith("HTTP/1.1 101"));
+
+            output.write(frame);
+            output.flush();
+
+            byte[] close = new byte[4];
+            MetricsServer.readFully(input, close, close.length);
+            assertEquals(0x80 | MetricsServer.OPCODE_CLOSE, close[0] & 0xFF);
+            assertEquals(2, close[1]);
+            assertEquals(-1, input.read()); //and the connection is closed
+            return ((close[2] & 0xFF) << 8) | (close[3] & 0xFF);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String readResponseHeader(InputStream input) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        String text = "";
+        while (!text.endsWith("\r\n\r\n")) {
+            int b = input.read();
+            if (b < 0) {
+                break;
+            }
+            response.write(b);
+            text = new String(response.toByteArray(), ISO_8859_1);
+        }
+        return text;
+    }
+
+    private void assertServerStillAccepts() throws IOException {
+        MetricsStreamClient client = new MetricsStreamClient(HOST, server.getPort(), 0);
+        try {
+            assertEquals("ok", client.command("points off"));
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Reads frames on its own thread until the last one, pausing after each.
+     */
+    private static class ClientReader extends Thread {
+        final MetricsStreamClient client;
+        final float lastTimestampExpected;
+        final int delayMillis;
+        int frameCount = 0;
+        float lastTimestamp = -1;
+        boolean isInOrder = true;
+        String error = null;
+
+        ClientReader(MetricsStreamClient client, float lastTimestampExpected, int delayMillis) {
+            super("MetricsServerTest client");
+            this.client = client;
+            this.lastTimestampExpected = lastTimestampExpected;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public void run() {
+            FaceData[] received = {new FaceData()};
+            try {
+                while (lastTimestamp < lastTimestampExpected) {
+                    if (client.readFrame(received) < 0) {
+                        error = "connection closed";
+                        return;
+                    }
+                    isInOrder &= client.getTimestamp() > lastTimestamp;
+                    lastTimestamp = client.getTimestamp();
+                    frameCount++;
+                    if (delayMillis > 0) {
+                        Thread.sleep(delayMillis);
+                    }
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+            } catch (InterruptedException e) {
+                error = "interrupted";
+            } finally {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs OverlayRenderBenchmark under Robolectric, which loads the app's resources but only records what is drawn on
+ * a Canvas. The frame times are then the cost of OverlayRenderer's own work per frame, the layout of the faces,
+ * markers and text, without the rasterizing a device does, and the allocations are those of the test's thread,
+ * which the JVM counts. Times depend on the machine, so they are only checked for consistency; the draw calls are
+ * what is checked against the layers. OverlayRenderBenchmark is in the debug source set, so this test only runs
+ * against debug builds.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OverlayRenderTest {
+
+    @Test
+    public void everyCaseIsMeasured() {
+        List<OverlayRenderBenchmark.Result> results = new OverlayRenderBenchmark(RuntimeEnvironment.application).measure();
+        assertEquals(OverlayRenderBenchmark.FACE_COUNTS.length * 2, results.size());
+
+        int n = 0;
+        for (int faceCount : OverlayRenderBenchmark.FACE_COUNTS) {
+            for (boolean layersEnabled : new boolean[]{true, false}) {
+                OverlayRenderBenchmark.Result result = results.get(n++);
+                String name = result.toString();
+                assertEquals(name, faceCount, result.faceCount);
+                assertEquals(name, layersEnabled, result.layersEnabled);
+                assertTrue(name, 0 <= result.p50Millis && result.p50Millis <= result.p90Millis);
+                assertTrue(name, result.p90Millis <= result.p99Millis && result.p99Millis <= result.maxMillis);
+                assertTrue(name, result.allocatedBytesPerFrame >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void drawCallsFollowTheLayers() {
+        List<OverlayRenderBenchmark.Result> results = new OverlayRenderBenchmark(RuntimeEnvironment.application).measure();
+        for (int n = 0; n < results.size(); n += 2) {
+            OverlayRenderBenchmark.Result layersOn = results.get(n);
+            OverlayRenderBenchmark.Result layersOff = results.get(n + 1);
+            int faceCount = layersOn.faceCount;
+
+            //without the layers, a single face draws nothing and several draw at most a label, bar and score each
+            if (faceCount == 1) {
+                assertEquals(layersOff.toString(), 0, layersOff.drawCallsPerFrame);
+            } else {
+                assertTrue(layersOff.toString(), layersOff.drawCallsPerFrame <= 3 * faceCount);
+            }
+            //the layers add a dot per tracking point and a bounding box for each face, and the markers
+            assertTrue(layersOn.toString(), layersOn.drawCallsPerFrame
+                    >= layersOff.drawCallsPerFrame + faceCount * (OverlayRenderBenchmark.POINTS_PER_FACE + 1));
+        }
+    }
+}
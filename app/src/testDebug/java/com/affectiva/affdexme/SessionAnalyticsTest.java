@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2016 Affectiva Inc.
+ * See the file license.txt for copying permission.
+ */
+
+package com.affectiva.affdexme;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs SessionAnalytics over generated sessions and checks that splitting the work between threads does not change
+ * the results. SyntheticFrameSource is in the debug source set, so this test only runs against debug builds.
+ */
+public class SessionAnalyticsTest {
+
+    private static final int SESSIONS = 37; //not a multiple of the number of chunks
+    private static final int FRAMES_PER_SESSION = 30 * SyntheticFrameSource.FRAMES_PER_SECOND;
+    private static final long FIRST_SESSION_MILLIS = 1451606400000L; //January 1st 2016
+    private static final int[] THREAD_COUNTS = {2, 3, 4, 8, 64};
+
+    private final float[] minScores = SessionAnalytics.getMinScores();
+    private final TimeZone timeZone = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void parallelResultsEqualSingleThreadedOnes() throws IOException {
+        FrameSource source = new SyntheticFrameSource(SESSIONS, FRAMES_PER_SESSION, minScores, FIRST_SESSION_MILLIS, 42);
+        SessionStatistics single = new SessionAnalytics(1, minScores, timeZone).analyze(source).getStatistics();
+        assertEquals((long) SESSIONS * FRAMES_PER_SESSION, single.getFrameCount());
+
+        for (int threadCount : THREAD_COUNTS) {
+            SessionStatistics parallel = new SessionAnalytics(threadCount, minScores, timeZone).analyze(source).getStatistics();
+            assertSameStatistics(threadCount + " threads", single, parallel);
+        }
+    }
+
+    @Test
+    public void singleThreadedResultsMatchOneStatisticsOfEveryFrame() throws IOException {
+        FrameSource source = new SyntheticFrameSource(5, FRAMES_PER_SESSION, minScores, FIRST_SESSION_MILLIS, 7);
+        final SessionStatistics expected = new SessionStatistics(minScores);
+        for (int session = 0; session < source.getSessionCount(); session++) {
+            source.read(session, new FrameSource.Sink() {
+                @Override
+                public void onFrame(long wallClockMillis, float[] scores) {
+                    expected.add(scores, SessionStatistics.getHourOfDay(wallClockMillis, timeZone));
+                }
+            });
+        }
+
+        assertSameStatistics("1 thread", expected, new SessionAnalytics(1, minScores, timeZone).analyze(source).getStatistics());
+        assertSameStatistics("4 threads", expected, new SessionAnalytics(4, minScores, timeZone).analyze(source).getStatistics());
+    }
+
+    @Test
+    public void readErrorsReachTheCaller() {
+        FrameSource failing = new FrameSource() {
+            @Override
+            public int getSessionCount() {
+                return 10;
+            }
+
+            @Override
+            public void read(int index, Sink sink) throws IOException {
+                if (index == 7) {
+                    throw new IOException("Session 7 is unreadable");
+                }
+            }
+        };
+        for (int threadCount : new int[]{1, 4}) {
+            try {
+                new SessionAnalytics(threadCount, minScores, timeZone).analyze(failing);
+                fail("The read error was lost with " + threadCount + " threads");
+            } catch (IOException e) {
+                assertEquals("Session 7 is unreadable", e.getMessage());
+            }
+        }
+    }
+
+    //the same frames merged in a different order give the same counts, and means equal up to rounding
+    private static void assertSameStatistics(String name, SessionStatistics expected, SessionStatistics actual) {
+        assertEquals(name, expected.getFrameCount(), actual.getFrameCount());
+        for (int m = 0; m < MetricsManager.getAllMetrics().length; m++) {
+            String metric = name + ", " + MetricsManager.getAllMetrics()[m];
+            assertEquals(metric, expected.getCount(m), actual.getCount(m));
+            assertEquals(metric, expected.getMean(m), actual.getMean(m), 1e-6);
+            assertEquals(metric, expected.getVariance(m), actual.getVariance(m), 1e-4);
+            assertEquals(metric, expected.getMin(m), actual.getMin(m), 0);
+            assertEquals(metric, expected.getMax(m), actual.getMax(m), 0);
+            for (double quantile : new double[]{0.1, 0.5, 0.9}) {
+                assertEquals(metric, expected.getQuantile(m, quantile), actual.getQuantile(m, quantile), 0);
+            }
+            for (int h = 0; h < SessionStatistics.HOURS; h++) {
+                double expectedMean = expected.getHourlyMean(m, h);
+                double actualMean = actual.getHourlyMean(m, h);
+                assertEquals(metric + " at " + h, Double.isNaN(expectedMean), Double.isNaN(actualMean));
+                if (!Double.isNaN(expectedMean)) {
+                    assertEquals(metric + " at " + h, expectedMean, actualMean, 1e-6);
+                }
+            }
+        }
+    }
+}